@@ -40,10 +40,9 @@ import java.time.*;
 import java.time.format.*;
 import java.util.*;
 import java.text.SimpleDateFormat;
-import java.nio.file.*;
-import java.util.stream.Collectors;
 
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.DayIndex;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.zone.ZoneConfig; // Config to be passed to Zone
@@ -227,7 +226,7 @@ public class BatcherWorker extends AbstractVerticle {
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": processing date "+yyyymmdd);
 
                 // iterate through current bin file directory, (will skip if if doesn't exist)
-                process_bin_dir(next_start_ts, finish_ts, TFC_DATA_BIN+"/"+yyyymmdd);
+                process_bin_dir(next_start_ts, finish_ts, TFC_DATA_BIN+"/"+yyyymmdd, yyyymmdd);
                 
                 ZonedDateTime next_day = zoned_datetime.plusDays(1L).withHour(0).withMinute(0).withSecond(0); // add a day
 
@@ -240,72 +239,64 @@ public class BatcherWorker extends AbstractVerticle {
     } // end process_bin_files()
 
     // iterate through bin files in directory <bin_path>
-    void process_bin_dir(long start_ts, Long finish_ts, String bin_path) throws Exception
+    void process_bin_dir(long start_ts, Long finish_ts, String bin_path, String yyyymmdd) throws Exception
     {
 
         //logger.log(Constants.LOG_DEBUG, "BatcherWorker."+MODULE_ID+" processing "+bin_path);
 
-        List<Path> file_paths;
+        // load the day's sorted file index (rebuilt from the directory listing if no index file)
+        DayIndex index;
         
         try {
-              file_paths = Files.walk(Paths.get(bin_path))
-                .filter(Files::isRegularFile)
-                .collect(Collectors.toList());
+              index = DayIndex.load_blocking(bin_path, null);
         } catch (Exception e) {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_dir skipping dir "+bin_path);
-            return;
+              index = null;
         }
+
+        if (index == null)
+            {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_dir skipping dir "+bin_path);
+                return;
+            }
         
-        Collections.sort(file_paths);
-        
-        file_paths.forEach(file_path -> {
-        
-                // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
-                // with the hh_mm_ss in local time
+        // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
+        // with the hh_mm_ss in local time
 
-                // get UTC timestamp from filename
-                Long file_ts = get_ts(file_path.toString());
-                
-                if (start_ts < file_ts && finish_ts > file_ts)
+        // process the files with start_ts < file_ts < finish_ts
+        for (int i = index.first_after(start_ts); i < index.size() && index.ts(i) < finish_ts; i++)
+            {
+                try
                     {
-                        try
-                            {
-                                process_gtfs_file(file_path);
-                            }
-                        catch (Exception e)
-                            {
-                                System.err.println(MODULE_NAME+"."+MODULE_ID+
-                                                       ": process_gtfs_file exception "+file_path.toString());
-                            }
+                        process_gtfs_file(bin_path+"/"+index.filename(i), index.basename(i), yyyymmdd);
                     }
-        
-            });
+                catch (Exception e)
+                    {
+                        System.err.println(MODULE_NAME+"."+MODULE_ID+
+                                               ": process_gtfs_file exception "+bin_path+"/"+index.filename(i));
+                    }
+            }
         
       } // end process_gtfs_dir()
 
     // process single gtfs binary file
-    void process_gtfs_file(Path file_path) throws Exception
+    void process_gtfs_file(String file_path, String basename, String yyyymmdd) throws Exception
     {
         Buffer file_data;
         
         // Read the file
         try
             {
-                file_data = vertx.fileSystem().readFileBlocking(file_path.toString());
+                file_data = vertx.fileSystem().readFileBlocking(file_path);
             }
         catch (Exception e)
             {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": error reading "+file_path.toString());
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": error reading "+file_path);
                 e.printStackTrace();
                 return;
             }
 
         try
         {
-            String fs = file_path.toString();
-            String basename = get_basename(fs);
-            String yyyymmdd = get_date(fs);
-
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": processing gtfs file "+yyyymmdd+"/"+basename);
 
             JsonObject msg = GTFS.buf_to_json(file_data, basename, yyyymmdd);
@@ -334,49 +325,11 @@ public class BatcherWorker extends AbstractVerticle {
           //logger.log(Constants.LOG_DEBUG, "BatcherWorker: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
         } catch (Exception e)
         {
-            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing gtfs file "+file_path.toString());
+            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing gtfs file "+file_path);
         }
         
     } // end process_gtfs_file()
   
-    // pick out the Long timestamp embedded in the file name
-    // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
-    Long get_ts(String fs)
-    {
-        // starting char index of timestamp (either index after last '/', or 0)
-        int ts_start = fs.lastIndexOf('/') + 1;
-
-        // length of utc timestamp e.g. "1457334014" = 10
-        int ts_length = fs.lastIndexOf('_') - ts_start;
-
-        // extract substring i.e. "1457334014"
-        String ts_string = fs.substring(ts_start, ts_start+ts_length);
-        
-        return Long.parseLong(ts_string);
-    }
-
-    // get base filename from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "1457334014_2016-03-07-07-00-14"
-    String get_basename(String fs)
-    {
-        String[] parts = fs.split("/");
-
-        String filename_bin = parts[parts.length - 1];
-
-        int dot_index = filename_bin.lastIndexOf('.');
-
-        return filename_bin.substring(0, dot_index);
-    }
-
-    // get YYYY/MM/DD from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "2016/03/07"
-    String get_date(String fs)
-    {
-        String [] parts = fs.split("/");
-        return parts[parts.length-4]+"/"+parts[parts.length-3]+"/"+parts[parts.length-2];
-    }
-
-    
     // Load initialization global constants defining this Zone from config()
     private boolean get_config()
     {
@@ -74,6 +74,8 @@ public class DataServer extends AbstractVerticle {
     
     public String DATA_PATH; // from config() base filesystem path to data
 
+    public JsonArray SENSOR_FEEDS; // from config(), feeds whose latest sensor messages are served by SensorAPI
+
     public String FEED_ID = "vix"; //debug until we manage alternative feeds properly
     
     // Globals
@@ -145,6 +147,8 @@ public class DataServer extends AbstractVerticle {
     FeedAPI feed_api = new FeedAPI(vertx, this, router);
     
     AQAPI aq_api = new AQAPI(vertx, this, router);
+
+    SensorAPI sensor_api = new SensorAPI(vertx, this, router);
     
     // **************************************
     // **************************************
@@ -268,6 +272,9 @@ public class DataServer extends AbstractVerticle {
                 return false;
             }
 
+        // feeds (eventbus address and optional snapshot file) of the sensors served by SensorAPI
+        SENSOR_FEEDS = config().getJsonArray(MODULE_NAME+".sensor_feeds", new JsonArray());
+
         // where the built-in webserver will find static files
         GOOGLE_MAP_API_KEY = config().getString(MODULE_NAME+".google_map_api_key");
         if (GOOGLE_MAP_API_KEY==null)
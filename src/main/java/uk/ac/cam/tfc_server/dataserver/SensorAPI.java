@@ -0,0 +1,140 @@
+package uk.ac.cam.tfc_server.dataserver;
+
+// SensorAPI.java
+//
+// serves the latest reading of each sensor via http / json (/api/dataserver/sensor/...)
+// E.g.
+//   /api/dataserver/sensor/latest/0018b2000000113e
+//   /api/dataserver/sensor/list
+//
+// The latest messages are held in memory (see util/LatestValues.java), from the eventbus addresses
+// of the feeds in config dataserver.sensor_feeds, e.g.
+//   "dataserver.sensor_feeds": [ { "address":   "tfc.everynet_feed.A",
+//                                  "snapshots": [ "/home/ijl20/everynet_data/data_monitor/ascii_hex_latest_uplinks.json" ] } ]
+// where the optional "snapshots" are the periodic snapshot files written by the feeds publishing to
+// that address (EverynetFeed), read once at startup so the latest values are available before new
+// messages arrive.
+// The messages are keyed by their "sensor_id" (for EverynetFeed, the dev_eui).
+//
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.LatestValues;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+
+public class SensorAPI {
+
+    private DataServer parent;
+
+    private LatestValues latest = new LatestValues(); // latest message by sensor_id
+
+    public SensorAPI(Vertx vertx, DataServer caller, Router router)
+    {
+	parent = caller;
+
+	parent.logger.log(Constants.LOG_INFO, parent.MODULE_NAME+"."+parent.MODULE_ID+": SensorAPI started");
+
+        for (int i=0; i<parent.SENSOR_FEEDS.size(); i++)
+            {
+                subscribe(vertx, parent.SENSOR_FEEDS.getJsonObject(i));
+            }
+
+        // SENSOR LATEST API e.g. /api/dataserver/sensor/latest/<sensor_id>
+        // Will return the most recent message received for the sensor
+        router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+
+                                     "/sensor/latest/:sensorid").handler( ctx -> {
+                String sensor_id =  ctx.request().getParam("sensorid");
+                parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                           ": API sensor/latest/"+sensor_id);
+
+                JsonObject msg = latest.get(sensor_id);
+                if (msg == null)
+                {
+                    ctx.response().setStatusCode(404).end();
+                    return;
+                }
+                serve_json(ctx, msg);
+            });
+
+        // SENSOR LIST API e.g. /api/dataserver/sensor/list
+        // Will return the latest message of every sensor
+        router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/sensor/list").handler( ctx -> {
+                parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                           ": API sensor/list");
+
+                serve_json(ctx, latest.to_json());
+            });
+    }
+
+    // keep the latest message of each sensor from the feed given in 'feed_config'
+    private void subscribe(Vertx vertx, JsonObject feed_config)
+    {
+        String address = feed_config.getString("address");
+        if (address == null)
+        {
+            Log.log_err(parent.MODULE_NAME+"."+parent.MODULE_ID+": SensorAPI sensor_feeds entry without address");
+            return;
+        }
+
+        vertx.eventBus().consumer(address, message -> {
+                JsonObject msg = PositionBatch.json_body(message.body());
+                String sensor_id = msg.getString("sensor_id");
+                if (sensor_id != null)
+                {
+                    latest.put(sensor_id, msg);
+                }
+            });
+
+        // start with the values in the feeds' latest snapshots (any received meanwhile are newer)
+        JsonArray snapshots = feed_config.getJsonArray("snapshots", new JsonArray());
+        for (int i=0; i<snapshots.size(); i++)
+        {
+            String snapshot = snapshots.getString(i);
+            vertx.fileSystem().readFile(snapshot, res -> {
+                    if (res.succeeded())
+                    {
+                        try
+                        {
+                            latest.load(new JsonObject(res.result().toString()));
+                            parent.logger.log(Constants.LOG_INFO, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                                              ": SensorAPI loaded "+snapshot+", "+latest.size()+" sensors");
+                        }
+                        catch (Exception e)
+                        {
+                            parent.logger.log(Constants.LOG_WARN, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                                              ": SensorAPI bad snapshot "+snapshot+" "+e.getMessage());
+                        }
+                    }
+                    else
+                    {
+                        parent.logger.log(Constants.LOG_WARN, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                                          ": SensorAPI could not read snapshot "+snapshot);
+                    }
+                });
+        }
+
+        parent.logger.log(Constants.LOG_INFO, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                          ": SensorAPI subscribed to "+address);
+    }
+
+    // serve 'request_data' in the api JSON message
+    void serve_json(RoutingContext ctx, JsonObject request_data)
+    {
+        HttpServerResponse response = ctx.response();
+        response.putHeader("content-type", "text/plain");
+
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", parent.MODULE_NAME);
+        jo.put("module_id", parent.MODULE_ID);
+        jo.put("request_data", request_data);
+        response.end(jo.toString());
+    }
+}
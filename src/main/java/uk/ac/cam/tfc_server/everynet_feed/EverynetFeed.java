@@ -7,19 +7,33 @@ package uk.ac.cam.tfc_server.everynet_feed;
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Receives data via POST on 'module_name/module_id/feed_id'
+// or a batch of uplinks (JSON array or newline-delimited JSON) on 'module_name/module_id/feed_id/batch'
 //
 //
 // Will WRITE the raw binary post data into:
-//   TFC_DATA_MONITOR/<filename>
-//   TFC_DATA_BIN/YYYY/MM/DD/<filename>
+//   TFC_DATA_BIN/<dev_eui>/YYYY/MM/DD/<filename>
 //
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+//
+// The latest uplink message of each device is kept in memory and written every
+// everynet_feed.snapshot_period seconds (if changed) as a single snapshot file,
+// TFC_DATA_MONITOR/<feed_id>_latest_uplinks.json (see util/LatestValues.java), rather than as a file per uplink in
+// TFC_DATA_MONITOR/<dev_eui> (still available with "monitor_files": true in the feed config).
 //
 // Config values are read from provided vertx config() json file, e.g. see README.md
 //
 // Will publish the feed data as a JSON string on eventbus.
 //
+// The uplink payload is decoded by the PayloadDecoder for the feed msg_type, or for the device if
+// given in the feed "decoders" config, compiled once per feed at startup (see PayloadDecoders.java).
+//
+// Feeds with "dedup": true skip the parse and publish of an exact repeat of a recent payload
+// (and the archive write too, with "dedup_skip_archive": true), see util/FeedDedup.java.
+//
+// Feeds with "gateway_dedup": true publish one message for each LoRaWAN frame (dev_eui, counter_up)
+// however many gateways it was received through, held for everynet_feed.gateway_window milliseconds
+// to collect the "radio" metadata of each gateway copy into its "gateways" array (see UplinkDedup.java).
+//
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -53,9 +67,14 @@ import java.time.format.*;
 import java.util.*;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.nio.charset.StandardCharsets;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.ArchiveWriter;
+import uk.ac.cam.tfc_server.util.BatchReader;
+import uk.ac.cam.tfc_server.util.FeedDedup;
+import uk.ac.cam.tfc_server.util.LatestValues;
 import uk.ac.cam.tfc_server.util.Constants;
 
 public class EverynetFeed extends AbstractVerticle {
@@ -73,9 +92,18 @@ public class EverynetFeed extends AbstractVerticle {
     
     public int LOG_LEVEL; // optional in config(), defaults to Constants.LOG_INFO
 
+    private int DEDUP_WINDOW;         // config <module_name>.dedup_window, recent payloads compared per feed, default 1
+
     private int HTTP_PORT;            // config <module_name>.http.port
 
+    private int SNAPSHOT_PERIOD;      // config <module_name>.snapshot_period, seconds between latest uplink snapshots, default 60
+
+    private int GATEWAY_WINDOW;       // config <module_name>.gateway_window, ms to collect the gateway copies of an uplink, default 1000
+
     // local constants
+    private final String SNAPSHOT_SUFFIX = "_latest_uplinks.json"; // <feed_id><suffix> in each feed's data_monitor directory
+    private final int BATCH_SLICE = 100; // uplinks of a batch POST processed per turn of the event loop
+    private final int BATCH_MAX_QUEUE = 1000; // batch POSTs wait while the archive queue is deeper than this
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
@@ -83,9 +111,26 @@ public class EverynetFeed extends AbstractVerticle {
     // global vars
     private HashMap<String,HttpClient> http_clients; // used to store a HttpClient for each feed_id
     private EventBus eb = null;
+    private ArchiveWriter archive_writer; // writes the received data to the filesystem
+    private FeedDedup feed_dedup; // recent payload hashes for feeds with "dedup": true
+    private HashMap<String,PayloadDecoders> feed_decoders = new HashMap<String,PayloadDecoders>(); // by feed_id
+    private byte[] payload_bytes = new byte[256]; // decoded uplink payload, reused for each uplink
+    private HashMap<String,LatestValues> latest_uplinks = new HashMap<String,LatestValues>(); // by feed_id, of dev_eui
+    private HashMap<String,UplinkDedup> uplink_dedups = new HashMap<String,UplinkDedup>(); // by feed_id, for "gateway_dedup": true
 
     private Log logger;
     
+  // carry out the queued archive writes, then close the ArchiveWriter's worker pool
+  @Override
+  public void stop(Future<Void> fut) throws Exception {
+    if (archive_writer == null)
+    {
+        fut.complete();
+        return;
+    }
+    archive_writer.close(res -> fut.complete());
+  }
+
   @Override
   public void start(Future<Void> fut) throws Exception {
 
@@ -111,9 +156,19 @@ public class EverynetFeed extends AbstractVerticle {
     // create link to EventBus
     eb = vertx.eventBus();
 
+    archive_writer = new ArchiveWriter(vertx, MODULE_NAME+"."+MODULE_ID);
+
+    feed_dedup = new FeedDedup(DEDUP_WINDOW);
+
     // send periodic "system_status" messages
     vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
 
+    // write periodic snapshots of the latest uplink of each device
+    vertx.setPeriodic(SNAPSHOT_PERIOD * 1000, id -> { write_snapshots(); });
+
+    // publish the gateway-deduplicated uplinks as their windows end
+    vertx.setPeriodic(Math.max(10, GATEWAY_WINDOW / 4), id -> { release_uplinks(); });
+
     // create webserver
     HttpServer http_server = vertx.createHttpServer();
 
@@ -161,6 +216,15 @@ public class EverynetFeed extends AbstractVerticle {
                      ": starting "+MODULE_NAME+" for "+
                      config.getString("feed_id"));
 
+          feed_decoders.put(config.getString("feed_id"), new PayloadDecoders(config));
+
+          latest_uplinks.put(config.getString("feed_id"), new LatestValues());
+
+          if (config.getBoolean("gateway_dedup", false))
+          {
+              uplink_dedups.put(config.getString("feed_id"), new UplinkDedup(GATEWAY_WINDOW));
+          }
+
           add_feed_handler(router, BASE_URI, config);
 
     }
@@ -169,11 +233,20 @@ public class EverynetFeed extends AbstractVerticle {
     // send UP status to the EventBus
     private void send_status()
     {
+      JsonObject gateway_dedup = new JsonObject();
+      for (String feed_id : uplink_dedups.keySet())
+      {
+          gateway_dedup.put(feed_id, uplink_dedups.get(feed_id).metrics());
+      }
+
       eb.publish(EB_SYSTEM_STATUS,
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"archive\": "+archive_writer.metrics().toString() + "," +
+                   "\"dedup\": "+feed_dedup.metrics().toString() + "," +
+                   "\"gateway_dedup\": "+gateway_dedup.toString() + "," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -215,8 +288,34 @@ public class EverynetFeed extends AbstractVerticle {
 
                         ctx.request().response().end("");
                     });
+            });
 
+        // a batch of uplinks in one POST, as a JSON array or newline-delimited JSON, processed as
+        // they are received and answered with a summary e.g. { "records": 100, "accepted": 100, "rejected": 0 }
+        router.route(HttpMethod.POST,FEED_URI+"/batch").handler( ctx -> {
+                String post_token = ctx.request().getHeader("X-Auth-Token");
+                if (HTTP_TOKEN!=null && !HTTP_TOKEN.equals(post_token))
+                    {
+                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                   ": batch X-Auth-Token mis-match");
+                        ctx.response().setStatusCode(403).end();
+                        return;
+                    }
+                BatchReader.read(vertx, ctx.request(), BATCH_SLICE,
+                                 () -> archive_writer.queue_depth() > BATCH_MAX_QUEUE,
+                                 buf -> {
+                                     try {
+                                         return process_feed(buf, config);
+                                     } catch (Exception e) {
+                                         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                                    ": batch process_feed error "+e.getMessage());
+                                         return false;
+                                     }
+                                 },
+                                 summary -> logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                                       ": batch POST "+summary.toString()));
             });
+
         logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+": POST handler started on "+FEED_URI);
     }
 
@@ -229,8 +328,8 @@ public class EverynetFeed extends AbstractVerticle {
     }
 
   // *****************************************************************
-  // process the received raw data
-  private void process_feed(Buffer buf, JsonObject config) throws Exception 
+  // process the received raw data, returning false if it could not be parsed
+  private boolean process_feed(Buffer buf, JsonObject config) throws Exception 
   {
 
     JsonArray request_data = new JsonArray();
@@ -249,16 +348,39 @@ public class EverynetFeed extends AbstractVerticle {
            if (!request_data.getJsonObject(0).getString("method").equals("uplink"))
            {
                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": skipping non-uplink msg "+utc_ts);
-               return;
+               return true;
            }
     }
     catch (Exception e) {
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                    ": exception raised during parsing of feed "+config.getString("feed_id")+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
-        return;
+        return false;
+    }
+
+    // an exact repeat of a recent payload on this feed is not parsed or published,
+    // and if "dedup_skip_archive" is set it is not archived either
+    boolean duplicate = config.getBoolean("dedup", false) &&
+                        feed_dedup.duplicate(config.getString("feed_id"), buf);
+    if (duplicate && config.getBoolean("dedup_skip_archive", false))
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": skipping duplicate data on feed "+config.getString("feed_id"));
+        return true;
     }
 
+    // a further gateway copy of a recent uplink is merged into the message for the first copy,
+    // and is archived (unless "dedup_skip_archive") but not published itself
+    UplinkDedup uplink_dedup = uplink_dedups.get(config.getString("feed_id"));
+    Long fcnt = params.getLong("counter_up");
+    boolean gateway_copy = uplink_dedup != null && fcnt != null &&
+                           uplink_dedup.merge(dev_eui, fcnt, params.getJsonObject("radio"), System.currentTimeMillis());
+    if (gateway_copy && config.getBoolean("dedup_skip_archive", false))
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": merged gateway copy of "+dev_eui+" "+fcnt+" on feed "+config.getString("feed_id"));
+        return true;
+    }
 
     LocalDateTime local_time = LocalDateTime.now();
     
@@ -277,17 +399,36 @@ public class EverynetFeed extends AbstractVerticle {
     final String file_suffix = config.getString("file_suffix");
     write_bin_file(buf, bin_path, filename, file_suffix);
 
-    // Write file to DATA_MONITOR
-    //
-    final String monitor_path = config.getString("data_monitor")+"/"+dev_eui;
-    write_monitor_file(buf, monitor_path, filename, file_suffix);
+    // Write file to DATA_MONITOR/<dev_eui> only if requested, otherwise the latest
+    // uplink is in latest_uplinks, written periodically as a snapshot
+    if (config.getBoolean("monitor_files", false))
+    {
+        final String monitor_path = config.getString("data_monitor")+"/"+dev_eui;
+        write_monitor_file(buf, monitor_path, config.getString("monitor_filename"));
+    }
+
+    if (duplicate)
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": archived duplicate data on feed "+config.getString("feed_id")+", not publishing");
+        return true;
+    }
+
+    if (gateway_copy)
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": archived gateway copy of "+dev_eui+" "+fcnt+" on feed "+config.getString("feed_id"));
+        return true;
+    }
 
     // Place the received data into a suitable EventBus JsonObject message
     JsonObject msg = new JsonObject();
 
+    PayloadDecoder decoder = feed_decoders.get(config.getString("feed_id")).get(dev_eui);
+
     msg.put("module_name", MODULE_NAME);
     msg.put("module_id", MODULE_ID);
-    msg.put("msg_type", config.getString("msg_type"));
+    msg.put("msg_type", decoder.msg_type());
     msg.put("feed_id", config.getString("feed_id"));
     msg.put("filename", filename);
     msg.put("filepath", filepath);
@@ -298,34 +439,45 @@ public class EverynetFeed extends AbstractVerticle {
 
     try {            
 
-        // *****************************************************************************
-        // **** Only send 'uplink' messages to the eventbus
-        // *****************************************************************************
-        if (!request_data.getJsonObject(0).getString("method").equals("uplink"))
+        // decode the payload (from Base64 once, into the reused payload_bytes) into the message
+        String payload = params.getString("payload");
+        int length = 0;
+        if (decoder.binary())
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": skipping non-uplink msg "+utc_ts);
-            return;
+            byte[] payload_b64 = payload.getBytes(StandardCharsets.ISO_8859_1);
+            int max_length = payload_b64.length / 4 * 3 + 3;
+            if (payload_bytes.length < max_length)
+            {
+                payload_bytes = new byte[max_length];
+            }
+            length = Base64.getDecoder().decode(payload_b64, payload_bytes);
         }
+        decoder.decode(payload, payload_bytes, length, msg);
 
-        if (config.getString("msg_type").equals(Constants.EVERYNET_ASCII_DECIMAL))
-        {
-            msg.put("decoded_payload", new String(Base64.getDecoder().decode(params.getString("payload"))));
-        } else if (config.getString("msg_type").equals(Constants.EVERYNET_ASCII_HEX))
-        {
-            msg.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
-        } else if (config.getString("msg_type").equals(Constants.EVERYNET_ADEUNIS_TEST))
-        {
-            JsonObject adeunis = parse_adeunis_test(params.getString("payload"));
-            msg.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
-            msg.put("lat", adeunis.getFloat("lat"));
-            msg.put("lng", adeunis.getFloat("lng"));
-        } else
+        msg.put("request_data", request_data);
+
+        if (uplink_dedup != null && fcnt != null)
         {
-            msg.put("decoded_payload", params.getString("payload"));
+            // held until the other gateway copies have arrived, see release_uplinks()
+            uplink_dedup.hold(dev_eui, fcnt, params.getJsonObject("radio"), msg, System.currentTimeMillis());
+            return true;
         }
 
-        msg.put("request_data", request_data);
-    
+        publish_uplink(msg, config);
+    }
+    catch (Exception e) {
+        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+        logger.log(Constants.LOG_WARN, e.getMessage());
+        return false;
+    }
+    return true;
+  } // end process_feed()
+
+    // *****************************************************************
+    // publish an uplink message, and keep it as the latest for its device
+    private void publish_uplink(JsonObject msg, JsonObject config)
+    {
         // debug print out the JsonObject message
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
         logger.log(Constants.LOG_DEBUG, msg.toString());
@@ -333,136 +485,57 @@ public class EverynetFeed extends AbstractVerticle {
         String feed_address = config.getString("address");
 
         eb.publish(feed_address, msg);
-    
+
+        latest_uplinks.get(config.getString("feed_id")).put(msg.getString("sensor_id"), msg);
+
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                    ": published latest GET data to "+feed_address);
     }
-    catch (Exception e) {
-        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
-        logger.log(Constants.LOG_WARN, e.getMessage());
-    }
-  } // end process_feed()
 
-    // Parse the payload from the Adeunis test device
-    // http://www.adeunis-rf.com/en/products/lorawan-products/field_test_device_lorawan_868
-    // 0  1  2  3  4  5  6  7  8  9  10 11 12 13
-    // 9E 16 52 17 39 10 00 00 62 60 14 05 0F B5 -> {lat: 52.28985, lng: 0.10433333333333333}
-    // Status
-    // [7] Presence of temperature information 0 or 1
-    // [6] Transmission triggered by the accelerometer 0 or 1
-    // [5] Transmission triggered by pressing pushbutton 1 0 or 1
-    // [4] Presence of GPS information 0 or 1
-    // [3] Presence of Uplink frame counter 0 or 1
-    // [2] Presence of Downlink frame counter 0 or 1
-    // [1] Presence of battery level information 0 or 1
-    // [0] Presence of RSSI and SNR information
-    //    Temperature -128..+127 msb=-128
-    //       Lat 52 degrees
-    //          17.3910 minutes
-    //                byte[5] lsb=N|S (N=positive)
-    //                   000 degrees
-    //                       06.26
-    //                            byte[9] lsb = E|W (E=positive)
-
-    private JsonObject parse_adeunis_test(String payload)
+    // ******************************************************************
+    // release_uplinks()
+    //
+    // Publish the uplinks held by the "gateway_dedup" feeds whose gateway window has ended
+    //
+    private void release_uplinks()
     {
-        JsonObject jo = new JsonObject();
-        
-        byte[] buf = Base64.getDecoder().decode(payload);
-        boolean[] byte_0 = byte_to_bools(buf[0]);
-
-        // Check for GPS value & parse
-        // bit indicating record included GPS is bit 4 (where bit 0 is lsb) of first byte in record
-        if (byte_0[4])
-        {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis record contains GPS "+to_hex(buf));
-
-            // Parse Latitude
-            
-            // latitude is embedded as binary-coded-decimal in the hex
-            // get degrees 10s and 1s
-            float lat = ((buf[2] & 0xF0) >>> 4) * 10; // 10s of degrees lat
-            lat += buf[2] & 0x0F;                     // 1s of degrees lat
-
-            // add minutes 
-            lat += ((buf[3] & 0xF0) >>> 4) * 10.0 / 60;
-            lat += (buf[3] & 0x0F) / 60.0;
-            
-            // add decimals of minutes
-            lat += ((buf[4] & 0xF0) >>> 4) * 0.1 / 60;
-            lat += ( buf[4] & 0x0F)        * 0.01 / 60;
-            lat += ((buf[5] & 0xF0) >>> 4) * 0.001 / 60;
-
-            // if lsb of buf[5] is 1, then lat is South (= negative)
-            if ((buf[5] & 0x01) == 1)
-            {
-                lat = -lat;
-            }
-            
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis GPS lat="+lat);
-
-            jo.put("lat",lat);
-
-            // Parse Longitude
-            
-            float lng = ((buf[6] & 0xF0) >>> 4) * 100; // 100s of degrees lng
-            lng += ( buf[6] & 0x0F) * 10;              // 10s of degrees lng
-            lng += ( buf[7] & 0xF0) >>> 4;             // 1s of degrees lng
-
-            // add minutes 
-            lng += ( buf[7] & 0x0F) * 10.0 / 60;
-            lng += ((buf[8] & 0xF0) >>> 4) / 60.0;
-            
-            // add decimals of minutes
-            lng += ( buf[8] & 0x0F)        * 0.1 / 60;
-            lng += ((buf[9] & 0xF0) >>> 4) * 0.01 / 60;
-
-            // if lsb of buf[9] is 1, then lng is West (= negative)
-            if ((buf[9] & 0x01) == 1)
+        long now = System.currentTimeMillis();
+        for (int i=0; i<START_FEEDS.size(); i++)
             {
-                lng = -lng;
+                JsonObject config = START_FEEDS.getJsonObject(i);
+                UplinkDedup uplink_dedup = uplink_dedups.get(config.getString("feed_id"));
+                if (uplink_dedup != null)
+                    {
+                        for (JsonObject msg : uplink_dedup.release(now))
+                            {
+                                publish_uplink(msg, config);
+                            }
+                    }
             }
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis GPS lng="+lng);
-
-            jo.put("lng", lng);
-
-        } else
-        {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis record does NOT contain GPS");
-        }            
-        return jo;
     }
 
-    public static boolean[] byte_to_bools(byte x) {
-        boolean bs[] = new boolean[8];
-        bs[0] = ((x & 0x01) != 0);
-        bs[1] = ((x & 0x02) != 0);
-        bs[2] = ((x & 0x04) != 0);
-        bs[3] = ((x & 0x08) != 0);
-        bs[4] = ((x & 0x10) != 0);
-        bs[5] = ((x & 0x20) != 0);
-        bs[6] = ((x & 0x40) != 0);
-        bs[7] = ((x & 0x80) != 0);
-        return bs;
-    }
-    
-    // simple function to convert an array of bytes to a HEX ascii string
-    private String to_hex(byte[] buf)
+    // ******************************************************************
+    // write_snapshots()
+    //
+    // Write the latest uplink of each device as DATA_MONITOR/<feed_id>SNAPSHOT_SUFFIX for each feed
+    // that has received uplinks since its previous snapshot (replacing the file atomically)
+    //
+    private void write_snapshots()
     {
-        final char[] DIGITS = "0123456789ABCDEF".toCharArray();
-//            = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
-
-        final StringBuffer sb = new StringBuffer(buf.length * 2);
-        for (int i = 0; i < buf.length; i++) {
-            sb.append(DIGITS[(buf[i] >>> 4) & 0x0F]);
-            sb.append(DIGITS[buf[i] & 0x0F]);
-        }
-        return sb.toString();
+        for (int i=0; i<START_FEEDS.size(); i++)
+            {
+                JsonObject config = START_FEEDS.getJsonObject(i);
+                LatestValues latest = latest_uplinks.get(config.getString("feed_id"));
+                if (latest != null && latest.changed())
+                    {
+                        String filename = config.getString("feed_id")+SNAPSHOT_SUFFIX;
+                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                                   ": Writing "+config.getString("data_monitor")+"/"+filename+
+                                   " ("+latest.size()+" devices)");
+                        archive_writer.write_latest(config.getString("data_monitor"), filename,
+                                                    latest.snapshot());
+                    }
+            }
     }
 
     // ******************************************************************
@@ -473,104 +546,26 @@ public class EverynetFeed extends AbstractVerticle {
     //
     private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix)
     {
-        FileSystem fs = vertx.fileSystem();
-        // if full directory path exists, then write file
-        // otherwise create full path first
-    
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                    ": Writing "+bin_path+"/"+filename + file_suffix);
-        fs.exists(bin_path, result -> {
-                if (result.succeeded() && result.result())
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": process_feed: path "+bin_path+" exists");
-                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                    }
-                else
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Creating directory "+bin_path);
-                        fs.mkdirs(bin_path, mkdirs_result -> {
-                                if (mkdirs_result.succeeded())
-                                    {
-                                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                                    }
-                                else
-                                    {
-                                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
-                                                    ": error creating tfc_data_bin path "+bin_path);
-                                    }
-                            });
-                    }
-        });
+        archive_writer.write(bin_path, filename + file_suffix, buf);
     }        
 
     // ************************************************************************************
     // write_monitor_file()
     //
-    // Write 'buf' to file in the filesystem, deleting previous files in the same directory
-    // This is convenient for a separate 'inotifywait' process to listen for file-close-write
+    // Write 'buf' to the fixed-name file 'monitor_filename' in 'monitor_path', replacing the previous
+    // file with an atomic rename (so the directory always holds one complete file).
+    // This is convenient for a separate 'inotifywait' process to listen for moved_to
     // events on that directory and trigger separate processes, e.g. to POST the file onward.
     //
-    private void write_monitor_file(Buffer buf, String monitor_path, String filename, String file_suffix)
+    private void write_monitor_file(Buffer buf, String monitor_path, String monitor_filename)
     {
-        FileSystem fs = vertx.fileSystem();
-
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+monitor_path+"/"+filename+ file_suffix);
-        fs.readDir(monitor_path, ".*\\"+file_suffix, monitor_result -> {
-            if (monitor_result.succeeded())
-                {
-                    // directory exists, delete previous files of same suffix
-                    for (String f: monitor_result.result())
-                        {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": Deleting "+f);
-                            fs.delete(f, delete_result -> {
-                                    if (!delete_result.succeeded())
-                                        {
-                                          logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                      ": write_monitor_file error deleting file: "+f);
-                                        }
-                                });
-                        }
-                    write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                ": error reading data_monitor path: "+
-                                monitor_path);
-                    logger.log(Constants.LOG_WARN, monitor_result.cause().getMessage());
-                    try {
-                        fs.mkdirsBlocking(monitor_path);
-                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
-                                   ": write_monitor_file created monitor path "+monitor_path);
-                        write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                    } catch (Exception e) {
-                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                   ": write_monitor_file FAIL: error creating monitor path "+monitor_path);
-                    }
-                }
-        });
+               ": Writing "+monitor_path+"/"+monitor_filename);
+        archive_writer.write_latest(monitor_path, monitor_filename, buf);
     }
 
-  // ***************************************************
-  // Write the 'buf' as a file 'filepath' (non-blocking)
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
-  {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
-
     // validate_feeds() will validate a feeds config, and insert default values
     // The config is kept as a JsonArray
     private boolean validate_feeds()
@@ -614,6 +609,23 @@ public class EverynetFeed extends AbstractVerticle {
                         config.put("file_suffix",".bin");
                     }
 
+                // the fixed name of the latest file in the monitor directory
+                if (config.getString("monitor_filename")==null)
+                    {
+                        config.put("monitor_filename","post_data"+config.getString("file_suffix"));
+                    }
+
+                // per-device decoders must name a built-in decoder
+                JsonObject decoders = config.getJsonObject("decoders", new JsonObject());
+                for (String dev_eui : decoders.fieldNames())
+                    {
+                        if (!PayloadDecoders.known(decoders.getString(dev_eui)))
+                            {
+                                Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                            ": no decoder for "+decoders.getString(dev_eui)+" (dev_eui "+dev_eui+")");
+                                return false;
+                            }
+                    }
             }
 
         return true; // if we got to here then we can return ok, error would have exitted earlier
@@ -665,6 +677,15 @@ public class EverynetFeed extends AbstractVerticle {
         // web address for this FeedHandler to receive POST data messages from original source
         HTTP_PORT = config().getInteger(MODULE_NAME+".http.port",0);
 
+        // seconds between snapshots of the latest uplink of each device
+        SNAPSHOT_PERIOD = Math.max(1, config().getInteger(MODULE_NAME+".snapshot_period", 60));
+
+        // milliseconds to collect the gateway copies of an uplink, on feeds with "gateway_dedup": true
+        GATEWAY_WINDOW = Math.max(1, config().getInteger(MODULE_NAME+".gateway_window", 1000));
+
+        // number of recent payloads checked for duplicates, on feeds with "dedup": true
+        DEDUP_WINDOW = config().getInteger(MODULE_NAME+".dedup_window", 1);
+
         START_FEEDS = config().getJsonArray(MODULE_NAME+".feeds");
         
         if (!validate_feeds())
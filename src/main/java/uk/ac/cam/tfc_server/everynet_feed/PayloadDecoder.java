@@ -0,0 +1,22 @@
+package uk.ac.cam.tfc_server.everynet_feed;
+
+// Decoder for the application payload of a LoRaWAN uplink, selected per feed (config msg_type) or
+// per device (config "decoders") by PayloadDecoders, which creates each decoder once at startup.
+//
+// decode() writes the decoded fields straight into the EverynetFeed eventbus message.
+
+import io.vertx.core.json.JsonObject;
+
+interface PayloadDecoder {
+
+    // the msg_type of the messages this decoder produces, e.g. Constants.EVERYNET_ASCII_HEX
+    String msg_type();
+
+    // true if decode() needs the Base64-decoded payload bytes
+    boolean binary();
+
+    // decode 'payload' (Base64, as in the uplink params) into 'msg', given the first 'length' bytes
+    // of 'bytes' as its decoded bytes if binary() (the array is reused for the next uplink)
+    void decode(String payload, byte[] bytes, int length, JsonObject msg);
+
+} // end PayloadDecoder
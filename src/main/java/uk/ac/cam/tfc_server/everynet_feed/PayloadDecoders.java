@@ -0,0 +1,254 @@
+package uk.ac.cam.tfc_server.everynet_feed;
+
+// *************************************************************************************************
+// PayloadDecoders.java
+//
+// The PayloadDecoders of one EverynetFeed feed, compiled from its config when the feed starts, so
+// an uplink is decoded with one map lookup rather than a chain of msg_type comparisons.
+//
+// The feed decoder is chosen by the feed "msg_type", and "decoders" (optional) gives a msg_type
+// for particular devices on the feed, e.g.
+//   "msg_type": "everynet_ascii_decimal",
+//   "decoders": { "0018b2000000113e": "everynet_adeunis_test" }
+// The built-in decoders are:
+//   everynet_ascii_decimal: "decoded_payload" is the payload bytes as a string
+//   everynet_ascii_hex:     "decoded_payload" is the payload bytes as hex
+//   everynet_adeunis_test:  as everynet_ascii_hex, plus "lat" and "lng" (null if the payload has no GPS)
+// Any other feed msg_type passes the (Base64) payload through as "decoded_payload".
+//
+// *************************************************************************************************
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import io.vertx.core.json.JsonObject;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Constants;
+
+class PayloadDecoders {
+
+    // the built-in decoders, by msg_type (decoders are stateless, so shared by all feeds)
+    private static final HashMap<String,PayloadDecoder> DECODERS = new HashMap<String,PayloadDecoder>();
+
+    static {
+        add(new AsciiDecimal());
+        add(new AsciiHex());
+        add(new AdeunisTest());
+    }
+
+    private static void add(PayloadDecoder decoder)
+    {
+        DECODERS.put(decoder.msg_type(), decoder);
+    }
+
+    // true if 'msg_type' has a built-in decoder
+    static boolean known(String msg_type)
+    {
+        return DECODERS.containsKey(msg_type);
+    }
+
+    private final PayloadDecoder feed_decoder;
+
+    private final HashMap<String,PayloadDecoder> device_decoders = new HashMap<String,PayloadDecoder>();
+
+    // 'config' is the feed config, already checked by EverynetFeed.validate_feeds()
+    PayloadDecoders(JsonObject config)
+    {
+        String msg_type = config.getString("msg_type");
+        PayloadDecoder decoder = DECODERS.get(msg_type);
+        feed_decoder = decoder != null ? decoder : new PassThrough(msg_type);
+
+        JsonObject devices = config.getJsonObject("decoders", new JsonObject());
+        for (String dev_eui : devices.fieldNames())
+            {
+                device_decoders.put(dev_eui, DECODERS.get(devices.getString(dev_eui)));
+            }
+    }
+
+    // the decoder for uplinks from device 'dev_eui'
+    PayloadDecoder get(String dev_eui)
+    {
+        if (device_decoders.isEmpty())
+            {
+                return feed_decoder;
+            }
+        PayloadDecoder decoder = device_decoders.get(dev_eui);
+        return decoder != null ? decoder : feed_decoder;
+    }
+
+    // ************************************************************************
+    // The decoders
+    // ************************************************************************
+
+    // payload is passed on still Base64 encoded, for a msg_type with no decoder
+    private static class PassThrough implements PayloadDecoder {
+
+        private final String msg_type;
+
+        PassThrough(String msg_type)
+        {
+            this.msg_type = msg_type;
+        }
+
+        public String msg_type()
+        {
+            return msg_type;
+        }
+
+        public boolean binary()
+        {
+            return false;
+        }
+
+        public void decode(String payload, byte[] bytes, int length, JsonObject msg)
+        {
+            msg.put("decoded_payload", payload);
+        }
+    }
+
+    private static class AsciiDecimal implements PayloadDecoder {
+
+        public String msg_type()
+        {
+            return Constants.EVERYNET_ASCII_DECIMAL;
+        }
+
+        public boolean binary()
+        {
+            return true;
+        }
+
+        public void decode(String payload, byte[] bytes, int length, JsonObject msg)
+        {
+            msg.put("decoded_payload", new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class AsciiHex implements PayloadDecoder {
+
+        public String msg_type()
+        {
+            return Constants.EVERYNET_ASCII_HEX;
+        }
+
+        public boolean binary()
+        {
+            return true;
+        }
+
+        public void decode(String payload, byte[] bytes, int length, JsonObject msg)
+        {
+            msg.put("decoded_payload", to_hex(bytes, length));
+        }
+    }
+
+    // Adeunis field test device
+    // http://www.adeunis-rf.com/en/products/lorawan-products/field_test_device_lorawan_868
+    // 0  1  2  3  4  5  6  7  8  9  10 11 12 13
+    // 9E 16 52 17 39 10 00 00 62 60 14 05 0F B5 -> {lat: 52.28985, lng: 0.10433333333333333}
+    // Status
+    // [7] Presence of temperature information 0 or 1
+    // [6] Transmission triggered by the accelerometer 0 or 1
+    // [5] Transmission triggered by pressing pushbutton 1 0 or 1
+    // [4] Presence of GPS information 0 or 1
+    // [3] Presence of Uplink frame counter 0 or 1
+    // [2] Presence of Downlink frame counter 0 or 1
+    // [1] Presence of battery level information 0 or 1
+    // [0] Presence of RSSI and SNR information
+    //    Temperature -128..+127 msb=-128
+    //       Lat 52 degrees
+    //          17.3910 minutes
+    //                byte[5] lsb=N|S (N=positive)
+    //                   000 degrees
+    //                       06.26
+    //                            byte[9] lsb = E|W (E=positive)
+    private static class AdeunisTest implements PayloadDecoder {
+
+        private static final int GPS_PRESENT = 0x10; // bit 4 of the status byte
+
+        public String msg_type()
+        {
+            return Constants.EVERYNET_ADEUNIS_TEST;
+        }
+
+        public boolean binary()
+        {
+            return true;
+        }
+
+        public void decode(String payload, byte[] buf, int length, JsonObject msg)
+        {
+            msg.put("decoded_payload", to_hex(buf, length));
+
+            if (length == 0 || (buf[0] & GPS_PRESENT) == 0)
+                {
+                    // no GPS in this record, lat and lng are still given (as null)
+                    msg.putNull("lat");
+                    msg.putNull("lng");
+                    return;
+                }
+            if (length < 10)
+                {
+                    throw new IllegalArgumentException("adeunis payload too short for GPS: "+to_hex(buf, length));
+                }
+
+            // latitude is embedded as binary-coded-decimal
+            // degrees 10s and 1s
+            float lat = ((buf[2] & 0xF0) >>> 4) * 10;
+            lat += buf[2] & 0x0F;
+
+            // minutes
+            lat += ((buf[3] & 0xF0) >>> 4) * 10.0 / 60;
+            lat += (buf[3] & 0x0F) / 60.0;
+
+            // decimals of minutes
+            lat += ((buf[4] & 0xF0) >>> 4) * 0.1 / 60;
+            lat += ( buf[4] & 0x0F)        * 0.01 / 60;
+            lat += ((buf[5] & 0xF0) >>> 4) * 0.001 / 60;
+
+            // if lsb of buf[5] is 1, then lat is South (= negative)
+            if ((buf[5] & 0x01) == 1)
+                {
+                    lat = -lat;
+                }
+
+            // degrees 100s, 10s and 1s
+            float lng = ((buf[6] & 0xF0) >>> 4) * 100;
+            lng += ( buf[6] & 0x0F) * 10;
+            lng += ( buf[7] & 0xF0) >>> 4;
+
+            // minutes
+            lng += ( buf[7] & 0x0F) * 10.0 / 60;
+            lng += ((buf[8] & 0xF0) >>> 4) / 60.0;
+
+            // decimals of minutes
+            lng += ( buf[8] & 0x0F)        * 0.1 / 60;
+            lng += ((buf[9] & 0xF0) >>> 4) * 0.01 / 60;
+
+            // if lsb of buf[9] is 1, then lng is West (= negative)
+            if ((buf[9] & 0x01) == 1)
+                {
+                    lng = -lng;
+                }
+
+            msg.put("lat", lat);
+            msg.put("lng", lng);
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // the first 'length' bytes of 'buf' as an upper-case hex string
+    static String to_hex(byte[] buf, int length)
+    {
+        char[] hex = new char[length * 2];
+        for (int i=0; i<length; i++)
+            {
+                hex[2*i] = HEX_DIGITS[(buf[i] >>> 4) & 0x0F];
+                hex[2*i+1] = HEX_DIGITS[buf[i] & 0x0F];
+            }
+        return new String(hex);
+    }
+
+} // end PayloadDecoders
@@ -0,0 +1,240 @@
+package uk.ac.cam.tfc_server.everynet_feed;
+
+// *************************************************************************************************
+// UplinkDedup.java
+//
+// Merges the copies of a LoRaWAN uplink received via several gateways, for an EverynetFeed feed with
+// "gateway_dedup": true, so the frame is published once rather than once per gateway.
+//
+// A frame is identified by (dev_eui, counter_up). The message built from the first copy is held
+// for 'window' milliseconds, and the "radio" metadata (gw_addr, rssi, lsnr, ...) of each copy
+// arriving in that time is added to its "gateways" array. release() returns the held messages
+// whose window has ended, to be published. A frame is remembered for a further 'window' after its
+// release, so a late copy is still recognised (and dropped), after which the entry is removed and
+// (dev_eui, counter_up) can be used again (e.g. after the device rejoins and restarts counter_up).
+//
+// The frames are kept in an open-addressing (linear probing) table of parallel arrays, sized to
+// the uplinks per window rather than the number of devices. Not thread-safe: used from the
+// EverynetFeed event loop.
+//
+// metrics() returns the counts since the previous call, e.g. for the system_status messages:
+//   { "uplinks": 40, "merged": 75, "late": 2, "held": 3 }
+//
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+
+class UplinkDedup {
+
+    private final long window; // milliseconds
+
+    // the table, slot i is empty if dev_eui[i] == null
+    private String[] dev_eui;
+    private long[] fcnt;
+    private long[] first_ms;      // time the first copy was received
+    private JsonObject[] held;    // message being held, or null once released
+    private int size = 0;
+    private int mask;
+
+    // counts since the previous call to metrics()
+    private long uplinks = 0;
+    private long merged = 0;
+    private long late = 0;
+
+    UplinkDedup(long window)
+    {
+        this.window = Math.max(1, window);
+        allocate(64);
+    }
+
+    private void allocate(int capacity)
+    {
+        dev_eui = new String[capacity];
+        fcnt = new long[capacity];
+        first_ms = new long[capacity];
+        held = new JsonObject[capacity];
+        mask = capacity - 1;
+    }
+
+    // ************************************************************************
+    // if (dev_eui, fcnt) is a copy of a recent frame, add 'radio' to its "gateways" (if it is
+    // still held) and return true, otherwise return false
+    // ************************************************************************
+    boolean merge(String dev_eui, long fcnt, JsonObject radio, long now)
+    {
+        int i = find(dev_eui, fcnt);
+        if (i < 0 || now - first_ms[i] >= 2 * window)
+            {
+                return false;
+            }
+        if (held[i] == null)
+            {
+                late++;
+                return true;
+            }
+        held[i].getJsonArray("gateways").add(radio == null ? new JsonObject() : radio);
+        merged++;
+        return true;
+    }
+
+    // ************************************************************************
+    // hold 'msg', the message for the first copy of frame (dev_eui, fcnt), until its window ends.
+    // 'msg' is given a "gateways" array containing 'radio'.
+    // ************************************************************************
+    void hold(String dev_eui, long fcnt, JsonObject radio, JsonObject msg, long now)
+    {
+        msg.put("gateways", new JsonArray().add(radio == null ? new JsonObject() : radio));
+
+        int i = find(dev_eui, fcnt);
+        if (i < 0)
+            {
+                if (2 * (size + 1) > held.length)
+                    {
+                        grow();
+                    }
+                i = slot(dev_eui, fcnt);
+                while (this.dev_eui[i] != null)
+                    {
+                        i = (i + 1) & mask;
+                    }
+                this.dev_eui[i] = dev_eui;
+                this.fcnt[i] = fcnt;
+                size++;
+            }
+        // else an expired entry not yet removed, which is replaced
+        first_ms[i] = now;
+        held[i] = msg;
+        uplinks++;
+    }
+
+    // ************************************************************************
+    // return the held messages whose window has ended by 'now', and remove the frames whose
+    // late-copy window has also ended
+    // ************************************************************************
+    ArrayList<JsonObject> release(long now)
+    {
+        ArrayList<JsonObject> msgs = new ArrayList<JsonObject>();
+        int i = 0;
+        while (i < held.length)
+            {
+                if (dev_eui[i] != null)
+                    {
+                        long age = now - first_ms[i];
+                        if (held[i] != null && age >= window)
+                            {
+                                msgs.add(held[i]);
+                                held[i] = null;
+                            }
+                        if (held[i] == null && age >= 2 * window)
+                            {
+                                // remove() may move a later entry into slot i, so check it again
+                                remove(i);
+                                continue;
+                            }
+                    }
+                i++;
+            }
+        return msgs;
+    }
+
+    // the number of frames in the table (held or awaiting late copies)
+    int size()
+    {
+        return size;
+    }
+
+    JsonObject metrics()
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("uplinks", uplinks);
+        jo.put("merged", merged);
+        jo.put("late", late);
+        jo.put("held", size);
+        uplinks = 0;
+        merged = 0;
+        late = 0;
+        return jo;
+    }
+
+    // ************************************************************************
+    // Open addressing
+    // ************************************************************************
+
+    // the slot holding (dev_eui, fcnt), or -1
+    private int find(String dev_eui, long fcnt)
+    {
+        int i = slot(dev_eui, fcnt);
+        while (this.dev_eui[i] != null)
+            {
+                if (this.fcnt[i] == fcnt && this.dev_eui[i].equals(dev_eui))
+                    {
+                        return i;
+                    }
+                i = (i + 1) & mask;
+            }
+        return -1;
+    }
+
+    // the home slot of (dev_eui, fcnt)
+    private int slot(String dev_eui, long fcnt)
+    {
+        long h = dev_eui.hashCode() * 0x9E3779B97F4A7C15L + fcnt;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    // empty slot 'i', re-inserting the rest of its probe cluster so none is left unreachable
+    private void remove(int i)
+    {
+        dev_eui[i] = null;
+        held[i] = null;
+        size--;
+        int j = (i + 1) & mask;
+        while (dev_eui[j] != null)
+            {
+                String d = dev_eui[j];
+                long f = fcnt[j];
+                long t = first_ms[j];
+                JsonObject m = held[j];
+                dev_eui[j] = null;
+                held[j] = null;
+                insert(d, f, t, m);
+                j = (j + 1) & mask;
+            }
+    }
+
+    private void insert(String d, long f, long t, JsonObject m)
+    {
+        int i = slot(d, f);
+        while (dev_eui[i] != null)
+            {
+                i = (i + 1) & mask;
+            }
+        dev_eui[i] = d;
+        fcnt[i] = f;
+        first_ms[i] = t;
+        held[i] = m;
+    }
+
+    private void grow()
+    {
+        String[] old_dev_eui = dev_eui;
+        long[] old_fcnt = fcnt;
+        long[] old_first_ms = first_ms;
+        JsonObject[] old_held = held;
+        allocate(old_held.length * 2);
+        for (int i=0; i<old_held.length; i++)
+            {
+                if (old_dev_eui[i] != null)
+                    {
+                        insert(old_dev_eui[i], old_fcnt[i], old_first_ms[i], old_held[i]);
+                    }
+            }
+    }
+
+} // end UplinkDedup
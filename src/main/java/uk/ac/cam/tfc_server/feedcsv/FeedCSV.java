@@ -36,6 +36,8 @@ import java.time.format.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
 
 public class FeedCSV extends AbstractVerticle {
     // from config()
@@ -71,10 +73,13 @@ public class FeedCSV extends AbstractVerticle {
 
     eb = vertx.eventBus();
 
+    // position batches may arrive in binary form
+    PositionBatchCodec.register(vertx);
+
     eb.consumer(FEEDHANDLER_ADDRESS, message -> {
       System.out.println("FeedCSV got message from " + FEEDHANDLER_ADDRESS);
       //debug
-      JsonObject feed_message = new JsonObject(message.body().toString());
+      JsonObject feed_message = PositionBatch.json_body(message.body());
       JsonArray entities = feed_message.getJsonArray("entities");
       System.out.println("FeedCSV feed_vehicle message #records: "+String.valueOf(entities.size()));
 
@@ -15,11 +15,15 @@ package uk.ac.cam.tfc_server.feedhandler;
 // every 30 seconds for approx 1200 vehicles
 //
 // FeedHandler will WRITE the raw binary post data into:
-//   TFC_DATA_MONITOR/<filename>
 //   TFC_DATA_BIN/YYYY/MM/DD/<filename>
-//   TFC_DATA_CACHE/YYYY/MM-DD/<filename>
+// and hard-link it (or copy it, if on a different filesystem) to:
+//   TFC_DATA_CACHE/YYYY/MM/DD/<filename>
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// and will append the file to the day index TFC_DATA_BIN/YYYY/MM/DD/.index (see util/DayIndex.java)
+// The latest post is also written to TFC_DATA_MONITOR/<monitor_filename> (default post_data.bin)
+// via a temporary file and an atomic rename, so that file is always complete. Unlike earlier
+// versions, which wrote TFC_DATA_MONITOR/<filename> and deleted the other '.bin' files there,
+// the monitor file name is fixed and no other files in TFC_DATA_MONITOR are deleted.
 //
 // Config values are read from provided vertx config() json file, e.g.
 /*
@@ -49,6 +53,28 @@ package uk.ac.cam.tfc_server.feedhandler;
 */
 // FeedHandler will publish the feed data as a JSON string on eventbus.
 //
+// The GTFS decode (GTFS.buf_to_json) is done on a worker pool (MODULE_NAME.decode_pool_size,
+// default 2) so a large post does not block the HTTP event loop. Each post is given a sequence
+// number and decoded messages are published in that order, whichever decode finishes first.
+// The decode times are reported as a histogram in the system_status messages.
+//
+// The messages are published as a PositionBatch, carried in binary form on the eventbus (see
+// util/PositionBatchCodec.java). If MODULE_NAME.json_address is set, the Json form of the message is
+// also published to that address, e.g. for a browser eventbus bridge.
+//
+// If MODULE_NAME.delta is true, FeedHandler also publishes only the vehicles that have changed since
+// the previous post (plus a full keyframe every MODULE_NAME.delta_keyframe posts, default 10) on
+// MODULE_NAME.address + ".delta" (see util/PositionDelta.java).
+//
+// If MODULE_NAME.trip_updates is true, FeedHandler also decodes the GTFS TripUpdate entities and
+// publishes the new, changed and deleted trip updates (following the GTFS-rt FULL_DATASET or
+// DIFFERENTIAL incrementality, with a full keyframe every MODULE_NAME.trip_updates_keyframe posts,
+// default 10) on MODULE_NAME.address + ".trip_updates" (see util/TripUpdateTable.java).
+//
+// If MODULE_NAME.dedup is true, a post identical to one of the recent MODULE_NAME.dedup_window
+// posts (default 1, i.e. the previous post) is not decoded or published, and if MODULE_NAME.dedup_skip_archive is also
+// true it is not archived either (see util/FeedDedup.java).
+//
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -57,6 +83,7 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -78,9 +105,18 @@ import java.util.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.ArchiveWriter;
+import uk.ac.cam.tfc_server.util.FeedDedup;
+import uk.ac.cam.tfc_server.util.LatencyHistogram;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
+import uk.ac.cam.tfc_server.util.PositionDelta;
+import uk.ac.cam.tfc_server.util.TripUpdateTable;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
 
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
 public class FeedHandler extends AbstractVerticle {
 
     private final String VERSION = "1.12";
@@ -96,12 +132,27 @@ public class FeedHandler extends AbstractVerticle {
     private String HTTP_TOKEN;        // config feedplayer.http.token, can be null
 
     private String FEEDHANDLER_ADDRESS; // config MODULE_NAME.address
+    private String JSON_ADDRESS;        // config MODULE_NAME.json_address, optional Json copy of messages
     
     private String TFC_DATA_CACHE = null;   // MODULE_NAME.tfc_data_cache
     private String TFC_DATA_BIN = null;     // MODULE_NAME.tfc_data_bin
     private String TFC_DATA_MONITOR = null; // MODULE_NAME.tfc_data_monitor
 
     private String FILE_SUFFIX;             // MODULE_NAME.file_suffix, default ".bin"
+    private String MONITOR_FILENAME;        // MODULE_NAME.monitor_filename, default "post_data"+FILE_SUFFIX
+
+    private int DECODE_POOL_SIZE;           // MODULE_NAME.decode_pool_size, default 2
+
+    private boolean DELTA;                  // MODULE_NAME.delta, publish changed vehicles on <address>.delta
+    private int DELTA_KEYFRAME;             // MODULE_NAME.delta_keyframe, posts between full keyframes, default 10
+
+    private boolean TRIP_UPDATES;           // MODULE_NAME.trip_updates, publish changed TripUpdates on <address>.trip_updates
+    private int TRIP_UPDATES_KEYFRAME;      // MODULE_NAME.trip_updates_keyframe, posts between full keyframes, default 10
+    private int TRIP_UPDATES_EXPIRE;        // MODULE_NAME.trip_updates_expire, seconds before an unchanged trip is dropped, default 3600
+
+    private boolean DEDUP;                  // MODULE_NAME.dedup, skip decode/publish of repeated posts
+    private boolean DEDUP_SKIP_ARCHIVE;     // MODULE_NAME.dedup_skip_archive, also skip archiving repeats
+    private int DEDUP_WINDOW;               // MODULE_NAME.dedup_window, recent posts compared, default 1
     
     public int LOG_LEVEL; // optional in config(), defaults to Constants.LOG_INFO
 
@@ -115,8 +166,36 @@ public class FeedHandler extends AbstractVerticle {
     private EventBus eb = null;
 
     private Log logger;
+
+    private ArchiveWriter archive_writer; // writes the post data to the filesystem
+
+    // GTFS decode on worker threads, published in post order
+    private WorkerExecutor decode_executor;
+    private long decode_next_seq = 0;     // sequence number for the next post received
+    private long publish_next_seq = 0;    // sequence number of the next message to be published
+    // decoded messages waiting for an earlier post to finish decoding (null entry => decode failed)
+    private HashMap<Long,DecodedPost> decoded_pending = new HashMap<Long,DecodedPost>();
+    private LatencyHistogram decode_histogram = new LatencyHistogram();
+    private long decode_errors = 0;
+
+    private PositionDelta position_delta = null; // delta stage, if DELTA
+
+    private TripUpdateTable trip_table = null; // current TripUpdates, if TRIP_UPDATES
+
+    private FeedDedup feed_dedup = null; // recent post hashes, if DEDUP
     
     
+  // carry out the queued archive writes, then close the ArchiveWriter's worker pool
+  @Override
+  public void stop(Future<Void> fut) throws Exception {
+    if (archive_writer == null)
+    {
+        fut.complete();
+        return;
+    }
+    archive_writer.close(res -> fut.complete());
+  }
+
   @Override
   public void start(Future<Void> fut) throws Exception {
 
@@ -137,6 +216,27 @@ public class FeedHandler extends AbstractVerticle {
     // create link to EventBus
     eb = vertx.eventBus();
 
+    PositionBatchCodec.register(vertx);
+
+    if (DELTA)
+        {
+            position_delta = new PositionDelta(DELTA_KEYFRAME);
+        }
+
+    if (TRIP_UPDATES)
+        {
+            trip_table = new TripUpdateTable(TRIP_UPDATES_KEYFRAME, TRIP_UPDATES_EXPIRE);
+        }
+
+    if (DEDUP)
+        {
+            feed_dedup = new FeedDedup(DEDUP_WINDOW);
+        }
+
+    archive_writer = new ArchiveWriter(vertx, MODULE_NAME+"."+MODULE_ID);
+
+    decode_executor = vertx.createSharedWorkerExecutor(MODULE_NAME+"."+MODULE_ID+".decode", DECODE_POOL_SIZE);
+
     // create webserver
     http_server = vertx.createHttpServer();
 
@@ -200,6 +300,13 @@ public class FeedHandler extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"archive\": "+archive_writer.metrics().toString() + "," +
+                   (DELTA ? "\"delta\": "+position_delta.metrics().toString() + "," : "") +
+                   (DEDUP ? "\"dedup\": "+feed_dedup.metrics().toString() + "," : "") +
+                   (TRIP_UPDATES ? "\"trip_updates\": "+trip_table.metrics().toString() + "," : "") +
+                   "\"decode\": "+decode_histogram.to_json()
+                                      .put("errors", decode_errors)
+                                      .put("pending", decode_next_seq - publish_next_seq).toString() + "," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -223,6 +330,14 @@ public class FeedHandler extends AbstractVerticle {
   // process the POST gtfs binary data
   private void process_gtfs(Buffer buf) throws Exception {
 
+    // an exact repeat of a recent post is not decoded or published (or, optionally, archived)
+    boolean duplicate = DEDUP && feed_dedup.duplicate(MODULE_ID, buf);
+    if (duplicate && DEDUP_SKIP_ARCHIVE)
+        {
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": skipping duplicate post");
+            return;
+        }
+
     LocalDateTime local_time = LocalDateTime.now();
     
     String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
@@ -234,127 +349,109 @@ public class FeedHandler extends AbstractVerticle {
     String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
     // sub-dir structure to store the file
     String filepath = year+"/"+month+"/"+day;
-    // First just save the binary file to $TFC_DATA_MONITOR
-
-    // Vert.x non-blocking file write...
-    FileSystem fs = vertx.fileSystem();
 
-    // Write file to $TFC_DATA_BIN
-    //
-    // if full directory path exists, then write file
-    // otherwise create full path first
-    final String bin_path = TFC_DATA_BIN+"/"+filepath;
+    // Write the file to $TFC_DATA_BIN (and its day index), link it into $TFC_DATA_CACHE, and
+    // replace the 'latest' file in $TFC_DATA_MONITOR. The ArchiveWriter carries these out in order
+    // on its I/O worker, and if the $TFC_DATA_BIN write fails, the cache file will be a copy.
     logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+bin_path+"/"+filename + FILE_SUFFIX);
-    fs.exists(bin_path, result -> {
-            if (result.succeeded() && result.result())
+               ": Writing "+filepath+"/"+filename + FILE_SUFFIX);
+    String bin_path = TFC_DATA_BIN+"/"+filepath;
+    archive_writer.write(bin_path, filename + FILE_SUFFIX, buf);
+    archive_writer.index(bin_path, Long.parseLong(utc_ts), filename + FILE_SUFFIX);
+    archive_writer.link(TFC_DATA_CACHE+"/"+filepath, filename + FILE_SUFFIX, bin_path+"/"+filename + FILE_SUFFIX, buf);
+    archive_writer.write_latest(TFC_DATA_MONITOR, MONITOR_FILENAME, buf);
+
+    if (duplicate)
+        {
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": archived duplicate post, not publishing");
+            return;
+        }
+
+    // Here is where we process the individual position records, decoded on a worker thread
+    // and published (in post order) back on this event loop
+    final long seq = decode_next_seq++;
+    decode_executor.<DecodedPost>executeBlocking(fut -> {
+            long start_ns = System.nanoTime();
+            try
                 {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": process_gtfs: path "+bin_path+" exists");
-                    write_file(fs, buf, bin_path+"/"+filename+ FILE_SUFFIX);
+                    DecodedPost decoded = new DecodedPost();
+                    FeedMessage feed = FeedMessage.parseFrom(buf.getBytes());
+                    decoded.batch = GTFS.feed_to_batch(feed, filename, filepath);
+                    if (TRIP_UPDATES)
+                        {
+                            decoded.trip_updates = TripUpdateTable.decode(feed);
+                        }
+                    decode_histogram.record(System.nanoTime() - start_ns);
+                    fut.complete(decoded);
                 }
-            else
+            catch (Exception e)
                 {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Creating directory "+bin_path);
-                    fs.mkdirs(bin_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, bin_path+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error creating tfc_data_bin path "+bin_path);
-                                }
-                        });
+                    fut.fail(e);
                 }
-        });
-
-    // Write file to $TFC_DATA_CACHE
-    //
-    final String cache_path = TFC_DATA_CACHE+"/"+filepath;
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+cache_path+"/"+filename+ FILE_SUFFIX);
-    // if full directory path exists, then write file
-    // otherwise create full path first
-    fs.exists(cache_path, result -> {
-            if (result.succeeded() && result.result())
+        }, false, res -> {
+            if (res.succeeded())
                 {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": process_gtfs: path "+cache_path+" exists");
-                    write_file(fs, buf, cache_path+"/"+filename+ FILE_SUFFIX);
+                    decoded_pending.put(seq, res.result());
                 }
             else
                 {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Creating directory "+cache_path);
-                    fs.mkdirs(cache_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, cache_path+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error creating tfc_data_cache path "+cache_path);
-                                }
-                        });
+                    decode_errors++;
+                    Log.log_err(MODULE_NAME+"."+MODULE_ID+": GTFS decode failed for "+filename+
+                                " ("+res.cause().getMessage()+")");
+                    decoded_pending.put(seq, null);
                 }
+            publish_decoded();
         });
-
-    // Write file to $TFC_DATA_MONITOR
-    //
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+TFC_DATA_MONITOR+"/"+filename+ FILE_SUFFIX);
-    fs.readDir(TFC_DATA_MONITOR, ".*\\"+FILE_SUFFIX, monitor_result -> {
-                            if (monitor_result.succeeded())
-                                {
-                                    // directory exists, delete previous files of same suffix
-                                    for (String f: monitor_result.result())
-                                        {
-                                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"Deleting "+f);
-                                            fs.delete(f, delete_result -> {
-                                                    if (!delete_result.succeeded())
-                                                        {
-                                                          Log.log_err("FeedHandler."+MODULE_ID+": error tfc_data_monitor delete: "+f);
-                                                        }
-                                                });
-                                        }
-                                    write_file(fs, buf, TFC_DATA_MONITOR+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error reading tfc_data_monitor path: "+TFC_DATA_MONITOR);
-                                    Log.log_err(monitor_result.cause().getMessage());
-                                }
-    });
-
-    // Here is where we process the individual position records
-    JsonObject msg = GTFS.buf_to_json(buf, filename, filepath);
-
-    msg.put("module_name", MODULE_NAME);
-    msg.put("module_id", MODULE_ID);
-    msg.put("msg_type", Constants.FEED_BUS_POSITION);
-
-    eb.publish(FEEDHANDLER_ADDRESS, msg);
-    
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": FeedHandler published (feed_vehicle, pos_records)");
     
   } // end process_gtfs()
 
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
-  {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err("FeedHandler."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
+  // publish the decoded messages that are now next in sequence
+  private void publish_decoded()
+    {
+        while (decoded_pending.containsKey(publish_next_seq))
+            {
+                DecodedPost decoded = decoded_pending.remove(publish_next_seq++);
+                if (decoded == null)
+                    {
+                        continue; // decode failed, already logged
+                    }
+                PositionBatch batch = decoded.batch;
+
+                batch.header().put("module_name", MODULE_NAME);
+                batch.header().put("module_id", MODULE_ID);
+                batch.header().put("msg_type", Constants.FEED_BUS_POSITION);
+
+                eb.publish(FEEDHANDLER_ADDRESS, batch);
+
+                if (JSON_ADDRESS != null)
+                    {
+                        eb.publish(JSON_ADDRESS, batch.to_json());
+                    }
+
+                if (DELTA)
+                    {
+                        eb.publish(FEEDHANDLER_ADDRESS+PositionDelta.ADDRESS_SUFFIX, position_delta.delta(batch));
+                    }
+
+                if (TRIP_UPDATES)
+                    {
+                        // the table is updated here, in post order, not on the decode workers
+                        JsonObject trip_msg = trip_table.apply(decoded.trip_updates);
+                        if (trip_msg != null)
+                            {
+                                trip_msg.put("module_name", MODULE_NAME);
+                                trip_msg.put("module_id", MODULE_ID);
+                                trip_msg.put("filename", batch.header().getString("filename"));
+                                trip_msg.put("filepath", batch.header().getString("filepath"));
+                                eb.publish(FEEDHANDLER_ADDRESS+TripUpdateTable.ADDRESS_SUFFIX, trip_msg);
+                            }
+                    }
+
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": FeedHandler published (feed_vehicle, pos_records)");
+            }
+    }
+
 
     // Load initialization global constants defining this FeedHandler from config()
     private boolean get_config()
@@ -407,6 +504,9 @@ public class FeedHandler extends AbstractVerticle {
                 return false;
             }
 
+        // optional eventbus address for a Json copy of each message (the main address carries binary)
+        JSON_ADDRESS = config().getString(MODULE_NAME+".json_address");
+
         // web address for this FeedHandler to receive POST data messages from original source
         HTTP_PORT = config().getInteger(MODULE_NAME+".http.port",0);
         if (HTTP_PORT == 0)
@@ -460,8 +560,34 @@ public class FeedHandler extends AbstractVerticle {
         {
             FILE_SUFFIX = ".bin";
         }
+
+        // filename of the 'latest' post data file in TFC_DATA_MONITOR
+        MONITOR_FILENAME = config().getString(MODULE_NAME+".monitor_filename", "post_data"+FILE_SUFFIX);
+
+        // number of worker threads decoding the GTFS posts
+        DECODE_POOL_SIZE = Math.max(1, config().getInteger(MODULE_NAME+".decode_pool_size", 2));
+
+        // optional delta stream of changed vehicles
+        DELTA = config().getBoolean(MODULE_NAME+".delta", false);
+        DELTA_KEYFRAME = config().getInteger(MODULE_NAME+".delta_keyframe", 10);
+
+        // optional stream of changed GTFS TripUpdates
+        TRIP_UPDATES = config().getBoolean(MODULE_NAME+".trip_updates", false);
+        TRIP_UPDATES_KEYFRAME = config().getInteger(MODULE_NAME+".trip_updates_keyframe", 10);
+        TRIP_UPDATES_EXPIRE = config().getInteger(MODULE_NAME+".trip_updates_expire", 3600);
+
+        // optional skipping of repeated posts
+        DEDUP = config().getBoolean(MODULE_NAME+".dedup", false);
+        DEDUP_SKIP_ARCHIVE = config().getBoolean(MODULE_NAME+".dedup_skip_archive", false);
+        DEDUP_WINDOW = config().getInteger(MODULE_NAME+".dedup_window", 1);
         
         return true;
     }
+
+    // the result of decoding one post on a worker thread
+    private static class DecodedPost {
+        PositionBatch batch;
+        TripUpdateTable.Decoded trip_updates; // if TRIP_UPDATES
+    }
     
 } // end FeedHandler class
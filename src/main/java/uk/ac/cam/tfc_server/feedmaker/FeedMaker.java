@@ -19,11 +19,36 @@ package uk.ac.cam.tfc_server.feedmaker;
 //   {{feed_config.data_bin}}//YYYY/MM/DD/<filename>
 //
 // where <filename> = <UTC MILLISECOND TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// and as {{feed_config.data_monitor}}/post_data.bin (feed_config.monitor_filename), replaced by an
+// atomic rename
 //
 // Config values are read from provided vertx config() json file, e.g. see README.md
 //
+// The received data is parsed on a worker pool (feedmaker.parse_pool_size, default 4), so a slow
+// parse does not hold up the other feeds' POST handlers and polls. Each feed parses one payload
+// at a time, queueing the rest (up to feedmaker.parse_queue_max, default 20), so its messages are
+// still published in the order received (see FeedParseQueue.java). When the queue is full a snapshot
+// feed (GTFS, SIRI-VM) drops its oldest payload, while other feeds refuse the data (503 to a POST,
+// or the GET poll is skipped) until there is room. The per-feed parse times are
+// reported as a histogram in the 'parse' field of the system_status messages.
+//
+// GET feeds are polled with conditional GETs, no overlapping requests, jitter and adaptive backoff
+// (see FeedPoller.java).
+//
 // FeedMaker will publish the feed data as a JSON string on eventbus (feed_config.address).
+// GTFS and SIRI-VM feeds are published as a PositionBatch (binary on the eventbus, see util/PositionBatchCodec.java)
+// and optionally also as Json on feed_config.json_address, e.g. for a browser eventbus bridge.
+// If feed_config.delta is true, such a position feed also publishes only the changed vehicles (plus periodic
+// keyframes) on feed_config.address + ".delta" (see util/PositionDelta.java).
+// If feed_config.trip_updates is true, a GTFS feed also publishes the new, changed and deleted
+// TripUpdates (arrival predictions) on feed_config.address + ".trip_updates" (see util/TripUpdateTable.java).
+//
+// A feed_eventbus_msg feed with "pass_through": true relays each received message as a Buffer of the
+// raw JSON, with the FeedMaker properties and incremented hop count spliced in (see util/JsonSplice.java),
+// rather than parsing it into a JsonObject and serialising it again.
+//
+// Feeds with "dedup": true skip the parse and publish of an exact repeat of a recent payload
+// (and the archive write too, with "dedup_skip_archive": true), see util/FeedDedup.java.
 //
 // *************************************************************************************************
 // *************************************************************************************************
@@ -33,6 +58,7 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -45,6 +71,7 @@ import io.vertx.ext.web.handler.BodyHandler;
 
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 
 import io.vertx.core.file.FileSystem;
@@ -60,7 +87,14 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.ArchiveWriter;
+import uk.ac.cam.tfc_server.util.FeedDedup;
+import uk.ac.cam.tfc_server.util.JsonSplice;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
+import uk.ac.cam.tfc_server.util.PositionDelta;
+import uk.ac.cam.tfc_server.util.TripUpdateTable;
 
 public class FeedMaker extends AbstractVerticle {
 
@@ -77,6 +111,11 @@ public class FeedMaker extends AbstractVerticle {
     
     public int LOG_LEVEL; // optional in config(), defaults to Constants.LOG_INFO
 
+    private int DEDUP_WINDOW;         // config <module_name>.dedup_window, recent payloads compared per feed, default 1
+
+    private int PARSE_POOL_SIZE;      // config <module_name>.parse_pool_size, worker threads parsing feeds, default 4
+    private int PARSE_QUEUE_MAX;      // config <module_name>.parse_queue_max, payloads queued per feed, default 20
+
     private int HTTP_PORT;            // config feedmaker.http.port
 
     // local constants
@@ -86,10 +125,29 @@ public class FeedMaker extends AbstractVerticle {
 
     // global vars
     private HashMap<String,HttpClient> http_clients; // used to store a HttpClient for each feed_id
+    private HashMap<String,PositionDelta> position_deltas; // delta stage for each feed_id with "delta": true
+    private HashMap<String,FeedPoller> feed_pollers; // polling state for each GET feed_id
+    private HashMap<String,FeedParseQueue> parse_queues; // payloads waiting to be parsed, for each feed_id
+    private WorkerExecutor parse_executor; // worker pool parsing all the feeds
+    private HashMap<String,TripUpdateTable> trip_tables; // TripUpdates for each GTFS feed_id with "trip_updates": true
     private EventBus eb = null;
+    private ArchiveWriter archive_writer; // writes the received data to the filesystem
+    private FeedDedup feed_dedup; // recent payload hashes for feeds with "dedup": true
+    private FeedParsers feed_parsers; // FeedParser for each feed_type, via ServiceLoader
 
     private Log logger;
     
+  // carry out the queued archive writes, then close the ArchiveWriter's worker pool
+  @Override
+  public void stop(Future<Void> fut) throws Exception {
+    if (archive_writer == null)
+    {
+        fut.complete();
+        return;
+    }
+    archive_writer.close(res -> fut.complete());
+  }
+
   @Override
   public void start(Future<Void> fut) throws Exception {
 
@@ -99,6 +157,10 @@ public class FeedMaker extends AbstractVerticle {
 
     // create holder for HttpClients
     http_clients = new HashMap<String,HttpClient>();
+    position_deltas = new HashMap<String,PositionDelta>();
+    feed_pollers = new HashMap<String,FeedPoller>();
+    trip_tables = new HashMap<String,TripUpdateTable>();
+    parse_queues = new HashMap<String,FeedParseQueue>();
 
     // load FeedMaker initialization values from config()
     if (!get_config())
@@ -115,6 +177,14 @@ public class FeedMaker extends AbstractVerticle {
     // create link to EventBus
     eb = vertx.eventBus();
 
+    PositionBatchCodec.register(vertx);
+
+    archive_writer = new ArchiveWriter(vertx, MODULE_NAME+"."+MODULE_ID);
+
+    feed_dedup = new FeedDedup(DEDUP_WINDOW);
+
+    parse_executor = vertx.createSharedWorkerExecutor(MODULE_NAME+"."+MODULE_ID+".parse", PARSE_POOL_SIZE);
+
     // send periodic "system_status" messages
     vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
 
@@ -167,29 +237,29 @@ public class FeedMaker extends AbstractVerticle {
     {
         // ********************************************************************
         // Create a FeedParser for the desired feed
+        // (from the FeedParserProvider for its feed_type, see FeedParsers.java)
         // ********************************************************************
 
-          FeedParser parser;
+          FeedParser parser = feed_parsers.create(config);
 
-          if (config.getString("feed_type").equals(Constants.FEED_XML_FLAT))
-          {
-              parser = new ParseFeedXMLFlat(config, logger);
-          }
-          else if (config.getString("feed_type").equals(Constants.FEED_PLAIN))
-          {
-              parser = new ParseFeedPlain(config, logger);
-          }
-          else if (config.getString("feed_type").equals(Constants.FEED_EVENTBUS_MSG))
-          {
-              parser = new ParseFeedEventbusMsg(config, logger);
-          }
-          else if (config.getString("feed_type").equals(Constants.FEED_GTFS))
+          // a position feed is a snapshot of all the vehicles, so when its parse queue is full the
+          // oldest payload can be dropped, unless the config says otherwise
+          boolean snapshot = config.getBoolean("snapshot", parser instanceof PositionFeedParser);
+          parse_queues.put(config.getString("feed_id"), new FeedParseQueue(PARSE_QUEUE_MAX, snapshot));
+
+          // optional delta stream of changed vehicles on <address>.delta
+          if (parser instanceof PositionFeedParser && config.getBoolean("delta", false))
           {
-              parser = new ParseFeedGTFS(config, logger);
+              position_deltas.put(config.getString("feed_id"),
+                                  new PositionDelta(config.getInteger("delta_keyframe", 10)));
           }
-          else
+
+          // optional stream of changed GTFS TripUpdates on <address>.trip_updates
+          if (parser instanceof ParseFeedGTFS && config.getBoolean("trip_updates", false))
           {
-              parser = new ParseFeedText(config, logger);
+              trip_tables.put(config.getString("feed_id"),
+                              new TripUpdateTable(config.getInteger("trip_updates_keyframe", 10),
+                                                  config.getInteger("trip_updates_expire", 3600)));
           }
 
         // ********************************************************************
@@ -228,16 +298,59 @@ public class FeedMaker extends AbstractVerticle {
               {
                   logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+
                              config.getString("feed_id")+": GET poller started");
-                  // call immediately, then every 'period' seconds
-                  get_feed(config, parser);
+                  // poll at a (jittered) offset within the first period, then every 'period'
+                  // seconds, backing off to 'max_period' while the content is unchanged
+                  FeedPoller poller = new FeedPoller(config);
+                  feed_pollers.put(config.getString("feed_id"), poller);
 
-                  // set up periodic 'GET' requests for data (.setPeriodic requires milliseconds)
-                  vertx.setPeriodic( config.getInteger("period") * 1000,
-                                     id -> { get_feed(config, parser);
-                                     });
+                  schedule_poll(config, parser, poller, poller.first_delay());
               }
     }
 
+    // entity counts for each feed delta stage, keyed by feed_id
+    private JsonObject delta_metrics()
+    {
+        JsonObject jo = new JsonObject();
+        for (String feed_id: position_deltas.keySet())
+        {
+            jo.put(feed_id, position_deltas.get(feed_id).metrics());
+        }
+        return jo;
+    }
+
+    // trip update counts for each feed with "trip_updates": true, keyed by feed_id
+    private JsonObject trip_update_metrics()
+    {
+        JsonObject jo = new JsonObject();
+        for (String feed_id: trip_tables.keySet())
+        {
+            jo.put(feed_id, trip_tables.get(feed_id).metrics());
+        }
+        return jo;
+    }
+
+    // parse times and counts for each feed, keyed by feed_id
+    private JsonObject parse_metrics()
+    {
+        JsonObject jo = new JsonObject();
+        for (String feed_id: parse_queues.keySet())
+        {
+            jo.put(feed_id, parse_queues.get(feed_id).metrics());
+        }
+        return jo;
+    }
+
+    // poll counts for each GET feed, keyed by feed_id
+    private JsonObject poll_metrics()
+    {
+        JsonObject jo = new JsonObject();
+        for (String feed_id: feed_pollers.keySet())
+        {
+            jo.put(feed_id, feed_pollers.get(feed_id).metrics());
+        }
+        return jo;
+    }
+
     // ******************************
     // send UP status to the EventBus
     private void send_status()
@@ -247,6 +360,12 @@ public class FeedMaker extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"archive\": "+archive_writer.metrics().toString() + "," +
+                   "\"dedup\": "+feed_dedup.metrics().toString() + "," +
+                   "\"delta\": "+delta_metrics().toString() + "," +
+                   "\"poll\": "+poll_metrics().toString() + "," +
+                   "\"parse\": "+parse_metrics().toString() + "," +
+                   "\"trip_updates\": "+trip_update_metrics().toString() + "," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -281,7 +400,12 @@ public class FeedMaker extends AbstractVerticle {
                             // then parse this assumed gtfs-realtime POST data
                             if (HTTP_TOKEN==null || HTTP_TOKEN.equals(post_token))
                                 {
-                                    process_feed(buffer, config, parser);
+                                    if (!process_feed(buffer, config, parser))
+                                        {
+                                            // parse queue full, so the sender should retry later
+                                            ctx.request().response().setStatusCode(503).putHeader("Retry-After", "1").end();
+                                            return;
+                                        }
                                 }
                         } catch (Exception e) {
                             logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
@@ -296,36 +420,110 @@ public class FeedMaker extends AbstractVerticle {
         logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+": POST handler started");
     }
 
+    // ************************************************************************************
+    // schedule_poll()
+    //
+    // Poll the feed after 'delay' milliseconds, and then schedule the following poll. The polls
+    // keep to the feed's schedule even if a response is slow, in which case get_feed() skips
+    // the poll rather than sending an overlapping request.
+    //
+    private void schedule_poll(JsonObject config, FeedParser parser, FeedPoller poller, long delay)
+    {
+        vertx.setTimer(Math.max(1, delay), id -> {
+                schedule_poll(config, parser, poller, poller.next_delay());
+                get_feed(config, parser, poller);
+            });
+    }
+
     // ************************************************************************************
     // get_feed()
     //
     // This is the routine called periodically to GET the feed from the defined web address.
     // it will pass the data to 'parser' to convert to a JsonObject to send on the EventBus
     //
-    private void get_feed(JsonObject config, FeedParser parser)
+    // The GET is conditional (If-None-Match / If-Modified-Since) if the previous response gave an
+    // ETag or Last-Modified header, and a '304 Not Modified' response is not processed further.
+    //
+    private void get_feed(JsonObject config, FeedParser parser, FeedPoller poller)
     {
+        final String FEED_ID = config.getString("feed_id");
+
+        if (poller.in_flight)
+        {
+            poller.skipped++;
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                       ": get_feed skipped, previous GET still in progress");
+            return;
+        }
+
+        if (parse_queues.get(FEED_ID).full())
+        {
+            poller.skipped++;
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                       ": get_feed skipped, parse queue full");
+            return;
+        }
+
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                                ": get_feed "+config.getString("http.host")+config.getString("http.uri"));
 
-        final String FEED_ID = config.getString("feed_id");
+        poller.in_flight = true;
+        poller.polls++;
 
         // Do a GET to the config feed hostname/uri
-        http_clients.get(FEED_ID)
-           .getNow(config.getString("http.uri"), new Handler<HttpClientResponse>() {
+        HttpClientRequest request = http_clients.get(FEED_ID)
+           .get(config.getString("http.uri"), new Handler<HttpClientResponse>() {
 
             // this handler called when GET response is received
             @Override
             public void handle(HttpClientResponse client_response) {
+                if (client_response.statusCode() == 304)
+                {
+                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                               ": GET response 304 Not Modified");
+                    poller.in_flight = false;
+                    poller.not_modified++;
+                    poller.unchanged();
+                    return;
+                }
+
+                // keep the validators of a successful response for the next (conditional) GET,
+                // an error response (e.g. from a proxy) does not describe the feed content
+                int status = client_response.statusCode();
+                if (status >= 200 && status < 300)
+                {
+                    poller.etag = client_response.getHeader("ETag");
+                    poller.last_modified = client_response.getHeader("Last-Modified");
+                }
+
+                client_response.exceptionHandler( e -> {
+                    poller.in_flight = false;
+                    poller.errors++;
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                               ": GET response error "+e.getMessage());
+                });
+
                 // specify this 'bodyHandler' to handle the entire body of the response (as
                 // opposed to parts as they arrive).
                 client_response.bodyHandler(new Handler<Buffer>() {
                     // and here we go... handle() will be called with the GET response buffer
                     @Override
                     public void handle(Buffer buffer) {
+                        poller.in_flight = false;
+
                         // print out the received GET data for LOG_LEVEL=1 (debug)
                         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
                                    ": GET reponse length=" + buffer.length() );
 
+                        // back off while the feed content is unchanged
+                        if (poller.same_body(buffer))
+                        {
+                            poller.unchanged();
+                        }
+                        else
+                        {
+                            poller.changed();
+                        }
 
                         // Now send the buffer to be processed, which may cause exception if bad data
                         try {
@@ -340,6 +538,27 @@ public class FeedMaker extends AbstractVerticle {
                 });
             }
         });
+
+        // connection error or timeout
+        request.exceptionHandler( e -> {
+            poller.in_flight = false;
+            poller.errors++;
+            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                       ": GET error "+e.getMessage());
+        });
+
+        request.setTimeout(poller.timeout_ms());
+
+        if (poller.etag != null)
+        {
+            request.putHeader("If-None-Match", poller.etag);
+        }
+        if (poller.last_modified != null)
+        {
+            request.putHeader("If-Modified-Since", poller.last_modified);
+        }
+
+        request.end();
     } // end get_feed()
 
     // ***********************************************    
@@ -351,9 +570,30 @@ public class FeedMaker extends AbstractVerticle {
     }
 
   // *****************************************************************
-  // process the received raw data
-  private void process_feed(Buffer buf, JsonObject config, FeedParser parser) throws Exception 
+  // process the received raw data, returning false if it was refused as the feed's parse
+  // queue is full (see FeedParseQueue.java), in which case it is not archived either
+  private boolean process_feed(Buffer buf, JsonObject config, FeedParser parser) throws Exception 
   {
+    FeedParseQueue parse_queue = parse_queues.get(config.getString("feed_id"));
+    if (parse_queue.full())
+    {
+        parse_queue.refused();
+        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                   ": parse queue full for feed "+config.getString("feed_id")+", data refused");
+        return false;
+    }
+
+    // an exact repeat of a recent payload on this feed is not parsed or published,
+    // and if "dedup_skip_archive" is set it is not archived either
+    boolean duplicate = config.getBoolean("dedup", false) &&
+                        feed_dedup.duplicate(config.getString("feed_id"), buf);
+    if (duplicate && config.getBoolean("dedup_skip_archive", false))
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": skipping duplicate data on feed "+config.getString("feed_id"));
+        return true;
+    }
+
 
     LocalDateTime local_time = LocalDateTime.now();
     
@@ -389,22 +629,125 @@ public class FeedMaker extends AbstractVerticle {
     // Write file to DATA_MONITOR
     //
     final String monitor_path = config.getString("data_monitor");
-    write_monitor_file(buf, monitor_path, filename, file_suffix);
+    write_monitor_file(buf, monitor_path, config.getString("monitor_filename"));
+
+    if (duplicate)
+    {
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": archived duplicate data on feed "+config.getString("feed_id")+", not publishing");
+        return true;
+    }
 
     // ********************************************************************************************
     // Finally, here is where we PARSE the incoming data and put it in the 'request_data' property
+    // (on the parse worker pool, in order for each feed, see FeedParseQueue.java)
     // ********************************************************************************************
 
-    try {            
-        // Parse the received data into a suitable EventBus JsonObject message
-        JsonObject msg = parser.parse(buf);
+    if (!parse_queue.add(new FeedParseQueue.Job(buf, filename, filepath, utc_seconds)))
+    {
+        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                   ": parse queue full for feed "+config.getString("feed_id")+", oldest data dropped");
+    }
+    parse_next(config, parser, parse_queue);
+    return true;
+  } // end process_feed()
+
+  // *****************************************************************
+  // parse the next queued payload of a feed on the worker pool, unless one is already being parsed,
+  // then publish it and continue with the feed's next payload
+  private void parse_next(JsonObject config, FeedParser parser, FeedParseQueue parse_queue)
+  {
+    if (parse_queue.busy)
+    {
+        return;
+    }
+    FeedParseQueue.Job job = parse_queue.next();
+    if (job == null)
+    {
+        return;
+    }
+    parse_queue.busy = true;
+
+    parse_executor.<FeedParseQueue.Result>executeBlocking(fut -> {
+            long start_ns = System.nanoTime();
+            try
+            {
+                // Parse the received data into a suitable EventBus JsonObject message, or for a position
+                // feed (GTFS, SIRI-VM) a PositionBatch, in which case 'msg' is the batch header (i.e. the message properties)
+                FeedParseQueue.Result result = new FeedParseQueue.Result();
+                if (config.getBoolean("pass_through", false))
+                {
+                    // relayed eventbus message, only its top-level properties are scanned
+                    result.relay = JsonSplice.scan(job.buf);
+                    // read here, so a message with a hop count that is not an integer is rejected as unparseable
+                    result.relay_hops = result.relay.get_long(Constants.PLATFORM_PREFIX+"hop_count", 0);
+                }
+                else if (parser instanceof PositionFeedParser)
+                {
+                    result.batch = ((PositionFeedParser) parser).parse_batch(job.buf);
+                    result.msg = result.batch.header();
+                }
+                else
+                {
+                    result.msg = parser.parse(job.buf);
+                }
+                if (parser instanceof ParseFeedGTFS)
+                {
+                    result.trip_updates = ((ParseFeedGTFS) parser).take_trip_updates();
+                }
+                parse_queue.latency.record(System.nanoTime() - start_ns);
+                fut.complete(result);
+            }
+            catch (Exception e)
+            {
+                fut.fail(e);
+            }
+        }, false, res -> {
+            parse_queue.busy = false;
+            if (res.succeeded())
+            {
+                parse_queue.parsed();
+                try
+                {
+                    publish_feed(config, job, res.result());
+                }
+                catch (Exception e)
+                {
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": exception raised during publishing of feed "+config.getString("feed_id")+":");
+                    logger.log(Constants.LOG_WARN, e.getMessage());
+                }
+            }
+            else
+            {
+                parse_queue.error();
+                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                           ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+                logger.log(Constants.LOG_WARN, res.cause().getMessage());
+            }
+            parse_next(config, parser, parse_queue);
+        });
+  }
+
+  // *****************************************************************
+  // publish a parsed payload (on the event loop, in the order received for each feed)
+  private void publish_feed(JsonObject config, FeedParseQueue.Job job, FeedParseQueue.Result result)
+  {
+        if (result.relay != null)
+        {
+            publish_relay(config, job, result);
+            return;
+        }
+
+        PositionBatch batch = result.batch;
+        JsonObject msg = result.msg;
 
         msg.put("module_name", MODULE_NAME);
         msg.put("module_id", MODULE_ID);
         msg.put("feed_id", config.getString("feed_id"));
-        msg.put("filename", filename);
-        msg.put("filepath", filepath);
-        msg.put("ts", utc_seconds);
+        msg.put("filename", job.filename);
+        msg.put("filepath", job.filepath);
+        msg.put("ts", job.utc_seconds);
 
         // if a FEED_EVENTBUS_MSG then increment hop_count
         if (config.getString("feed_type").equals(Constants.FEED_EVENTBUS_MSG))
@@ -428,17 +771,69 @@ public class FeedMaker extends AbstractVerticle {
 
         String feedmaker_address = config.getString("address");
 
-        eb.publish(feedmaker_address, msg);
+        eb.publish(feedmaker_address, batch == null ? msg : batch);
+
+        // opt-in Json copy of a PositionBatch, e.g. for a browser eventbus bridge
+        String json_address = config.getString("json_address");
+        if (batch != null && json_address != null)
+        {
+            eb.publish(json_address, batch.to_json());
+        }
+
+        // delta stream of the vehicles that have changed since the previous message
+        PositionDelta position_delta = position_deltas.get(config.getString("feed_id"));
+        if (batch != null && position_delta != null)
+        {
+            eb.publish(feedmaker_address+PositionDelta.ADDRESS_SUFFIX, position_delta.delta(batch));
+        }
+
+        // new, changed and deleted GTFS TripUpdates since the previous message
+        TripUpdateTable trip_table = trip_tables.get(config.getString("feed_id"));
+        if (trip_table != null && result.trip_updates != null)
+        {
+            JsonObject trip_msg = trip_table.apply(result.trip_updates);
+            if (trip_msg != null)
+            {
+                trip_msg.put("module_name", MODULE_NAME);
+                trip_msg.put("module_id", MODULE_ID);
+                trip_msg.put("feed_id", config.getString("feed_id"));
+                trip_msg.put("filename", job.filename);
+                trip_msg.put("filepath", job.filepath);
+                trip_msg.put("ts", job.utc_seconds);
+                eb.publish(feedmaker_address+TripUpdateTable.ADDRESS_SUFFIX, trip_msg);
+            }
+        }
     
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                    ": published latest feed data to "+feedmaker_address);
-    }
-    catch (Exception e) {
-        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
-        logger.log(Constants.LOG_WARN, e.getMessage());
-    }
-  } // end process_feed()
+  } // end publish_feed()
+
+  // *****************************************************************
+  // publish a "pass_through" feed_eventbus_msg message as the received JSON bytes, with the same
+  // properties added as publish_feed() would add to the parsed message
+  private void publish_relay(JsonObject config, FeedParseQueue.Job job, FeedParseQueue.Result result)
+  {
+        String hops_name = Constants.PLATFORM_PREFIX+"hop_count";
+
+        JsonObject fields = new JsonObject();
+        fields.put("module_name", MODULE_NAME);
+        fields.put("module_id", MODULE_ID);
+        fields.put("feed_id", config.getString("feed_id"));
+        fields.put("filename", job.filename);
+        fields.put("filepath", job.filepath);
+        fields.put("ts", job.utc_seconds);
+        fields.put(hops_name, result.relay_hops + 1);
+
+        Buffer msg = result.relay.splice(fields);
+
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+        logger.log(Constants.LOG_DEBUG, msg.toString());
+
+        eb.publish(config.getString("address"), msg);
+
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                   ": relayed feed data to "+config.getString("address"));
+  } // end publish_relay()
 
     // ******************************************************************
     // write_bin_file()
@@ -448,95 +843,26 @@ public class FeedMaker extends AbstractVerticle {
     //
     private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix)
     {
-        FileSystem fs = vertx.fileSystem();
-        // if full directory path exists, then write file
-        // otherwise create full path first
-    
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                    ": Writing "+bin_path+"/"+filename + file_suffix);
-        fs.exists(bin_path, result -> {
-                if (result.succeeded() && result.result())
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": process_feed: path "+bin_path+" exists");
-                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                    }
-                else
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Creating directory "+bin_path);
-                        fs.mkdirs(bin_path, mkdirs_result -> {
-                                if (mkdirs_result.succeeded())
-                                    {
-                                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                                    }
-                                else
-                                    {
-                                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
-                                                    ": error creating tfc_data_bin path "+bin_path);
-                                    }
-                            });
-                    }
-        });
+        archive_writer.write(bin_path, filename + file_suffix, buf);
     }        
 
     // ************************************************************************************
     // write_monitor_file()
     //
-    // Write 'buf' to file in the filesystem, deleting previous files in the same directory
-    // This is convenient for a separate 'inotifywait' process to listen for file-close-write
+    // Write 'buf' to the fixed-name file 'monitor_filename' in 'monitor_path', replacing the previous
+    // file with an atomic rename (so the directory always holds one complete file).
+    // This is convenient for a separate 'inotifywait' process to listen for moved_to
     // events on that directory and trigger separate processes, e.g. to POST the file onward.
     //
-    private void write_monitor_file(Buffer buf, String monitor_path, String filename, String file_suffix)
+    private void write_monitor_file(Buffer buf, String monitor_path, String monitor_filename)
     {
-        FileSystem fs = vertx.fileSystem();
-
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+monitor_path+"/"+filename+ file_suffix);
-        fs.readDir(monitor_path, ".*\\"+file_suffix, monitor_result -> {
-            if (monitor_result.succeeded())
-                {
-                    // directory exists, delete previous files of same suffix
-                    for (String f: monitor_result.result())
-                        {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": Deleting "+f);
-                            fs.delete(f, delete_result -> {
-                                    if (!delete_result.succeeded())
-                                        {
-                                          logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                      ": error tfc_data_monitor delete: "+f);
-                                        }
-                                });
-                        }
-                    write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                ": error reading data_monitor path: "+
-                                monitor_path);
-                    logger.log(Constants.LOG_WARN, monitor_result.cause().getMessage());
-                }
-        });
+               ": Writing "+monitor_path+"/"+monitor_filename);
+        archive_writer.write_latest(monitor_path, monitor_filename, buf);
     }
 
-  // ***************************************************
-  // Write the 'buf' as a file 'filepath' (non-blocking)
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
-  {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
-
     // validate_feeds() will validate a FeedMaker feeds config, and insert default values
     // The config is kept as a JsonArray
     private boolean validate_feeds()
@@ -626,6 +952,30 @@ public class FeedMaker extends AbstractVerticle {
                         config.put("file_suffix",".bin");
                     }
 
+                // the fixed name of the latest file in the monitor directory
+                if (config.getString("monitor_filename")==null)
+                    {
+                        config.put("monitor_filename","post_data"+config.getString("file_suffix"));
+                    }
+
+                // the feed_type must have a parser (see FeedParsers.java), rather than a mistyped
+                // feed_type publishing empty messages
+                if (!feed_parsers.supports(config.getString("feed_type")))
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": no parser for feed_type "+config.getString("feed_type"));
+                        return false;
+                    }
+
+                // only a relayed eventbus message can be published without parsing
+                if (config.getBoolean("pass_through", false) &&
+                    !Constants.FEED_EVENTBUS_MSG.equals(config.getString("feed_type")))
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": pass_through requires feed_type "+Constants.FEED_EVENTBUS_MSG);
+                        return false;
+                    }
+
                 // create a new HttpClient for this feed, and add to http_clients list
                 if (http_get)
                     {
@@ -689,7 +1039,17 @@ public class FeedMaker extends AbstractVerticle {
         // web address for this FeedHandler to receive POST data messages from original source
         HTTP_PORT = config().getInteger(MODULE_NAME+".http.port",0);
 
+        // number of recent payloads checked for duplicates, on feeds with "dedup": true
+        DEDUP_WINDOW = config().getInteger(MODULE_NAME+".dedup_window", 1);
+
+        // worker threads parsing the feeds, and the payloads that may wait for each feed
+        PARSE_POOL_SIZE = Math.max(1, config().getInteger(MODULE_NAME+".parse_pool_size", 4));
+        PARSE_QUEUE_MAX = config().getInteger(MODULE_NAME+".parse_queue_max", 20);
+
         START_FEEDS = config().getJsonArray(MODULE_NAME+".feeds");
+
+        // the available parsers, by feed_type, used by validate_feeds()
+        feed_parsers = new FeedParsers(new Log(LOG_LEVEL));
         
         if (!validate_feeds())
             {
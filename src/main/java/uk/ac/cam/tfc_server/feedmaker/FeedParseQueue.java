@@ -0,0 +1,143 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   FeedParseQueue.java
+//
+//   Parse queue for a single FeedMaker feed, used by FeedMaker.process_feed()
+//
+//   The parsing of all feeds is done on a bounded worker pool (feedmaker.parse_pool_size), but
+//   each feed has at most one parse in progress at a time, with its later payloads queued here,
+//   so a feed's messages are parsed (by its single FeedParser instance) and published in the
+//   order received while different feeds parse in parallel.
+//
+//   The queue and 'busy' flag are only used on the FeedMaker event loop. When 'max_queued'
+//   payloads are waiting, what happens to the next depends on the feed:
+//     a snapshot feed (each payload a complete state, e.g. GTFS-realtime VehiclePositions or
+//       SIRI-VM) drops the oldest queued payload, as the newer data supersedes it.
+//     any other feed (e.g. feed_eventbus_msg relays, or plain and text feeds where each payload
+//       is a message in its own right) is full(), and FeedMaker refuses further data until the
+//       queue has room: a POST gets a '503 Service Unavailable' response, so the sender (e.g. a
+//       MsgRouter) retries it later, and a GET poll is skipped.
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.JsonSplice;
+import uk.ac.cam.tfc_server.util.LatencyHistogram;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.TripUpdateTable;
+
+class FeedParseQueue {
+
+    // a received payload waiting to be parsed
+    static class Job {
+        Buffer buf;
+        String filename;
+        String filepath;
+        long utc_seconds;
+
+        Job(Buffer buf, String filename, String filepath, long utc_seconds)
+        {
+            this.buf = buf;
+            this.filename = filename;
+            this.filepath = filepath;
+            this.utc_seconds = utc_seconds;
+        }
+    }
+
+    // the result of parsing a Job on a worker thread
+    static class Result {
+        JsonObject msg;                       // the eventbus message, or the batch header
+        PositionBatch batch = null;           // for a PositionFeedParser
+        TripUpdateTable.Decoded trip_updates = null; // for a ParseFeedGTFS with "trip_updates"
+        JsonSplice relay = null;              // for a "pass_through" feed_eventbus_msg feed, instead of 'msg'
+        long relay_hops;                      // and the hop count of the relayed message
+    }
+
+    private final int max_queued;
+
+    private final boolean snapshot; // drop the oldest payload when full, else refuse new payloads
+
+    private ArrayDeque<Job> queue = new ArrayDeque<Job>();
+
+    boolean busy = false;     // a Job of this feed is being parsed
+
+    LatencyHistogram latency = new LatencyHistogram(); // parse times on the worker
+
+    // counts since the last call to metrics()
+    private long parsed = 0;
+    private long errors = 0;
+    private long dropped = 0;
+    private long refused = 0;
+
+    FeedParseQueue(int max_queued, boolean snapshot)
+    {
+        this.max_queued = Math.max(1, max_queued);
+        this.snapshot = snapshot;
+    }
+
+    // true if the next payload of this (not snapshot) feed should be refused
+    boolean full()
+    {
+        return !snapshot && queue.size() >= max_queued;
+    }
+
+    // count a payload refused because the queue was full()
+    void refused()
+    {
+        refused++;
+    }
+
+    // queue 'job', returning false if the oldest queued job was dropped to make room,
+    // which only happens for a snapshot feed
+    boolean add(Job job)
+    {
+        boolean room = !snapshot || queue.size() < max_queued;
+        if (!room)
+        {
+            queue.poll();
+            dropped++;
+        }
+        queue.add(job);
+        return room;
+    }
+
+    // the next job to parse, or null
+    Job next()
+    {
+        return queue.poll();
+    }
+
+    void parsed()
+    {
+        parsed++;
+    }
+
+    void error()
+    {
+        errors++;
+    }
+
+    JsonObject metrics()
+    {
+        JsonObject jo = latency.to_json();
+        jo.put("parsed", parsed);
+        jo.put("errors", errors);
+        jo.put("dropped", dropped);
+        jo.put("refused", refused);
+        jo.put("queued", queue.size());
+        parsed = 0;
+        errors = 0;
+        dropped = 0;
+        refused = 0;
+        return jo;
+    }
+
+} // end FeedParseQueue
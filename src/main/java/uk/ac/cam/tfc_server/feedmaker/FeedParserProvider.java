@@ -0,0 +1,24 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// Service interface for FeedParser discovery, so a new feed type can be added with a jar
+// on the classpath rather than code in FeedMaker.
+//
+// Implementations are listed in META-INF/services/uk.ac.cam.tfc_server.feedmaker.FeedParserProvider
+// and loaded with java.util.ServiceLoader (see FeedParsers.java).
+
+import java.util.List;
+
+import io.vertx.core.json.JsonObject;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Log;
+
+public interface FeedParserProvider {
+
+    // the feed_type config values this provider handles, e.g. Constants.FEED_XML_FLAT
+    List<String> feed_types();
+
+    // create a parser for a feed, given the feed config
+    FeedParser create(JsonObject config, Log logger);
+
+} // end FeedParserProvider
@@ -0,0 +1,73 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   FeedParsers.java
+//
+//   Registry of the available FeedParsers by feed_type, built from the FeedParserProviders
+//   found by java.util.ServiceLoader.
+//
+//   The built-in parsers register themselves via their nested 'Provider' classes, listed in
+//   src/main/resources/META-INF/services/uk.ac.cam.tfc_server.feedmaker.FeedParserProvider
+//
+//   A feed_type with no provider is rejected by FeedMaker.validate_feeds() (see supports()).
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import java.util.HashMap;
+import java.util.ServiceLoader;
+
+import io.vertx.core.json.JsonObject;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Constants;
+
+public class FeedParsers {
+
+    private HashMap<String, FeedParserProvider> providers = new HashMap<String, FeedParserProvider>();
+
+    private Log logger;
+
+    public FeedParsers(Log logger)
+    {
+        this.logger = logger;
+
+        for (FeedParserProvider provider: ServiceLoader.load(FeedParserProvider.class))
+            {
+                for (String feed_type: provider.feed_types())
+                    {
+                        if (providers.containsKey(feed_type))
+                            {
+                                logger.log(Constants.LOG_WARN, "FeedParsers: "+provider.getClass().getName()+
+                                           " ignored for "+feed_type+", already provided by "+
+                                           providers.get(feed_type).getClass().getName());
+                                continue;
+                            }
+                        providers.put(feed_type, provider);
+                    }
+            }
+
+        logger.log(Constants.LOG_DEBUG, "FeedParsers loaded for feed types "+providers.keySet());
+    }
+
+    // true if there is a parser for 'feed_type'
+    public boolean supports(String feed_type)
+    {
+        return feed_type != null && providers.containsKey(feed_type);
+    }
+
+    // create the parser for the feed_type in 'config'
+    public FeedParser create(JsonObject config)
+    {
+        String feed_type = config.getString("feed_type");
+        FeedParserProvider provider = providers.get(feed_type);
+        if (provider == null)
+            {
+                throw new IllegalArgumentException("FeedParsers: no parser for feed_type "+feed_type);
+            }
+        return provider.create(config, logger);
+    }
+
+} // end FeedParsers
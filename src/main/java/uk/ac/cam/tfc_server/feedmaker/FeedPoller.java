@@ -0,0 +1,128 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   FeedPoller.java
+//
+//   Polling state for a single FeedMaker GET feed, used by FeedMaker.get_feed()
+//
+//   - holds the ETag / Last-Modified validators of the last successful (2xx) response, so the next
+//     poll can be a conditional GET (If-None-Match / If-Modified-Since) answered with '304 Not Modified'
+//   - records whether a poll is still in flight, so overlapping polls are skipped
+//   - gives the delay to the next poll, with jitter so many feeds do not fire together, and
+//     backing off (up to "max_period") while the feed content is unchanged
+//
+//   Feed config properties:
+//     "period":     seconds between polls (required)
+//     "max_period": seconds, upper limit of the backed-off poll interval, default "period" (no backoff)
+//     "jitter":     true|false, random start offset and +/-10% on each interval, default true
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Random;
+
+class FeedPoller {
+
+    private static final double JITTER = 0.1;  // +/- fraction of the interval
+    private static final double BACKOFF = 1.5; // interval multiplier for each unchanged poll
+
+    private final long period_ms;
+    private final long max_period_ms;
+    private final boolean jitter;
+
+    private final Random random = new Random();
+
+    private long interval_ms;     // current interval, period_ms .. max_period_ms
+
+    boolean in_flight = false;    // a GET has been sent and the response not yet completed
+
+    String etag = null;           // validators from the last 2xx response, if given
+    String last_modified = null;
+
+    private Buffer last_body = null; // the last body and its hash, to detect unchanged content
+    private int last_hash = 0;
+
+    // counts since the last call to metrics()
+    long polls = 0;
+    long not_modified = 0;
+    long unchanged = 0;
+    long skipped = 0;
+    long errors = 0;
+
+    FeedPoller(JsonObject config)
+    {
+        period_ms = config.getInteger("period") * 1000L;
+        max_period_ms = Math.max(period_ms, config.getInteger("max_period", config.getInteger("period")) * 1000L);
+        jitter = config.getBoolean("jitter", true);
+        interval_ms = period_ms;
+    }
+
+    // delay (ms) before the first poll, a random offset within the period if jitter is enabled
+    long first_delay()
+    {
+        return jitter ? (long) (random.nextDouble() * period_ms) : 0;
+    }
+
+    // delay (ms) to the poll after this one
+    long next_delay()
+    {
+        if (!jitter)
+            {
+                return interval_ms;
+            }
+        return Math.max(1, (long) (interval_ms * (1 + JITTER * (2 * random.nextDouble() - 1))));
+    }
+
+    // the time limit for a single request, after which the poll counts as failed
+    long timeout_ms()
+    {
+        return period_ms;
+    }
+
+    // a response with new content was received, so return to the base period
+    void changed()
+    {
+        interval_ms = period_ms;
+    }
+
+    // a response with unchanged content (or 304 Not Modified) was received, so back off
+    void unchanged()
+    {
+        unchanged++;
+        interval_ms = Math.min(max_period_ms, (long) (interval_ms * BACKOFF));
+    }
+
+    // return true if 'buf' has the same content as the previous response body, and record it.
+    // The bytes are only compared if the lengths and hashes match.
+    boolean same_body(Buffer buf)
+    {
+        int hash = buf.hashCode();
+        boolean same = last_body != null && buf.length() == last_body.length() && hash == last_hash &&
+                       buf.equals(last_body);
+        last_body = buf;
+        last_hash = hash;
+        return same;
+    }
+
+    JsonObject metrics()
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("polls", polls);
+        jo.put("not_modified", not_modified);
+        jo.put("unchanged", unchanged);
+        jo.put("skipped", skipped);
+        jo.put("errors", errors);
+        jo.put("interval_s", interval_ms / 1000.0);
+        polls = 0;
+        not_modified = 0;
+        unchanged = 0;
+        skipped = 0;
+        errors = 0;
+        return jo;
+    }
+
+} // end FeedPoller
@@ -0,0 +1,72 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   JsonRecordSink.java
+//
+//   RecordSink that builds the standard eventbus message, i.e.
+//     { "request_data": [ {record}, {record}, ... ] }
+//   as previously returned by each FeedParser.parse()
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.JsonArray;
+
+public class JsonRecordSink implements RecordSink {
+
+    private JsonArray records = new JsonArray();
+
+    private JsonObject record = null; // the record being written, null between records
+
+    public void start_record()
+    {
+        record = new JsonObject();
+    }
+
+    public void put(String name, String value)
+    {
+        record.put(name, value);
+    }
+
+    public void put(String name, long value)
+    {
+        record.put(name, value);
+    }
+
+    public void put(String name, double value)
+    {
+        record.put(name, value);
+    }
+
+    public void end_record()
+    {
+        records.add(record);
+        record = null;
+    }
+
+    public void cancel_record()
+    {
+        record = null;
+    }
+
+    public void record(JsonObject record)
+    {
+        records.add(record);
+    }
+
+    public int size()
+    {
+        return records.size();
+    }
+
+    // the eventbus message holding the records written so far
+    public JsonObject msg()
+    {
+        JsonObject msg = new JsonObject();
+        msg.put("request_data", records);
+        return msg;
+    }
+
+} // end JsonRecordSink
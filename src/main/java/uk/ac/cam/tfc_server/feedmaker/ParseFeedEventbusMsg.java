@@ -18,8 +18,10 @@ package uk.ac.cam.tfc_server.feedmaker;
 // Note that a FeedParser (like this one) ALWAYS returns a Json Array, even for a single record
 //
 
+import java.util.Arrays;
+import java.util.List;
+
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.buffer.Buffer;
 
 // other tfc_server classes
@@ -53,5 +55,19 @@ public class ParseFeedEventbusMsg implements FeedParser {
         return new JsonObject(buf.toString()); // EventBus message from feed is returned as a JsonObject
     }
 
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
+
+        public List<String> feed_types()
+        {
+            return Arrays.asList(Constants.FEED_EVENTBUS_MSG);
+        }
+
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedEventbusMsg(config, logger);
+        }
+    }
+
 } // end ParseFeedEventbusMsg
 
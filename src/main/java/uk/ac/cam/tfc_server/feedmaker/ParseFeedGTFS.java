@@ -58,13 +58,17 @@ package uk.ac.cam.tfc_server.feedmaker;
 
 
 */
+import java.util.Arrays;
+import java.util.List;
+
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.buffer.Buffer;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.TripUpdateTable;
 
 // All the Google Protobuf GTFS required classes
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
@@ -75,13 +79,17 @@ import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.Position;
 
-public class ParseFeedGTFS implements FeedParser {
+public class ParseFeedGTFS implements PositionFeedParser {
 
     private String area_id;
 
     private JsonObject config;
 
     private Log logger;
+
+    private boolean trip_updates; // config "trip_updates", also decode the TripUpdate entities
+
+    private TripUpdateTable.Decoded decoded_trip_updates = null; // from the latest parse_batch()
     
     ParseFeedGTFS(JsonObject config, Log logger)
     {
@@ -89,6 +97,8 @@ public class ParseFeedGTFS implements FeedParser {
 
        this.area_id = config.getString("area_id","");
 
+       this.trip_updates = config.getBoolean("trip_updates", false);
+
        this.logger = logger;
 
        logger.log(Constants.LOG_DEBUG, "ParseFeedGTFS started");
@@ -96,14 +106,27 @@ public class ParseFeedGTFS implements FeedParser {
 
     // Here is where we try and parse the page into a JsonObject
     public JsonObject parse(Buffer buf) throws Exception
+    {
+        return parse_batch(buf).to_json();
+    }
+
+    // Parse the page into a PositionBatch, the typed form of the JsonObject returned by parse(),
+    // which FeedMaker publishes in binary form (see util/PositionBatchCodec.java)
+    public PositionBatch parse_batch(Buffer buf) throws Exception
     {
         logger.log(Constants.LOG_DEBUG, "ParseFeedGTFS.parse() called");
 
         FeedMessage feed = FeedMessage.parseFrom(buf.getBytes());
 
-        JsonObject feed_json_object = new JsonObject(); // object to hold entire message
+        if (trip_updates)
+            {
+                decoded_trip_updates = TripUpdateTable.decode(feed);
+            }
 
-        JsonArray ja = new JsonArray(); // array to hold GTFS 'entities' i.e. position records
+        JsonObject feed_json_object = new JsonObject(); // object to hold message properties
+
+        // batch to hold GTFS 'entities' i.e. position records, including the acp_ platform fields
+        PositionBatch batch = new PositionBatch(feed_json_object, true);
 
         // add (sent) timestamp as feed.timestamp (i.e. we are not using a 'header' sub-object
         FeedHeader header = feed.getHeader();
@@ -116,38 +139,36 @@ public class ParseFeedGTFS implements FeedParser {
             {
                 try
                     {
-                        if (entity.hasVehicle())
+                        // a deleted entity (DIFFERENTIAL feeds only) is not a position record
+                        if (entity.hasVehicle() && !entity.getIsDeleted())
                             {
                                 VehiclePosition vehicle_pos = entity.getVehicle();
-                                //PositionRecord pos_record = new PositionRecord();
-                                JsonObject jo = new JsonObject();
+                                int i = batch.add_entity();
 
                                 if (vehicle_pos.hasVehicle())
                                     {
                                         VehicleDescriptor vehicle_desc = vehicle_pos.getVehicle();
                                         if (vehicle_desc.hasId())
                                             {
-                                                jo.put("vehicle_id",vehicle_desc.getId());
-                                                jo.put(Constants.PLATFORM_PREFIX+"id",vehicle_desc.getId());
+                                                // vehicle_id and acp_id
+                                                batch.set_string(i, PositionBatch.VEHICLE_ID, vehicle_desc.getId());
                                             }
                                         if (vehicle_desc.hasLabel())
                                             {
-                                                jo.put("label",vehicle_desc.getLabel());
+                                                batch.set_string(i, PositionBatch.LABEL, vehicle_desc.getLabel());
                                             }
                                     }
                                 if (vehicle_pos.hasPosition())
                                     {
                                         Position vpos = vehicle_pos.getPosition();
-                                        // Latitude
-                                        jo.put("latitude", vpos.getLatitude());
-                                        jo.put(Constants.PLATFORM_PREFIX+"lat",vpos.getLatitude());
-                                        // Longitude
-                                        jo.put("longitude", vpos.getLongitude());
-                                        jo.put(Constants.PLATFORM_PREFIX+"lng",vpos.getLongitude());
+                                        // Latitude (and acp_lat)
+                                        batch.set_float(i, PositionBatch.LATITUDE, vpos.getLatitude());
+                                        // Longitude (and acp_lng)
+                                        batch.set_float(i, PositionBatch.LONGITUDE, vpos.getLongitude());
 
                                         if (vpos.hasBearing())
                                             {
-                                                jo.put("bearing",vpos.getBearing());
+                                                batch.set_float(i, PositionBatch.BEARING, vpos.getBearing());
                                             }
                                     }
                                 if (vehicle_pos.hasTrip())
@@ -155,30 +176,27 @@ public class ParseFeedGTFS implements FeedParser {
                                         TripDescriptor trip = vehicle_pos.getTrip();
                                         if (trip.hasTripId())
                                             {
-                                                jo.put("trip_id",trip.getTripId());
+                                                batch.set_string(i, PositionBatch.TRIP_ID, trip.getTripId());
                                             }
                                         if (trip.hasRouteId())
                                             {
-                                                jo.put("route_id",trip.getRouteId());
+                                                batch.set_string(i, PositionBatch.ROUTE_ID, trip.getRouteId());
                                             }
                                     }
                                 if (vehicle_pos.hasCurrentStopSequence())
                                     {
-                                        jo.put("current_stop_sequence",vehicle_pos.getCurrentStopSequence());
+                                        batch.set_current_stop_sequence(i, vehicle_pos.getCurrentStopSequence());
                                     }
                                 if (vehicle_pos.hasStopId())
                                     {
-                                        jo.put("stop_id",vehicle_pos.getStopId());
+                                        batch.set_string(i, PositionBatch.STOP_ID, vehicle_pos.getStopId());
                                     }
                                 if (vehicle_pos.hasTimestamp())
                                     {
-                                        // Timestamp
-                                        jo.put("timestamp", vehicle_pos.getTimestamp());
-                                        jo.put(Constants.PLATFORM_PREFIX+"ts", vehicle_pos.getTimestamp());
+                                        // Timestamp (and acp_ts)
+                                        batch.set_timestamp(i, vehicle_pos.getTimestamp());
                                     }
 
-                                ja.add(jo);
-
                             }
                     } // end try
                 catch (Exception e)
@@ -187,11 +205,30 @@ public class ParseFeedGTFS implements FeedParser {
                     }
             }
 
-        // finally... add JsonArray of feed 'FeedEntities' to feed_json_object
-        feed_json_object.put("entities", ja);
-    
-        return feed_json_object;
+        return batch;
+
+    }
+
+    // the TripUpdates decoded by the latest parse_batch() (if config "trip_updates" is set), or null
+    public TripUpdateTable.Decoded take_trip_updates()
+    {
+        TripUpdateTable.Decoded decoded = decoded_trip_updates;
+        decoded_trip_updates = null;
+        return decoded;
+    }
+
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
 
+        public List<String> feed_types()
+        {
+            return Arrays.asList(Constants.FEED_GTFS);
+        }
+
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedGTFS(config, logger);
+        }
     }
 
 } // end ParseFeedGTFS
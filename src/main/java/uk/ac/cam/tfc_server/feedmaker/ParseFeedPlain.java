@@ -20,15 +20,18 @@ package uk.ac.cam.tfc_server.feedmaker;
 // Note that a FeedParser (like this one) ALWAYS returns a Json Array, even for a single record
 //
 
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.buffer.Buffer;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
 
-public class ParseFeedPlain implements FeedParser {
+public class ParseFeedPlain implements StreamingFeedParser {
 
     private String area_id;
 
@@ -47,21 +50,31 @@ public class ParseFeedPlain implements FeedParser {
        logger.log(Constants.LOG_DEBUG, "ParseFeedPlain started");
     }
 
-    // Here is where we try and parse the page and return a JsonArray
-    public JsonObject parse(Buffer buf)
+    // Here is where we try and parse the page and write the single record to 'sink'
+    public void parse(Buffer buf, RecordSink sink)
     {
 
         logger.log(Constants.LOG_DEBUG, "ParseFeedPlain.parse() called");
 
-        JsonArray records = new JsonArray();
-
         logger.log(Constants.LOG_DEBUG, "ParseFeed plain record");
-        JsonObject json_record = new JsonObject();
-        json_record.put("feed_data", buf.getBytes());
-        records.add(json_record);
-        JsonObject msg = new JsonObject();
-        msg.put("request_data", records);
-        return msg;
+        // "feed_data" is the page as base64, i.e. as a JsonObject encodes a byte[] value
+        sink.start_record();
+        sink.put("feed_data", Base64.getEncoder().encodeToString(buf.getBytes()));
+        sink.end_record();
+    }
+
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
+
+        public List<String> feed_types()
+        {
+            return Arrays.asList(Constants.FEED_PLAIN);
+        }
+
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedPlain(config, logger);
+        }
     }
 
 } // end ParseFeedPlain
@@ -0,0 +1,631 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// ******************************************************************************************
+// ******************************************************************************************
+//
+// ParseFeedSiriVM
+//
+// See the README.md for the ACP vertx module FeedMaker.
+//
+// Parser for SIRI-VM (Vehicle Monitoring) XML feeds, feed_type "feed_sirivm" (Constants.FEED_SIRIVM).
+//
+// Each <VehicleActivity> record becomes an entity of a PositionBatch, as for GTFS feeds, so
+// FeedMaker publishes SIRI-VM data in the same typed (binary) form and the Zones etc. receive
+// the same 'entities' records (including the acp_id, acp_lat, acp_lng, acp_ts platform fields):
+//
+//   SIRI-VM tag (within VehicleActivity)       PositionBatch field
+//   RecordedAtTime                             timestamp (UTC seconds), acp_ts
+//   VehicleMonitoringRef (else VehicleRef)     vehicle_id, acp_id
+//   VehicleRef                                 label
+//   Latitude, Longitude                        latitude, longitude, acp_lat, acp_lng
+//   Bearing                                    bearing
+//   LineRef                                    route_id
+//   DatedVehicleJourneyRef                     trip_id
+//   StopPointRef (within MonitoredCall)        stop_id
+//
+// and the first ResponseTimestamp in the page (i.e. of the ServiceDelivery) gives the message
+// "timestamp" property, as the GTFS header timestamp does. A VehicleActivity without a Latitude
+// and Longitude is skipped, as a GTFS entity without a position is. The StopPointRef of any
+// OnwardCalls is ignored, so stop_id is the stop the vehicle is at or approaching.
+//
+// parse(buf, sink) writes each record to the RecordSink as its closing </VehicleActivity> is
+// reached, and parse_batch() adds it to the PositionBatch in the same way.
+//
+// Compared with a feed_xml_flat config with an equivalent 'tag_map', this parser only keeps the
+// mapped fields, and parses the page in a single pass over its raw bytes with the tags matched as
+// byte ranges (namespace prefixes such as "siri:" are ignored) and the ISO timestamps converted
+// without a DateTimeFormatter, so the only objects created per record are its String values.
+//
+// ******************************************************************************************
+// ******************************************************************************************
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.buffer.Buffer;
+
+import io.netty.buffer.ByteBuf;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+
+public class ParseFeedSiriVM implements PositionFeedParser, StreamingFeedParser {
+
+    // the tags used, as local names (i.e. without any namespace prefix), and their index in TAGS
+    private static final String[] TAG_NAMES = { "VehicleActivity", "RecordedAtTime", "VehicleMonitoringRef",
+                                                "VehicleRef", "Latitude", "Longitude", "Bearing", "LineRef",
+                                                "DatedVehicleJourneyRef", "StopPointRef", "ResponseTimestamp",
+                                                "MonitoredCall" };
+    private static final int VEHICLE_ACTIVITY = 0;
+    private static final int RECORDED_AT_TIME = 1;
+    private static final int VEHICLE_MONITORING_REF = 2;
+    private static final int VEHICLE_REF = 3;
+    private static final int LATITUDE = 4;
+    private static final int LONGITUDE = 5;
+    private static final int BEARING = 6;
+    private static final int LINE_REF = 7;
+    private static final int DATED_VEHICLE_JOURNEY_REF = 8;
+    private static final int STOP_POINT_REF = 9;
+    private static final int RESPONSE_TIMESTAMP = 10;
+    private static final int MONITORED_CALL = 11;
+
+    private static final byte[][] TAGS = new byte[TAG_NAMES.length][];
+    static {
+        for (int i=0; i<TAG_NAMES.length; i++)
+        {
+            TAGS[i] = TAG_NAMES[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // the fields of one VehicleActivity, reused for each record of the page
+    private static class Record {
+        String vehicle_monitoring_ref;
+        String vehicle_ref;
+        String line_ref;
+        String journey_ref;
+        String stop_ref;
+        float lat;
+        float lng;
+        float bearing;
+        boolean has_lat;
+        boolean has_lng;
+        boolean has_bearing;
+        long ts;
+
+        void reset()
+        {
+            vehicle_monitoring_ref = null;
+            vehicle_ref = null;
+            line_ref = null;
+            journey_ref = null;
+            stop_ref = null;
+            has_lat = false;
+            has_lng = false;
+            has_bearing = false;
+            ts = NO_TIMESTAMP;
+        }
+
+        String vehicle_id()
+        {
+            return vehicle_monitoring_ref != null ? vehicle_monitoring_ref : vehicle_ref;
+        }
+    }
+
+    private String area_id;
+
+    private JsonObject config;
+
+    private Log logger;
+
+    ParseFeedSiriVM(JsonObject config, Log logger)
+    {
+       this.config = config;
+
+       this.area_id = config.getString("area_id","");
+
+       this.logger = logger;
+
+       logger.log(Constants.LOG_DEBUG, "ParseFeedSiriVM started");
+    }
+
+    // Here is where we try and parse the page into a JsonObject with an "entities" JsonArray
+    public JsonObject parse(Buffer buf) throws Exception
+    {
+        return parse_batch(buf).to_json();
+    }
+
+    // Write each VehicleActivity record to 'sink' as it is parsed, with the same fields as the
+    // "entities" records
+    public void parse(Buffer buf, RecordSink sink) throws Exception
+    {
+        parse_records(buf, new JsonObject(), record -> write_record(sink, record));
+    }
+
+    // Parse the page into a PositionBatch, which FeedMaker publishes in binary form
+    // (see util/PositionBatchCodec.java)
+    public PositionBatch parse_batch(Buffer buf)
+    {
+        JsonObject header = new JsonObject(); // object to hold message properties
+
+        PositionBatch batch = new PositionBatch(header, true);
+
+        parse_records(buf, header, record -> add_entity(batch, record));
+
+        return batch;
+    }
+
+    private static void add_entity(PositionBatch batch, Record record)
+    {
+        int i = batch.add_entity();
+        String vehicle_id = record.vehicle_id();
+        if (vehicle_id != null)
+        {
+            batch.set_string(i, PositionBatch.VEHICLE_ID, vehicle_id);
+        }
+        if (record.vehicle_ref != null)
+        {
+            batch.set_string(i, PositionBatch.LABEL, record.vehicle_ref);
+        }
+        if (record.journey_ref != null)
+        {
+            batch.set_string(i, PositionBatch.TRIP_ID, record.journey_ref);
+        }
+        if (record.line_ref != null)
+        {
+            batch.set_string(i, PositionBatch.ROUTE_ID, record.line_ref);
+        }
+        if (record.stop_ref != null)
+        {
+            batch.set_string(i, PositionBatch.STOP_ID, record.stop_ref);
+        }
+        batch.set_float(i, PositionBatch.LATITUDE, record.lat);
+        batch.set_float(i, PositionBatch.LONGITUDE, record.lng);
+        if (record.has_bearing)
+        {
+            batch.set_float(i, PositionBatch.BEARING, record.bearing);
+        }
+        if (record.ts != NO_TIMESTAMP)
+        {
+            batch.set_timestamp(i, record.ts);
+        }
+    }
+
+    // the same fields, in the same order, as PositionBatch.entity_json() gives for the entity
+    private static void write_record(RecordSink sink, Record record)
+    {
+        String vehicle_id = record.vehicle_id();
+        sink.start_record();
+        if (vehicle_id != null)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.VEHICLE_ID], vehicle_id);
+        }
+        if (record.vehicle_ref != null)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.LABEL], record.vehicle_ref);
+        }
+        if (record.journey_ref != null)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.TRIP_ID], record.journey_ref);
+        }
+        if (record.line_ref != null)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.ROUTE_ID], record.line_ref);
+        }
+        if (record.stop_ref != null)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.STOP_ID], record.stop_ref);
+        }
+        sink.put(PositionBatch.FIELDS[PositionBatch.LATITUDE], (double) record.lat);
+        sink.put(PositionBatch.FIELDS[PositionBatch.LONGITUDE], (double) record.lng);
+        if (record.has_bearing)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.BEARING], (double) record.bearing);
+        }
+        if (record.ts != NO_TIMESTAMP)
+        {
+            sink.put(PositionBatch.FIELDS[PositionBatch.TIMESTAMP], record.ts);
+        }
+        if (vehicle_id != null)
+        {
+            sink.put(Constants.PLATFORM_PREFIX+"id", vehicle_id);
+        }
+        sink.put(Constants.PLATFORM_PREFIX+"lat", (double) record.lat);
+        sink.put(Constants.PLATFORM_PREFIX+"lng", (double) record.lng);
+        if (record.ts != NO_TIMESTAMP)
+        {
+            sink.put(Constants.PLATFORM_PREFIX+"ts", record.ts);
+        }
+        sink.end_record();
+    }
+
+    // Parse the page, passing each complete VehicleActivity with a position to 'out' at its
+    // closing tag, and setting the message properties in 'header'
+    private void parse_records(Buffer buf, JsonObject header, Consumer<Record> out)
+    {
+        logger.log(Constants.LOG_DEBUG, "ParseFeedSiriVM.parse() called");
+
+        // access the bytes of the page without a copy if the Buffer is array-backed
+        byte[] page;
+        int page_start;
+        int page_end;
+        ByteBuf byte_buf = buf.getByteBuf();
+        if (byte_buf.hasArray())
+        {
+            page = byte_buf.array();
+            page_start = byte_buf.arrayOffset() + byte_buf.readerIndex();
+            page_end = page_start + byte_buf.readableBytes();
+        }
+        else
+        {
+            page = buf.getBytes();
+            page_start = 0;
+            page_end = page.length;
+        }
+
+        // fields of the current VehicleActivity, passed to 'out' at </VehicleActivity>
+        Record record = new Record();
+        boolean in_record = false;
+        boolean in_monitored_call = false;
+        int record_count = 0;
+        int skipped = 0;
+
+        // the most recent opening tag (as an index into TAGS, or -1 if not one we use),
+        // and the index of the byte after its closing '>'
+        int current_tag = -1;
+        int current_value_start = 0;
+
+        int cursor = page_start;
+        while (cursor < page_end)
+        {
+            // find the next <..> or </..> tag
+            int tag_open = index_of(page, (byte) '<', cursor, page_end);
+            if (tag_open < 0)
+            {
+                break;
+            }
+            int tag_close = index_of(page, (byte) '>', tag_open, page_end);
+            if (tag_close < 0)
+            {
+                break;
+            }
+            cursor = tag_close + 1;
+
+            // '<?xml ..?>', '<!-- .. -->' and '<../>' have no value
+            byte first = page[tag_open + 1];
+            if (first == '?' || first == '!' || page[tag_close - 1] == '/')
+            {
+                current_tag = -1;
+                continue;
+            }
+
+            boolean closing = first == '/';
+
+            // tag could be <foo> or <siri:foo version="2.0">, either way we want the "foo"
+            int name_start = closing ? tag_open + 2 : tag_open + 1;
+            int name_end = name_start;
+            while (name_end < tag_close && !is_space(page[name_end]))
+            {
+                if (page[name_end] == ':')
+                {
+                    name_start = name_end + 1;
+                }
+                name_end++;
+            }
+            int tag = tag_index(page, name_start, name_end);
+
+            if (!closing)
+            {
+                if (tag == VEHICLE_ACTIVITY)
+                {
+                    in_record = true;
+                    in_monitored_call = false;
+                    record.reset();
+                }
+                else if (tag == MONITORED_CALL)
+                {
+                    in_monitored_call = in_record;
+                }
+                current_tag = tag;
+                current_value_start = tag_close + 1;
+                continue;
+            }
+
+            if (tag == VEHICLE_ACTIVITY)
+            {
+                if (in_record)
+                {
+                    // end of record, pass it on if it has a position
+                    if (record.has_lat && record.has_lng)
+                    {
+                        out.accept(record);
+                        record_count++;
+                    }
+                    else
+                    {
+                        skipped++;
+                    }
+                    in_record = false;
+                    in_monitored_call = false;
+                }
+                current_tag = -1;
+                continue;
+            }
+
+            if (tag == MONITORED_CALL)
+            {
+                in_monitored_call = false;
+                current_tag = -1;
+                continue;
+            }
+
+            // only a closing tag immediately after its opening tag has a value
+            if (tag < 0 || tag != current_tag)
+            {
+                current_tag = -1;
+                continue;
+            }
+            current_tag = -1;
+
+            int value_start = current_value_start;
+            int value_end = tag_open;
+
+            // *************************************************************************
+            // ************* OK HERE WE FOUND A TAG WITH A VALUE ***********************
+            // *************************************************************************
+            if (tag == RESPONSE_TIMESTAMP)
+            {
+                if (!header.containsKey("timestamp"))
+                {
+                    long response_ts = epoch_seconds(page, value_start, value_end);
+                    if (response_ts != NO_TIMESTAMP)
+                    {
+                        header.put("timestamp", response_ts);
+                    }
+                }
+                continue;
+            }
+
+            if (!in_record)
+            {
+                continue;
+            }
+
+            try
+            {
+                switch (tag)
+                {
+                    case RECORDED_AT_TIME:
+                        record.ts = epoch_seconds(page, value_start, value_end);
+                        break;
+                    case VEHICLE_MONITORING_REF:
+                        record.vehicle_monitoring_ref = value(page, value_start, value_end);
+                        break;
+                    case VEHICLE_REF:
+                        record.vehicle_ref = value(page, value_start, value_end);
+                        break;
+                    case LINE_REF:
+                        record.line_ref = value(page, value_start, value_end);
+                        break;
+                    case DATED_VEHICLE_JOURNEY_REF:
+                        record.journey_ref = value(page, value_start, value_end);
+                        break;
+                    case STOP_POINT_REF:
+                        // the stop of the MonitoredCall, not of the OnwardCalls
+                        if (in_monitored_call)
+                        {
+                            record.stop_ref = value(page, value_start, value_end);
+                        }
+                        break;
+                    case LATITUDE:
+                        record.lat = Float.parseFloat(value(page, value_start, value_end));
+                        record.has_lat = true;
+                        break;
+                    case LONGITUDE:
+                        record.lng = Float.parseFloat(value(page, value_start, value_end));
+                        record.has_lng = true;
+                        break;
+                    case BEARING:
+                        record.bearing = Float.parseFloat(value(page, value_start, value_end));
+                        record.has_bearing = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                logger.log(Constants.LOG_DEBUG, "ParseFeedSiriVM.parse() bad value for "+TAG_NAMES[tag]);
+            }
+        }
+
+        if (in_record)
+        {
+            // we got an opening VehicleActivity but not a closing one
+            logger.log(Constants.LOG_WARN, "ParseFeedSiriVM.parse incomplete VehicleActivity XML object");
+        }
+
+        logger.log(Constants.LOG_DEBUG, "ParseFeedSiriVM parse() completed for "+record_count+" records"+
+                   (skipped > 0 ? ", "+skipped+" without a position skipped" : ""));
+
+    } // end parse_records
+
+    // the value of a tag, trimmed
+    private static String value(byte[] page, int start, int end)
+    {
+        while (start < end && is_space(page[start]))
+        {
+            start++;
+        }
+        while (end > start && is_space(page[end - 1]))
+        {
+            end--;
+        }
+        return new String(page, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // index in TAGS of the tag name page[start..end), or -1
+    private static int tag_index(byte[] page, int start, int end)
+    {
+        int len = end - start;
+        for (int t=0; t<TAGS.length; t++)
+        {
+            byte[] tag = TAGS[t];
+            if (tag.length != len)
+            {
+                continue;
+            }
+            int i = 0;
+            while (i < len && page[start + i] == tag[i])
+            {
+                i++;
+            }
+            if (i == len)
+            {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    // ISO 8601 datetime with offset e.g. "2017-09-29T09:45:38+01:00" or "2017-09-29T09:45:38.123Z"
+    // as UTC seconds, or NO_TIMESTAMP if it cannot be parsed
+    private static long epoch_seconds(byte[] page, int start, int end)
+    {
+        long ts = fast_epoch_seconds(page, start, end);
+        if (ts != NO_TIMESTAMP)
+        {
+            return ts;
+        }
+        // some other ISO format, e.g. with a zone id
+        try
+        {
+            String iso = value(page, start, end);
+            return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(iso)).getEpochSecond();
+        }
+        catch (Exception e)
+        {
+            return NO_TIMESTAMP;
+        }
+    }
+
+    // the common "yyyy-MM-ddTHH:mm:ss[.fff](Z|+hh:mm|-hh:mm)" form, without creating a String
+    private static long fast_epoch_seconds(byte[] b, int start, int end)
+    {
+        if (end - start < 20 || b[start+4] != '-' || b[start+7] != '-' || b[start+10] != 'T' ||
+            b[start+13] != ':' || b[start+16] != ':')
+        {
+            return NO_TIMESTAMP;
+        }
+        int year = digits(b, start, 4);
+        int month = digits(b, start+5, 2);
+        int day = digits(b, start+8, 2);
+        int hour = digits(b, start+11, 2);
+        int minute = digits(b, start+14, 2);
+        int second = digits(b, start+17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 ||
+            minute < 0 || minute > 59 || second < 0 || second > 59)
+        {
+            return NO_TIMESTAMP;
+        }
+
+        // skip any fraction of a second
+        int pos = start + 19;
+        if (b[pos] == '.')
+        {
+            pos++;
+            while (pos < end && b[pos] >= '0' && b[pos] <= '9')
+            {
+                pos++;
+            }
+        }
+
+        int offset_seconds;
+        if (pos == end - 1 && b[pos] == 'Z')
+        {
+            offset_seconds = 0;
+        }
+        else if (pos == end - 6 && (b[pos] == '+' || b[pos] == '-') && b[pos+3] == ':')
+        {
+            int offset_hours = digits(b, pos+1, 2);
+            int offset_minutes = digits(b, pos+4, 2);
+            if (offset_hours < 0 || offset_minutes < 0)
+            {
+                return NO_TIMESTAMP;
+            }
+            offset_seconds = (offset_hours * 3600 + offset_minutes * 60) * (b[pos] == '-' ? -1 : 1);
+        }
+        else
+        {
+            return NO_TIMESTAMP;
+        }
+
+        try
+        {
+            long epoch_day = LocalDate.of(year, month, day).toEpochDay();
+            return epoch_day * 86400 + hour * 3600 + minute * 60 + second - offset_seconds;
+        }
+        catch (Exception e)
+        {
+            // e.g. February 30th
+            return NO_TIMESTAMP;
+        }
+    }
+
+    // value of the n decimal digits at b[start], or -1
+    private static int digits(byte[] b, int start, int n)
+    {
+        int value = 0;
+        for (int i=start; i<start+n; i++)
+        {
+            if (b[i] < '0' || b[i] > '9')
+            {
+                return -1;
+            }
+            value = value * 10 + (b[i] - '0');
+        }
+        return value;
+    }
+
+    // index of byte 'b' in page[from..to), or -1
+    private static int index_of(byte[] page, byte b, int from, int to)
+    {
+        for (int i=from; i<to; i++)
+        {
+            if (page[i] == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean is_space(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
+
+        public List<String> feed_types()
+        {
+            return Arrays.asList(Constants.FEED_SIRIVM);
+        }
+
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedSiriVM(config, logger);
+        }
+    }
+
+} // end ParseFeedSiriVM
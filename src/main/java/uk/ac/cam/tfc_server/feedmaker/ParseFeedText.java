@@ -51,16 +51,20 @@ package uk.ac.cam.tfc_server.feedmaker;
 //      immediately following the 'start_tag'.
 //  * a field definition can also provide a hard-coded value for a field to be returned.
 // ParseFeed will iterate through the defined RecordTemplates picking out the required data as instructed by each.
-// Each RecordTemplate results in a JsonObject, which are accumulated in a JsonArray that is the returned result.
+// Each RecordTemplate results in a JsonObject, which is written to the RecordSink given to parse().
+//
+// The start and end tags of all the RecordTemplates for the feed type are compiled into a single
+// Aho-Corasick automaton (TextMatcher), so each page is scanned once however many templates there are.
 //
 
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.buffer.Buffer;
 
 // other tfc_server classes
@@ -68,7 +72,7 @@ import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
 
 
-public class ParseFeedText implements FeedParser {
+public class ParseFeedText implements StreamingFeedParser {
 
     static final int MAX_TAG_SIZE = 40; // maximum number of chars in a 'tag' used to match text in template
     
@@ -83,6 +87,12 @@ public class ParseFeedText implements FeedParser {
     // structure holding templates for each feed type
     // i.e. record_templates["cam_park_local"] gives templates for that feed type
     HashMap<String, ArrayList<RecordTemplate>> record_templates;
+
+    // the templates for this feed_type, and their tags compiled into 'matcher'
+    private ArrayList<RecordTemplate> templates;
+    private TextMatcher matcher;
+    private int[] tag_start_id; // TextMatcher pattern id of templates[i].tag_start
+    private int[] tag_end_id;   // TextMatcher pattern id of templates[i].tag_end
     
     ParseFeedText(JsonObject config, Log logger)
     {
@@ -96,31 +106,34 @@ public class ParseFeedText implements FeedParser {
 
        record_templates = init_templates();
 
+       compile_templates();
+
        logger.log(Constants.LOG_DEBUG, "ParseFeed started for "+feed_type);
     }
 
-    // Here is where we try and parse the page and return a JsonObject
-    public JsonObject parse(Buffer buf)
+    // Here is where we try and parse the page and write the records to 'sink'
+    public void parse(Buffer buf, RecordSink sink)
     {
 
         logger.log(Constants.LOG_DEBUG, "ParseFeed.parse() called for feed type "+feed_type);
 
         String page = buf.toString();
 
-        JsonArray records = new JsonArray();
+        // find every template start and end tag in one scan of the page
+        TextMatcher.Matches matches = matcher.scan(page);
 
         // otherwise try and match each known car park to the data
-        for (int i=0; i<record_templates.get(feed_type).size(); i++)
+        for (int i=0; i<templates.size(); i++)
             {
-                RecordTemplate record_template = record_templates.get(feed_type).get(i);
+                RecordTemplate record_template = templates.get(i);
 
                 logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array trying template "+record_template.tag_start);
 
                 // ...grafton-east-car-park...<strong>384 spaces...
-                int rec_start = page.indexOf(record_template.tag_start); // find start of record 
+                int rec_start = matches.first(tag_start_id[i]); // find start of record 
                 if (rec_start < 0) continue;  // if not found then skip current record_template
 
-                int rec_end = page.indexOf(record_template.tag_end, rec_start); // find end of record 
+                int rec_end = matches.first_from(tag_end_id[i], rec_start); // find end of record 
                 if (rec_end < 0) continue;  // if not found then skip current record_template
 
                 String record = page.substring(rec_start, rec_end);
@@ -143,7 +156,7 @@ public class ParseFeedText implements FeedParser {
                     logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array trying field "+field_template.field_name);
 
                     // if field value already in field template, just use that
-                    if (field_template.field_type == "fixed_int")
+                    if (field_template.type == FieldType.FIXED_INT)
                     {
                       json_record.put(field_template.field_name, field_template.fixed_int);
                       //logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array "+
@@ -152,7 +165,7 @@ public class ParseFeedText implements FeedParser {
                       //          );
                       continue;
                     }
-                    else if (field_template.field_type == "conditional_fixed_int")
+                    else if (field_template.type == FieldType.CONDITIONAL_FIXED_INT)
                     {
                       int field_start = record.indexOf(field_template.s1);
                       if (field_start >= 0)
@@ -163,7 +176,7 @@ public class ParseFeedText implements FeedParser {
                       }
                       continue;
                     }
-                    else if (field_template.field_type == "fixed_string")
+                    else if (field_template.type == FieldType.FIXED_STRING)
                     {
                       json_record.put(field_template.field_name, field_template.fixed_string);
                       //logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array "+
@@ -173,7 +186,7 @@ public class ParseFeedText implements FeedParser {
                       continue;
                     }
 
-                    else if (field_template.field_type == "calc_minus")
+                    else if (field_template.type == FieldType.CALC_MINUS)
                     {
                         try {
                         int v1 = json_record.getInteger(field_template.s1);
@@ -190,7 +203,7 @@ public class ParseFeedText implements FeedParser {
                         }
                         continue;
                     }
-                    else if (field_template.field_type == "calc_plus")
+                    else if (field_template.type == FieldType.CALC_PLUS)
                     {
                         try {
                         int v1 = json_record.getInteger(field_template.s1);
@@ -241,7 +254,7 @@ public class ParseFeedText implements FeedParser {
 
                     // pick out the field value, or skip if not recognized
                     String field_string = record.substring(field_start, field_end);
-                    if (field_template.field_type == "int")
+                    if (field_template.type == FieldType.INT)
                     {
                         try {
                             int int_value = Integer.parseInt(field_string);
@@ -258,7 +271,7 @@ public class ParseFeedText implements FeedParser {
                         }
                         continue;
                     }
-                    else if (field_template.field_type == "string")
+                    else if (field_template.type == FieldType.STRING)
                     {
                         json_record.put(field_template.field_name, field_string);
                         continue;
@@ -269,7 +282,7 @@ public class ParseFeedText implements FeedParser {
                     {
                         logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array found "+json_record);
 
-                        records.add(json_record);
+                        sink.record(json_record);
                     }
                 else
                     {
@@ -278,10 +291,6 @@ public class ParseFeedText implements FeedParser {
                     }
             }
 
-        JsonObject msg = new JsonObject();
-        msg.put("request_data", records);
-        return msg;
-
     }
     
     // get current local time as "YYYY-MM-DD hh:mm:ss"
@@ -307,6 +316,67 @@ public class ParseFeedText implements FeedParser {
        return record_templates;
     }
 
+    // compile the start and end tags of this feed_type's templates into a TextMatcher
+    private void compile_templates()
+    {
+        templates = record_templates.get(feed_type);
+        if (templates == null)
+            {
+                logger.log(Constants.LOG_WARN, "ParseFeed no templates for feed_type "+feed_type);
+                templates = new ArrayList<RecordTemplate>();
+            }
+
+        ArrayList<String> patterns = new ArrayList<String>();
+        HashMap<String,Integer> pattern_ids = new HashMap<String,Integer>(); // each distinct tag once
+
+        tag_start_id = new int[templates.size()];
+        tag_end_id = new int[templates.size()];
+
+        for (int i=0; i<templates.size(); i++)
+            {
+                tag_start_id[i] = pattern_id(templates.get(i).tag_start, patterns, pattern_ids);
+                tag_end_id[i] = pattern_id(templates.get(i).tag_end, patterns, pattern_ids);
+            }
+
+        matcher = new TextMatcher(patterns);
+    }
+
+    private static int pattern_id(String tag, ArrayList<String> patterns, HashMap<String,Integer> pattern_ids)
+    {
+        Integer id = pattern_ids.get(tag);
+        if (id == null)
+            {
+                id = patterns.size();
+                patterns.add(tag);
+                pattern_ids.put(tag, id);
+            }
+        return id;
+    }
+
+    // the FieldTemplate field_type values
+    enum FieldType {
+        INT, STRING, FIXED_INT, FIXED_STRING, CONDITIONAL_FIXED_INT, CALC_MINUS, CALC_PLUS, UNKNOWN;
+
+        static FieldType of(String field_type)
+        {
+            if (field_type == null)
+                {
+                    return UNKNOWN;
+                }
+            switch (field_type)
+                {
+                case "int":                   return INT;
+                case "string":                return STRING;
+                case "fixed_int":             return FIXED_INT;
+                case "fixed_string":          return FIXED_STRING;
+                case "conditional_fixed_int": return CONDITIONAL_FIXED_INT;
+                case "calc_minus":            return CALC_MINUS;
+                case "calc_plus":             return CALC_PLUS;
+                default:                      return UNKNOWN;
+                }
+        }
+    }
+
     static public class RecordTemplate {
         public String tag_start; // the string that begins the block of the source file, e.g. "Madingley Road"
         public String tag_end;   // the string that ends the block, e.g. "</item>"
@@ -322,6 +392,7 @@ public class ParseFeedText implements FeedParser {
     static public class FieldTemplate {
         public String field_name;  // the JSON name to be given to the value
         public String field_type;  // int | string | fixed_int | fixed_string
+        FieldType type;            // field_type as a FieldType
         public String fixed_string; // if field_type = "fixed_string" then this will be required fixed value
         public int    fixed_int;    // as above but for int value
         public String s1; // s1,s2 are multi-purpose strings:
@@ -334,6 +405,7 @@ public class ParseFeedText implements FeedParser {
         {
             this.field_name   = field_name;
             this.field_type   = field_type;
+            this.type         = FieldType.of(field_type);
             this.fixed_string = fixed_string;
             this.fixed_int    =  fixed_int;
             this.s1           = s1;
@@ -343,6 +415,18 @@ public class ParseFeedText implements FeedParser {
 
     } // end FieldTemplate
 
-} // end ParseFeed
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
 
+        public List<String> feed_types()
+        {
+            return Arrays.asList("cam_park_local", "cam_park_rss", "cam_park_carpark");
+        }
 
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedText(config, logger);
+        }
+    }
+
+} // end ParseFeed
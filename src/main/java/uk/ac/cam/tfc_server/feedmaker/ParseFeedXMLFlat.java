@@ -29,11 +29,17 @@ package uk.ac.cam.tfc_server.feedmaker;
 //    string: original value string is unchanged
 //    datetime_utc_millis: original value (ISO string datetime) is converted to a UTC ISO string including milliseconds
 //
+// The page is parsed in a single pass over its raw bytes (see parse()), writing each record
+// field by field into a RecordSink.
+//
 // ******************************************************************************************
 // ******************************************************************************************
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAccessor;
@@ -42,11 +48,13 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.buffer.Buffer;
 
+import io.netty.buffer.ByteBuf;
+
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
 
-public class ParseFeedXMLFlat implements FeedParser {
+public class ParseFeedXMLFlat implements StreamingFeedParser {
 
     private String feed_type; // e.g. Constants.FEED_XML_FLAT
 
@@ -60,6 +68,10 @@ public class ParseFeedXMLFlat implements FeedParser {
 
     private HashMap<String, TagTransform> tag_map; // mappings of data fields e.g. "RecordedAtTime" -> "acp_ts"
 
+    private byte[] tag_record_bytes; // tag_record as UTF-8
+
+    private TagNames tag_names; // tag names seen in the pages, looked up by byte range
+
     // Constructor
 
     ParseFeedXMLFlat(JsonObject config, Log logger)
@@ -72,6 +84,8 @@ public class ParseFeedXMLFlat implements FeedParser {
 
        this.tag_record = config.getString("tag_record","");
 
+       this.tag_record_bytes = tag_record.getBytes(StandardCharsets.UTF_8);
+
        this.logger = logger;
 
        tag_map = new HashMap<String,TagTransform>();
@@ -86,167 +100,247 @@ public class ParseFeedXMLFlat implements FeedParser {
            tag_map.put(tag_config.getString("original_tag"), new TagTransform(tag_config));
        }
 
+       tag_names = new TagNames();
+
        logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat started for feed_type "+feed_type+", "+
                   tag_map.size()+" tags to transform");
     }
 
-    // Here is where we try and parse the page and return a JsonObject
-    public JsonObject parse(Buffer buf)
+    // Here is where we try and parse the page and write the records to 'sink'
+    //
+    // The page is scanned once as raw (UTF-8) bytes, tag by tag. Tag names are compared as byte
+    // ranges and looked up in 'tag_names' (which caches the String name and TagTransform for each
+    // tag seen), so the only Strings created are the property values written to the sink.
+    public void parse(Buffer buf, RecordSink sink)
     {
-
-        String page = buf.toString();
-
         logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() called for feed type "+feed_type);
 
-        JsonArray records = new JsonArray();
+        // access the bytes of the page without a copy if the Buffer is array-backed
+        byte[] page;
+        int page_start;
+        int page_end;
+        ByteBuf byte_buf = buf.getByteBuf();
+        if (byte_buf.hasArray())
+        {
+            page = byte_buf.array();
+            page_start = byte_buf.arrayOffset() + byte_buf.readerIndex();
+            page_end = page_start + byte_buf.readableBytes();
+        }
+        else
+        {
+            page = buf.getBytes();
+            page_start = 0;
+            page_end = page.length;
+        }
 
-        //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat searching for "+tag_record);
-        // <tag_record>..</tag_record> is the flattenable XML object that possibly repeats in the page 
-        // cursor is our current position on the page as we step through parsing records
-        int record_cursor = 0;
-        // While we have some page left, continue parsing records
-        while (record_cursor < page.length()) // this could be 'while (true)' as a 'break' should always occur anyway
+        int record_count = 0;
+
+        // <tag_record>..</tag_record> is the flattenable XML object that possibly repeats in the page.
+        // We will write the flat fields from the XML into the current sink record
+        // I.e. each XML <Foo>xyz</Foo>
+        // becomes "Foo": "xyz"
+        // and any nesting of XML objects is ignored.
+        // This assumes the flattenable XML does NOT contain duplicate XML tags WITHIN records
+        // although the records themselves can be repeated. This works for e.g. Siri-VM.
+        boolean in_record = false; // true while inside a tag_record
+
+        // the most recent tag inside the current record, as the byte range of its name,
+        // and the index of the byte after its closing '>'
+        // Basic technique is to step through the tags, and only make a Json property out of
+        // consecutive opening and closing tags that match.
+        int current_tag_start = 0;
+        int current_tag_end = 0;       // == current_tag_start if there is no current opening tag
+        int current_value_start = 0;
+
+        int cursor = page_start;
+        while (cursor < page_end)
         {
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat searching for record from index "+record_cursor);
-            // We will accumulate the flat Json from the XML into json_record
-            // I.e. each XML <Foo>xyz</Foo>
-            // becomes "Foo": "xyz"
-            // and any nesting of XML objects is ignored.
-            // This assumes the flattenable XML does NOT contain duplicate XML tags WITHIN records
-            // although the records themselves can be repeated. This works for e.g. Siri-VM.
-            JsonObject json_record = new JsonObject();
-            // Move cursor forwards to the next occurrence of the tag_record
-            record_cursor = page.indexOf("<"+tag_record+">", record_cursor);
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat "+tag_record+" search result "+record_cursor);
-            if (record_cursor < 0)
+            // find the next <..> or </..> tag
+            int tag_open = index_of(page, (byte) '<', cursor, page_end);
+            if (tag_open < 0)
             {
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() no more "+tag_record+" records");
-                // no more tag_record objects so finish
-                break; // quit outermost records loop
+                break;
             }
-            int record_end = page.indexOf("</"+tag_record+">", record_cursor);
-            if (record_end < 0)
+            // tag_close is index of the closing '>'
+            int tag_close = index_of(page, (byte) '>', tag_open, page_end);
+            if (tag_close < 0)
             {
-                // wtf, we got an opening tag_record but not a closing one, finish anyway
-                logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse incomplete "+tag_record+" XML object");
-                break; // quit outermost records loop
+                // we got a '<' but no '>'
+                if (in_record)
+                {
+                    logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse() incomplete tag in "+tag_record+" XML object");
+                }
+                break;
             }
-            // Ok, we think we have a record between 'record_cursor' and 'record_end'
-            // record_cursor is currently pointing at opening '<' of '<tag_record>'
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat record at "+record_cursor);
-
-            // Now loop within this tag_record object picking out the atomic objects <foo>X</foo>
+            cursor = tag_close + 1;
 
-            // Basic technique is to step through the tags, and only make a Json property out of
-            // consecutive opening and closing tags that match.
-            String current_tag = "";
+            // tag could be <foo> or <foo route=66>, either way we want the "foo"
+            int name_start = tag_open + 1;
+            int name_end = name_start;
+            while (name_end < tag_close && !is_space(page[name_end]))
+            {
+                name_end++;
+            }
 
-            while (record_cursor < record_end)
+            if (!in_record)
             {
-                // Searching forwards inside the 'tag_record' XML object
-                // We will find the next <..> or </..> tag
-                // Note we are moving the cursor forward each time at the earliest opportunity
-                int next_cursor = page.indexOf("<", record_cursor);
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() next_cursor at "+next_cursor);
-                // This could be the tag_record closing tag
-                if (next_cursor >= record_end)
+                // outside a record, so only looking for <tag_record>
+                if (name_end == tag_close && bytes_equal(page, name_start, name_end, tag_record_bytes, 0))
                 {
-                    //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() no more properties in this "+tag_record);
-                    record_cursor = record_end;
-                    break;
-                }
-                // tag could be <foo> or <foo route=66>, either way we want the "foo"
-                // tag_close is index of the closing '>'
-                int tag_close = page.indexOf(">", next_cursor);
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() tag_close at "+tag_close);
-                if (tag_close < 0)
-                {
-                    // wtf, we got a '<' but no '>'
-                    logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse() incomplete tag in "+tag_record+" XML object");
-                    record_cursor = page.length(); // force completion of this page
-                    break;
+                    sink.start_record();
+                    in_record = true;
+                    current_tag_end = current_tag_start;
                 }
+                continue;
+            }
 
-                // We found '<'...'>' but if that's actually '<'...'/>' then skip this self-closed object
-                if (page.substring(tag_close - 1, tag_close).equals("/"))
+            // '<'...'/>' is a self-closed object, so skip it
+            if (page[tag_close - 1] == '/')
+            {
+                current_tag_end = current_tag_start;
+                continue;
+            }
+
+            if (page[name_start] == '/')
+            {
+                if (bytes_equal(page, name_start + 1, name_end, tag_record_bytes, 0))
                 {
-                    logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                               "skipping self-closed "+page.substring(record_cursor, tag_close+1));
-                    record_cursor = tag_close;
-                    break;
+                    // end of record
+                    sink.end_record();
+                    record_count++;
+                    in_record = false;
+                    continue;
                 }
 
-                // See if we find a space character inside the tag (e.g. <foo route=66>)
-                int tag_space = page.indexOf(" ", next_cursor);
-                
-                int tag_end = (tag_space > 0) && (tag_space < tag_close) ? tag_space : tag_close;
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() tag_end at "+tag_end);
-                // Note we KNOW we at least have a '>' at the end of the tag_record object from the code above
-                // So check the tag we found is still within the current tag_record object
-                if (tag_end < record_end)
+                if (current_tag_end > current_tag_start &&
+                    bytes_equal(page, name_start + 1, name_end, page, current_tag_start, current_tag_end))
                 {
-                    // Given a '<'..'>' (but not '<'..'/>')
-                    String next_tag = page.substring(++next_cursor, tag_end);
-                    //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                    //           "found tag "+next_tag);
-                    // Process tag here...
-                    if (next_tag.equals("/"+current_tag))
+                    // *************************************************************************
+                    // ************* OK HERE WE FOUND A TAG WITH A VALUE ***********************
+                    // *************************************************************************
+                    TagName tag = tag_names.get(page, current_tag_start, current_tag_end);
+                    String current_value = new String(page, current_value_start, tag_open - current_value_start,
+                                                      StandardCharsets.UTF_8);
+
+                    // Add a new property to the current record with this tag/value
+                    sink.put(tag.name, current_value);
+
+                    // and *another* 'standard' property if there's an entry in 'tag_map'
+                    if (tag.transform != null)
                     {
-                        //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                        //           "found atomic tag "+current_tag+".."+tag_close);
-                        // *************************************************************************
-                        // ************* OK HERE WE FOUND A TAG WITH A VALUE ***********************
-                        // *************************************************************************
-                        String current_value = page.substring(record_cursor+1, next_cursor-1);
-                        // So name of the tag is 'current_tag'
-                        // And the string value is 'current_value'
-
-                        // Add a new property to the current json record with this tag/value
-                        json_record.put(current_tag, current_value);
-
-                        // Now we'll see if we want to add *another* 'standard' property 
-                        // because there's an entry in the HashMap 'tag_map'
-
-                        if (tag_map.containsKey(current_tag))
-                        {
-                            // Yup, this is a 'tag' of interest, so transform to a new Json property
-                            JsonObject new_property = tag_map.get(current_tag).transform(current_value);
-                            logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() transformed "+
-                                       current_tag+"/"+current_value+" to "+new_property);
-
-                            // Now we add this new property to the json_record we're building
-                            json_record.mergeIn(new_property);
-                        }
-                        // *************************************************************************
-                        // *************************************************************************
-                        // *************************************************************************
+                        tag.transform.transform(current_value, sink);
                     }
-
-                    current_tag = next_tag;
-                    record_cursor = tag_close;
                 }
-                else
-                {
-                    logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                               "at record end");
-                    record_cursor = record_end;
-                } // end if
-            } // end while loop for properties within current record
-
-            //json_record.put("feed_data", page);
-            // Add the current record to the 'records' result list
-            records.add(json_record);
-            // shift cursor to the end of the current record before we loop to look for the next record
-            record_cursor = record_end;
+                current_tag_end = current_tag_start;
+                continue;
+            }
+
+            // an opening tag within the record
+            current_tag_start = name_start;
+            current_tag_end = name_end;
+            current_value_start = tag_close + 1;
+        }
+
+        if (in_record)
+        {
+            // we got an opening tag_record but not a closing one
+            logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse incomplete "+tag_record+" XML object");
+            sink.cancel_record();
         }
-        logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat parse() completed for "+records.size()+" records");
 
-        JsonObject msg = new JsonObject();
-        msg.put("request_data", records);
-        return msg;
+        logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat parse() completed for "+record_count+" records");
 
     } // end parse
 
+    // index of byte 'b' in page[from..to), or -1
+    private static int index_of(byte[] page, byte b, int from, int to)
+    {
+        for (int i=from; i<to; i++)
+        {
+            if (page[i] == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean is_space(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    // true if a[a_start..a_end) equals b[b_start..b_end)
+    private static boolean bytes_equal(byte[] a, int a_start, int a_end, byte[] b, int b_start, int b_end)
+    {
+        int len = a_end - a_start;
+        if (len != b_end - b_start)
+        {
+            return false;
+        }
+        for (int i=0; i<len; i++)
+        {
+            if (a[a_start + i] != b[b_start + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if a[a_start..a_end) equals all of b (from b_start)
+    private static boolean bytes_equal(byte[] a, int a_start, int a_end, byte[] b, int b_start)
+    {
+        return bytes_equal(a, a_start, a_end, b, b_start, b.length);
+    }
+
+    // A tag name seen in the page, with its String form and TagTransform (null if not in tag_map)
+    class TagName {
+        byte[] bytes;
+        String name;
+        TagTransform transform;
+    }
+
+    // Lookup of tag names by byte range, so the tags in a page don't each create a String.
+    // The table is an open-addressing hash on the tag bytes, and stops caching new names when full
+    // (e.g. for a page with very many distinct tags).
+    class TagNames {
+
+        private static final int SIZE = 1024; // power of 2, max cached names is SIZE/2
+
+        private TagName[] table = new TagName[SIZE];
+        private int count = 0;
+
+        TagName get(byte[] page, int start, int end)
+        {
+            int hash = 0;
+            for (int i=start; i<end; i++)
+            {
+                hash = 31 * hash + page[i];
+            }
+            int slot = hash & (SIZE - 1);
+            while (table[slot] != null)
+            {
+                if (bytes_equal(page, start, end, table[slot].bytes, 0))
+                {
+                    return table[slot];
+                }
+                slot = (slot + 1) & (SIZE - 1);
+            }
+
+            TagName tag = new TagName();
+            tag.bytes = Arrays.copyOfRange(page, start, end);
+            tag.name = new String(tag.bytes, StandardCharsets.UTF_8);
+            tag.transform = tag_map.get(tag.name);
+            if (count < SIZE / 2)
+            {
+                table[slot] = tag;
+                count++;
+            }
+            return tag;
+        }
+    }
+
     // This class is used to hold the mapping of an XML tag (e.g. "RecordedAtTime") to
     // a 'standard' property for this platform (i.e. "acp_ts")
     class TagTransform {
@@ -265,40 +359,53 @@ public class ParseFeedXMLFlat implements FeedParser {
             this.format = tag_config.getString("format");
         }
 
-        public JsonObject transform(String input_value)
+        // write the transformed property to the current record of 'sink'
+        public void transform(String input_value, RecordSink sink)
         {
-            JsonObject jo = new JsonObject();
             try {
                 // here is where we transform the input value based on 'format'
                 switch (format)
                     {
                     case "int":
-                        jo.put(output_tag, Long.parseLong(input_value));
+                        sink.put(output_tag, Long.parseLong(input_value));
                         break;
                     case "float":
-                        jo.put(output_tag, Double.parseDouble(input_value));
+                        sink.put(output_tag, Double.parseDouble(input_value));
                         break;
                     case "datetime_iso_to_utc":
                         // input  "2017-09-29T09:45:38+01:00"
                         // output "2017-09-29T09:45:38.000Z"
                         String iso_ts = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).toString();
-                        jo.put(output_tag, iso_ts);
+                        sink.put(output_tag, iso_ts);
                         break;
                     case "datetime_iso_to_int_utc_seconds":
                         // input  "2017-09-29T09:45:38+01:00"
                         // output "1507125081"
                         long ts_seconds = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).getEpochSecond();
-                        jo.put(output_tag, ts_seconds);
+                        sink.put(output_tag, ts_seconds);
                         break;
                     default:
-                        jo.put(output_tag, input_value);
+                        sink.put(output_tag, input_value);
                         break;
                     }
             }
             catch (Exception e){;}
-            return jo;
         }
     } // end TagTransform
 
+    // FeedParserProvider for FeedParsers (see META-INF/services)
+    public static class Provider implements FeedParserProvider {
+
+        public List<String> feed_types()
+        {
+            return Arrays.asList(Constants.FEED_XML_FLAT);
+        }
+
+        public FeedParser create(JsonObject config, Log logger)
+        {
+            return new ParseFeedXMLFlat(config, logger);
+        }
+    }
+
 } // end ParseFeedXMLFlat
 
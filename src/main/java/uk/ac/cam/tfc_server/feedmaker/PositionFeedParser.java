@@ -0,0 +1,18 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// FeedParser for vehicle position feeds (e.g. GTFS-realtime, SIRI-VM) that can parse straight into
+// a typed PositionBatch, which FeedMaker publishes in binary form (see util/PositionBatchCodec.java)
+// and from which it can derive the optional delta stream (see util/PositionDelta.java).
+
+import io.vertx.core.buffer.Buffer;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.PositionBatch;
+
+public interface PositionFeedParser extends FeedParser {
+
+    // parse() reads a Buffer containing multiple vehicle position records
+    // and returns them as a PositionBatch, with the message properties in its header()
+    PositionBatch parse_batch(Buffer buf) throws Exception;
+
+} // end PositionFeedParser
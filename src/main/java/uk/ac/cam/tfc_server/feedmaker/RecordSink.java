@@ -0,0 +1,65 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   RecordSink.java
+//
+//   Destination of the records written by a StreamingFeedParser.
+//
+//   A parser writes each record as:
+//     sink.start_record();
+//     sink.put("acp_id", "SCCM-19597"); sink.put("acp_lat", 52.2); ...
+//     sink.end_record();      // or cancel_record() to discard an incomplete record
+//
+//   so the sink decides the form the records take, e.g. JsonRecordSink builds the usual
+//   eventbus message with a "request_data" JsonArray, while another sink could encode the
+//   fields directly into a binary batch or pass them to an in-process consumer.
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import java.util.Map;
+
+import io.vertx.core.json.JsonObject;
+
+public interface RecordSink {
+
+    // begin a new record, subsequent put() calls set its fields
+    void start_record();
+
+    void put(String name, String value);
+
+    void put(String name, long value);
+
+    void put(String name, double value);
+
+    // the current record is complete
+    void end_record();
+
+    // the current record is incomplete, so discard it
+    void cancel_record();
+
+    // write a record already built as a JsonObject
+    default void record(JsonObject record)
+    {
+        start_record();
+        for (Map.Entry<String,Object> field: record)
+            {
+                Object value = field.getValue();
+                if (value instanceof Integer || value instanceof Long)
+                    {
+                        put(field.getKey(), ((Number) value).longValue());
+                    }
+                else if (value instanceof Number)
+                    {
+                        put(field.getKey(), ((Number) value).doubleValue());
+                    }
+                else
+                    {
+                        put(field.getKey(), value == null ? null : value.toString());
+                    }
+            }
+        end_record();
+    }
+
+} // end RecordSink
@@ -0,0 +1,23 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// FeedParser that writes its records into a RecordSink as it parses, rather than building
+// the JsonArray of records itself
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.buffer.Buffer;
+
+public interface StreamingFeedParser extends FeedParser {
+
+    // parse() reads a Buffer that may contain multiple data records of interest
+    // and writes each record to 'sink'
+    void parse(Buffer buf, RecordSink sink) throws Exception;
+
+    // the eventbus message format JsonObject, via a JsonRecordSink
+    default JsonObject parse(Buffer buf) throws Exception
+    {
+        JsonRecordSink sink = new JsonRecordSink();
+        parse(buf, sink);
+        return sink.msg();
+    }
+
+} // end StreamingFeedParser
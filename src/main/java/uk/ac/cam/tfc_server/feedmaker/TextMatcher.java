@@ -0,0 +1,244 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   TextMatcher.java
+//
+//   Aho-Corasick matcher for a fixed set of strings, used by ParseFeedText to find the start
+//   and end tags of all its RecordTemplates in a single scan of the page.
+//
+//   The automaton is compiled once (per feed) into a dense transition table: one row per state,
+//   with a column for each ASCII char, a column for each non-ASCII char used in the patterns, and
+//   a final column for any other char. Scanning a page is then one table lookup per char.
+//   The table holds the row offset of the next state, negated (-offset - 1) if any pattern ends
+//   at that state, so the scan only looks further on a match.
+//
+//   Usage:
+//     TextMatcher matcher = new TextMatcher(patterns);   // pattern id = index in 'patterns'
+//     TextMatcher.Matches matches = matcher.scan(page);
+//     int pos = matches.first(id);            // index of first occurrence of pattern id, or -1
+//     int pos = matches.first_from(id, from); // index of first occurrence at or after 'from', or -1
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import java.util.*;
+
+class TextMatcher {
+
+    private static final int ASCII = 128;
+
+    private final int pattern_count;
+    private final int[] pattern_length;
+
+    private final HashMap<Character,Integer> extra_columns; // non-ASCII pattern chars -> column
+    private final int columns;                              // ASCII + extra + 1 ('other' column)
+
+    private int[] table;     // table[state * columns + column] -> next state row offset (negative if output)
+    private int[][] output;  // output[state] -> ids of the patterns ending at this state
+
+    TextMatcher(List<String> patterns)
+    {
+        pattern_count = patterns.size();
+        pattern_length = new int[pattern_count];
+
+        extra_columns = new HashMap<Character,Integer>();
+        for (String p: patterns)
+            {
+                for (int i=0; i<p.length(); i++)
+                    {
+                        char c = p.charAt(i);
+                        if (c >= ASCII && !extra_columns.containsKey(c))
+                            {
+                                extra_columns.put(c, ASCII + extra_columns.size());
+                            }
+                    }
+            }
+        columns = ASCII + extra_columns.size() + 1;
+
+        build(patterns);
+    }
+
+    // ************************************************************************
+    // Build the trie, then the failure transitions (breadth first) to give the full table
+    // ************************************************************************
+    private void build(List<String> patterns)
+    {
+        int max_states = 1;
+        for (String p: patterns)
+            {
+                max_states += p.length();
+            }
+
+        int[] goto_table = new int[max_states * columns];
+        Arrays.fill(goto_table, -1);
+        ArrayList<ArrayList<Integer>> outputs = new ArrayList<ArrayList<Integer>>();
+        outputs.add(new ArrayList<Integer>());
+        int states = 1;
+
+        for (int id=0; id<pattern_count; id++)
+            {
+                String p = patterns.get(id);
+                pattern_length[id] = p.length();
+                if (p.length() == 0)
+                    {
+                        continue; // an empty pattern never matches
+                    }
+                int state = 0;
+                for (int i=0; i<p.length(); i++)
+                    {
+                        int col = column(p.charAt(i));
+                        if (goto_table[state * columns + col] < 0)
+                            {
+                                goto_table[state * columns + col] = states++;
+                                outputs.add(new ArrayList<Integer>());
+                            }
+                        state = goto_table[state * columns + col];
+                    }
+                outputs.get(state).add(id);
+            }
+
+        int[] next = Arrays.copyOf(goto_table, states * columns);
+        int[] fail = new int[states];
+
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int col=0; col<columns; col++)
+            {
+                int s = next[col];
+                if (s < 0)
+                    {
+                        next[col] = 0;
+                    }
+                else
+                    {
+                        fail[s] = 0;
+                        queue.add(s);
+                    }
+            }
+
+        while (!queue.isEmpty())
+            {
+                int state = queue.poll();
+                // patterns ending at the failure state also end here
+                outputs.get(state).addAll(outputs.get(fail[state]));
+                for (int col=0; col<columns; col++)
+                    {
+                        int s = next[state * columns + col];
+                        int via_fail = next[fail[state] * columns + col];
+                        if (s < 0)
+                            {
+                                next[state * columns + col] = via_fail;
+                            }
+                        else
+                            {
+                                fail[s] = via_fail;
+                                queue.add(s);
+                            }
+                    }
+            }
+
+        table = new int[states * columns];
+        for (int i=0; i<table.length; i++)
+            {
+                int row = next[i] * columns;
+                table[i] = outputs.get(next[i]).isEmpty() ? row : -row - 1;
+            }
+
+        output = new int[states][];
+        for (int state=0; state<states; state++)
+            {
+                ArrayList<Integer> ids = outputs.get(state);
+                output[state] = new int[ids.size()];
+                for (int i=0; i<ids.size(); i++)
+                    {
+                        output[state][i] = ids.get(i);
+                    }
+            }
+    }
+
+    private int column(char c)
+    {
+        if (c < ASCII)
+            {
+                return c;
+            }
+        Integer col = extra_columns.get(c);
+        return col == null ? columns - 1 : col;
+    }
+
+    // scan 'text' once, recording every occurrence of every pattern
+    Matches scan(String text)
+    {
+        Matches matches = new Matches(pattern_count);
+        int row = 0;
+        int len = text.length();
+        for (int i=0; i<len; i++)
+            {
+                char c = text.charAt(i);
+                row = table[row + (c < ASCII ? c : column(c))];
+                if (row < 0)
+                    {
+                        row = -row - 1;
+                        int[] ids = output[row / columns];
+                        for (int k=0; k<ids.length; k++)
+                            {
+                                matches.add(ids[k], i - pattern_length[ids[k]] + 1);
+                            }
+                    }
+            }
+        return matches;
+    }
+
+    // the occurrences of each pattern in a scanned text, in ascending order
+    static class Matches {
+
+        private int[][] positions;
+        private int[] count;
+
+        Matches(int pattern_count)
+        {
+            positions = new int[pattern_count][];
+            count = new int[pattern_count];
+        }
+
+        private void add(int id, int pos)
+        {
+            if (positions[id] == null)
+                {
+                    positions[id] = new int[4];
+                }
+            else if (count[id] == positions[id].length)
+                {
+                    positions[id] = Arrays.copyOf(positions[id], count[id] * 2);
+                }
+            positions[id][count[id]++] = pos;
+        }
+
+        // index of the first occurrence of pattern 'id', or -1
+        int first(int id)
+        {
+            return count[id] == 0 ? -1 : positions[id][0];
+        }
+
+        // index of the first occurrence of pattern 'id' at or after 'from', or -1
+        int first_from(int id, int from)
+        {
+            int lo = 0;
+            int hi = count[id];
+            while (lo < hi)
+                {
+                    int mid = (lo + hi) >>> 1;
+                    if (positions[id][mid] < from)
+                        {
+                            lo = mid + 1;
+                        }
+                    else
+                        {
+                            hi = mid;
+                        }
+                }
+            return lo < count[id] ? positions[id][lo] : -1;
+        }
+    }
+
+} // end TextMatcher
@@ -11,15 +11,22 @@ package uk.ac.cam.tfc_server.feedplayer;
 //
 // Reads GTFS-format binary files from the filesystem, broadcasts messages to eventbus
 //
+// Files are read and decoded ahead of time on a worker thread (up to MODULE_NAME.read_ahead files)
+// so the publish timing is not affected by disk latency or the GTFS decode.
+//
 // FeedHandler will publish the feed data as a JSON string on eventbus "feedplayer.address"
 // For the spec of the eventbus messages see README.md in the feedplayer directory
+// The messages are published as a PositionBatch (binary on the eventbus, see util/PositionBatchCodec.java)
+// and, if MODULE_NAME.json_address is set, also as Json on that address.
 //
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
 import io.vertx.core.file.FileSystem;
@@ -35,6 +42,9 @@ import java.util.*;
 import java.text.SimpleDateFormat;
     
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.DayIndex;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
@@ -53,12 +63,15 @@ public class FeedPlayer extends AbstractVerticle {
     private String EB_SYSTEM_STATUS; // eventbus status reporting address
     private int    LOG_LEVEL;
 
-    private String FEEDPLAYER_ADDRESS; // eventbus address for JSON feed position updates
+    private String FEEDPLAYER_ADDRESS; // eventbus address for feed position updates
+    private String JSON_ADDRESS; // optional eventbus address for a JSON copy of the position updates
 
     private String TFC_DATA_BIN; // root of bin files
+    private String INDEX_CACHE;  // directory for day indexes rebuilt from the directory listing
     private Long   START_TS;   // UTC timestamp for first position record file to publish
     private Long   FINISH_TS;  // UTC timestamp to end feed
     private int    RATE; // milliseconds between each published feed message
+    private int    READ_AHEAD; // number of files to read and decode ahead of publishing, default 5
     
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 15; // delay before flagging system as AMBER
@@ -68,6 +81,12 @@ public class FeedPlayer extends AbstractVerticle {
     private Log logger;
    
     private EventBus eb = null;
+
+    // read-ahead queue of decoded messages, in file order, filled by read_ahead_executor
+    private WorkerExecutor read_ahead_executor;
+    private ArrayDeque<Future<PositionBatch>> read_ahead_queue;
+    private int read_ahead_index; // index in current day's file list of next file to be read ahead
+    private long read_ahead_starved = 0; // count of publish ticks where the next file was not yet decoded
     
     @Override
     public void start(Future<Void> fut) throws Exception
@@ -88,12 +107,22 @@ public class FeedPlayer extends AbstractVerticle {
 
         eb = vertx.eventBus();
 
+        PositionBatchCodec.register(vertx);
+
+        // single worker thread, so files are read and decoded in order
+        read_ahead_executor = vertx.createSharedWorkerExecutor(MODULE_NAME+"."+MODULE_ID+".read_ahead", 1);
+        read_ahead_queue = new ArrayDeque<Future<PositionBatch>>();
+
         // send periodic "system_status" messages
+        // read_ahead_ready is the number of decoded files waiting to be published, if this
+        // stays at zero (and read_ahead_starved keeps rising) then replay is I/O-starved.
         vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> {
           eb.publish(EB_SYSTEM_STATUS,
                      "{ \"module_name\": \""+MODULE_NAME+"\"," +
                        "\"module_id\": \""+MODULE_ID+"\"," +
                        "\"status\": \"UP\"," +
+                       "\"read_ahead_ready\": "+String.valueOf( read_ahead_ready() ) + "," +
+                       "\"read_ahead_starved\": "+String.valueOf( read_ahead_starved ) + "," +
                        "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                        "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                      "}" );
@@ -136,59 +165,70 @@ public class FeedPlayer extends AbstractVerticle {
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, dir "+yyyymmdd+" later than finish timestamp");
                 return;
             }
-        
-        // read list of days filenames from directory
-        vertx.fileSystem().readDir(bin_path, res -> {
-                if (res.succeeded())
+
+        // an index rebuilt from the directory listing is only cached for days that are complete
+        boolean complete = LocalDate.parse(yyyymmdd, DateTimeFormatter.ofPattern("yyyy/MM/dd"))
+                                    .isBefore(LocalDate.now());
+        String cache_path = complete ? INDEX_CACHE+"/"+yyyymmdd+"/"+DayIndex.INDEX_FILENAME : null;
+
+        // load the day's sorted file index (with a single read, if the directory has an index file)
+        read_ahead_executor.executeBlocking(fut -> {
+                try
+                    {
+                        fut.complete(DayIndex.load_blocking(bin_path, cache_path));
+                    }
+                catch (Exception e)
+                    {
+                        fut.fail(e);
+                    }
+            }, true, (AsyncResult<DayIndex> res) -> {
+                if (res.succeeded() && res.result() != null)
                     {
-                        // process the gtfs binary files, starting at file 0
                         try
                             {
-                                // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
-                                // with the hh_mm_ss in local time
-                                
-                                // sort the files from the directory into timestamp order
-                                Collections.sort(res.result());
-
-                                // skip forward to first file newer than start_ts
-                                int file_index = 0;
-                                while (file_index < res.result().size() &&
-                                       start_ts > get_ts(res.result().get(file_index))
-                                      )
-                                    {
-                                        file_index++;
-                                    }
+                                DayIndex index = res.result();
+
+                                // skip forward to first file at or after start_ts
+                                int file_index = index.first_after(start_ts - 1);
+
                                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
                                            ": starting with "+bin_path+" file #"+file_index);
+                                // reset the read-ahead for this new file list
+                                read_ahead_queue.clear();
+                                read_ahead_index = file_index;
                                 // process files starting with start_ts or newer
-                                process_gtfs_files( res.result(), file_index, finish_ts);
+                                process_gtfs_files( index, yyyymmdd, file_index, finish_ts);
                             }
                         catch (Exception e)
                             {
                                 System.err.println("FeedPlayer: exception in process_gtfs_files() " + e.getMessage());
                             }
                     }
+                else if (res.succeeded())
+                    {
+                        System.err.println("FeedPlayer: directory not found "+bin_path);
+                    }
                 else
                     {
-                        System.err.println(res.cause());
+                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                                   ": failed to load index for "+bin_path+" ("+res.cause()+")");
                     }
             });
       } // end process_gtfs_dir()
 
         
-    // Iterate through the list of files
+    // Iterate through the day index of files in directory yyyymmdd
     // Note this procedure is tail-recursive
     // i.e. the style is "process first file".. "set timer to process remaining files"
-    void process_gtfs_files(List<String> files, int i, Long finish_ts) throws Exception
+    void process_gtfs_files(DayIndex index, String yyyymmdd, int i, Long finish_ts) throws Exception
     {
 
         // test if we've reached end of files for current day
-        if (i >= files.size())
+        if (i >= index.size())
             {
                 try
                   {
                     // at end of files in current directory, so move on to next day
-                    String yyyymmdd = get_date(files.get(0));
                     logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": " + yyyymmdd + " file list completed");
 
                     DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
@@ -213,20 +253,23 @@ public class FeedPlayer extends AbstractVerticle {
                   }
                 return;
             }
-        if (get_ts(files.get(i)) > finish_ts)
+        if (index.ts(i) > finish_ts)
             {
                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, file replay reached finish time "+finish_ts);
                 return;
             }
+        // top up the read-ahead queue, which will then hold (at least) the current file
+        read_ahead(index, yyyymmdd, finish_ts);
+
         // process current file
         
-        process_gtfs_file(files.get(i));
+        process_gtfs_file(read_ahead_queue.poll());
 
         // process remaining files
         vertx.setTimer(RATE, id -> {
                 try
                     {
-                        process_gtfs_files(files, i + 1, finish_ts);
+                        process_gtfs_files(index, yyyymmdd, i + 1, finish_ts);
                     }
                 catch (Exception e)
                     {
@@ -235,70 +278,90 @@ public class FeedPlayer extends AbstractVerticle {
             });
     }
     
-    // publish single file as message
-    void process_gtfs_file(String filepath) throws Exception
+    // read and decode files ahead of the current file, up to READ_AHEAD files
+    // (or the end of the current day's list, or finish_ts)
+    void read_ahead(DayIndex index, String yyyymmdd, Long finish_ts)
     {
-        // Read a file
-        vertx.fileSystem().readFile(filepath, res -> {
+        while (read_ahead_queue.size() < READ_AHEAD &&
+               read_ahead_index < index.size() &&
+               index.ts(read_ahead_index) <= finish_ts)
+            {
+                String filepath = TFC_DATA_BIN+"/"+yyyymmdd+"/"+index.filename(read_ahead_index);
+                String basename = index.basename(read_ahead_index);
+                read_ahead_index++;
+
+                Future<PositionBatch> decoded = Future.future();
+
+                read_ahead_executor.executeBlocking(fut -> {
+                        try
+                            {
+                                Buffer buf = vertx.fileSystem().readFileBlocking(filepath);
+
+                                PositionBatch batch = GTFS.buf_to_batch(buf, basename, yyyymmdd);
+
+                                batch.header().put("module_name", MODULE_NAME);
+                                batch.header().put("module_id", MODULE_ID);
+                                batch.header().put("msg_type", Constants.FEED_BUS_POSITION);
+
+                                fut.complete(batch);
+                            }
+                        catch (Exception e)
+                            {
+                                fut.fail("FeedPlayer: exception reading "+filepath+" "+e.getMessage());
+                            }
+                    }, true, decoded.completer());
+
+                read_ahead_queue.add(decoded);
+            }
+    }
+
+    // count of read-ahead files already decoded and waiting to be published
+    int read_ahead_ready()
+    {
+        int ready = 0;
+        for (Future<PositionBatch> f: read_ahead_queue)
+            {
+                if (f.isComplete())
+                    {
+                        ready++;
+                    }
+            }
+        return ready;
+    }
+
+    // publish single (read-ahead) file as message
+    // If the file has not been decoded yet it will be published as soon as it is, and as
+    // the read_ahead_executor completes in order, files are still published in order.
+    void process_gtfs_file(Future<PositionBatch> decoded) throws Exception
+    {
+        if (!decoded.isComplete())
+            {
+                read_ahead_starved++;
+            }
+
+        decoded.setHandler(res -> {
                 if (res.succeeded())
                 {
-                    try
-                    {
-                        String basename = get_basename(filepath);
-                        String yyyymmdd = get_date(filepath);
-                        
-                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" publishing "+yyyymmdd+"/"+basename);
-                        
-                      JsonObject msg = GTFS.buf_to_json(res.result(), basename, yyyymmdd);
-
-                      msg.put("module_name", MODULE_NAME);
-                      msg.put("module_id", MODULE_ID);
-                      msg.put("msg_type", Constants.FEED_BUS_POSITION);
-        
-                      eb.publish(FEEDPLAYER_ADDRESS, msg);
-                      //System.out.println("FeedPlayer: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
-                    } catch (Exception e)
+                    PositionBatch batch = res.result();
+
+                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" publishing "+
+                               batch.header().getString("filepath")+"/"+batch.header().getString("filename"));
+
+                    eb.publish(FEEDPLAYER_ADDRESS, batch);
+
+                    if (JSON_ADDRESS != null)
                     {
-                        System.err.println("FeedPlayer: exception in GTFS.buf_to_json()");
+                        eb.publish(JSON_ADDRESS, batch.to_json());
                     }
+                    //System.out.println("FeedPlayer: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
                 } else
                 {
-                    System.err.println("FeedPlayer: " + res.cause());
+                    System.err.println(res.cause().getMessage());
                 }
             });
         
     } // end process_gtfs_file()
   
-    // pick out the Long timestamp embedded in the file name
-    // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
-    Long get_ts(String filepath)
-    {
-
-        // starting char index of timestamp (either index after last '/', or 0)
-        int ts_start = filepath.lastIndexOf('/') + 1;
-
-        // length of utc timestamp e.g. "1457334014" = 10
-        int ts_length = filepath.lastIndexOf('_') - ts_start;
-
-        // extract substring i.e. "1457334014"
-        String ts_string = filepath.substring(ts_start, ts_start+ts_length);
-        
-        return Long.parseLong(ts_string);
-    }
-
-    // get base filename from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "1457334014_2016-03-07-07-00-14"
-    String get_basename(String filepath)
-    {
-        String[] parts = filepath.split("/");
-
-        String filename_bin = parts[parts.length - 1];
-
-        int dot_index = filename_bin.lastIndexOf('.');
-
-        return filename_bin.substring(0, dot_index);
-    }
-
     // get YYYY/MM/DD from filepath
     //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "2016/03/07"
     String get_date(String filepath)
@@ -349,6 +412,8 @@ public class FeedPlayer extends AbstractVerticle {
                 return false;
             }
 
+        JSON_ADDRESS = config().getString(MODULE_NAME+".json_address"); // optional
+
         TFC_DATA_BIN = config().getString(MODULE_NAME+".files");
         if (TFC_DATA_BIN==null)
             {
@@ -356,6 +421,10 @@ public class FeedPlayer extends AbstractVerticle {
                 return false;
             }
 
+        // FeedPlayer's own directory for rebuilt day indexes, as the archive may not be writable
+        INDEX_CACHE = config().getString(MODULE_NAME+".index_cache",
+                                         System.getProperty("java.io.tmpdir")+"/"+MODULE_NAME+"."+MODULE_ID+".index_cache");
+
         START_TS = config().getLong(MODULE_NAME+".start_ts");
         if (START_TS==null)
             {
@@ -377,6 +446,12 @@ public class FeedPlayer extends AbstractVerticle {
                 return false;
             }
 
+        READ_AHEAD = config().getInteger(MODULE_NAME+".read_ahead", 5);
+        if (READ_AHEAD < 1)
+            {
+                READ_AHEAD = 1;
+            }
+
         return true;
     }
     
@@ -12,6 +12,10 @@ package uk.ac.cam.tfc_server.httpmsg;
 // Sends data on EventBus <address> (from the URL)
 // The POST data must be valid json, and will be ignored otherwise.
 //
+// A batch of messages (a JSON array or newline-delimited JSON) can be POSTed to
+// 'module_name/module_id/eventbus_address/batch[/to_module_name/to_module_id]', and each is
+// sent as above, with a summary of the messages sent returned in the response.
+//
 // POSTs are verified using a header "X-Auth-Token" that must match config http.token
 //
 // This module is similar in function to FeedHandler and FeedMaker except it does NOT
@@ -49,6 +53,7 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.BatchReader;
 import uk.ac.cam.tfc_server.util.Constants;
 
 public class HttpMsg extends AbstractVerticle {
@@ -69,6 +74,7 @@ public class HttpMsg extends AbstractVerticle {
     private int HTTP_PORT;            // config httpmsg.http.port
 
     // local constants
+    private final int BATCH_SLICE = 100; // messages of a batch POST sent per turn of the event loop
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
@@ -180,6 +186,12 @@ public class HttpMsg extends AbstractVerticle {
 
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
                                        ": setting up POST listener on "+"/"+BASE_URI+"/"+ADDRESS);
+        router
+            .route(HttpMethod.POST,"/"+BASE_URI+"/"+ADDRESS+"/batch/:to_module_name/:to_module_id")
+            .handler(ctx -> handle_batch(ctx, ADDRESS, HTTP_TOKEN, config));
+        router
+            .route(HttpMethod.POST,"/"+BASE_URI+"/"+ADDRESS+"/batch")
+            .handler(ctx -> handle_batch(ctx, ADDRESS, HTTP_TOKEN, config));
         router
             .route(HttpMethod.POST,"/"+BASE_URI+"/"+ADDRESS+"/:to_module_name/:to_module_id")
             .handler(ctx -> handle_httpmsg(ctx, ADDRESS, HTTP_TOKEN, config));
@@ -224,9 +236,34 @@ public class HttpMsg extends AbstractVerticle {
             });
     }
     
+    // ************************************************
+    // Batch handler, each message in the POST is sent as by handle_httpmsg, as it is
+    // received, and the response is a summary e.g. { "records": 100, "accepted": 99, "rejected": 1 }
+    // ************************************************
+    private void handle_batch(RoutingContext ctx, String ADDRESS, String HTTP_TOKEN, JsonObject config)
+    {
+        String post_token = ctx.request().getHeader("X-Auth-Token");
+        if (HTTP_TOKEN!=null && !HTTP_TOKEN.equals(post_token))
+        {
+            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                       ": "+ADDRESS+" batch X-Auth-Token mis-match");
+            ctx.response().setStatusCode(403).end();
+            return;
+        }
+
+        String to_module_name = ctx.request().getParam("to_module_name");
+        String to_module_id = ctx.request().getParam("to_module_id");
+
+        BatchReader.read(vertx, ctx.request(), BATCH_SLICE, null,
+                         buf -> process_httpmsg(buf, to_module_name, to_module_id, config),
+                         summary -> logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                                               ": "+ADDRESS+" batch POST "+summary.toString()));
+    }
+
   // *****************************************************************
   // process the received POST, and send as EventBus message
-  private void process_httpmsg(Buffer buf, String to_module_name, String to_module_id, JsonObject config) throws Exception 
+  // returns false if the POST data is not a JSON object
+  private boolean process_httpmsg(Buffer buf, String to_module_name, String to_module_id, JsonObject config)
   {
     // Copy the received data into a suitable EventBus JsonObject message
     JsonObject msg;
@@ -267,7 +304,9 @@ public class HttpMsg extends AbstractVerticle {
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                    ": exception raised during processing of http post "+config.getString("address")+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
+        return false;
     }
+    return true;
   } // end process_httpmsg()
 
     // Load initialization global constants defining this HttpMsg from config()
@@ -29,16 +29,14 @@ package uk.ac.cam.tfc_server.msgfiler;
 
 import java.time.*;
 import java.time.format.*;
-import java.io.*;
 
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
-import io.vertx.core.file.FileSystem;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.file.FileSystemException;
 
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.ArchiveWriter;
 import uk.ac.cam.tfc_server.util.Constants;
 
 public class FilerUtils {
@@ -46,11 +44,19 @@ public class FilerUtils {
     private FilerConfig filer_config;
 
     private Vertx vertx;
+
+    private ArchiveWriter archive_writer; // shared with other FilerUtils in the same verticle
     
     public FilerUtils (Vertx v, FilerConfig fc)
+    {
+        this(v, fc, new ArchiveWriter(v, fc.module_name+"."+fc.module_id));
+    }
+
+    public FilerUtils (Vertx v, FilerConfig fc, ArchiveWriter aw)
     {
         filer_config = fc;
         vertx = v;
+        archive_writer = aw;
     }
 
     // *******************************************************************************
@@ -116,35 +122,8 @@ public class FilerUtils {
         //System.out.println("MsgFiler."+filer_config.module_id+": "+
         //                   filer_config.store_mode+ " " +filepath+"/"+filename);
 
-        String msg_str = msg.toString();
-        
-        FileSystem fs = vertx.fileSystem();
-        
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        
-        fs.exists(filepath, result -> {
-            if (result.succeeded() && result.result())
-                {
-                    //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
-                }
-            else
-                {
-                    System.out.println("MsgFiler."+filer_config.module_id+": creating directory "+filepath);
-                    fs.mkdirs(filepath, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
-                                }
-                            else
-                                {
-                                    Log.log_err("MsgFiler."+filer_config.module_id+
-                                                ": error creating path "+filepath);
-                                }
-                        });
-                }
-        });
+        // the ArchiveWriter will create the directory if necessary
+        write_file(msg.toString(), filepath, filename, filer_config.store_mode);
     } // end store_msg()
 
     // *************************************************
@@ -170,29 +149,8 @@ public class FilerUtils {
 
         //System.out.println("MsgFiler."+filer_config.module_id+": "+filer_config.store_mode+ " " +filepath+"/"+filename);
 
-        String msg_str = msg.toString();
-        
-        FileSystem fs = vertx.fileSystem();
-        
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        
-        if (fs.existsBlocking(filepath))
-        {
-            //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-            write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
-        }
-        else
-        {
-            try {
-                System.out.println("MsgFiler."+filer_config.module_id+": creating directory "+filepath);
-                fs.mkdirsBlocking(filepath);
-                write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
-            }
-            catch (Exception e) {
-                Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+filepath);
-            }
-        }
+        // the ArchiveWriter will create the directory if necessary
+        write_fileBlocking(msg.toString(), filepath, filename, filer_config.store_mode);
 
     } // end store_msg()
 
@@ -326,123 +284,38 @@ public class FilerUtils {
 
     // *****************************************************************
     // write_file()
-    // either overwrite (ASYNC) or append(SYNC) according to config_mode
-    private void write_file(String msg, String file_path, String config_mode)
+    // either overwrite or append (ASYNC) according to config_mode
+    // Note: to extend the data API to 'now and previous' data sets,
+    // an overwrite first moves any existing data file 'x' to 'x.prev'
+    private void write_file(String msg, String filepath, String filename, String config_mode)
     {
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_file(msg, file_path);
+                archive_writer.rotate(filepath, filename, Buffer.buffer(msg));
             }
-        else // append - this is a SYNCHRONOUS operation...
+        else // append
             {
-                vertx.executeBlocking(fut -> {
-                        append_file(msg, file_path);
-                        fut.complete();
-                    }, res -> { }
-                    );
+                archive_writer.append_line(filepath, filename, msg);
             }
     }        
         
     // *****************************************************************
     // write_fileBlocking()
     // either overwrite or append in SYNCHRONOUS mode
-    private void write_fileBlocking(String msg, String file_path, String config_mode)
+    private void write_fileBlocking(String msg, String filepath, String filename, String config_mode)
     {
-        if (config_mode.equals(Constants.FILE_WRITE))
-            {
-                overwrite_fileBlocking(msg, file_path);
-            }
-        else // append - this is a SYNCHRONOUS operation...
-            {
-                append_file(msg, file_path); // is always SYNCHRONOUS anyway
-            }
-    }        
-        
-    // **********************************************************
-    // overwrite_file()
-    // will do an ASYNCHRONOUS operation, i.e. return immediately
-    // Note: to extend the data API to 'now and previous' data sets,
-    // this function SYNCHRONOUSLY moves any existing data file 'x' to 'x.prev'
-    // before writing the new file.
-    private void overwrite_file(String msg, String file_path)
-    {
-        FileSystem fs = vertx.fileSystem();
-
-        // First we write the PREVIOUS file to file_path.prev
-        // but skip errors if we can't delete the previous  .prev file (maybe this is the 1st)
-        try
-        {
-             fs.deleteBlocking(file_path+Constants.PREV_FILE_SUFFIX);
-        }
-        catch (FileSystemException e)
-        {
-             // we tried to remove previous 'prev' file and failed, but it doesn't matter.
-             //Log.log_err("MsgFiler."+filer_config.module_id+
-             //              ": overwrite_file did not find existing previous file for "+file_path);
-        }
-        try
-        {
-             fs.moveBlocking(file_path, file_path+Constants.PREV_FILE_SUFFIX);
-        }
-        catch (FileSystemException e)
-        {
-             //Log.log_err("MsgFiler."+filer_config.module_id+
-             //             ": overwrite_file did not find existing "+file_path);
-        }
-
-        Buffer buf = Buffer.buffer(msg);
-        fs.writeFile(file_path, 
-                     buf, 
-                     result -> {
-          if (result.succeeded()) {
-              System.out.println("MsgFiler: File "+file_path+" written");
-          } else {
-            Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_file error ..." + result.cause());
-          }
-        });
-    } // end overwrite_file
-
-    // **********************************************************
-    // overwrite_fileBlocking()
-    // will do a SYNCHRONOUS operation
-    private void overwrite_fileBlocking(String msg, String file_path)
-    {
-        FileSystem fs = vertx.fileSystem();
-        Buffer buf = Buffer.buffer(msg);
         try {
-            fs.writeFileBlocking(file_path, buf);
-            //System.out.println("MsgFiler: File "+file_path+" written");
+            if (config_mode.equals(Constants.FILE_WRITE))
+                {
+                    archive_writer.write_blocking(filepath, filename, Buffer.buffer(msg));
+                }
+            else // append
+                {
+                    archive_writer.append_line_blocking(filepath, filename, msg);
+                }
         } catch (Exception e) {
-            Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_fileBlocking error");
+            Log.log_err("MsgFiler."+filer_config.module_id+": write_fileBlocking failed for "+filepath+"/"+filename);
         }
-
-    } // end overwrite_fileBlocking
-
-    // *********************************************************************
-    // append_file()
-    // BLOCKING code that will open and append 'msg'+'\n' to file 'filepath'
-    public void append_file(String msg, String file_path)
-    {
-        System.out.println("MsgFiler."+filer_config.module_id+": append_file "+ file_path);
-
-        BufferedWriter bw = null;
-
-        try {
-            // note FileWriter second arg 'true' => APPEND MODE
-            bw = new BufferedWriter(new FileWriter(file_path, true));
-            bw.write(msg);
-            bw.newLine();
-            bw.flush();
-        } catch (IOException ioe) {
-            Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+file_path);
-        } finally {                       // always close the file
-            if (bw != null) try {
-                    bw.close();
-                } catch (IOException ioe2) {
-                    // just ignore it
-                }
-        } // end try/catch/finally
-
-    } // end append_file
+    }        
 
 } // end class FilerUtils
@@ -47,6 +47,9 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.ArchiveWriter;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
 
 public class MsgFiler extends AbstractVerticle {
     // from config()
@@ -62,7 +65,20 @@ public class MsgFiler extends AbstractVerticle {
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
 
     private EventBus eb = null;
+
+    private ArchiveWriter archive_writer; // shared by all the filers in this MsgFiler
     
+  // carry out the queued archive writes, then close the ArchiveWriter's worker pool
+  @Override
+  public void stop(Future<Void> fut) throws Exception {
+    if (archive_writer == null)
+    {
+        fut.complete();
+        return;
+    }
+    archive_writer.close(res -> fut.complete());
+  }
+
   @Override
   public void start(Future<Void> fut) throws Exception {
       
@@ -78,6 +94,11 @@ public class MsgFiler extends AbstractVerticle {
 
     eb = vertx.eventBus();
 
+    // position batches may arrive in binary form
+    PositionBatchCodec.register(vertx);
+
+    archive_writer = new ArchiveWriter(vertx, MODULE_NAME+"."+MODULE_ID);
+
     // iterate through all the filers to be started
     for (int i=0; i<START_FILERS.size(); i++)
         {
@@ -100,6 +121,7 @@ public class MsgFiler extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"archive\": "+archive_writer.metrics().toString() + "," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -122,14 +144,14 @@ public class MsgFiler extends AbstractVerticle {
             }
         System.out.println("MsgFiler."+MODULE_ID+": starting filer "+filer_config.source_address+ filer_filter);
 
-        FilerUtils filer_utils = new FilerUtils(vertx, filer_config);
+        FilerUtils filer_utils = new FilerUtils(vertx, filer_config, archive_writer);
         
         // register to filer_config.source_address,
         // test messages with filer_config.source_filter
         // and call store_msg if current message passes filter
         eb.consumer(filer_config.source_address, message -> {
             //System.out.println("MsgFiler."+MODULE_ID+": got message from " + filer_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
+            JsonObject msg = PositionBatch.json_body(message.body());
             
             //System.out.println(msg.toString());
 
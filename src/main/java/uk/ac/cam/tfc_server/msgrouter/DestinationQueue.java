@@ -0,0 +1,512 @@
+package uk.ac.cam.tfc_server.msgrouter;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// DestinationQueue holds the POSTs waiting to be sent to one MsgRouter destination, so a slow or
+// failing destination cannot use unbounded memory or requests, or hold up the other destinations.
+//
+//   max_queue      - POSTs waiting; when full the oldest is dropped to make room for a new POST, but
+//                    a retry (which goes back to the front of the queue) pushes out the newest
+//   max_in_flight  - POSTs sent and awaiting a response
+//   max_retries    - a POST that fails (no response, timeout, or status 429 or 5xx) is retried after
+//                    RETRY_BASE ms, doubling with each attempt up to RETRY_MAX, then dropped.
+//                    Other responses (including 4xx) complete the POST.
+//
+// Circuit breaker: after FAILURE_THRESHOLD consecutive failures the circuit is 'open' and nothing is
+// sent for OPEN_BASE ms, after which ('half_open') a single trial POST is tried. If it succeeds the
+// circuit is 'closed' and the queue is sent as normal, otherwise it is open again for twice as
+// long (up to OPEN_MAX). While half open only the result of the trial POST counts (not those of
+// POSTs sent before the circuit opened), and if one of those succeeds while the circuit is open
+// the circuit is closed. While the circuit is open new POSTs are queued (subject to max_queue).
+//
+// With a DestinationSpool, the POSTs that would have been dropped (the queue is full, or the retries
+// of a POST ran out while the circuit is open) are instead written to the spool, as are all new
+// POSTs while the circuit is open or the spool holds any, to keep them in order. While the circuit
+// is closed the spool is read back into the queue as fast as the new POSTs arrive, plus up to
+// 'replay_rate' POSTs per second of the backlog (and one at a time when half open, as the trial
+// POST), so a busy destination catches up once it recovers. The order is best-effort: a POST moved
+// from the queue to the spool (a retry ran out, or made room for a retry) goes to the end of the
+// spool, after the newer POSTs already there.
+//
+// close() stops the queue when its destination is removed or replaced: its timers are cancelled, the
+// waiting POSTs are written to the spool (or dropped if there is none) and the spool is closed, so a
+// replacement destination resumes it. The responses of POSTs still in flight are ignored.
+//
+// metrics() returns the current queue depth, in-flight count and circuit state, and the counts
+// since the previous call, e.g.
+//   { "queue": 0, "in_flight": 1, "circuit": "closed", "sent": 120, "retried": 0, "dropped": 0, "failed": 0 }
+// plus, with a spool, its size and the POSTs spooled and replayed, and segments evicted (to keep
+// within the disk limit), e.g.
+//   "spool_bytes": 4194304, "spooled": 3000, "replayed": 200, "evicted": 0
+// **********************************************************************************************
+// **********************************************************************************************
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+
+public class DestinationQueue {
+
+    private static final int REQUEST_TIMEOUT = 15000;  // ms
+    private static final int RETRY_BASE = 1000;        // ms before the first retry
+    private static final int RETRY_MAX = 60000;        // ms
+    private static final int FAILURE_THRESHOLD = 5;    // consecutive failures that open the circuit
+    private static final int OPEN_BASE = 5000;         // ms the circuit is first open
+    private static final int OPEN_MAX = 300000;        // ms
+    private static final int REPLAY_PERIOD = 100;      // ms between reads from the spool
+
+    private static final String CLOSED = "closed";
+    private static final String OPEN = "open";
+    private static final String HALF_OPEN = "half_open";
+
+    // a POST waiting to be sent
+    private static class Delivery {
+        final String body;
+        int attempts = 0;
+        long not_before = 0; // System.currentTimeMillis() before which a retry is not sent
+
+        Delivery(String body)
+        {
+            this.body = body;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Log logger;
+    private final String name; // for log messages, e.g. "msgrouter.A: feed_eventbus_msg/xyz"
+    private final HttpClient http_client;
+    private final String http_path;
+    private final String http_token;
+
+    private final int max_queue;
+    private final int max_in_flight;
+    private final int max_retries;
+
+    private final DestinationSpool spool; // or null
+    private final int replay_rate;        // POSTs per second of backlog read from the spool
+    private long replay_timer = -1;
+    private long arrived = 0;             // new POSTs spooled while closed, since the previous replay()
+
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<Delivery>();
+    private int in_flight = 0;
+    private long pump_timer = -1; // timer to send a retry that is not due yet, or -1
+
+    private String circuit = CLOSED;
+    private int failures = 0;       // consecutive
+    private int open_period = OPEN_BASE;
+    private long open_timer = -1;   // timer to half open the circuit, or -1
+    private Delivery trial = null;  // the POST sent while half open, awaiting its response
+
+    private boolean closed = false; // set by close(), after which nothing more is sent
+
+    // counts since the previous metrics()
+    private long sent = 0;
+    private long retried = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    private long spooled = 0;
+    private long replayed = 0;
+
+    public DestinationQueue(Vertx vertx,
+                            Log logger,
+                            String name,
+                            HttpClient http_client,
+                            String http_path,
+                            String http_token,
+                            int max_queue,
+                            int max_in_flight,
+                            int max_retries,
+                            DestinationSpool spool,
+                            int replay_rate)
+    {
+        this.vertx = vertx;
+        this.logger = logger;
+        this.name = name;
+        this.http_client = http_client;
+        this.http_path = http_path;
+        this.http_token = http_token;
+        this.max_queue = Math.max(1, max_queue);
+        this.max_in_flight = Math.max(1, max_in_flight);
+        this.max_retries = Math.max(0, max_retries);
+        this.spool = spool;
+        this.replay_rate = Math.max(1, replay_rate);
+
+        // POSTs spooled before a restart
+        schedule_replay();
+    }
+
+    // queue 'body' to be POSTed
+    public void add(String body)
+    {
+        if (closed)
+        {
+            dropped++;
+            return;
+        }
+        if (spool != null && (circuit != CLOSED || queue.size() >= max_queue || spool.pending()))
+        {
+            if (circuit == CLOSED)
+            {
+                arrived++;
+            }
+            to_spool(body);
+            return;
+        }
+        if (queue.size() >= max_queue)
+        {
+            queue.pollFirst();
+            dropped++;
+        }
+        queue.addLast(new Delivery(body));
+        pump();
+    }
+
+    // send from the queue, up to max_in_flight (or the trial POST while the circuit is half open)
+    private void pump()
+    {
+        while (!closed && !queue.isEmpty() && can_send())
+        {
+            Delivery delivery = queue.peekFirst();
+            long wait = delivery.not_before - System.currentTimeMillis();
+            if (wait > 0)
+            {
+                if (pump_timer < 0)
+                {
+                    pump_timer = vertx.setTimer(wait, id -> {
+                            pump_timer = -1;
+                            pump();
+                        });
+                }
+                return;
+            }
+            queue.pollFirst();
+            if (circuit == HALF_OPEN)
+            {
+                trial = delivery;
+            }
+            post(delivery);
+        }
+    }
+
+    private boolean can_send()
+    {
+        if (circuit == CLOSED)
+        {
+            return in_flight < max_in_flight;
+        }
+        return circuit == HALF_OPEN && trial == null;
+    }
+
+    private void post(Delivery delivery)
+    {
+        in_flight++;
+        delivery.attempts++;
+
+        // the response and exception handlers may both be called, so only the first counts
+        boolean[] done = { false };
+        try
+        {
+            HttpClientRequest request = http_client.post(http_path, response -> {
+                    if (done[0])
+                    {
+                        return;
+                    }
+                    done[0] = true;
+                    int status = response.statusCode();
+                    logger.log(Constants.LOG_DEBUG, name+": response was "+status);
+                    if (status == 429 || status >= 500)
+                    {
+                        failure(delivery, "status "+status);
+                    }
+                    else
+                    {
+                        success(delivery);
+                    }
+                });
+
+            request.exceptionHandler( e -> {
+                    if (done[0])
+                    {
+                        return;
+                    }
+                    done[0] = true;
+                    failure(delivery, e.getMessage());
+                });
+
+            request.putHeader("content-type", "application/json");
+            request.setTimeout(REQUEST_TIMEOUT);
+            if (http_token != null)
+            {
+                request.putHeader("X-Auth-Token", http_token);
+            }
+            request.end(delivery.body);
+        }
+        catch (Exception e)
+        {
+            done[0] = true;
+            failure(delivery, e.getMessage());
+        }
+    }
+
+    private void success(Delivery delivery)
+    {
+        in_flight--;
+        sent++;
+        if (closed)
+        {
+            return;
+        }
+        if (circuit == HALF_OPEN && delivery != trial)
+        {
+            // sent before the circuit opened, so wait for the trial
+            return;
+        }
+        failures = 0;
+        if (circuit != CLOSED)
+        {
+            logger.log(Constants.LOG_INFO, name+": destination responding, circuit closed");
+            circuit = CLOSED;
+            trial = null;
+            open_period = OPEN_BASE;
+            if (open_timer >= 0)
+            {
+                vertx.cancelTimer(open_timer);
+                open_timer = -1;
+            }
+            schedule_replay();
+        }
+        pump();
+    }
+
+    private void failure(Delivery delivery, String reason)
+    {
+        in_flight--;
+        if (closed)
+        {
+            return;
+        }
+        failures++;
+        logger.log(Constants.LOG_DEBUG, name+": POST failed ("+reason+") attempt "+delivery.attempts);
+
+        // open the circuit if the trial failed, or on too many failures while closed
+        boolean open = delivery == trial || (circuit == CLOSED && failures >= FAILURE_THRESHOLD);
+        if (delivery == trial)
+        {
+            trial = null;
+        }
+
+        if (delivery.attempts <= max_retries)
+        {
+            // back to the front of the queue, to keep the order, when its backoff has passed
+            long backoff = Math.min(RETRY_MAX, (long) RETRY_BASE << Math.min(20, delivery.attempts - 1));
+            delivery.not_before = System.currentTimeMillis() + backoff;
+            if (queue.size() >= max_queue)
+            {
+                // the retry is the oldest POST, so make room by moving out the newest
+                Delivery newest = queue.pollLast();
+                if (spool != null)
+                {
+                    to_spool(newest.body);
+                }
+                else
+                {
+                    dropped++;
+                }
+            }
+            queue.addFirst(delivery);
+            retried++;
+        }
+        else if (spool != null && (open || circuit != CLOSED))
+        {
+            // the destination is down, so keep it for later
+            to_spool(delivery.body);
+        }
+        else
+        {
+            logger.log(Constants.LOG_WARN, name+": POST dropped after "+delivery.attempts+" attempts ("+reason+")");
+            failed++;
+        }
+
+        if (open)
+        {
+            open_circuit();
+        }
+        else
+        {
+            pump();
+        }
+    }
+
+    private void open_circuit()
+    {
+        logger.log(Constants.LOG_WARN, name+": "+failures+" consecutive failures, circuit open for "+open_period+" ms"+
+                   " ("+queue.size()+" queued)");
+        circuit = OPEN;
+        if (open_timer >= 0)
+        {
+            vertx.cancelTimer(open_timer);
+        }
+        open_timer = vertx.setTimer(open_period, id -> {
+                open_timer = -1;
+                if (circuit == OPEN)
+                {
+                    circuit = HALF_OPEN;
+                    pump();
+                    replay();
+                }
+            });
+        open_period = Math.min(OPEN_MAX, open_period * 2);
+    }
+
+    // ************************************************************************
+    // The spool
+    // ************************************************************************
+
+    private void to_spool(String body)
+    {
+        try
+        {
+            spool.append(body);
+            spooled++;
+        }
+        catch (IOException e)
+        {
+            logger.log(Constants.LOG_WARN, name+": spool write failed, POST dropped ("+e.getMessage()+")");
+            dropped++;
+        }
+        schedule_replay();
+    }
+
+    private void schedule_replay()
+    {
+        if (!closed && spool != null && replay_timer < 0 && spool.pending())
+        {
+            replay_timer = vertx.setTimer(REPLAY_PERIOD, id -> {
+                    replay_timer = -1;
+                    replay();
+                });
+        }
+    }
+
+    // move POSTs from the spool to the queue, while the circuit is closed (or one for the trial
+    // POST when half open). While closed that is as many as were added to the spool since the
+    // previous replay (so the spool keeps up with the new POSTs) plus the replay_rate share.
+    private void replay()
+    {
+        if (closed || spool == null || circuit == OPEN)
+        {
+            return;
+        }
+
+        long count = circuit == CLOSED ? arrived + Math.max(1, replay_rate * REPLAY_PERIOD / 1000) :
+                     (queue.isEmpty() && trial == null ? 1 : 0);
+        arrived = 0;
+        try
+        {
+            for (int i=0; i<count && queue.size() < max_queue; i++)
+            {
+                String body = spool.next();
+                if (body == null)
+                {
+                    break;
+                }
+                queue.addLast(new Delivery(body));
+                replayed++;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Constants.LOG_WARN, name+": spool read failed ("+e.getMessage()+")");
+        }
+        pump();
+
+        if (circuit == CLOSED)
+        {
+            schedule_replay();
+        }
+    }
+
+    // ************************************************************************
+    // stop the queue, saving the waiting POSTs in the spool (if any) and closing it
+    // ************************************************************************
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (long timer : new long[] { pump_timer, open_timer, replay_timer })
+        {
+            if (timer >= 0)
+            {
+                vertx.cancelTimer(timer);
+            }
+        }
+        pump_timer = -1;
+        open_timer = -1;
+        replay_timer = -1;
+
+        int waiting = queue.size();
+        if (spool != null)
+        {
+            for (Delivery delivery : queue)
+            {
+                try
+                {
+                    spool.append(delivery.body);
+                }
+                catch (IOException e)
+                {
+                    logger.log(Constants.LOG_WARN, name+": spool write failed, POST dropped ("+e.getMessage()+")");
+                }
+            }
+            spool.close();
+        }
+        queue.clear();
+        logger.log(Constants.LOG_INFO, name+": closed, "+waiting+" queued POSTs "+(spool != null ? "spooled" : "dropped")+
+                   ", "+in_flight+" in flight");
+    }
+
+    // true if there is anything to report in metrics()
+    public boolean active()
+    {
+        return !queue.isEmpty() || in_flight > 0 || circuit != CLOSED ||
+               sent > 0 || retried > 0 || dropped > 0 || failed > 0 ||
+               (spool != null && (spool.pending() || spooled > 0 || replayed > 0));
+    }
+
+    public JsonObject metrics()
+    {
+        JsonObject m = new JsonObject();
+        m.put("queue", queue.size());
+        m.put("in_flight", in_flight);
+        m.put("circuit", circuit);
+        m.put("sent", sent);
+        m.put("retried", retried);
+        m.put("dropped", dropped);
+        m.put("failed", failed);
+        if (spool != null)
+        {
+            m.put("spool_bytes", spool.bytes());
+            m.put("spooled", spooled);
+            m.put("replayed", replayed);
+            m.put("evicted", spool.evicted());
+            spooled = 0;
+            replayed = 0;
+        }
+        sent = 0;
+        retried = 0;
+        dropped = 0;
+        failed = 0;
+        return m;
+    }
+
+} // end class DestinationQueue
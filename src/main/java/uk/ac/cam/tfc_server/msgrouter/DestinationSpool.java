@@ -0,0 +1,312 @@
+package uk.ac.cam.tfc_server.msgrouter;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// DestinationSpool is the on-disk overflow of a DestinationQueue, holding the POSTs for a destination
+// that is down (circuit open) or too slow (queue full), so they survive a long outage (and a
+// restart of MsgRouter) without being held in memory.
+//
+// The spool is a directory of segment files, <seq>.spool, each SEGMENT_SIZE bytes (or larger to
+// fit one big record) and memory-mapped, so an append or read is a copy to or from the page cache.
+// Each record is a 4-byte length followed by the UTF-8 POST body, with a zero length (the unwritten
+// remainder of the segment) marking its end. The length is written after the body, so a record
+// is only visible once complete. A new segment is started when a record does not fit.
+//
+// The read position is kept in the memory-mapped 'cursor' file, and read segments are deleted.
+// If the segments would exceed 'max_bytes' the oldest is deleted (losing its unread records),
+// and when the spool has been read to the end all its files are deleted.
+//
+// Records written to the page cache survive MsgRouter stopping, but not necessarily the
+// server crashing (the segments are not forced to disk). Not thread-safe: used from the MsgRouter
+// event loop. Only one DestinationSpool may be open on a directory, so close() (which keeps the
+// files) must be called before another is opened on it, e.g. for a replacement destination.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.TreeMap;
+
+public class DestinationSpool {
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final String SUFFIX = ".spool";
+    private static final String CURSOR = "cursor";
+
+    private final Path dir;
+    private final long max_bytes;
+
+    private boolean opened = false;
+
+    private TreeMap<Long,Long> segments = new TreeMap<Long,Long>(); // seq -> file size
+    private long total_bytes = 0;
+
+    private long write_seq;
+    private MappedByteBuffer write_buf;
+    private int write_pos;
+
+    private long read_seq;
+    private MappedByteBuffer read_buf; // null until needed
+    private int read_pos;
+
+    private MappedByteBuffer cursor;   // read_seq (8 bytes), read_pos (4 bytes)
+
+    private long evicted = 0; // segments deleted unread, since the previous call to evicted()
+
+    // 'dir' is the spool directory of this destination, opened now if it holds a spool
+    public DestinationSpool(String dir, long max_bytes) throws IOException
+    {
+        this.dir = Paths.get(dir);
+        this.max_bytes = max_bytes;
+        if (Files.isDirectory(this.dir))
+        {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir, "*"+SUFFIX))
+            {
+                if (files.iterator().hasNext())
+                {
+                    open();
+                }
+            }
+        }
+    }
+
+    // the segments in 'dir', and the read and write positions
+    private void open() throws IOException
+    {
+        Files.createDirectories(dir);
+
+        segments.clear();
+        total_bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*"+SUFFIX))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                long seq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                long size = Files.size(file);
+                segments.put(seq, size);
+                total_bytes += size;
+            }
+        }
+
+        cursor = map(dir.resolve(CURSOR), 12);
+
+        if (segments.isEmpty())
+        {
+            write_seq = 0;
+            create_segment(write_seq, SEGMENT_SIZE);
+            write_pos = 0;
+            read_seq = 0;
+            read_pos = 0;
+        }
+        else
+        {
+            // continue writing after the last record of the last segment
+            write_seq = segments.lastKey();
+            write_buf = map(segment_path(write_seq), segments.get(write_seq));
+            write_pos = 0;
+            int length;
+            while ((length = length_at(write_buf, write_pos)) > 0)
+            {
+                write_pos += 4 + length;
+            }
+
+            read_seq = cursor.getLong(0);
+            read_pos = cursor.getInt(8);
+            if (!segments.containsKey(read_seq))
+            {
+                read_seq = segments.firstKey();
+                read_pos = 0;
+            }
+        }
+        read_buf = null;
+        save_cursor();
+        opened = true;
+    }
+
+    // true if there are records to read
+    public boolean pending()
+    {
+        return opened && (read_seq != write_seq || read_pos != write_pos);
+    }
+
+    // the disk space used by the segments
+    public long bytes()
+    {
+        return opened ? total_bytes : 0;
+    }
+
+    // the number of segments deleted unread since the previous call
+    public long evicted()
+    {
+        long count = evicted;
+        evicted = 0;
+        return count;
+    }
+
+    // ************************************************************************
+    // add 'body' to the end of the spool
+    // ************************************************************************
+    public void append(String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0)
+        {
+            return;
+        }
+        if (!opened)
+        {
+            open();
+        }
+        int need = 4 + bytes.length;
+        if (write_pos + need > write_buf.capacity())
+        {
+            // a zero length (the segment is zero-filled) after the last record ends the segment
+            write_seq++;
+            create_segment(write_seq, Math.max(SEGMENT_SIZE, need + 4));
+            write_pos = 0;
+        }
+        write_buf.position(write_pos + 4);
+        write_buf.put(bytes);
+        write_buf.putInt(write_pos, bytes.length);
+        write_pos += need;
+    }
+
+    // ************************************************************************
+    // the next record (removing it from the spool), or null if there are none
+    // ************************************************************************
+    public String next() throws IOException
+    {
+        while (pending())
+        {
+            if (read_buf == null)
+            {
+                read_buf = map(segment_path(read_seq), segments.get(read_seq));
+            }
+            int length = length_at(read_buf, read_pos);
+            if (length > 0)
+            {
+                byte[] bytes = new byte[length];
+                read_buf.position(read_pos + 4);
+                read_buf.get(bytes);
+                read_pos += 4 + length;
+                save_cursor();
+                if (!pending())
+                {
+                    // all read, so remove the spool files until it is needed again
+                    delete_files();
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            // end of this segment, so on to the next
+            delete_segment(read_seq);
+            read_seq = segments.higherKey(read_seq);
+            read_pos = 0;
+            read_buf = null;
+            save_cursor();
+        }
+        return null;
+    }
+
+    // ************************************************************************
+    // stop using the spool (e.g. its destination was removed or replaced), leaving its files and read
+    // position in 'dir' for the next DestinationSpool opened on it
+    // ************************************************************************
+    public void close()
+    {
+        segments.clear();
+        total_bytes = 0;
+        write_buf = null;
+        read_buf = null;
+        cursor = null;
+        opened = false;
+    }
+
+    // delete all the spool files
+    private void delete_files() throws IOException
+    {
+        for (long seq : segments.keySet())
+        {
+            Files.deleteIfExists(segment_path(seq));
+        }
+        Files.deleteIfExists(dir.resolve(CURSOR));
+        segments.clear();
+        total_bytes = 0;
+        write_buf = null;
+        read_buf = null;
+        cursor = null;
+        opened = false;
+    }
+
+    private void create_segment(long seq, int size) throws IOException
+    {
+        // keep within max_bytes by deleting the oldest segments, even if unread
+        while (!segments.isEmpty() && total_bytes + size > max_bytes)
+        {
+            long oldest = segments.firstKey();
+            if (oldest == read_seq)
+            {
+                Long next = segments.higherKey(oldest);
+                read_seq = next != null ? next : seq;
+                read_pos = 0;
+                read_buf = null;
+                save_cursor();
+            }
+            delete_segment(oldest);
+            evicted++;
+        }
+        write_buf = map(segment_path(seq), size);
+        segments.put(seq, (long) size);
+        total_bytes += size;
+    }
+
+    private void delete_segment(long seq) throws IOException
+    {
+        Files.deleteIfExists(segment_path(seq));
+        Long size = segments.remove(seq);
+        if (size != null)
+        {
+            total_bytes -= size;
+        }
+    }
+
+    private void save_cursor()
+    {
+        cursor.putLong(0, read_seq);
+        cursor.putInt(8, read_pos);
+    }
+
+    private Path segment_path(long seq)
+    {
+        return dir.resolve(String.format("%016d", seq)+SUFFIX);
+    }
+
+    // the record length at 'pos' in 'buf', or 0 at the end of the segment
+    private static int length_at(MappedByteBuffer buf, int pos)
+    {
+        if (pos + 4 > buf.capacity())
+        {
+            return 0;
+        }
+        int length = buf.getInt(pos);
+        return length > 0 && pos + 4 + length <= buf.capacity() ? length : 0;
+    }
+
+    // map 'file', created or extended to 'size' bytes
+    private static MappedByteBuffer map(Path file, long size) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            if (raf.length() < size)
+            {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+} // end class DestinationSpool
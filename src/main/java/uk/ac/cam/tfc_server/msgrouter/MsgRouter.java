@@ -7,6 +7,9 @@ package uk.ac.cam.tfc_server.msgrouter;
 //
 // This module receives messages from the EventBus and POSTs them on to application destinations
 //
+// The msgrouter.routers with the same source_address share one eventbus consumer and RouterTable,
+// so each message is decoded once and matched against all their source_filters in one lookup.
+//
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // *************************************************************************************************
@@ -38,6 +41,8 @@ import java.util.HashMap;
 
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
 
 public class MsgRouter extends AbstractVerticle {
 
@@ -50,6 +55,13 @@ public class MsgRouter extends AbstractVerticle {
     private String EB_SYSTEM_STATUS;  // config eb.system_status
     private String EB_MANAGER;        // config eb.manager
     
+    private int MAX_QUEUE;            // config msgrouter.max_queue, POSTs queued per destination, default 1000
+    private int MAX_IN_FLIGHT;        // config msgrouter.max_in_flight, POSTs in flight per destination, default 4
+    private int MAX_RETRIES;          // config msgrouter.max_retries, retries of a failed POST, default 3
+    private String SPOOL_DIR;         // config msgrouter.spool_dir, optional, for destination spools
+    private int SPOOL_MAX_MB;         // config msgrouter.spool_max_mb, disk limit of each destination spool, default 1024
+    private int REPLAY_RATE;          // config msgrouter.replay_rate, POSTs/second replayed from a spool, default 100
+
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
@@ -83,6 +95,9 @@ public class MsgRouter extends AbstractVerticle {
 
         eb = vertx.eventBus();
 
+        // position batches may arrive in binary form
+        PositionBatchCodec.register(vertx);
+
         // create holder for HttpClients, one per router
         http_clients = new HashMap<String,HttpClient>();
 
@@ -93,10 +108,29 @@ public class MsgRouter extends AbstractVerticle {
         // Asynchronous load of sensor and destination data from PostgreSQL
         load_data();
 
-        // iterate through all the routers to be started
+        // iterate through all the routers to be started, collecting them by source_address
+        HashMap<String,RouterTable> router_tables = new HashMap<String,RouterTable>();
         for (int i=0; i<START_ROUTERS.size(); i++)
             {
-                start_router(START_ROUTERS.get(i));
+                JsonObject router_config = START_ROUTERS.get(i);
+                String source_address = router_config.getString("source_address");
+                RouterTable router_table = router_tables.get(source_address);
+                if (router_table == null)
+                    {
+                        router_table = new RouterTable(source_address);
+                        router_tables.put(source_address, router_table);
+                    }
+                router_table.add(start_router(i, router_config));
+            }
+
+        // register one consumer per source_address, for all the routers from that address
+        for (RouterTable router_table : router_tables.values())
+            {
+                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                           ": listening to "+router_table.source_address+" for "+router_table.size()+" router(s)");
+                eb.consumer(router_table.source_address, message -> {
+                        dispatch(router_table, PositionBatch.json_body(message.body()));
+                    });
             }
 
         // **********************************************************************************
@@ -385,6 +419,7 @@ public class MsgRouter extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"destinations\": "+destinations.metrics().toString() + "," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -392,9 +427,9 @@ public class MsgRouter extends AbstractVerticle {
     
     // ************************************************************
     // start_router()
-    // start a Router by registering a consumer to the given address
+    // compile the router config entry 'index' into a Route for the RouterTable of its source_address
     // ************************************************************
-    private void start_router(JsonObject router_config)
+    private RouterTable.Route start_router(int index, JsonObject router_config)
     {
 
         // A router config() contains a minimum of a "source_address" property,
@@ -451,117 +486,125 @@ public class MsgRouter extends AbstractVerticle {
         logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
                    ": starting router "+router_config.getString("source_address")+ router_filter_text);
 
-        // register to router_config.source_address,
-        // test messages with router_config.source_filter
-        // and call store_msg if current message passes filter
-        eb.consumer(router_config.getString("source_address"), message -> {
-            //System.out.println("MsgRouter."+MODULE_ID+": got message from " + router_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
-            
-            //**************************************************************************
-            //**************************************************************************
-            // Route the message onwards via POST to destination
-            //**************************************************************************
-            //**************************************************************************
-            if (!has_filter || source_filter.match(msg))
+        return new RouterTable.Route(index, router_config, source_filter, has_destination);
+    } // end start_router
+
+    // ************************************************************
+    // dispatch()
+    // Route the message onwards via POST to the destination of every router it matches
+    // ************************************************************
+    private void dispatch(RouterTable router_table, JsonObject msg)
+    {
+        ArrayList<RouterTable.Route> routes = router_table.match(msg);
+        if (routes.isEmpty())
+        {
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                       ": "+msg.getValue("sensor_type")+"/"+msg.getValue("sensor_id")+" msg skipped - no match on "+
+                       router_table.source_address);
+            return;
+        }
+
+        // the POST data, encoded once for all the destinations
+        String msg_text = null;          // the whole message
+        String request_data_text = null; // request_data[0]
+
+        for (RouterTable.Route route : routes)
+        {
+            JsonObject router_config = route.config;
+            if (route.has_destination)
             {
-                // route this message if it matches the filter within the RouterConfig
-                //route_msg(http_client, router_config, msg);
-                if (has_destination)
+                String destination_type = router_config.getString("destination_type");
+                String destination_id = router_config.getString("destination_id"); 
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": sending message to "+destination_type+"/"+destination_id);
+                try 
                 {
-                    String destination_type = router_config.getString("destination_type");
-                    String destination_id = router_config.getString("destination_id"); 
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": sending message to "+destination_type+"/"+destination_id);
-                    try 
-                    {
-                        switch (destination_type)
-                        {
-                            case Constants.FEED_EVENTBUS_MSG:
-                                destinations.get(destination_type,destination_id).send(msg.toString());
-                                break;
-
-                            case Constants.FEED_EVENTBUS_0:
-                                // Careful here!! Although FeedHandler(etc) can send an Array of data points in
-                                // the "request_data" parameter, for LoraWAN purposes we are currently assuming
-                                // only a single data value is going to be present, hence we are forwarding
-                                // msg.getJsonArray("request_data").getJsonObject(0), not the whole array.
-                                destinations.get(destination_type,destination_id).send(msg.getJsonArray("request_data").getJsonObject(0).toString());
-                                break;
-
-                            default:
-                                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                           ": start_router unrecognized destination_type in message "+destination_type+"/"+destination_id);
-                                break;
-                        }
-                                
-                    }
-                    catch (Exception e)
+                    switch (destination_type)
                     {
-                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                   ": send error for "+destination_type+"/"+destination_id);
+                        case Constants.FEED_EVENTBUS_MSG:
+                            if (msg_text == null)
+                            {
+                                msg_text = msg.toString();
+                            }
+                            destinations.get(destination_type,destination_id).send(msg_text);
+                            break;
+
+                        case Constants.FEED_EVENTBUS_0:
+                            // Careful here!! Although FeedHandler(etc) can send an Array of data points in
+                            // the "request_data" parameter, for LoraWAN purposes we are currently assuming
+                            // only a single data value is going to be present, hence we are forwarding
+                            // msg.getJsonArray("request_data").getJsonObject(0), not the whole array.
+                            if (request_data_text == null)
+                            {
+                                request_data_text = msg.getJsonArray("request_data").getJsonObject(0).toString();
+                            }
+                            destinations.get(destination_type,destination_id).send(request_data_text);
+                            break;
+
+                        default:
+                            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                                       ": dispatch unrecognized destination_type in message "+destination_type+"/"+destination_id);
+                            break;
                     }
-                    return;
+                            
                 }
-                else
+                catch (Exception e)
                 {
-                    // There is no destination_type/id defined in the config(), so we'll try and route via
-                    // the sensor_type/id -> destination_id mapping in the sensors HashMap
-                    String msg_sensor_id = msg.getString("sensor_id");
-                    //debug! We will need to put this sensor type into a Constant
-                    String msg_sensor_type = msg.getString("sensor_type");
-                    if (msg_sensor_id == null || msg_sensor_type == null)
-                    {
-                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                   ": skipping message (no sensor_id or sensor_type) ");
-                        return;
-                    }
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": handling sensor data from "+msg_sensor_type+"/"+msg_sensor_id);
-
-                    //debug! Need to re-do this key construction
-                    String destination_id = null;
-                    String destination_type = null;
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": send error for "+destination_type+"/"+destination_id);
+                }
+            }
+            else
+            {
+                // There is no destination_type/id defined in the config(), so we'll try and route via
+                // the sensor_type/id -> destination_id mapping in the sensors HashMap
+                String msg_sensor_id = msg.getString("sensor_id");
+                //debug! We will need to put this sensor type into a Constant
+                String msg_sensor_type = msg.getString("sensor_type");
+                if (msg_sensor_id == null || msg_sensor_type == null)
+                {
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": skipping message (no sensor_id or sensor_type) ");
+                    continue;
+                }
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": handling sensor data from "+msg_sensor_type+"/"+msg_sensor_id);
 
-                    try
-                    {
-                        // Here we pick out the 
-                        destination_id = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_id");
-                        destination_type = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_type");
-                    }
-                    catch (Exception NullPointerException)
-                    {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" no entry for sensor in in-memory cache");
-                        return;
-                    }
+                String destination_id = null;
+                String destination_type = null;
 
+                try
+                {
+                    // Here we pick out the destination of this sensor
+                    destination_id = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_id");
+                    destination_type = (sensors.get(msg_sensor_type,msg_sensor_id).info).getString("destination_type");
+                }
+                catch (Exception NullPointerException)
+                {
                     logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": sending "+msg_sensor_type+"/"+msg_sensor_id+" to "+destination_type+"/"+destination_id);
+                               ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" no entry for sensor in in-memory cache");
+                    continue;
+                }
 
-                    try
-                    {
-                        destinations.get(destination_type,destination_id)
-                            .send(msg.getJsonArray("request_data").getJsonObject(0).toString());
-                    }
-                    catch (Exception NullPointerException)
+                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                           ": sending "+msg_sensor_type+"/"+msg_sensor_id+" to "+destination_type+"/"+destination_id);
+
+                try
+                {
+                    if (request_data_text == null)
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" invalid destination in in-memory cache");
-                        return;
+                        request_data_text = msg.getJsonArray("request_data").getJsonObject(0).toString();
                     }
+                    destinations.get(destination_type,destination_id).send(request_data_text);
+                }
+                catch (Exception NullPointerException)
+                {
+                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                               ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" invalid destination in in-memory cache");
                 }
             }
-            else
-            {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": "+msg.getString("sensor_type")+"/"+msg.getString("sensor_id")+" msg skipped - no match "+
-                           router_config.getJsonObject("source_filter").toString());
-            }
-
-        });
-    
-    } // end start_router
+        }
+    } // end dispatch
 
     //**************************************************************************
     //**************************************************************************
@@ -610,6 +653,16 @@ public class MsgRouter extends AbstractVerticle {
           return false;
         }
 
+        // limits of the outbound queue of each destination (see DestinationQueue.java)
+        MAX_QUEUE = config().getInteger(MODULE_NAME+".max_queue", 1000);
+        MAX_IN_FLIGHT = config().getInteger(MODULE_NAME+".max_in_flight", 4);
+        MAX_RETRIES = config().getInteger(MODULE_NAME+".max_retries", 3);
+
+        // disk spool for each destination while it is down (see DestinationSpool.java)
+        SPOOL_DIR = config().getString(MODULE_NAME+".spool_dir");
+        SPOOL_MAX_MB = config().getInteger(MODULE_NAME+".spool_max_mb", 1024);
+        REPLAY_RATE = config().getInteger(MODULE_NAME+".replay_rate", 100);
+
         // iterate through the msgrouter.routers config values
         START_ROUTERS = new ArrayList<JsonObject>();
         JsonArray config_router_list = config().getJsonArray(MODULE_NAME+".routers");
@@ -683,6 +736,13 @@ public class MsgRouter extends AbstractVerticle {
         public HttpClient http_client;   // We pre-define an HttpClient for each Destination. Hopefully this is more efficient.
         UrlParts u;                      // To hold the results of the parse_url()
 
+        private int batch_size;          // info batch_size, max messages per POST, or 1 (the default) for no batching
+        private int batch_linger;        // info batch_linger, max ms a message waits for the rest of its batch
+        private ArrayList<String> batch = new ArrayList<String>(); // messages waiting to be sent
+        private long batch_timer = -1;   // vertx timer id to send the current batch, or -1
+
+        DestinationQueue queue;          // POSTs waiting or in flight to this destination
+
         private class UrlParts {         // The results from using Java URL parsing in parse_url (for vertx.createHttpClient)
             public boolean http_ssl;
             public int     http_port;
@@ -694,6 +754,9 @@ public class MsgRouter extends AbstractVerticle {
         //   "http_token":"foo!bar",
         //   "url": "http://localhost:8080/efgh"
         // }
+        // optionally with "batch_size" (e.g. 100) and "batch_linger" (ms, default 100), in which case
+        // the messages are sent as a JSON array of up to batch_size messages, each waiting at most
+        // batch_linger ms for the rest of its batch, e.g. to the EverynetFeed or HttpMsg batch endpoints.
 
         // Constructor
         // Here is where we create a new Destination on receipt of a "add_destination" message or
@@ -722,6 +785,9 @@ public class MsgRouter extends AbstractVerticle {
                 throw new MsgRouterException("bad URL on destination create");
             }
 
+            batch_size = Math.max(1, destination_info.getInteger("batch_size", 1));
+            batch_linger = Math.max(1, destination_info.getInteger("batch_linger", 100));
+
             // Store entire Json payload into "info"
             info = destination_info;
             // inject http_path into the destination "info"
@@ -738,6 +804,47 @@ public class MsgRouter extends AbstractVerticle {
             //     ": created destination "+this.toString());
         }
 
+        // Create the DestinationQueue (and its spool), once any previous Destination with the same
+        // type and id has been closed, as only one DestinationSpool can use the spool directory
+        void open_queue()
+        {
+            // with msgrouter.spool_dir, undeliverable POSTs are kept in SPOOL_DIR/<destination_type>_<destination_id>
+            DestinationSpool spool = null;
+            if (SPOOL_DIR != null && info.getBoolean("spool", true))
+            {
+                String spool_dir = SPOOL_DIR+"/"+(destination_type+"_"+destination_id).replaceAll("[^A-Za-z0-9._-]", "_");
+                try
+                {
+                    spool = new DestinationSpool(spool_dir, SPOOL_MAX_MB * 1024L * 1024L);
+                }
+                catch (IOException e)
+                {
+                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                               ": spool "+spool_dir+" not available for "+destination_type+"/"+destination_id+
+                               " ("+e.getMessage()+")");
+                }
+            }
+
+            // the queue limits default to the msgrouter config, but can be given per destination
+            queue = new DestinationQueue(vertx, logger,
+                                         MODULE_NAME+"."+MODULE_ID+": "+destination_type+"/"+destination_id,
+                                         http_client, u.http_path, info.getString("http_token"),
+                                         info.getInteger("max_queue", MAX_QUEUE),
+                                         info.getInteger("max_in_flight", MAX_IN_FLIGHT),
+                                         info.getInteger("max_retries", MAX_RETRIES),
+                                         spool,
+                                         info.getInteger("replay_rate", REPLAY_RATE));
+        }
+
+        // Stop this destination when it is removed or replaced: the waiting batch is queued, and
+        // the queue closed (its POSTs saved in the spool, if any)
+        void close()
+        {
+            send_batch();
+            queue.close();
+            http_client.close();
+        }
+
         // Parse the string url into it's constituent parts for createHttpClientOptions
         private UrlParts parse_url(String url_string) throws MalformedURLException
         {
@@ -783,46 +890,68 @@ public class MsgRouter extends AbstractVerticle {
                    u.http_path;
         }
 
+        // send the JSON text 'msg' to this destination, now or in the next batch
         public void send(String msg)
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": sending to "+destination_type+"/"+destination_id+": " + msg);
-
-            try
+            if (batch_size == 1)
             {
-                HttpClientRequest request = http_client.post(u.http_path, response -> {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": msg posted to " + this.toString());
-
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": response was " + response.statusCode());
+                post(msg);
+                return;
+            }
 
+            batch.add(msg);
+            if (batch.size() >= batch_size)
+            {
+                send_batch();
+            }
+            else if (batch_timer < 0)
+            {
+                batch_timer = vertx.setTimer(batch_linger, id -> {
+                        batch_timer = -1;
+                        send_batch();
                     });
+            }
+        }
 
-                request.exceptionHandler( e -> {
-                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                   ": Destination HttpClientRequest error for "+destination_id);
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+e.getMessage());
-                        });
-
-                // Now do stuff with the request
-                request.putHeader("content-type", "application/json");
-                request.setTimeout(15000);
-
-                String auth_token = info.getString("http_token");
-                if (auth_token != null)
-                    {
-                        request.putHeader("X-Auth-Token", auth_token);
-                    }
-                // Make sure the request is ended when you're done with it
-                request.end(msg);
+        // POST the waiting messages as a JSON array
+        private void send_batch()
+        {
+            if (batch_timer >= 0)
+            {
+                vertx.cancelTimer(batch_timer);
+                batch_timer = -1;
             }
-            catch (Exception e)
+            if (batch.isEmpty())
             {
-                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                           ": Destination send error for "+destination_type+"/"+destination_id);
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": "+e.getMessage());
+                return;
             }
+
+            StringBuilder body = new StringBuilder();
+            body.append('[');
+            for (int i=0; i<batch.size(); i++)
+            {
+                if (i > 0)
+                {
+                    body.append(',');
+                }
+                body.append(batch.get(i));
+            }
+            body.append(']');
+
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                       ": batch of "+batch.size()+" for "+destination_type+"/"+destination_id);
+            batch.clear();
+
+            post(body.toString());
+        }
+
+        // queue 'msg' to be POSTed to this destination
+        private void post(String msg)
+        {
+            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
+                       ": sending to "+destination_type+"/"+destination_id+": " + msg);
+
+            queue.add(msg);
         }
             
     } // end class Destination
@@ -877,7 +1006,7 @@ public class MsgRouter extends AbstractVerticle {
             // ***********************************************
 
             // If this destination is the first of its type, create a new HashMap for that type
-            HashMap<String,Destination> type_destinations = destinations.get(destination.destination_type);
+            HashMap<String,Destination> type_destinations = destinations.get(destination.destination_type.toLowerCase());
             
             if (type_destinations == null)
             {
@@ -888,6 +1017,15 @@ public class MsgRouter extends AbstractVerticle {
                            ": added new destination_type \""+destination.destination_type+"\" to destinations in-memory store");
             }
 
+            // A destination with the same type and id (e.g. from both the router config and the database)
+            // is replaced, so the previous one is closed before the new one opens its queue and spool
+            Destination previous = type_destinations.get(destination.destination_id.toLowerCase());
+            if (previous != null)
+            {
+                previous.close();
+            }
+            destination.open_queue();
+
             // Now we can add this destination to the appropriate type_destinations HashMap in the destinations HashMap
             type_destinations.put(destination.destination_id.toLowerCase(), destination);
 
@@ -909,17 +1047,34 @@ public class MsgRouter extends AbstractVerticle {
             }
 
             // Remove from the current list (HashMap) of objects - ignore if it is missing
-            try
+            HashMap<String,Destination> type_destinations = destinations.get(destination_type.toLowerCase());
+            Destination destination = type_destinations == null ? null : type_destinations.remove(destination_id.toLowerCase());
+            if (destination != null)
             {
-                destinations.get(destination_type.toLowerCase()).remove(destination_id.toLowerCase());
+                destination.close();
             }
-            catch (Exception NullPointerException)
-            {;}
 
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
             //           ": remove_destination count now "+destinations.size());
         }
 
+        // the DestinationQueue metrics of each destination with anything to report, by type/id
+        public JsonObject metrics()
+        {
+            JsonObject m = new JsonObject();
+            for (HashMap<String,Destination> destination_type : destinations.values())
+            {
+                for (Destination destination : destination_type.values())
+                {
+                    if (destination.queue.active())
+                    {
+                        m.put(destination.destination_type+"/"+destination.destination_id, destination.queue.metrics());
+                    }
+                }
+            }
+            return m;
+        }
+
         public void print()
         {
             for (HashMap<String,Destination> destination_type : destinations.values())
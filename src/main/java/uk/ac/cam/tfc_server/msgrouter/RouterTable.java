@@ -0,0 +1,128 @@
+package uk.ac.cam.tfc_server.msgrouter;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// RouterTable holds all the routers (msgrouter.routers config entries) with the same source_address,
+// so MsgRouter can register a single eventbus consumer per address, decode each message once, and
+// find every router it should go to in one lookup.
+//
+// The routers are indexed by their source_filter:
+//   no filter                     - always matched
+//   "compare": "="                - HashMap field -> value -> routers, so one lookup per filtered field
+//   other compares (<, >, contains) - tested in turn with RouterFilter.match()
+//
+// match() returns the matching routers in config order.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class RouterTable {
+
+    // A router config entry, as compiled by MsgRouter.start_router()
+    public static class Route {
+        public final int index;               // position in msgrouter.routers
+        public final JsonObject config;       // the router config entry
+        public final RouterFilter filter;     // source_filter, or null
+        public final boolean has_destination; // config gives destination_type/destination_id
+
+        public Route(int index, JsonObject config, RouterFilter filter, boolean has_destination)
+        {
+            this.index = index;
+            this.config = config;
+            this.filter = filter;
+            this.has_destination = has_destination;
+        }
+    }
+
+    public final String source_address;
+
+    private int size = 0;
+
+    private ArrayList<Route> unfiltered = new ArrayList<Route>();
+
+    // "=" filters: field -> value -> routes
+    private HashMap<String,HashMap<String,ArrayList<Route>>> equals = new HashMap<String,HashMap<String,ArrayList<Route>>>();
+
+    private ArrayList<Route> scanned = new ArrayList<Route>(); // other filters
+
+    public RouterTable(String source_address)
+    {
+        this.source_address = source_address;
+    }
+
+    public void add(Route route)
+    {
+        size++;
+
+        RouterFilter filter = route.filter;
+        if (filter == null)
+        {
+            unfiltered.add(route);
+        }
+        else if ("=".equals(filter.compare) && filter.field != null && filter.value != null)
+        {
+            HashMap<String,ArrayList<Route>> values = equals.get(filter.field);
+            if (values == null)
+            {
+                values = new HashMap<String,ArrayList<Route>>();
+                equals.put(filter.field, values);
+            }
+            ArrayList<Route> routes = values.get(filter.value);
+            if (routes == null)
+            {
+                routes = new ArrayList<Route>();
+                values.put(filter.value, routes);
+            }
+            routes.add(route);
+        }
+        else
+        {
+            scanned.add(route);
+        }
+    }
+
+    // the number of routers from this source_address
+    public int size()
+    {
+        return size;
+    }
+
+    // return the routes whose filter matches 'msg' (if any), in config order
+    public ArrayList<Route> match(JsonObject msg)
+    {
+        ArrayList<Route> matched = new ArrayList<Route>(unfiltered);
+
+        for (String field : equals.keySet())
+        {
+            Object value = msg.getValue(field);
+            if (value instanceof String)
+            {
+                ArrayList<Route> routes = equals.get(field).get(value);
+                if (routes != null)
+                {
+                    matched.addAll(routes);
+                }
+            }
+        }
+
+        for (Route route : scanned)
+        {
+            if (route.filter.field != null && msg.getValue(route.filter.field) instanceof String &&
+                route.filter.match(msg))
+            {
+                matched.add(route);
+            }
+        }
+
+        if (matched.size() > unfiltered.size())
+        {
+            matched.sort((a, b) -> a.index - b.index);
+        }
+        return matched;
+    }
+
+} // end class RouterTable
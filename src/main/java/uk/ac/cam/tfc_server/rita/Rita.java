@@ -82,6 +82,7 @@ public class Rita extends AbstractVerticle {
 
     private String ZONE_ADDRESS; // optional from config()
     private String ZONE_FEED; // optional from config()
+    private String ZONE_FEED_JSON; // Json copy of ZONE_FEED, for the browser eventbus bridge
     private String FEEDPLAYER_ADDRESS; // optional from config()
 
     private String BASE_URI; // used as template parameter for web pages, built from config()
@@ -210,11 +211,12 @@ public class Rita extends AbstractVerticle {
     BridgeOptions bridge_options = new BridgeOptions();
     // add outbound address for user messages
     bridge_options.addOutboundPermitted( new PermittedOptions().setAddress("rita_out") );
-    // add outbound address for feed messages
-    if (ZONE_FEED != null)
+    // add outbound address for feed messages, as Json (the bridge cannot carry the binary
+    // PositionBatch messages published on ZONE_FEED itself)
+    if (ZONE_FEED_JSON != null)
     {
-        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": permitting eventbus "+ZONE_FEED+" to browser");
-        bridge_options.addOutboundPermitted( new PermittedOptions().setAddress(ZONE_FEED) );
+        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": permitting eventbus "+ZONE_FEED_JSON+" to browser");
+        bridge_options.addOutboundPermitted( new PermittedOptions().setAddress(ZONE_FEED_JSON) );
     }
 
     ebHandler.bridge(bridge_options);
@@ -288,7 +290,7 @@ public class Rita extends AbstractVerticle {
                 }
             else
                 {
-                    ctx.put("config_feed_address",ZONE_FEED); // pass zone_id from URL into template var
+                    ctx.put("config_feed_address",ZONE_FEED_JSON); // pass zone_id from URL into template var
 
                     template_engine.render(ctx, "templates/feed.hbs", res -> {
                             if (res.succeeded())
@@ -358,6 +360,11 @@ public class Rita extends AbstractVerticle {
         conf.put("eb.system_status", EB_SYSTEM_STATUS);
         conf.put("eb.manager", EB_MANAGER);
         conf.put(FEEDPLAYER_NAME+".address", FEEDPLAYER_ADDRESS);
+        if (FEEDPLAYER_ADDRESS != null)
+        {
+            // Json copy of the position messages, for the /feed page
+            conf.put(FEEDPLAYER_NAME+".json_address", FEEDPLAYER_ADDRESS+".json");
+        }
 
         feedplayer_options.setConfig(conf);
         
@@ -650,6 +657,9 @@ public class Rita extends AbstractVerticle {
         // the eventbus address for the Zones to subscribe to
         ZONE_FEED = config().getString(MODULE_NAME+".zone.feed");
 
+        // the address of the Json copy of ZONE_FEED, bridged to the browser for the /feed page
+        ZONE_FEED_JSON = config().getString(MODULE_NAME+".zone.feed_json", ZONE_FEED == null ? null : ZONE_FEED+".json");
+
         // note if we start FeedPlayers, ZONE_FEED will typically be FEEDPLAYER_ADDRESS
         FEEDPLAYER_ADDRESS = config().getString(MODULE_NAME+".feedplayer.address");
         
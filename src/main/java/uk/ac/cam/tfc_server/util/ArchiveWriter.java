@@ -0,0 +1,488 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// ArchiveWriter.java
+//
+// Shared asynchronous file writer for the modules that archive data to the filesystem
+// (FeedHandler, FeedMaker, EverynetFeed, FilerUtils)
+//
+// Writes are queued by the calling verticle and carried out on a dedicated I/O worker thread
+// (a shared worker pool of size 1, WORKER_NAME+"."+name, so one per module instance and the
+// archive writes of one module do not wait behind those of another) so:
+//   the event loop never waits for the filesystem,
+//   the directories known to exist are cached (no exists/mkdirs per write),
+//   all queued writes are carried out as one batch ('group commit'), with all the lines
+//   appended to the same file in a batch written with a single open/write/close,
+//   operations from one ArchiveWriter are carried out in the order they were queued.
+//
+// An ArchiveWriter should be created (and used) by a single verticle, as the optional result
+// handlers are called on the context of that verticle.
+//
+// metrics() returns the queue depth and write latency, for inclusion in the system_status message.
+//
+// close() (from the verticle's stop()) carries out the operations already queued and then closes
+// the worker pool.
+//
+// *************************************************************************************************
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ArchiveWriter {
+
+    public static final String WORKER_NAME = "tfc_server.archive_writer"; // I/O worker pool name prefix
+
+    private static final int MAX_BATCH = 200;        // max operations carried out in one batch
+    private static final int MAX_KNOWN_DIRS = 10000; // directory cache is cleared at this size
+
+    // directories known to exist, shared by all ArchiveWriters in this JVM
+    private static final Set<String> known_dirs = ConcurrentHashMap.newKeySet();
+
+    private enum OpType { WRITE, APPEND, WRITE_LATEST, LINK, ROTATE, INDEX }
+
+    // a queued filesystem operation
+    private static class Op {
+        OpType type;
+        String dir;
+        String filename;
+        Buffer buf;           // WRITE, WRITE_LATEST, LINK (copied if link fails), ROTATE
+        String text;          // APPEND: line to append, LINK: existing file
+        long ts;              // INDEX
+        long queued_ns;       // System.nanoTime() when queued
+        Handler<AsyncResult<Void>> handler;
+        Throwable error;
+    }
+
+    private final String name;   // for log messages, e.g. "feedmaker.A"
+    private final WorkerExecutor executor;
+
+    private final ConcurrentLinkedQueue<Op> queue = new ConcurrentLinkedQueue<Op>();
+    private final AtomicInteger queue_depth = new AtomicInteger(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private Handler<AsyncResult<Void>> close_handler = null; // set by close(), until the queue is empty
+    private boolean closed = false;
+
+    // metrics, accumulated since last call to metrics()
+    private final AtomicLong op_count = new AtomicLong(0);
+    private final AtomicLong batch_count = new AtomicLong(0);
+    private final AtomicLong error_count = new AtomicLong(0);
+    private final AtomicLong latency_total_ns = new AtomicLong(0);
+    private final AtomicLong latency_max_ns = new AtomicLong(0);
+
+    public ArchiveWriter(Vertx vertx, String name)
+    {
+        this.name = name;
+        this.executor = vertx.createSharedWorkerExecutor(WORKER_NAME+"."+name, 1);
+    }
+
+    // ************************************************************************
+    // close the worker pool, once the queued operations have been carried out
+    // ************************************************************************
+    public void close(Handler<AsyncResult<Void>> handler)
+    {
+        close_handler = handler;
+        if (!draining.get())
+            {
+                if (queue_depth.get() > 0)
+                    {
+                        schedule();
+                    }
+                else
+                    {
+                        close_executor();
+                    }
+            }
+    }
+
+    private void close_executor()
+    {
+        if (closed)
+            {
+                return;
+            }
+        closed = true;
+        executor.close();
+        if (close_handler != null)
+            {
+                close_handler.handle(Future.succeededFuture());
+            }
+    }
+
+    // ************************************************************************
+    // Asynchronous operations, queued for the I/O worker
+    // ************************************************************************
+
+    // write 'buf' as file dir/filename, creating dir if necessary
+    public void write(String dir, String filename, Buffer buf)
+    {
+        write(dir, filename, buf, null);
+    }
+
+    public void write(String dir, String filename, Buffer buf, Handler<AsyncResult<Void>> handler)
+    {
+        Op op = op(OpType.WRITE, dir, filename, handler);
+        op.buf = buf;
+        enqueue(op);
+    }
+
+    // append 'line' plus a newline to file dir/filename
+    public void append_line(String dir, String filename, String line)
+    {
+        Op op = op(OpType.APPEND, dir, filename, null);
+        op.text = line;
+        enqueue(op);
+    }
+
+    // write 'buf' as dir/filename via a temporary file and an atomic rename, so that readers
+    // always see a complete file
+    public void write_latest(String dir, String filename, Buffer buf)
+    {
+        Op op = op(OpType.WRITE_LATEST, dir, filename, null);
+        op.buf = buf;
+        enqueue(op);
+    }
+
+    // hard link dir/filename to the (already written) 'existing_path', or write 'buf'
+    // as dir/filename if the link fails (e.g. dir is on a different filesystem)
+    public void link(String dir, String filename, String existing_path, Buffer buf)
+    {
+        Op op = op(OpType.LINK, dir, filename, null);
+        op.text = existing_path;
+        op.buf = buf;
+        enqueue(op);
+    }
+
+    // write 'buf' as dir/filename, first moving any existing dir/filename to
+    // dir/filename+Constants.PREV_FILE_SUFFIX
+    public void rotate(String dir, String filename, Buffer buf)
+    {
+        Op op = op(OpType.ROTATE, dir, filename, null);
+        op.buf = buf;
+        enqueue(op);
+    }
+
+    // add dir/filename (already written) to the DayIndex for dir
+    public void index(String dir, long ts, String filename)
+    {
+        Op op = op(OpType.INDEX, dir, filename, null);
+        op.ts = ts;
+        enqueue(op);
+    }
+
+    // ************************************************************************
+    // BLOCKING operations, for callers already on a worker thread (e.g. BatcherWorker)
+    // ************************************************************************
+
+    public void write_blocking(String dir, String filename, Buffer buf) throws IOException
+    {
+        Op op = op(OpType.WRITE, dir, filename, null);
+        op.buf = buf;
+        run(op);
+    }
+
+    public void append_line_blocking(String dir, String filename, String line) throws IOException
+    {
+        ensure_dir(dir);
+        append_bytes(dir, filename, (line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ************************************************************************
+    // Metrics
+    // ************************************************************************
+
+    // the number of operations queued and not yet carried out, e.g. for a caller to hold back
+    // new work while the I/O worker catches up
+    public int queue_depth()
+    {
+        return queue_depth.get();
+    }
+
+    // return the current queue depth, and counts and write latency since the previous call, e.g.
+    // { "queue_depth": 0, "writes": 42, "batches": 30, "errors": 0,
+    //   "latency_avg_ms": 0.4, "latency_max_ms": 3.1 }
+    public JsonObject metrics()
+    {
+        long ops = op_count.getAndSet(0);
+        long total_ns = latency_total_ns.getAndSet(0);
+
+        JsonObject m = new JsonObject();
+        m.put("queue_depth", queue_depth.get());
+        m.put("writes", ops);
+        m.put("batches", batch_count.getAndSet(0));
+        m.put("errors", error_count.getAndSet(0));
+        m.put("latency_avg_ms", ops == 0 ? 0.0 : total_ns / ops / 1000000.0);
+        m.put("latency_max_ms", latency_max_ns.getAndSet(0) / 1000000.0);
+        return m;
+    }
+
+    // ************************************************************************
+    // Queue handling
+    // ************************************************************************
+
+    private Op op(OpType type, String dir, String filename, Handler<AsyncResult<Void>> handler)
+    {
+        Op op = new Op();
+        op.type = type;
+        op.dir = dir;
+        op.filename = filename;
+        op.handler = handler;
+        op.queued_ns = System.nanoTime();
+        return op;
+    }
+
+    private void enqueue(Op op)
+    {
+        queue.add(op);
+        queue_depth.incrementAndGet();
+        schedule();
+    }
+
+    // start a batch on the I/O worker, unless one is already running
+    private void schedule()
+    {
+        if (closed || !draining.compareAndSet(false, true))
+            {
+                return;
+            }
+        executor.executeBlocking(fut -> {
+                fut.complete(drain_blocking());
+            }, false, (AsyncResult<List<Op>> res) -> {
+                draining.set(false);
+                if (res.succeeded())
+                    {
+                        for (Op op: res.result())
+                            {
+                                if (op.handler != null)
+                                    {
+                                        op.handler.handle(op.error == null ? Future.succeededFuture()
+                                                                           : Future.failedFuture(op.error));
+                                    }
+                            }
+                    }
+                // more operations may have been queued while this batch was running
+                if (queue_depth.get() > 0)
+                    {
+                        schedule();
+                    }
+                else if (close_handler != null)
+                    {
+                        close_executor();
+                    }
+            });
+    }
+
+    // carry out (up to MAX_BATCH) queued operations, appends to the same file are combined
+    private List<Op> drain_blocking()
+    {
+        List<Op> batch = new ArrayList<Op>();
+        Op next;
+        while (batch.size() < MAX_BATCH && (next = queue.poll()) != null)
+            {
+                batch.add(next);
+            }
+        queue_depth.addAndGet(-batch.size());
+
+        // lines to append, by file path, in the order first appended
+        LinkedHashMap<String, List<Op>> appends = new LinkedHashMap<String, List<Op>>();
+
+        for (Op op: batch)
+            {
+                String path = op.dir + "/" + op.filename;
+                if (op.type == OpType.APPEND)
+                    {
+                        List<Op> file_appends = appends.get(path);
+                        if (file_appends == null)
+                            {
+                                file_appends = new ArrayList<Op>();
+                                appends.put(path, file_appends);
+                            }
+                        file_appends.add(op);
+                        continue;
+                    }
+                // keep the order of appends and other operations on the same file
+                List<Op> pending = appends.remove(path);
+                if (pending != null)
+                    {
+                        run_appends(pending);
+                    }
+                try
+                    {
+                        run(op);
+                    }
+                catch (Exception e)
+                    {
+                        op.error = e;
+                    }
+            }
+
+        for (List<Op> pending: appends.values())
+            {
+                run_appends(pending);
+            }
+
+        long now = System.nanoTime();
+        for (Op op: batch)
+            {
+                long latency = now - op.queued_ns;
+                latency_total_ns.addAndGet(latency);
+                if (latency > latency_max_ns.get())
+                    {
+                        latency_max_ns.set(latency);
+                    }
+                if (op.error != null)
+                    {
+                        error_count.incrementAndGet();
+                        Log.log_err(name+": ArchiveWriter "+op.type+" error "+op.dir+"/"+op.filename+" "+op.error);
+                    }
+            }
+        op_count.addAndGet(batch.size());
+        batch_count.incrementAndGet();
+
+        return batch;
+    }
+
+    // append the lines of all 'ops' (all for the same file) with a single write
+    private void run_appends(List<Op> ops)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Op op: ops)
+            {
+                sb.append(op.text).append('\n');
+            }
+        Op first = ops.get(0);
+        try
+            {
+                ensure_dir(first.dir);
+                try
+                    {
+                        append_bytes(first.dir, first.filename, sb.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                catch (NoSuchFileException e)
+                    {
+                        // directory removed since it was cached, so create it and retry
+                        known_dirs.remove(first.dir);
+                        ensure_dir(first.dir);
+                        append_bytes(first.dir, first.filename, sb.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+            }
+        catch (Exception e)
+            {
+                for (Op op: ops)
+                    {
+                        op.error = e;
+                    }
+            }
+    }
+
+    // carry out a single (non-append) operation
+    private void run(Op op) throws IOException
+    {
+        ensure_dir(op.dir);
+        try
+            {
+                run_op(op);
+            }
+        catch (NoSuchFileException e)
+            {
+                // directory removed since it was cached, so create it and retry
+                known_dirs.remove(op.dir);
+                ensure_dir(op.dir);
+                run_op(op);
+            }
+    }
+
+    private void run_op(Op op) throws IOException
+    {
+        Path path = Paths.get(op.dir, op.filename);
+
+        switch (op.type)
+            {
+                case WRITE:
+                    Files.write(path, op.buf.getBytes());
+                    break;
+
+                case WRITE_LATEST:
+                    Path temp = Paths.get(op.dir, "."+op.filename+".tmp");
+                    Files.write(temp, op.buf.getBytes());
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+                    break;
+
+                case LINK:
+                    Path existing = Paths.get(op.text);
+                    if (Files.exists(existing))
+                        {
+                            try
+                                {
+                                    Files.createLink(path, existing);
+                                    break;
+                                }
+                            catch (IOException | UnsupportedOperationException e)
+                                {
+                                    // e.g. different filesystem, so write a copy instead
+                                }
+                        }
+                    Files.write(path, op.buf.getBytes());
+                    break;
+
+                case ROTATE:
+                    try
+                        {
+                            Files.move(path, Paths.get(op.dir, op.filename+Constants.PREV_FILE_SUFFIX),
+                                       StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    catch (NoSuchFileException e)
+                        {
+                            // no existing file, e.g. this is the first write
+                        }
+                    Files.write(path, op.buf.getBytes());
+                    break;
+
+                case INDEX:
+                    // skip if the file was not written
+                    if (Files.exists(path))
+                        {
+                            DayIndex.append_blocking(op.dir, op.ts, op.filename);
+                        }
+                    break;
+
+                default:
+                    break;
+            }
+    }
+
+    private static void append_bytes(String dir, String filename, byte[] bytes) throws IOException
+    {
+        Files.write(Paths.get(dir, filename), bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // create directory 'dir' unless it is already known to exist
+    private static void ensure_dir(String dir) throws IOException
+    {
+        if (known_dirs.contains(dir))
+            {
+                return;
+            }
+        Files.createDirectories(Paths.get(dir));
+        if (known_dirs.size() >= MAX_KNOWN_DIRS)
+            {
+                known_dirs.clear();
+            }
+        known_dirs.add(dir);
+    }
+
+} // end ArchiveWriter
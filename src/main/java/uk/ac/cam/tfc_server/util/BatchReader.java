@@ -0,0 +1,388 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// BatchReader.java
+//
+// Reads a batch of JSON object records from an HTTP POST as the body arrives, for the batch
+// endpoints of EverynetFeed and HttpMsg, so a back-fill or high-rate upstream can send many
+// messages per request rather than one.
+//
+// The body is either a JSON array of objects:
+//   [ {record}, {record}, ... ]
+// or newline-delimited JSON (any whitespace between the objects is accepted):
+//   {record}
+//   {record}
+//
+// read() splits the body into records as each chunk is received (without decoding them, which is
+// left to the record handler), and calls the record handler for at most 'slice' records per turn
+// of the event loop, pausing the request while it works through them so the records buffered in
+// memory stay bounded. An optional 'backlog' test (e.g. the archive queue depth of the module)
+// delays the next slice until it returns false. When the body is complete the response is ended
+// with a summary:
+//   { "records": 1000, "accepted": 998, "rejected": 2 }
+// where a record is rejected if the handler returns false or throws. If the body is not an array
+// or sequence of objects (or a record exceeds MAX_RECORD bytes) the rest of the body is ignored,
+// and the response is status 400, with the counts so far and an "error".
+//
+// *************************************************************************************************
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+public class BatchReader {
+
+    public static final int MAX_RECORD = 1024 * 1024; // bytes in a single record
+
+    private static final int BACKLOG_WAIT = 10; // milliseconds before checking the backlog again
+
+    // ************************************************************************
+    // read the records of the batch POSTed in 'request', calling 'record_handler' for each (on the
+    // event loop), then end the response with the summary, also given to 'done' (may be null)
+    // ************************************************************************
+    public static void read(Vertx vertx,
+                            HttpServerRequest request,
+                            int slice,
+                            BooleanSupplier backlog,
+                            Predicate<Buffer> record_handler,
+                            Handler<JsonObject> done)
+    {
+        new Ingest(vertx, request, slice, backlog, record_handler, done).start();
+    }
+
+    // one batch request in progress
+    private static class Ingest {
+
+        private final Vertx vertx;
+        private final HttpServerRequest request;
+        private final int slice;
+        private final BooleanSupplier backlog;
+        private final Predicate<Buffer> record_handler;
+        private final Handler<JsonObject> done;
+
+        private final BatchReader reader = new BatchReader();
+
+        private boolean ended = false;    // whole body received
+        private boolean draining = false; // records being handled, request paused
+        private boolean finished = false; // response sent
+
+        private long records = 0;
+        private long accepted = 0;
+        private long rejected = 0;
+
+        Ingest(Vertx vertx,
+               HttpServerRequest request,
+               int slice,
+               BooleanSupplier backlog,
+               Predicate<Buffer> record_handler,
+               Handler<JsonObject> done)
+        {
+            this.vertx = vertx;
+            this.request = request;
+            this.slice = Math.max(1, slice);
+            this.backlog = backlog;
+            this.record_handler = record_handler;
+            this.done = done;
+        }
+
+        void start()
+        {
+            request.handler( chunk -> {
+                    if (finished)
+                        {
+                            return;
+                        }
+                    try
+                        {
+                            reader.append(chunk);
+                        }
+                    catch (IllegalArgumentException e)
+                        {
+                            finish(e.getMessage());
+                            return;
+                        }
+                    if (!draining)
+                        {
+                            request.pause();
+                            drain();
+                        }
+                });
+
+            request.endHandler( v -> {
+                    ended = true;
+                    if (!draining && !finished)
+                        {
+                            drain();
+                        }
+                });
+
+            request.exceptionHandler( e -> {
+                    if (!finished)
+                        {
+                            finish(e.getMessage());
+                        }
+                });
+        }
+
+        // handle up to 'slice' of the records received so far, then continue on a later turn of
+        // the event loop, or resume the request when they are all done
+        private void drain()
+        {
+            draining = true;
+
+            if (backlog != null && backlog.getAsBoolean())
+                {
+                    vertx.setTimer(BACKLOG_WAIT, id -> drain());
+                    return;
+                }
+
+            try
+                {
+                    int count = 0;
+                    Buffer record;
+                    while (count < slice && (record = reader.next()) != null)
+                        {
+                            count++;
+                            records++;
+                            boolean ok;
+                            try
+                                {
+                                    ok = record_handler.test(record);
+                                }
+                            catch (Exception e)
+                                {
+                                    ok = false;
+                                }
+                            if (ok)
+                                {
+                                    accepted++;
+                                }
+                            else
+                                {
+                                    rejected++;
+                                }
+                        }
+
+                    if (count == slice)
+                        {
+                            // there may be more records, let other requests in first
+                            vertx.runOnContext(v -> drain());
+                            return;
+                        }
+
+                    draining = false;
+                    if (ended)
+                        {
+                            reader.end();
+                            finish(null);
+                        }
+                    else
+                        {
+                            request.resume();
+                        }
+                }
+            catch (IllegalArgumentException e)
+                {
+                    draining = false;
+                    finish(e.getMessage());
+                }
+        }
+
+        private void finish(String error)
+        {
+            finished = true;
+
+            JsonObject summary = new JsonObject();
+            summary.put("records", records);
+            summary.put("accepted", accepted);
+            summary.put("rejected", rejected);
+            if (error != null)
+                {
+                    summary.put("error", error);
+                }
+
+            if (!ended)
+                {
+                    // discard the rest of the body
+                    request.resume();
+                }
+
+            request.response()
+                .setStatusCode(error == null ? 200 : 400)
+                .putHeader("content-type", "application/json")
+                .end(summary.encode());
+
+            if (done != null)
+                {
+                    done.handle(summary);
+                }
+        }
+    }
+
+    // ************************************************************************
+    // The record splitter
+    // ************************************************************************
+
+    private static final int UNKNOWN = 0; // body format, from its first non-whitespace byte
+    private static final int ARRAY = 1;
+    private static final int LINES = 2;
+
+    private byte[] bytes = new byte[4096];
+    private int length = 0;  // bytes received and not yet discarded
+    private long offset = 0; // position in the body of bytes[0], for error messages
+
+    private int pos = 0;     // scan position
+    private int start = 0;   // start of the record being scanned
+    private int depth = 0;   // nesting depth in the record, 0 between records
+    private boolean in_string = false;
+    private boolean escape = false;
+
+    private int format = UNKNOWN;
+
+    private static final int OPENED = 0; // ARRAY: after '['
+    private static final int RECORD = 1; // ARRAY: after a record
+    private static final int COMMA = 2;  // ARRAY: after ','
+    private static final int CLOSED = 3; // ARRAY: after ']'
+    private int array_state = OPENED;
+
+    // add the next chunk of the body
+    void append(Buffer chunk)
+    {
+        // discard the records already returned
+        int keep = depth > 0 ? start : pos;
+        if (keep > 0)
+            {
+                System.arraycopy(bytes, keep, bytes, 0, length - keep);
+                length -= keep;
+                pos -= keep;
+                start -= keep;
+                offset += keep;
+            }
+
+        int n = chunk.length();
+        if (length + n > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+        chunk.getByteBuf().getBytes(chunk.getByteBuf().readerIndex(), bytes, length, n);
+        length += n;
+    }
+
+    // the next complete record, or null if there are none (yet)
+    Buffer next()
+    {
+        while (pos < length)
+            {
+                byte c = bytes[pos];
+                if (depth > 0)
+                    {
+                        pos++;
+                        if (in_string)
+                            {
+                                if (escape)
+                                    {
+                                        escape = false;
+                                    }
+                                else if (c == '\\')
+                                    {
+                                        escape = true;
+                                    }
+                                else if (c == '"')
+                                    {
+                                        in_string = false;
+                                    }
+                            }
+                        else if (c == '"')
+                            {
+                                in_string = true;
+                            }
+                        else if (c == '{' || c == '[')
+                            {
+                                depth++;
+                            }
+                        else if ((c == '}' || c == ']') && --depth == 0)
+                            {
+                                array_state = RECORD;
+                                return Buffer.buffer(Arrays.copyOfRange(bytes, start, pos));
+                            }
+                        if (pos - start > MAX_RECORD)
+                            {
+                                throw error("record longer than "+MAX_RECORD+" bytes");
+                            }
+                        continue;
+                    }
+
+                // between records
+                if (c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                    {
+                        pos++;
+                        continue;
+                    }
+                if (format == UNKNOWN)
+                    {
+                        format = c == '[' ? ARRAY : LINES;
+                        if (format == ARRAY)
+                            {
+                                pos++;
+                                continue;
+                            }
+                    }
+                if (format == ARRAY)
+                    {
+                        if (array_state == CLOSED)
+                            {
+                                throw error("data after end of array");
+                            }
+                        if (array_state == RECORD)
+                            {
+                                if (c != ',' && c != ']')
+                                    {
+                                        throw error("expected ',' or ']'");
+                                    }
+                                array_state = c == ',' ? COMMA : CLOSED;
+                                pos++;
+                                continue;
+                            }
+                        if (c == ']' && array_state == OPENED)
+                            {
+                                array_state = CLOSED;
+                                pos++;
+                                continue;
+                            }
+                    }
+                if (c != '{')
+                    {
+                        throw error("expected a JSON object");
+                    }
+                start = pos;
+                depth = 1;
+                pos++;
+            }
+        return null;
+    }
+
+    // the body is complete, check nothing was left unfinished
+    void end()
+    {
+        if (depth > 0)
+            {
+                throw error("incomplete record");
+            }
+        if (format == ARRAY && array_state != CLOSED)
+            {
+                throw error("expected ']'");
+            }
+    }
+
+    private IllegalArgumentException error(String msg)
+    {
+        return new IllegalArgumentException("BatchReader: "+msg+" at byte "+(offset + pos));
+    }
+
+} // end BatchReader
@@ -11,6 +11,7 @@ public class Constants {
     // FeedPlayer/FeedMaker msg_type values
     public static final String FEED_GTFS = "feed_gtfs"; // incoming binary Google protobuf GTFS data
     public static final String FEED_BUS_POSITION = "feed_bus_position"; // e.g. as derived from GTFS bus
+    public static final String FEED_TRIP_UPDATE = "feed_trip_update"; // changed GTFS TripUpdates (see util/TripUpdateTable.java)
     public static final String FEED_CAR_PARKS  = "feed_car_parks"; // occupancy of multiple car parks
     public static final String FEED_PLAIN  = "feed_plain"; // feed accepted without parsing
     public static final String FEED_XML_FLAT  = "feed_xml_flat"; // XML feed to be flattened
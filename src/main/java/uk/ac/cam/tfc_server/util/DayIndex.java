@@ -0,0 +1,326 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// DayIndex.java
+//
+// Sorted index of the timestamped data files in a single day directory, e.g. data_bin/2016/03/07
+//
+// The index is kept in the day directory as a text file (INDEX_FILENAME) with one line per file:
+//   <UTC-TS> <filename>
+// e.g.
+//   1457334014 1457334014_2016-03-07-07-00-14.bin
+//
+// Writers (e.g. FeedHandler) append a line as each file is written, and readers (FeedPlayer,
+// BatcherWorker) load the whole index with a single read rather than listing and sorting the
+// directory and parsing every filename.
+//
+// If a day directory has no index (e.g. archived before the index existed) it is rebuilt from
+// the directory listing. A reader may keep the rebuilt index in a cache file of its own, as the
+// archive may be read-only. An index (in the directory or the cache) is only used if it was
+// modified no earlier than the directory, i.e. no file has been added since it was last written,
+// so a file archived by a writer that does not append to the index is not skipped.
+//
+// *************************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+public class DayIndex {
+
+    public static final String INDEX_FILENAME = ".index";
+
+    private long[] ts;          // UTC timestamps, ascending
+    private String[] filenames; // corresponding filenames (without directory)
+
+    private DayIndex(long[] ts, String[] filenames)
+    {
+        this.ts = ts;
+        this.filenames = filenames;
+        sort();
+    }
+
+    public int size()
+    {
+        return ts.length;
+    }
+
+    public long ts(int i)
+    {
+        return ts[i];
+    }
+
+    public String filename(int i)
+    {
+        return filenames[i];
+    }
+
+    // filename without its suffix
+    //  e.g. "1457334014_2016-03-07-07-00-14.bin" -> "1457334014_2016-03-07-07-00-14"
+    public String basename(int i)
+    {
+        int dot_index = filenames[i].lastIndexOf('.');
+        return dot_index < 0 ? filenames[i] : filenames[i].substring(0, dot_index);
+    }
+
+    // return the index of the first file with a timestamp later than 'after_ts',
+    // or size() if there is none
+    public int first_after(long after_ts)
+    {
+        int lo = 0;
+        int hi = ts.length;
+        while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (ts[mid] <= after_ts)
+                    {
+                        lo = mid + 1;
+                    }
+                else
+                    {
+                        hi = mid;
+                    }
+            }
+        return lo;
+    }
+
+    // the index as it is stored in INDEX_FILENAME
+    public Buffer to_buffer()
+    {
+        Buffer buf = Buffer.buffer();
+        for (int i=0; i<ts.length; i++)
+            {
+                buf.appendString(index_line(ts[i], filenames[i]));
+            }
+        return buf;
+    }
+
+    // ************************************************************************
+    // Static constructors
+    // ************************************************************************
+
+    // parse the contents of an INDEX_FILENAME file
+    public static DayIndex parse(Buffer buf)
+    {
+        String[] lines = buf.toString().split("\n");
+
+        long[] ts = new long[lines.length];
+        String[] filenames = new String[lines.length];
+        int count = 0;
+
+        for (String line: lines)
+            {
+                int space = line.indexOf(' ');
+                if (space < 1)
+                    {
+                        continue; // skip blank or partially written line
+                    }
+                try
+                    {
+                        ts[count] = Long.parseLong(line.substring(0, space));
+                        filenames[count] = line.substring(space + 1);
+                        count++;
+                    }
+                catch (NumberFormatException e)
+                    {
+                        // skip bad line
+                    }
+            }
+        return new DayIndex(Arrays.copyOf(ts, count), Arrays.copyOf(filenames, count));
+    }
+
+    // build the index from a list of filenames or filepaths (e.g. from readDir)
+    public static DayIndex from_files(List<String> files)
+    {
+        long[] ts = new long[files.size()];
+        String[] filenames = new String[files.size()];
+        int count = 0;
+
+        for (String f: files)
+            {
+                String filename = f.substring(f.lastIndexOf('/') + 1);
+                long file_ts = filename_ts(filename);
+                if (file_ts < 0)
+                    {
+                        continue; // not a timestamped data file, e.g. the index itself
+                    }
+                ts[count] = file_ts;
+                filenames[count] = filename;
+                count++;
+            }
+        return new DayIndex(Arrays.copyOf(ts, count), Arrays.copyOf(filenames, count));
+    }
+
+    // ************************************************************************
+    // BLOCKING filesystem methods, to be called from a worker thread
+    // ************************************************************************
+
+    // load the index for directory 'dir_path' from its index file, or else from 'cache_path' (may
+    // be null), rebuilding it from the directory listing if neither is up to date. A rebuilt index
+    // is saved to 'cache_path' (if given), and a failure to save it is ignored.
+    // Returns null if the directory does not exist.
+    public static DayIndex load_blocking(String dir_path, String cache_path) throws IOException
+    {
+        Path dir = Paths.get(dir_path);
+        if (!Files.isDirectory(dir))
+            {
+                return null;
+            }
+        FileTime dir_time = Files.getLastModifiedTime(dir);
+
+        Path index_path = dir.resolve(INDEX_FILENAME);
+        if (up_to_date(index_path, dir_time))
+            {
+                return parse(Buffer.buffer(Files.readAllBytes(index_path)));
+            }
+
+        Path cache = cache_path == null ? null : Paths.get(cache_path);
+        if (cache != null && up_to_date(cache, dir_time))
+            {
+                return parse(Buffer.buffer(Files.readAllBytes(cache)));
+            }
+
+        DayIndex index = from_files(list_blocking(dir));
+
+        if (cache != null)
+            {
+                try
+                    {
+                        Files.createDirectories(cache.getParent());
+                        Files.write(cache, index.to_buffer().getBytes());
+                    }
+                catch (IOException e)
+                    {
+                        // not saved, so rebuilt again next time
+                    }
+            }
+        return index;
+    }
+
+    // true if the index file 'path' exists and has been written since 'dir_time'
+    private static boolean up_to_date(Path path, FileTime dir_time)
+    {
+        try
+            {
+                return Files.isRegularFile(path) && Files.getLastModifiedTime(path).compareTo(dir_time) >= 0;
+            }
+        catch (IOException e)
+            {
+                return false;
+            }
+    }
+
+    // add 'filename' (already written to 'dir_path') to the index for that directory.
+    // If the directory has no index yet, the index is built from the directory listing
+    // (which will include 'filename').
+    public static void append_blocking(String dir_path, long file_ts, String filename) throws IOException
+    {
+        Path dir = Paths.get(dir_path);
+        Path index_path = dir.resolve(INDEX_FILENAME);
+
+        if (!Files.exists(index_path))
+            {
+                Files.write(index_path, from_files(list_blocking(dir)).to_buffer().getBytes());
+                return;
+            }
+
+        BufferedWriter bw = null;
+        try {
+            // note FileWriter second arg 'true' => APPEND MODE
+            bw = new BufferedWriter(new FileWriter(index_path.toString(), true));
+            bw.write(index_line(file_ts, filename));
+            bw.flush();
+        } finally {
+            if (bw != null) try {
+                    bw.close();
+                } catch (IOException ioe2) {
+                    // just ignore it
+                }
+        }
+    }
+
+    // ************************************************************************
+    // Utility methods
+    // ************************************************************************
+
+    // pick out the timestamp (in seconds) embedded at the start of the file name
+    // e.g. 1457334014_2016-03-07-07-00-14.bin -> 1457334014
+    //      1508063941.992_2017-10-15-11-39-01.json -> 1508063941
+    // returns -1 if the filename does not start with a timestamp
+    public static long filename_ts(String filename)
+    {
+        long file_ts = 0;
+        int i = 0;
+        while (i < filename.length())
+            {
+                char c = filename.charAt(i);
+                if (c < '0' || c > '9')
+                    {
+                        break;
+                    }
+                file_ts = file_ts * 10 + (c - '0');
+                i++;
+            }
+        return i == 0 ? -1 : file_ts;
+    }
+
+    private static String index_line(long file_ts, String filename)
+    {
+        return file_ts + " " + filename + "\n";
+    }
+
+    private static List<String> list_blocking(Path dir) throws IOException
+    {
+        List<String> files = new ArrayList<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+            {
+                for (Path p: stream)
+                    {
+                        if (Files.isRegularFile(p))
+                            {
+                                files.add(p.getFileName().toString());
+                            }
+                    }
+            }
+        return files;
+    }
+
+    // sort the entries into timestamp order, if they are not already
+    private void sort()
+    {
+        boolean sorted = true;
+        for (int i=1; i<ts.length; i++)
+            {
+                if (ts[i] < ts[i-1] || (ts[i] == ts[i-1] && filenames[i].compareTo(filenames[i-1]) < 0))
+                    {
+                        sorted = false;
+                        break;
+                    }
+            }
+        if (sorted)
+            {
+                return;
+            }
+
+        Integer[] order = new Integer[ts.length];
+        for (int i=0; i<order.length; i++)
+            {
+                order[i] = i;
+            }
+        Arrays.sort(order, (a, b) -> ts[a] != ts[b] ? Long.compare(ts[a], ts[b])
+                                                    : filenames[a].compareTo(filenames[b]));
+        long[] sorted_ts = new long[ts.length];
+        String[] sorted_filenames = new String[ts.length];
+        for (int i=0; i<order.length; i++)
+            {
+                sorted_ts[i] = ts[order[i]];
+                sorted_filenames[i] = filenames[order[i]];
+            }
+        ts = sorted_ts;
+        filenames = sorted_filenames;
+    }
+
+} // end DayIndex
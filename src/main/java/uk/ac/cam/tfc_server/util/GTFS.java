@@ -2,7 +2,6 @@ package uk.ac.cam.tfc_server.util;
 
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
-import io.vertx.core.json.JsonArray;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
@@ -15,19 +14,27 @@ import com.google.transit.realtime.GtfsRealtime.Position;
 public class GTFS {
 
   public static JsonObject buf_to_json(Buffer buf, String filename, String filepath) throws Exception
+  {
+      return buf_to_batch(buf, filename, filepath).to_json();
+  }
+
+  // decode the GTFS-realtime data into a PositionBatch, i.e. the typed form of the Json message
+  public static PositionBatch buf_to_batch(Buffer buf, String filename, String filepath) throws Exception
   {
       FeedMessage feed = FeedMessage.parseFrom(buf.getBytes());
-      return feed_to_json_object(feed, filename, filepath);
+      return feed_to_batch(feed, filename, filepath);
   }
 
-  private static JsonObject feed_to_json_object(FeedMessage feed, String filename, String filepath)
+  // the VehiclePosition entities of an already parsed FeedMessage as a PositionBatch
+  // (the TripUpdate entities are decoded by TripUpdateTable.decode())
+  public static PositionBatch feed_to_batch(FeedMessage feed, String filename, String filepath)
   {
-    JsonObject feed_json_object = new JsonObject(); // object to hold entire message
+    JsonObject header_json = new JsonObject(); // message properties other than the entities
 
-    feed_json_object.put("filename",filename);
-    feed_json_object.put("filepath",filepath);
+    header_json.put("filename",filename);
+    header_json.put("filepath",filepath);
     
-    JsonArray ja = new JsonArray(); // array to hold GTFS 'entities' i.e. position records
+    PositionBatch batch = new PositionBatch(header_json, false); // GTFS 'entities' i.e. position records
 
     Long received_timestamp = System.currentTimeMillis() / 1000L; // note when feed was received
 
@@ -35,71 +42,69 @@ public class GTFS {
     FeedHeader header = feed.getHeader();
     if (header.hasTimestamp())
         {
-            feed_json_object.put("timestamp", header.getTimestamp());
+            header_json.put("timestamp", header.getTimestamp());
         }
             
     for (FeedEntity entity : feed.getEntityList())
         {
             try
                 {
-            if (entity.hasVehicle())
+            // a deleted entity (DIFFERENTIAL feeds only) is not a position record
+            if (entity.hasVehicle() && !entity.getIsDeleted())
                 {
                     VehiclePosition vehicle_pos = entity.getVehicle();
-                    //PositionRecord pos_record = new PositionRecord();
-                    JsonObject jo = new JsonObject();
+                    int i = batch.add_entity();
 
-                    jo.put("received_timestamp",received_timestamp);
+                    batch.set_received_timestamp(i, received_timestamp);
                     
                     if (vehicle_pos.hasVehicle())
                         {
                             VehicleDescriptor vehicle_desc = vehicle_pos.getVehicle();
                             if (vehicle_desc.hasId())
                                 {
-                                    jo.put("vehicle_id",vehicle_desc.getId());
+                                    batch.set_string(i, PositionBatch.VEHICLE_ID, vehicle_desc.getId());
                                 }
                             if (vehicle_desc.hasLabel())
                                 {
-                                    jo.put("label",vehicle_desc.getLabel());
+                                    batch.set_string(i, PositionBatch.LABEL, vehicle_desc.getLabel());
                                 }
                         }
                     if (vehicle_pos.hasPosition())
                         {
                             Position vpos = vehicle_pos.getPosition();
-                            jo.put("latitude", vpos.getLatitude());
-                            jo.put("longitude", vpos.getLongitude());
+                            batch.set_float(i, PositionBatch.LATITUDE, vpos.getLatitude());
+                            batch.set_float(i, PositionBatch.LONGITUDE, vpos.getLongitude());
                             if (vpos.hasBearing())
                                 {
-                                    jo.put("bearing",vpos.getBearing());
+                                    batch.set_float(i, PositionBatch.BEARING, vpos.getBearing());
                                 }
-                            jo.put("timestamp", vehicle_pos.getTimestamp());
+                            batch.set_timestamp(i, vehicle_pos.getTimestamp());
                         }
                     if (vehicle_pos.hasTrip())
                         {
                             TripDescriptor trip = vehicle_pos.getTrip();
                             if (trip.hasTripId())
                                 {
-                                    jo.put("trip_id",trip.getTripId());
+                                    batch.set_string(i, PositionBatch.TRIP_ID, trip.getTripId());
                                 }
                             if (trip.hasRouteId())
                                 {
-                                    jo.put("route_id",trip.getRouteId());
+                                    batch.set_string(i, PositionBatch.ROUTE_ID, trip.getRouteId());
                                 }
                         }
                     if (vehicle_pos.hasCurrentStopSequence())
                         {
-                            jo.put("current_stop_sequence",vehicle_pos.getCurrentStopSequence());
+                            batch.set_current_stop_sequence(i, vehicle_pos.getCurrentStopSequence());
                         }
                     if (vehicle_pos.hasStopId())
                         {
-                            jo.put("stop_id",vehicle_pos.getStopId());
+                            batch.set_string(i, PositionBatch.STOP_ID, vehicle_pos.getStopId());
                         }
                     if (vehicle_pos.hasTimestamp())
                         {
-                            jo.put("timestamp",vehicle_pos.getTimestamp());
+                            batch.set_timestamp(i, vehicle_pos.getTimestamp());
                         }
 
-                    ja.add(jo);
-
                 }
                 } // end try
             catch (Exception e)
@@ -108,10 +113,7 @@ public class GTFS {
                 }
         }
 
-    // finally... add JsonArray of feed 'FeedEntities' to feed_json_object
-    feed_json_object.put("entities", ja);
-    
-    return feed_json_object;
-  } // end feed_to_json_array()
+    return batch;
+  } // end feed_to_batch()
 
 } // end GTFS
@@ -0,0 +1,381 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// JsonSplice.java
+//
+// Top-level view of a JSON object held as raw bytes, used to add or replace top-level properties of
+// a relayed message (e.g. a FeedMaker "pass_through" feed_eventbus_msg feed) without parsing it into
+// a JsonObject and serialising it again.
+//
+// scan() makes one pass over the bytes (in place where the Buffer has a backing array, not copied),
+// recording the byte range of each top-level member and skipping over nested objects, arrays and
+// strings without decoding them, e.g.
+//   JsonSplice splice = JsonSplice.scan(buf);            // IllegalArgumentException if not a JSON object
+//   long hops = splice.get_long("acp_hop_count", 0);     // IllegalArgumentException if not an integer
+//   Buffer out = splice.splice(new JsonObject().put("acp_hop_count", hops+1).put("feed_id", "x"));
+// where 'out' is the original members (less any replaced by the new properties) followed by the
+// new properties, copied as byte ranges.
+//
+// scan() checks the structure of the top-level object (and that brackets and strings are balanced
+// within it), but does not validate nested values, which are passed on as received.
+//
+// *************************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class JsonSplice {
+
+    private final Buffer buf;
+
+    // 'buf' as bytes[base..limit), as indexing an array is much faster than Buffer.getByte(). This is
+    // the array backing the Buffer where it has one (as for a received HTTP body), else a copy.
+    private final byte[] bytes;
+    private final int base;
+    private final int limit;
+
+    // top-level members: key, and byte range (in 'bytes') from the opening quote of the key to the end of the value
+    private int count = 0;
+    private String[] keys = new String[16];
+    private int[] member_start = new int[16];
+    private int[] member_end = new int[16];
+    private int[] value_start = new int[16];
+
+    private int pos; // scan position
+
+    private JsonSplice(Buffer buf)
+    {
+        this.buf = buf;
+        ByteBuf byte_buf = buf.getByteBuf();
+        if (byte_buf.hasArray())
+            {
+                bytes = byte_buf.array();
+                base = byte_buf.arrayOffset() + byte_buf.readerIndex();
+                limit = base + byte_buf.readableBytes();
+            }
+        else
+            {
+                bytes = buf.getBytes();
+                base = 0;
+                limit = bytes.length;
+            }
+    }
+
+    // ************************************************************************
+    // Scan the top-level members of the JSON object in 'buf'
+    // ************************************************************************
+    public static JsonSplice scan(Buffer buf)
+    {
+        JsonSplice splice = new JsonSplice(buf);
+        splice.scan_object();
+        return splice;
+    }
+
+    private void scan_object()
+    {
+        pos = base;
+        skip_whitespace();
+        expect('{');
+        skip_whitespace();
+        if (peek() == '}')
+            {
+                pos++;
+            }
+        else
+            {
+                while (true)
+                    {
+                        skip_whitespace();
+                        int start = pos;
+                        expect('"');
+                        skip_string();
+                        String key = new String(bytes, start + 1, pos - start - 2, StandardCharsets.UTF_8);
+                        if (key.indexOf('\\') >= 0)
+                            {
+                                key = Json.decodeValue(new String(bytes, start, pos - start, StandardCharsets.UTF_8), String.class);
+                            }
+                        skip_whitespace();
+                        expect(':');
+                        skip_whitespace();
+                        int value = pos;
+                        skip_value();
+                        add_member(key, start, value, pos);
+                        skip_whitespace();
+                        byte c = next();
+                        if (c == '}')
+                            {
+                                break;
+                            }
+                        if (c != ',')
+                            {
+                                throw error("expected ',' or '}'");
+                            }
+                    }
+            }
+        skip_whitespace();
+        if (pos != limit)
+            {
+                throw error("unexpected data after object");
+            }
+    }
+
+    private void add_member(String key, int start, int value, int end)
+    {
+        if (count == keys.length)
+            {
+                keys = Arrays.copyOf(keys, count * 2);
+                member_start = Arrays.copyOf(member_start, count * 2);
+                member_end = Arrays.copyOf(member_end, count * 2);
+                value_start = Arrays.copyOf(value_start, count * 2);
+            }
+        keys[count] = key;
+        member_start[count] = start;
+        value_start[count] = value;
+        member_end[count] = end;
+        count++;
+    }
+
+    // skip a value of any type, leaving 'pos' just after it
+    private void skip_value()
+    {
+        byte c = peek();
+        if (c == '"')
+            {
+                pos++;
+                skip_string();
+            }
+        else if (c == '{' || c == '[')
+            {
+                skip_nested();
+            }
+        else
+            {
+                // number, true, false or null
+                int start = pos;
+                while (pos < limit)
+                    {
+                        c = bytes[pos];
+                        if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                            {
+                                break;
+                            }
+                        pos++;
+                    }
+                if (pos == start)
+                    {
+                        throw error("missing value");
+                    }
+            }
+    }
+
+    // skip a nested object or array, with 'pos' at its opening bracket
+    private void skip_nested()
+    {
+        int depth = 0;
+        while (pos < limit)
+            {
+                byte c = bytes[pos++];
+                if (c == '"')
+                    {
+                        skip_string();
+                    }
+                else if (c == '{' || c == '[')
+                    {
+                        depth++;
+                    }
+                else if (c == '}' || c == ']')
+                    {
+                        if (--depth == 0)
+                            {
+                                return;
+                            }
+                    }
+            }
+        throw error("unterminated object or array");
+    }
+
+    // skip the rest of a string, with 'pos' just after its opening quote
+    private void skip_string()
+    {
+        while (pos < limit)
+            {
+                byte c = bytes[pos++];
+                if (c == '"')
+                    {
+                        return;
+                    }
+                if (c == '\\')
+                    {
+                        pos++;
+                    }
+            }
+        throw error("unterminated string");
+    }
+
+    private void skip_whitespace()
+    {
+        while (pos < limit)
+            {
+                byte c = bytes[pos];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                    {
+                        return;
+                    }
+                pos++;
+            }
+    }
+
+    private byte peek()
+    {
+        if (pos >= limit)
+            {
+                throw error("unexpected end of data");
+            }
+        return bytes[pos];
+    }
+
+    private byte next()
+    {
+        byte c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c)
+    {
+        if (next() != c)
+            {
+                throw error("expected '"+c+"'");
+            }
+    }
+
+    private IllegalArgumentException error(String msg)
+    {
+        return new IllegalArgumentException("JsonSplice: "+msg+" at byte "+(pos - base));
+    }
+
+    // ************************************************************************
+    // Access to the scanned members
+    // ************************************************************************
+
+    // the number of top-level members
+    public int size()
+    {
+        return count;
+    }
+
+    public boolean contains(String key)
+    {
+        return index(key) >= 0;
+    }
+
+    private int index(String key)
+    {
+        // the last occurrence, as for a JsonObject decoded from the same bytes
+        for (int i=count-1; i>=0; i--)
+            {
+                if (keys[i].equals(key))
+                    {
+                        return i;
+                    }
+            }
+        return -1;
+    }
+
+    // the value of top-level property 'key', or 'default_value' if it is missing or null.
+    // Any JSON number with an integer value is accepted (e.g. 3, 3.0, 3e0), anything else raises
+    // IllegalArgumentException rather than being read as the default.
+    public long get_long(String key, long default_value)
+    {
+        int i = index(key);
+        if (i < 0)
+            {
+                return default_value;
+            }
+        int p = value_start[i];
+        int end = member_end[i];
+        String text = new String(bytes, p, end - p, StandardCharsets.UTF_8);
+        if (text.equals("null"))
+            {
+                return default_value;
+            }
+        // the usual case, a plain integer short enough not to overflow
+        boolean negative = bytes[p] == '-';
+        int digits = negative ? p + 1 : p;
+        if (digits < end && end - digits <= 18)
+            {
+                long value = 0;
+                for (; digits<end; digits++)
+                    {
+                        byte c = bytes[digits];
+                        if (c < '0' || c > '9')
+                            {
+                                break;
+                            }
+                        value = value * 10 + (c - '0');
+                    }
+                if (digits == end)
+                    {
+                        return negative ? -value : value;
+                    }
+            }
+        char first = text.charAt(0);
+        if (first != '-' && (first < '0' || first > '9'))
+            {
+                throw new IllegalArgumentException("JsonSplice: "+key+" is not a number: "+text);
+            }
+        try
+            {
+                return new BigDecimal(text).longValueExact();
+            }
+        catch (NumberFormatException | ArithmeticException e)
+            {
+                throw new IllegalArgumentException("JsonSplice: "+key+" is not an integer: "+text);
+            }
+    }
+
+    // ************************************************************************
+    // Return the object with the top-level properties of 'fields' added, replacing any existing
+    // members with the same keys
+    // ************************************************************************
+    public Buffer splice(JsonObject fields)
+    {
+        Buffer out = Buffer.buffer(buf.length() + 64 * fields.size());
+        out.appendByte((byte) '{');
+        boolean first = true;
+        for (int i=0; i<count; i++)
+            {
+                if (fields.containsKey(keys[i]))
+                    {
+                        continue;
+                    }
+                if (!first)
+                    {
+                        out.appendByte((byte) ',');
+                    }
+                out.appendBuffer(buf, member_start[i] - base, member_end[i] - member_start[i]);
+                first = false;
+            }
+        for (String key : fields.fieldNames())
+            {
+                if (!first)
+                    {
+                        out.appendByte((byte) ',');
+                    }
+                out.appendString(Json.encode(key));
+                out.appendByte((byte) ':');
+                out.appendString(Json.encode(fields.getValue(key)));
+                first = false;
+            }
+        out.appendByte((byte) '}');
+        return out;
+    }
+
+} // end JsonSplice
@@ -0,0 +1,105 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// LatencyHistogram.java
+//
+// Simple fixed-bucket histogram of durations (e.g. decode or parse times), for reporting in the
+// periodic system_status messages.
+//
+// record() may be called from worker threads, to_json() returns the histogram accumulated since
+// the previous call and resets it, e.g.
+//   { "count": 20, "max_ms": 38.2, "p50_ms": 5, "p99_ms": 50,
+//     "buckets": { "1": 0, "2": 3, "5": 9, "10": 5, "20": 2, "50": 1, ... "inf": 0 } }
+// where each bucket counts durations up to that many milliseconds (above the previous bucket),
+// and the percentiles are given as the upper bound of the bucket they fall into (or, in the 'inf'
+// bucket, as max_ms rounded up).
+//
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+    // bucket upper bounds in milliseconds, with a final 'inf' bucket for anything larger
+    private static final long[] BUCKET_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_MS.length + 1);
+    private final AtomicLong max_ns = new AtomicLong(0);
+
+    // record a duration given in nanoseconds, e.g. System.nanoTime() - start
+    public void record(long duration_ns)
+    {
+        long ms = duration_ns / 1000000;
+        int i = 0;
+        while (i < BUCKET_MS.length && ms >= BUCKET_MS[i])
+            {
+                i++;
+            }
+        counts.incrementAndGet(i);
+
+        long prev_max;
+        while (duration_ns > (prev_max = max_ns.get()) && !max_ns.compareAndSet(prev_max, duration_ns))
+            {
+                // retry
+            }
+    }
+
+    // return the histogram since the last call, and reset
+    public JsonObject to_json()
+    {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i=0; i<snapshot.length; i++)
+            {
+                snapshot[i] = counts.getAndSet(i, 0);
+                count += snapshot[i];
+            }
+
+        JsonObject buckets = new JsonObject();
+        for (int i=0; i<snapshot.length; i++)
+            {
+                buckets.put(bucket_name(i), snapshot[i]);
+            }
+
+        double max_ms = max_ns.getAndSet(0) / 1000000.0;
+
+        JsonObject jo = new JsonObject();
+        jo.put("count", count);
+        jo.put("max_ms", max_ms);
+        jo.put("p50_ms", percentile(snapshot, count, 0.50, max_ms));
+        jo.put("p99_ms", percentile(snapshot, count, 0.99, max_ms));
+        jo.put("buckets", buckets);
+        return jo;
+    }
+
+    private static String bucket_name(int i)
+    {
+        return i < BUCKET_MS.length ? String.valueOf(BUCKET_MS[i]) : "inf";
+    }
+
+    // upper bound (ms) of the bucket containing the given percentile, or -1 if no data
+    // (for the 'inf' bucket, which has no upper bound, max_ms rounded up)
+    private static long percentile(long[] snapshot, long count, double p, double max_ms)
+    {
+        if (count == 0)
+            {
+                return -1;
+            }
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i=0; i<BUCKET_MS.length; i++)
+            {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    {
+                        return BUCKET_MS[i];
+                    }
+            }
+        // in the 'inf' bucket, so the largest duration (at least the last bucket bound)
+        return Math.max(BUCKET_MS[BUCKET_MS.length - 1], (long) Math.ceil(max_ms));
+    }
+
+} // end LatencyHistogram
@@ -0,0 +1,93 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// LatestValues.java
+//
+// In-memory table of the latest message received for each key (e.g. the latest uplink of each
+// LoRaWAN device by dev_eui), used by EverynetFeed in place of a monitor directory per device, and
+// by DataServer to answer 'latest reading' requests without reading the filesystem.
+//
+// The whole table is saved as a single snapshot (e.g. written periodically by EverynetFeed, and
+// read by DataServer at startup so it has the latest values before new messages arrive):
+// {
+//   "ts":     1495228962,                  // UTC seconds when the snapshot was made
+//   "count":  2,
+//   "latest": { "<key>": {message}, ... }
+// }
+//
+// The stored messages are not copied, so must not be changed after put(). Not thread-safe: use
+// from a single verticle.
+//
+// *************************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+
+public class LatestValues {
+
+    private HashMap<String,JsonObject> latest = new HashMap<String,JsonObject>();
+
+    private boolean changed = false; // put() since the previous snapshot()
+
+    // store 'msg' as the latest for 'key'
+    public void put(String key, JsonObject msg)
+    {
+        latest.put(key, msg);
+        changed = true;
+    }
+
+    // the latest message for 'key', or null
+    public JsonObject get(String key)
+    {
+        return latest.get(key);
+    }
+
+    public int size()
+    {
+        return latest.size();
+    }
+
+    // true if there have been any put() since the previous snapshot()
+    public boolean changed()
+    {
+        return changed;
+    }
+
+    // the whole table, in the snapshot format
+    public JsonObject to_json()
+    {
+        JsonObject values = new JsonObject();
+        for (String key : latest.keySet())
+            {
+                values.put(key, latest.get(key));
+            }
+        JsonObject jo = new JsonObject();
+        jo.put("ts", System.currentTimeMillis() / 1000);
+        jo.put("count", latest.size());
+        jo.put("latest", values);
+        return jo;
+    }
+
+    // the encoded snapshot of the table, clearing changed()
+    public Buffer snapshot()
+    {
+        changed = false;
+        return Buffer.buffer(to_json().encode());
+    }
+
+    // add the values of a snapshot, other than those for keys already in the table (as newer)
+    public void load(JsonObject snapshot)
+    {
+        JsonObject values = snapshot.getJsonObject("latest", new JsonObject());
+        for (String key : values.fieldNames())
+            {
+                if (!latest.containsKey(key))
+                    {
+                        latest.put(key, values.getJsonObject(key));
+                    }
+            }
+    }
+
+} // end LatestValues
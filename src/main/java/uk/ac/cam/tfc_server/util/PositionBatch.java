@@ -0,0 +1,526 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// PositionBatch.java
+//
+// A batch of vehicle position records (e.g. one GTFS-realtime post) held in typed columns rather
+// than as a JsonObject with an 'entities' JsonArray, so it can travel the eventbus in a compact
+// binary form (see PositionBatchCodec).
+//
+// The batch 'header' is a JsonObject holding the message-level properties (module_name, msg_type,
+// filename, filepath, timestamp, feed_id, ts...) exactly as in the JSON message.
+//
+// Each entity holds any of the fields in FIELDS (as decoded from GTFS VehiclePosition):
+//   vehicle_id, label, trip_id, route_id, stop_id (String)
+//   latitude, longitude, bearing (float, as in GTFS)
+//   timestamp, received_timestamp (long), current_stop_sequence (int)
+// If 'platform_fields' is set, the JSON view also gives the acp_id, acp_lat, acp_lng, acp_ts
+// fields (see Constants.PLATFORM_PREFIX), as published by FeedMaker.
+//
+// to_json() returns the same message as the previous JSON form, and toString() its string,
+// so existing consumers using new JsonObject(message.body().toString()) still work, but
+// consumers should use PositionBatch.json_body(message.body()) which avoids the string round trip.
+//
+// Binary encoding (version 1), written by encode() and read by decode():
+//   byte    version
+//   varint  header length, header as UTF-8 JSON
+//   byte    flags (bit 0: platform_fields)
+//   varint  dictionary size, then each string as varint length + UTF-8 bytes
+//   varint  entity count
+//   varint  base timestamp (minimum timestamp in batch)
+//   per entity:
+//     varint  field presence bits (bit n => FIELDS[n] present)
+//     then each present field in FIELDS order:
+//       String fields: varint dictionary index
+//       float fields:  4 bytes IEEE float32
+//       timestamps:    varint offset from base timestamp
+//       int fields:    varint
+//
+// *************************************************************************************************
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.JsonArray;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class PositionBatch {
+
+    public static final int VERSION = 1;
+
+    // entity field names, in encoding order. The index is the field's presence bit.
+    public static final String[] FIELDS = { "vehicle_id", "label", "trip_id", "route_id", "stop_id",
+                                            "latitude", "longitude", "bearing",
+                                            "timestamp", "received_timestamp", "current_stop_sequence" };
+
+    public static final int VEHICLE_ID = 0;
+    public static final int LABEL = 1;
+    public static final int TRIP_ID = 2;
+    public static final int ROUTE_ID = 3;
+    public static final int STOP_ID = 4;
+    public static final int LATITUDE = 5;
+    public static final int LONGITUDE = 6;
+    public static final int BEARING = 7;
+    public static final int TIMESTAMP = 8;
+    public static final int RECEIVED_TIMESTAMP = 9;
+    public static final int CURRENT_STOP_SEQUENCE = 10;
+
+    private static final int STRING_FIELDS = 5;   // FIELDS[0..4] are Strings
+    private static final int FLOAT_FIELDS = 3;    // FIELDS[5..7] are floats
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private JsonObject header;
+    private boolean platform_fields;
+
+    private int size = 0;
+    private int[] present;        // per-entity field presence bits
+    private String[][] strings;   // [STRING_FIELDS][entity]
+    private float[][] floats;     // [FLOAT_FIELDS][entity]
+    private long[] timestamp;
+    private long[] received_timestamp;
+    private int[] current_stop_sequence;
+
+    public PositionBatch(JsonObject header, boolean platform_fields)
+    {
+        this.header = header == null ? new JsonObject() : header;
+        this.platform_fields = platform_fields;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // message-level properties, which may be updated before the batch is published
+    public JsonObject header()
+    {
+        return header;
+    }
+
+    public boolean platform_fields()
+    {
+        return platform_fields;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // ************************************************************************
+    // Entity access
+    // ************************************************************************
+
+    // add an empty entity, returning its index for the set_* methods
+    public int add_entity()
+    {
+        if (size == present.length)
+            {
+                grow();
+            }
+        present[size] = 0;
+        return size++;
+    }
+
+    // add a copy of entity i of batch 'src', returning its index in this batch
+    public int add_entity(PositionBatch src, int i)
+    {
+        int j = add_entity();
+        present[j] = src.present[i];
+        for (int field=0; field<STRING_FIELDS; field++)
+            {
+                strings[field][j] = src.strings[field][i];
+            }
+        for (int field=0; field<FLOAT_FIELDS; field++)
+            {
+                floats[field][j] = src.floats[field][i];
+            }
+        timestamp[j] = src.timestamp[i];
+        received_timestamp[j] = src.received_timestamp[i];
+        current_stop_sequence[j] = src.current_stop_sequence[i];
+        return j;
+    }
+
+    public boolean has(int i, int field)
+    {
+        return (present[i] & (1 << field)) != 0;
+    }
+
+    public void set_string(int i, int field, String value)
+    {
+        strings[field][i] = value;
+        present[i] |= 1 << field;
+    }
+
+    public String get_string(int i, int field)
+    {
+        return has(i, field) ? strings[field][i] : null;
+    }
+
+    public void set_float(int i, int field, float value)
+    {
+        floats[field - STRING_FIELDS][i] = value;
+        present[i] |= 1 << field;
+    }
+
+    public float get_float(int i, int field)
+    {
+        return floats[field - STRING_FIELDS][i];
+    }
+
+    public void set_timestamp(int i, long value)
+    {
+        timestamp[i] = value;
+        present[i] |= 1 << TIMESTAMP;
+    }
+
+    public long get_timestamp(int i)
+    {
+        return timestamp[i];
+    }
+
+    public void set_received_timestamp(int i, long value)
+    {
+        received_timestamp[i] = value;
+        present[i] |= 1 << RECEIVED_TIMESTAMP;
+    }
+
+    public long get_received_timestamp(int i)
+    {
+        return received_timestamp[i];
+    }
+
+    public void set_current_stop_sequence(int i, int value)
+    {
+        current_stop_sequence[i] = value;
+        present[i] |= 1 << CURRENT_STOP_SEQUENCE;
+    }
+
+    public int get_current_stop_sequence(int i)
+    {
+        return current_stop_sequence[i];
+    }
+
+    // ************************************************************************
+    // JSON view
+    // ************************************************************************
+
+    // entity i as the JsonObject it would have in the 'entities' array
+    public JsonObject entity_json(int i)
+    {
+        JsonObject jo = new JsonObject();
+        for (int field=0; field<STRING_FIELDS; field++)
+            {
+                if (has(i, field))
+                    {
+                        jo.put(FIELDS[field], strings[field][i]);
+                    }
+            }
+        for (int field=STRING_FIELDS; field<STRING_FIELDS+FLOAT_FIELDS; field++)
+            {
+                if (has(i, field))
+                    {
+                        jo.put(FIELDS[field], get_float(i, field));
+                    }
+            }
+        if (has(i, TIMESTAMP))
+            {
+                jo.put(FIELDS[TIMESTAMP], timestamp[i]);
+            }
+        if (has(i, RECEIVED_TIMESTAMP))
+            {
+                jo.put(FIELDS[RECEIVED_TIMESTAMP], received_timestamp[i]);
+            }
+        if (has(i, CURRENT_STOP_SEQUENCE))
+            {
+                jo.put(FIELDS[CURRENT_STOP_SEQUENCE], current_stop_sequence[i]);
+            }
+
+        if (platform_fields)
+            {
+                if (has(i, VEHICLE_ID))
+                    {
+                        jo.put(Constants.PLATFORM_PREFIX+"id", strings[VEHICLE_ID][i]);
+                    }
+                if (has(i, LATITUDE))
+                    {
+                        jo.put(Constants.PLATFORM_PREFIX+"lat", get_float(i, LATITUDE));
+                    }
+                if (has(i, LONGITUDE))
+                    {
+                        jo.put(Constants.PLATFORM_PREFIX+"lng", get_float(i, LONGITUDE));
+                    }
+                if (has(i, TIMESTAMP))
+                    {
+                        jo.put(Constants.PLATFORM_PREFIX+"ts", timestamp[i]);
+                    }
+            }
+        return jo;
+    }
+
+    // the whole batch as the JSON feed message, i.e. the header properties plus "entities"
+    public JsonObject to_json()
+    {
+        JsonArray entities = new JsonArray();
+        for (int i=0; i<size; i++)
+            {
+                entities.add(entity_json(i));
+            }
+        return header.copy().put("entities", entities);
+    }
+
+    @Override
+    public String toString()
+    {
+        return to_json().toString();
+    }
+
+    // return an eventbus message body as a JsonObject, whether it was sent as a PositionBatch,
+    // a JsonObject or a JSON string or Buffer (e.g. from a FeedMaker "pass_through" feed)
+    public static JsonObject json_body(Object body)
+    {
+        if (body instanceof PositionBatch)
+            {
+                return ((PositionBatch) body).to_json();
+            }
+        if (body instanceof JsonObject)
+            {
+                return (JsonObject) body;
+            }
+        return new JsonObject(body.toString());
+    }
+
+    // ************************************************************************
+    // Binary encoding
+    // ************************************************************************
+
+    // append the binary form of this batch to 'buf'
+    public void encode(Buffer buf)
+    {
+        buf.appendByte((byte) VERSION);
+
+        byte[] header_bytes = header.encode().getBytes(StandardCharsets.UTF_8);
+        write_varint(buf, header_bytes.length);
+        buf.appendBytes(header_bytes);
+
+        buf.appendByte((byte) (platform_fields ? 1 : 0));
+
+        // dictionary of the distinct String values (route_id, stop_id etc. repeat a lot)
+        HashMap<String,Integer> dictionary = new HashMap<String,Integer>();
+        ArrayList<String> words = new ArrayList<String>();
+        long base_ts = Long.MAX_VALUE;
+        for (int i=0; i<size; i++)
+            {
+                for (int field=0; field<STRING_FIELDS; field++)
+                    {
+                        if (has(i, field) && !dictionary.containsKey(strings[field][i]))
+                            {
+                                dictionary.put(strings[field][i], words.size());
+                                words.add(strings[field][i]);
+                            }
+                    }
+                if (has(i, TIMESTAMP))
+                    {
+                        base_ts = Math.min(base_ts, timestamp[i]);
+                    }
+                if (has(i, RECEIVED_TIMESTAMP))
+                    {
+                        base_ts = Math.min(base_ts, received_timestamp[i]);
+                    }
+            }
+        if (base_ts == Long.MAX_VALUE)
+            {
+                base_ts = 0;
+            }
+
+        write_varint(buf, words.size());
+        for (String word: words)
+            {
+                byte[] word_bytes = word.getBytes(StandardCharsets.UTF_8);
+                write_varint(buf, word_bytes.length);
+                buf.appendBytes(word_bytes);
+            }
+
+        write_varint(buf, size);
+        write_varint(buf, zigzag(base_ts));
+
+        for (int i=0; i<size; i++)
+            {
+                write_varint(buf, present[i]);
+                for (int field=0; field<STRING_FIELDS; field++)
+                    {
+                        if (has(i, field))
+                            {
+                                write_varint(buf, dictionary.get(strings[field][i]));
+                            }
+                    }
+                for (int field=STRING_FIELDS; field<STRING_FIELDS+FLOAT_FIELDS; field++)
+                    {
+                        if (has(i, field))
+                            {
+                                buf.appendFloat(get_float(i, field));
+                            }
+                    }
+                if (has(i, TIMESTAMP))
+                    {
+                        write_varint(buf, zigzag(timestamp[i] - base_ts));
+                    }
+                if (has(i, RECEIVED_TIMESTAMP))
+                    {
+                        write_varint(buf, zigzag(received_timestamp[i] - base_ts));
+                    }
+                if (has(i, CURRENT_STOP_SEQUENCE))
+                    {
+                        write_varint(buf, zigzag(current_stop_sequence[i]));
+                    }
+            }
+    }
+
+    // read a batch from 'buf' starting at 'pos', as written by encode()
+    public static PositionBatch decode(Buffer buf, int pos)
+    {
+        Reader r = new Reader(buf, pos);
+
+        int version = buf.getByte(r.pos++);
+        if (version != VERSION)
+            {
+                throw new IllegalArgumentException("PositionBatch: unknown encoding version "+version);
+            }
+
+        JsonObject header = new JsonObject(r.read_string());
+
+        boolean platform_fields = (buf.getByte(r.pos++) & 1) != 0;
+
+        int word_count = (int) r.read_varint();
+        String[] words = new String[word_count];
+        for (int w=0; w<word_count; w++)
+            {
+                words[w] = r.read_string();
+            }
+
+        int entity_count = (int) r.read_varint();
+        long base_ts = unzigzag(r.read_varint());
+
+        PositionBatch batch = new PositionBatch(header, platform_fields);
+        batch.allocate(Math.max(entity_count, 1));
+
+        for (int n=0; n<entity_count; n++)
+            {
+                int i = batch.add_entity();
+                int bits = (int) r.read_varint();
+                for (int field=0; field<STRING_FIELDS; field++)
+                    {
+                        if ((bits & (1 << field)) != 0)
+                            {
+                                batch.set_string(i, field, words[(int) r.read_varint()]);
+                            }
+                    }
+                for (int field=STRING_FIELDS; field<STRING_FIELDS+FLOAT_FIELDS; field++)
+                    {
+                        if ((bits & (1 << field)) != 0)
+                            {
+                                batch.set_float(i, field, buf.getFloat(r.pos));
+                                r.pos += 4;
+                            }
+                    }
+                if ((bits & (1 << TIMESTAMP)) != 0)
+                    {
+                        batch.set_timestamp(i, base_ts + unzigzag(r.read_varint()));
+                    }
+                if ((bits & (1 << RECEIVED_TIMESTAMP)) != 0)
+                    {
+                        batch.set_received_timestamp(i, base_ts + unzigzag(r.read_varint()));
+                    }
+                if ((bits & (1 << CURRENT_STOP_SEQUENCE)) != 0)
+                    {
+                        batch.set_current_stop_sequence(i, (int) unzigzag(r.read_varint()));
+                    }
+            }
+        return batch;
+    }
+
+    // ************************************************************************
+    // Private methods
+    // ************************************************************************
+
+    private void allocate(int capacity)
+    {
+        present = new int[capacity];
+        strings = new String[STRING_FIELDS][capacity];
+        floats = new float[FLOAT_FIELDS][capacity];
+        timestamp = new long[capacity];
+        received_timestamp = new long[capacity];
+        current_stop_sequence = new int[capacity];
+    }
+
+    private void grow()
+    {
+        int capacity = present.length * 2;
+        present = Arrays.copyOf(present, capacity);
+        for (int field=0; field<STRING_FIELDS; field++)
+            {
+                strings[field] = Arrays.copyOf(strings[field], capacity);
+            }
+        for (int field=0; field<FLOAT_FIELDS; field++)
+            {
+                floats[field] = Arrays.copyOf(floats[field], capacity);
+            }
+        timestamp = Arrays.copyOf(timestamp, capacity);
+        received_timestamp = Arrays.copyOf(received_timestamp, capacity);
+        current_stop_sequence = Arrays.copyOf(current_stop_sequence, capacity);
+    }
+
+    private static long zigzag(long n)
+    {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n)
+    {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void write_varint(Buffer buf, long n)
+    {
+        while ((n & ~0x7FL) != 0)
+            {
+                buf.appendByte((byte) ((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+        buf.appendByte((byte) n);
+    }
+
+    // cursor for decode()
+    private static class Reader {
+        Buffer buf;
+        int pos;
+
+        Reader(Buffer buf, int pos)
+        {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        long read_varint()
+        {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do
+                {
+                    b = buf.getByte(pos++);
+                    n |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                }
+            while ((b & 0x80) != 0);
+            return n;
+        }
+
+        String read_string()
+        {
+            int len = (int) read_varint();
+            String s = buf.getString(pos, pos + len, "UTF-8");
+            pos += len;
+            return s;
+        }
+    }
+
+} // end PositionBatch
@@ -0,0 +1,73 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// PositionBatchCodec.java
+//
+// Vertx eventbus MessageCodec for PositionBatch, so position batches travel the clustered eventbus
+// in their compact binary form (see PositionBatch.encode()) rather than as JSON.
+//
+// Every verticle that publishes or consumes PositionBatch messages calls
+//   PositionBatchCodec.register(vertx);
+// in its start(), which registers the codec as the default for PositionBatch (once per Vertx).
+//
+// Within a single Vertx instance the same PositionBatch object is delivered to every consumer
+// (no copy), so consumers must treat the batch as read-only.
+//
+// *************************************************************************************************
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+public class PositionBatchCodec implements MessageCodec<PositionBatch, PositionBatch> {
+
+    public static final String CODEC_NAME = "tfc.position_batch";
+
+    // register the codec with this vertx, if another verticle has not already done so
+    public static void register(Vertx vertx)
+    {
+        try
+            {
+                vertx.eventBus().registerDefaultCodec(PositionBatch.class, new PositionBatchCodec());
+            }
+        catch (IllegalStateException e)
+            {
+                // already registered
+            }
+    }
+
+    @Override
+    public void encodeToWire(Buffer buf, PositionBatch batch)
+    {
+        // length prefix, then the batch
+        int length_pos = buf.length();
+        buf.appendInt(0);
+        batch.encode(buf);
+        buf.setInt(length_pos, buf.length() - length_pos - 4);
+    }
+
+    @Override
+    public PositionBatch decodeFromWire(int pos, Buffer buf)
+    {
+        return PositionBatch.decode(buf, pos + 4);
+    }
+
+    @Override
+    public PositionBatch transform(PositionBatch batch)
+    {
+        return batch;
+    }
+
+    @Override
+    public String name()
+    {
+        return CODEC_NAME;
+    }
+
+    @Override
+    public byte systemCodecID()
+    {
+        return -1;
+    }
+
+} // end PositionBatchCodec
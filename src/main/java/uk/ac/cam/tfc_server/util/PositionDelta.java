@@ -0,0 +1,175 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// PositionDelta.java
+//
+// Delta stage for a feed of PositionBatch messages (e.g. from FeedHandler or a FeedMaker GTFS feed).
+//
+// Keeps the last seen position (latitude, longitude, timestamp) of each vehicle_id and, for each
+// new batch, returns a batch holding only the vehicles that are new or have changed, so consumers
+// subscribed to the delta address (the feed address + ".delta") only process the vehicles that moved.
+//
+// Every 'keyframe_period' batches (and for the first batch) the full batch is returned instead,
+// so a consumer joining the delta stream has every vehicle within that many posts.
+//
+// The delta batch header is a copy of the original header plus:
+//   "delta": true,
+//   "keyframe": true|false,
+//   "delta_of": <number of entities in the full batch>
+//
+// Entities with no vehicle_id are always included.
+//
+// At each keyframe the vehicles not seen for EXPIRE_KEYFRAMES keyframe periods are forgotten (and
+// their slots reused), so a feed whose vehicle ids change (e.g. ids per trip) does not grow the
+// table without limit. A forgotten vehicle that reappears is treated as new.
+//
+// Not thread-safe: each feed has its own PositionDelta, used on its event loop.
+//
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+
+public class PositionDelta {
+
+    public static final String ADDRESS_SUFFIX = ".delta";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int EXPIRE_KEYFRAMES = 3; // keyframe periods a vehicle is kept unseen
+
+    private final int keyframe_period;
+
+    private int batch_count = 0;
+
+    // vehicle_id -> slot in the primitive arrays holding the last seen position
+    private HashMap<String,Integer> slots = new HashMap<String,Integer>();
+    private float[] last_lat = new float[INITIAL_CAPACITY];
+    private float[] last_lng = new float[INITIAL_CAPACITY];
+    private long[] last_ts = new long[INITIAL_CAPACITY];
+    private int[] last_seen = new int[INITIAL_CAPACITY]; // batch_count when the vehicle was last seen
+
+    private int next_slot = 0;                                   // first slot never used
+    private ArrayDeque<Integer> free_slots = new ArrayDeque<Integer>(); // slots of expired vehicles
+
+    // counts since the last call to metrics()
+    private long entities_in = 0;
+    private long entities_out = 0;
+    private long expired = 0;
+
+    public PositionDelta(int keyframe_period)
+    {
+        this.keyframe_period = Math.max(1, keyframe_period);
+    }
+
+    // return the delta (or keyframe) batch for 'batch', and update the last seen positions
+    public PositionBatch delta(PositionBatch batch)
+    {
+        boolean keyframe = batch_count % keyframe_period == 0;
+        if (keyframe)
+            {
+                expire();
+            }
+        batch_count++;
+
+        JsonObject header = batch.header().copy();
+        header.put("delta", true);
+        header.put("keyframe", keyframe);
+        header.put("delta_of", batch.size());
+
+        PositionBatch delta = new PositionBatch(header, batch.platform_fields());
+
+        for (int i=0; i<batch.size(); i++)
+            {
+                if (update(batch, i) || keyframe)
+                    {
+                        delta.add_entity(batch, i);
+                    }
+            }
+
+        entities_in += batch.size();
+        entities_out += delta.size();
+
+        return delta;
+    }
+
+    // entities received and published since the previous call, e.g. for system_status messages
+    public JsonObject metrics()
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("vehicles", slots.size());
+        jo.put("entities_in", entities_in);
+        jo.put("entities_out", entities_out);
+        jo.put("expired", expired);
+        entities_in = 0;
+        entities_out = 0;
+        expired = 0;
+        return jo;
+    }
+
+    // forget the vehicles not seen in the last EXPIRE_KEYFRAMES keyframe periods
+    private void expire()
+    {
+        Iterator<Map.Entry<String,Integer>> it = slots.entrySet().iterator();
+        while (it.hasNext())
+            {
+                int slot = it.next().getValue();
+                if (batch_count - last_seen[slot] > EXPIRE_KEYFRAMES * keyframe_period)
+                    {
+                        it.remove();
+                        free_slots.push(slot);
+                        expired++;
+                    }
+            }
+    }
+
+    // record the position of entity i, returning true if it is new or has changed
+    private boolean update(PositionBatch batch, int i)
+    {
+        String vehicle_id = batch.get_string(i, PositionBatch.VEHICLE_ID);
+        if (vehicle_id == null)
+            {
+                return true;
+            }
+
+        float lat = batch.has(i, PositionBatch.LATITUDE) ? batch.get_float(i, PositionBatch.LATITUDE) : Float.NaN;
+        float lng = batch.has(i, PositionBatch.LONGITUDE) ? batch.get_float(i, PositionBatch.LONGITUDE) : Float.NaN;
+        long ts = batch.has(i, PositionBatch.TIMESTAMP) ? batch.get_timestamp(i) : -1;
+
+        Integer slot = slots.get(vehicle_id);
+        if (slot == null)
+            {
+                if (!free_slots.isEmpty())
+                    {
+                        slot = free_slots.pop();
+                    }
+                else
+                    {
+                        slot = next_slot++;
+                        if (slot == last_ts.length)
+                            {
+                                last_lat = Arrays.copyOf(last_lat, slot * 2);
+                                last_lng = Arrays.copyOf(last_lng, slot * 2);
+                                last_ts = Arrays.copyOf(last_ts, slot * 2);
+                                last_seen = Arrays.copyOf(last_seen, slot * 2);
+                            }
+                    }
+                slots.put(vehicle_id, slot);
+            }
+        else if (last_ts[slot] == ts &&
+                 Float.floatToIntBits(last_lat[slot]) == Float.floatToIntBits(lat) &&
+                 Float.floatToIntBits(last_lng[slot]) == Float.floatToIntBits(lng))
+            {
+                last_seen[slot] = batch_count;
+                return false;
+            }
+
+        last_seen[slot] = batch_count;
+        last_lat[slot] = lat;
+        last_lng[slot] = lng;
+        last_ts[slot] = ts;
+        return true;
+    }
+
+} // end PositionDelta
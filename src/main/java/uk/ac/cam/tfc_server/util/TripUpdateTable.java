@@ -0,0 +1,344 @@
+package uk.ac.cam.tfc_server.util;
+
+// *************************************************************************************************
+// TripUpdateTable.java
+//
+// Materialised table of the GTFS-realtime TripUpdate entities of a feed (keyed by entity id), used
+// to publish arrival predictions as incremental changes rather than a full snapshot per message.
+//
+// A FeedMessage is first decoded (decode(), which is stateless so can run on a worker thread) and
+// then applied to the feed's table in message order (apply()), following the header incrementality:
+//   FULL_DATASET: the message holds every trip update, so trips no longer present are deleted
+//   DIFFERENTIAL: the message holds only new/changed trip updates, and entities with is_deleted
+//                 set are deleted. Other trips are unchanged.
+// A trip update identical to the one in the table (ignoring its 'timestamp') is not a change.
+// If 'expire_seconds' is set, trips not updated for that long are also deleted, as a DIFFERENTIAL
+// feed may not delete every finished trip.
+//
+// apply() returns the change message, or null if nothing changed:
+// {
+//   "msg_type":       "feed_trip_update",            // Constants.FEED_TRIP_UPDATE
+//   "timestamp":      1508063941,                    // feed header timestamp, if given
+//   "incrementality": "FULL_DATASET" | "DIFFERENTIAL",
+//   "keyframe":       false,
+//   "trips":          412,                           // trips in the table after this message
+//   "trip_updates":   [ {trip update}, ... ],        // new or changed trips
+//   "deleted":        [ "<entity id>", ... ]         // trips removed from the table
+// }
+// Every 'keyframe_period' messages (and for the first) the whole table is sent with "keyframe": true
+// and an empty "deleted", so a consumer can replace its state and join the incremental stream.
+//
+// Each trip update is:
+// { "entity_id", "trip_id", "route_id", "direction_id", "start_time", "start_date",
+//   "schedule_relationship", "vehicle_id", "label", "timestamp", "delay",
+//   "stop_time_updates": [ { "stop_sequence", "stop_id", "schedule_relationship",
+//                            "arrival_time", "arrival_delay", "arrival_uncertainty",
+//                            "departure_time", "departure_delay", "departure_uncertainty" }, ... ] }
+// with only the fields present in the GTFS data.
+//
+// Not thread-safe: each feed has its own TripUpdateTable, applied in message order.
+//
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.JsonArray;
+
+import java.util.*;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+public class TripUpdateTable {
+
+    public static final String ADDRESS_SUFFIX = ".trip_updates";
+
+    private final int keyframe_period;
+    private final long expire_seconds;
+
+    private int message_count = 0;
+
+    // entity id -> trip update Json, and the time (seconds) it was last changed
+    private HashMap<String,JsonObject> trips = new HashMap<String,JsonObject>();
+    private HashMap<String,Long> updated = new HashMap<String,Long>();
+
+    // counts since the last call to metrics()
+    private long updates_in = 0;
+    private long changed = 0;
+    private long deleted = 0;
+
+    public TripUpdateTable(int keyframe_period, long expire_seconds)
+    {
+        this.keyframe_period = Math.max(1, keyframe_period);
+        this.expire_seconds = expire_seconds;
+    }
+
+    // The trip updates of one FeedMessage, not yet applied to a table
+    public static class Decoded {
+        public boolean differential;
+        public Long timestamp = null; // feed header timestamp, if given
+        public LinkedHashMap<String,JsonObject> trip_updates = new LinkedHashMap<String,JsonObject>();
+        public ArrayList<String> deleted = new ArrayList<String>();
+    }
+
+    // ************************************************************************
+    // Decode the TripUpdate entities of 'feed'
+    // ************************************************************************
+    public static Decoded decode(FeedMessage feed)
+    {
+        Decoded decoded = new Decoded();
+
+        FeedHeader header = feed.getHeader();
+        decoded.differential = header.hasIncrementality() &&
+                               header.getIncrementality() == FeedHeader.Incrementality.DIFFERENTIAL;
+        if (header.hasTimestamp())
+            {
+                decoded.timestamp = header.getTimestamp();
+            }
+
+        for (FeedEntity entity : feed.getEntityList())
+            {
+                if (entity.hasIsDeleted() && entity.getIsDeleted())
+                    {
+                        // only meaningful in a DIFFERENTIAL message, and may omit the trip_update
+                        decoded.deleted.add(entity.getId());
+                        continue;
+                    }
+                if (entity.hasTripUpdate())
+                    {
+                        decoded.trip_updates.put(entity.getId(), trip_update_json(entity.getId(), entity.getTripUpdate()));
+                    }
+            }
+        return decoded;
+    }
+
+    private static JsonObject trip_update_json(String entity_id, TripUpdate trip_update)
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("entity_id", entity_id);
+
+        if (trip_update.hasTrip())
+            {
+                TripDescriptor trip = trip_update.getTrip();
+                if (trip.hasTripId())
+                    {
+                        jo.put("trip_id", trip.getTripId());
+                    }
+                if (trip.hasRouteId())
+                    {
+                        jo.put("route_id", trip.getRouteId());
+                    }
+                if (trip.hasDirectionId())
+                    {
+                        jo.put("direction_id", trip.getDirectionId());
+                    }
+                if (trip.hasStartTime())
+                    {
+                        jo.put("start_time", trip.getStartTime());
+                    }
+                if (trip.hasStartDate())
+                    {
+                        jo.put("start_date", trip.getStartDate());
+                    }
+                if (trip.hasScheduleRelationship())
+                    {
+                        jo.put("schedule_relationship", trip.getScheduleRelationship().toString());
+                    }
+            }
+        if (trip_update.hasVehicle())
+            {
+                VehicleDescriptor vehicle = trip_update.getVehicle();
+                if (vehicle.hasId())
+                    {
+                        jo.put("vehicle_id", vehicle.getId());
+                    }
+                if (vehicle.hasLabel())
+                    {
+                        jo.put("label", vehicle.getLabel());
+                    }
+            }
+        if (trip_update.hasTimestamp())
+            {
+                jo.put("timestamp", trip_update.getTimestamp());
+            }
+        if (trip_update.hasDelay())
+            {
+                jo.put("delay", trip_update.getDelay());
+            }
+
+        JsonArray stop_time_updates = new JsonArray();
+        for (StopTimeUpdate stu : trip_update.getStopTimeUpdateList())
+            {
+                JsonObject stop = new JsonObject();
+                if (stu.hasStopSequence())
+                    {
+                        stop.put("stop_sequence", stu.getStopSequence());
+                    }
+                if (stu.hasStopId())
+                    {
+                        stop.put("stop_id", stu.getStopId());
+                    }
+                if (stu.hasScheduleRelationship())
+                    {
+                        stop.put("schedule_relationship", stu.getScheduleRelationship().toString());
+                    }
+                if (stu.hasArrival())
+                    {
+                        put_event(stop, "arrival", stu.getArrival());
+                    }
+                if (stu.hasDeparture())
+                    {
+                        put_event(stop, "departure", stu.getDeparture());
+                    }
+                stop_time_updates.add(stop);
+            }
+        jo.put("stop_time_updates", stop_time_updates);
+
+        return jo;
+    }
+
+    // e.g. "arrival_time", "arrival_delay", "arrival_uncertainty"
+    private static void put_event(JsonObject stop, String prefix, StopTimeEvent event)
+    {
+        if (event.hasTime())
+            {
+                stop.put(prefix+"_time", event.getTime());
+            }
+        if (event.hasDelay())
+            {
+                stop.put(prefix+"_delay", event.getDelay());
+            }
+        if (event.hasUncertainty())
+            {
+                stop.put(prefix+"_uncertainty", event.getUncertainty());
+            }
+    }
+
+    // ************************************************************************
+    // Apply a decoded message to the table, returning the change message or null
+    // ************************************************************************
+    public JsonObject apply(Decoded decoded)
+    {
+        boolean keyframe = message_count % keyframe_period == 0;
+        message_count++;
+
+        long now = decoded.timestamp != null ? decoded.timestamp : System.currentTimeMillis() / 1000;
+
+        JsonArray changed_trips = new JsonArray();
+        JsonArray deleted_trips = new JsonArray();
+
+        for (Map.Entry<String,JsonObject> entry : decoded.trip_updates.entrySet())
+            {
+                updates_in++;
+                String entity_id = entry.getKey();
+                JsonObject trip_update = entry.getValue();
+                JsonObject previous = trips.put(entity_id, trip_update);
+                updated.put(entity_id, now);
+                if (previous == null || !same_trip_update(previous, trip_update))
+                    {
+                        changed_trips.add(trip_update);
+                    }
+            }
+
+        // trips to delete: those flagged is_deleted, or for a FULL_DATASET those not in the message
+        ArrayList<String> delete_ids = new ArrayList<String>();
+        if (decoded.differential)
+            {
+                delete_ids.addAll(decoded.deleted);
+            }
+        else
+            {
+                for (String entity_id : trips.keySet())
+                    {
+                        if (!decoded.trip_updates.containsKey(entity_id))
+                            {
+                                delete_ids.add(entity_id);
+                            }
+                    }
+            }
+        if (expire_seconds > 0)
+            {
+                for (Map.Entry<String,Long> entry : updated.entrySet())
+                    {
+                        if (now - entry.getValue() > expire_seconds)
+                            {
+                                delete_ids.add(entry.getKey());
+                            }
+                    }
+            }
+        for (String entity_id : delete_ids)
+            {
+                updated.remove(entity_id);
+                if (trips.remove(entity_id) != null)
+                    {
+                        deleted_trips.add(entity_id);
+                    }
+            }
+
+        changed += changed_trips.size();
+        deleted += deleted_trips.size();
+
+        if (!keyframe && changed_trips.size() == 0 && deleted_trips.size() == 0)
+            {
+                return null;
+            }
+
+        JsonObject msg = new JsonObject();
+        msg.put("msg_type", Constants.FEED_TRIP_UPDATE);
+        if (decoded.timestamp != null)
+            {
+                msg.put("timestamp", decoded.timestamp);
+            }
+        msg.put("incrementality", decoded.differential ? "DIFFERENTIAL" : "FULL_DATASET");
+        msg.put("keyframe", keyframe);
+        msg.put("trips", trips.size());
+        if (keyframe)
+            {
+                msg.put("trip_updates", new JsonArray(new ArrayList<Object>(trips.values())));
+                msg.put("deleted", new JsonArray());
+            }
+        else
+            {
+                msg.put("trip_updates", changed_trips);
+                msg.put("deleted", deleted_trips);
+            }
+        return msg;
+    }
+
+    // true if the trip updates are the same other than their 'timestamp'
+    private static boolean same_trip_update(JsonObject a, JsonObject b)
+    {
+        if (a.size() != b.size())
+            {
+                return false;
+            }
+        for (String key : a.fieldNames())
+            {
+                if (!key.equals("timestamp") && !Objects.equals(a.getValue(key), b.getValue(key)))
+                    {
+                        return false;
+                    }
+            }
+        return true;
+    }
+
+    // trip updates received, changed and deleted since the previous call, e.g. for system_status messages
+    public JsonObject metrics()
+    {
+        JsonObject jo = new JsonObject();
+        jo.put("trips", trips.size());
+        jo.put("updates_in", updates_in);
+        jo.put("changed", changed);
+        jo.put("deleted", deleted);
+        updates_in = 0;
+        changed = 0;
+        deleted = 0;
+        return jo;
+    }
+
+} // end TripUpdateTable
@@ -26,6 +26,8 @@ public class Vehicle {
     public String vehicle_id;
 
     // latest and previous position records
+    // (for a Vehicle updated from a PositionBatch, current_position_record is null until ZoneCompute
+    // builds it for a Zone event)
     public JsonObject current_position_record;
     public JsonObject prev_position_record;
 
@@ -50,6 +52,24 @@ public class Vehicle {
 
         position = get_position();
 
+        init_status();
+    }
+
+    // Initialize a new Vehicle from its Position, e.g. read from a PositionBatch entity
+    Vehicle(String vehicle_id, Position position)
+    {
+        prev_position_record = new JsonObject();
+        current_position_record = null;
+
+        this.vehicle_id = vehicle_id;
+
+        this.position = position;
+
+        init_status();
+    }
+
+    private void init_status()
+    {
         init = true; // will be reset to false when this entry is updated
         within = false;
         start_ts = 0L;
@@ -61,7 +81,7 @@ public class Vehicle {
     public void update(JsonObject position_record)
     {
         // push this position record onto our 2-record stack
-        prev_position_record = current_position_record.copy();
+        prev_position_record = current_position_record == null ? null : current_position_record.copy();
         current_position_record = position_record.copy();
 
         prev_position = position;
@@ -72,6 +92,20 @@ public class Vehicle {
         init = false;
     }
 
+    // update this existing Vehicle with its next Position, e.g. read from a PositionBatch entity
+    public void update(Position position)
+    {
+        prev_position_record = current_position_record;
+        current_position_record = null;
+
+        prev_position = this.position;
+        prev_within = within;
+
+        this.position = position;
+
+        init = false;
+    }
+
     Position get_position()
     {
         // for ts, lat, lng we will use EITHER "acp_ts", "acp_lat", "acp_lng" (preferred) or the GTFS values
@@ -84,6 +84,8 @@ import uk.ac.cam.tfc_server.zone.ZoneCompute;// also used by BatcherWorker for s
 import uk.ac.cam.tfc_server.zone.Vehicle;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Position;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+import uk.ac.cam.tfc_server.util.PositionBatchCodec;
 
 import uk.ac.cam.tfc_server.util.IMsgHandler; // Interface to provide handle_msg routine
 
@@ -138,6 +140,9 @@ public class Zone extends AbstractVerticle {
     
     eb = vertx.eventBus();
 
+    // position batches may arrive in binary form
+    PositionBatchCodec.register(vertx);
+
     msg_handlers = new HashMap<String, MsgHandler>();
 
     // **********  Set up connection to EventBus  ********************************************
@@ -280,9 +285,17 @@ public class Zone extends AbstractVerticle {
               // set up a handler for the actual vehicle position feed messages
               vertx.eventBus().consumer(ZONE_FEED, eb_message -> {
 
-                  JsonObject feed_message = new JsonObject(eb_message.body().toString());
-
-                  zc.handle_feed(feed_message);
+                  Object body = eb_message.body();
+
+                  // a PositionBatch is read directly, other feeds as their Json message
+                  if (body instanceof PositionBatch)
+                  {
+                      zc.handle_batch((PositionBatch) body);
+                  }
+                  else
+                  {
+                      zc.handle_feed(PositionBatch.json_body(body));
+                  }
               });
           }
     }
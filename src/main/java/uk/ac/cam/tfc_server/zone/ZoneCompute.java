@@ -8,6 +8,7 @@ package uk.ac.cam.tfc_server.zone;
 import uk.ac.cam.tfc_server.zone.ZoneConfig;
 import uk.ac.cam.tfc_server.zone.Vehicle;
 import uk.ac.cam.tfc_server.util.Position;
+import uk.ac.cam.tfc_server.util.PositionBatch;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
@@ -29,6 +30,10 @@ public class ZoneCompute {
     public IMsgHandler msg_handler; // will be called when Zone events occur
 
     private HashMap<String, Vehicle> vehicles; // dictionary to store vehicle status updated from feed
+
+    // the PositionBatch and entity being handled by handle_batch(), for position_record()
+    private PositionBatch batch;
+    private int batch_index;
     
     private Box box;
 
@@ -83,6 +88,52 @@ public class ZoneCompute {
             }
     }
 
+    // As handle_feed(), for a feed message received as a PositionBatch. The position of each entity
+    // is read from the batch columns, and its JsonObject is only built if a Zone event needs it.
+    public void handle_batch(PositionBatch batch)
+    {
+        logger.log(Constants.LOG_DEBUG, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                   ": handle_batch for "+zone_config.ZONE_NAME+" with "+batch.size()+" position records");
+
+        this.batch = batch;
+        for (int i = 0; i < batch.size(); i++)
+            {
+              if (!batch.has(i, PositionBatch.VEHICLE_ID) ||
+                  !batch.has(i, PositionBatch.LATITUDE) ||
+                  !batch.has(i, PositionBatch.LONGITUDE) ||
+                  !batch.has(i, PositionBatch.TIMESTAMP))
+                  {
+                      continue;
+                  }
+              batch_index = i;
+              String vehicle_id = batch.get_string(i, PositionBatch.VEHICLE_ID);
+              Position position = new Position(batch.get_float(i, PositionBatch.LATITUDE),
+                                               batch.get_float(i, PositionBatch.LONGITUDE),
+                                               batch.get_timestamp(i));
+              Vehicle v = vehicles.get(vehicle_id);
+              if (v == null)
+                  {
+                      add_vehicle(new Vehicle(vehicle_id, position));
+                  }
+              else
+                  {
+                      v.update(position);
+                      update_zone(v);
+                  }
+            }
+        this.batch = null;
+    }
+
+    // the position record of the vehicle's latest update, for the Zone event messages
+    private JsonObject position_record(Vehicle v)
+    {
+        if (v.current_position_record == null && batch != null)
+            {
+                v.current_position_record = batch.entity_json(batch_index);
+            }
+        return v.current_position_record;
+    }
+
         // Update the vehicles[vehicle_id] record with this feed entry
     private void update_vehicle(JsonObject position_record)
     {
@@ -103,18 +154,28 @@ public class ZoneCompute {
       Vehicle v = vehicles.get(vehicle_id);
       if (v == null)
           {
-              v = new Vehicle(vehicle_id, position_record);
-
-              logger.log(Constants.LOG_DEBUG, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
-                   ": "+zone_config.ZONE_NAME+" new vehicle "+vehicle_id+" at "+v.position.toString());
-
-              v.within = inside(v.position);
-              vehicles.put(vehicle_id, v);
+              add_vehicle(new Vehicle(vehicle_id, position_record));
               return; // This is first position record for this vehicle, so just initialize entry
           }
 
       // These is existing position record for this vehicle, so update with the latest attributes from feed
       v.update(position_record);
+      update_zone(v);
+    }
+
+    // Add the first position of a vehicle
+    private void add_vehicle(Vehicle v)
+    {
+      logger.log(Constants.LOG_DEBUG, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                 ": "+zone_config.ZONE_NAME+" new vehicle "+v.vehicle_id+" at "+v.position.toString());
+
+      v.within = inside(v.position);
+      vehicles.put(v.vehicle_id, v);
+    }
+
+    // Check for a Zone event after the vehicle has moved from prev_position to position
+    private void update_zone(Vehicle v)
+    {
       // And set the flag for whether this vehicle is within this Zone
       v.within = inside(v.position);
 
@@ -328,7 +389,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_START);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record(v));
       msg.put("ts", v.start_ts);
       msg.put("ts_delta", v.start_ts_delta);
 
@@ -351,7 +412,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_ENTRY);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record(v));
       msg.put("ts", v.position.ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -373,7 +434,7 @@ public class ZoneCompute {
       String completed_log = "Zone: ,"+zone_config.MODULE_ID+",";
       completed_log += "COMPLETED,";
       completed_log += v.vehicle_id;
-      completed_log += v.current_position_record.toString()+",";
+      completed_log += position_record(v).toString()+",";
       completed_log += finish_ts+",";
       completed_log += duration+",";
       completed_log += ts_to_datetime_str(v.position.ts) + ",";
@@ -394,7 +455,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_COMPLETION);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record(v));
       msg.put("ts", finish_ts);
       msg.put("duration", duration);
       // note we send start_ts_delta + finish_ts_delta as the 'confidence' factor
@@ -420,7 +481,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record(v));
       msg.put("ts", finish_ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -443,7 +504,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record(v));
       msg.put("ts", v.position.ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -0,0 +1,101 @@
+package uk.ac.cam.tfc_server.everynet_feed;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+// UplinkDedup merging, release and expiry, and lookups after removals from its open-addressing table
+public class UplinkDedupTest extends TestCase
+{
+    private static final long WINDOW = 100;
+
+    private static JsonObject radio(String gw_addr)
+    {
+        return new JsonObject().put("gw_addr", gw_addr);
+    }
+
+    public void testMergeReleaseExpire()
+    {
+        UplinkDedup dedup = new UplinkDedup(WINDOW);
+
+        assertFalse(dedup.merge("0018b2000000113e", 7, radio("gw1"), 0));
+        JsonObject msg = new JsonObject().put("dev_eui", "0018b2000000113e");
+        dedup.hold("0018b2000000113e", 7, radio("gw1"), msg, 0);
+        assertEquals(1, dedup.size());
+
+        // copies within the window are merged into the held message
+        assertTrue(dedup.merge("0018b2000000113e", 7, radio("gw2"), 50));
+        assertTrue(dedup.merge("0018b2000000113e", 7, radio("gw3"), 99));
+        // a different frame of the same device is not
+        assertFalse(dedup.merge("0018b2000000113e", 8, radio("gw2"), 99));
+
+        assertEquals(0, dedup.release(99).size());
+        List<JsonObject> released = dedup.release(100);
+        assertEquals(1, released.size());
+        assertSame(msg, released.get(0));
+        assertEquals(3, msg.getJsonArray("gateways").size());
+        assertEquals("gw3", msg.getJsonArray("gateways").getJsonObject(2).getString("gw_addr"));
+
+        // a late copy is recognised, and dropped, until a further window has passed
+        assertTrue(dedup.merge("0018b2000000113e", 7, radio("gw4"), 150));
+        assertEquals(3, msg.getJsonArray("gateways").size());
+        assertEquals(1, dedup.size());
+
+        assertEquals(0, dedup.release(200).size());
+        assertEquals(0, dedup.size());
+        assertFalse(dedup.merge("0018b2000000113e", 7, radio("gw4"), 200));
+
+        // the same (dev_eui, fcnt) can then be used again, e.g. after a rejoin
+        JsonObject again = new JsonObject();
+        dedup.hold("0018b2000000113e", 7, radio("gw1"), again, 300);
+        assertEquals(1, dedup.release(400).size());
+        assertEquals(1, again.getJsonArray("gateways").size());
+
+        JsonObject metrics = dedup.metrics();
+        assertEquals(2L, (long) metrics.getLong("uplinks"));
+        assertEquals(2L, (long) metrics.getLong("merged"));
+        assertEquals(1L, (long) metrics.getLong("late"));
+        assertEquals(1L, (long) metrics.getLong("held"));
+    }
+
+    public void testRemoveKeepsClusterReachable()
+    {
+        UplinkDedup dedup = new UplinkDedup(WINDOW);
+        Random random = new Random(1);
+
+        // frames held at staggered times, so release() removes entries from the middle of the
+        // probe clusters, and the table grows part way through
+        List<String> dev_euis = new ArrayList<String>();
+        List<Long> times = new ArrayList<Long>();
+        long now = 0;
+        for (int step=0; step<2000; step++)
+            {
+                now += random.nextInt(20);
+                for (int k=random.nextInt(4); k>0; k--)
+                    {
+                        String dev_eui = String.format("%016x", random.nextInt(200));
+                        if (!dedup.merge(dev_eui, 1, radio("gw1"), now))
+                            {
+                                dedup.hold(dev_eui, 1, radio("gw1"), new JsonObject(), now);
+                                dev_euis.add(dev_eui);
+                                times.add(now);
+                            }
+                    }
+                dedup.release(now);
+
+                // every frame still in its late-copy window must be found
+                int remembered = 0;
+                for (int i=0; i<dev_euis.size(); i++)
+                    {
+                        if (now - times.get(i) < 2 * WINDOW)
+                            {
+                                assertTrue("lost "+dev_euis.get(i)+" at "+now, dedup.merge(dev_euis.get(i), 1, radio("gw2"), now));
+                                remembered++;
+                            }
+                    }
+                assertEquals(remembered, dedup.size());
+            }
+    }
+}
@@ -0,0 +1,101 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+
+import junit.framework.TestCase;
+
+// ParseFeedSiriVM stop_id from the MonitoredCall, records without a position, and the streamed records
+public class ParseFeedSiriVMTest extends TestCase
+{
+    private static final String PAGE =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+        "<Siri xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\"><ServiceDelivery>\n"+
+        "<ResponseTimestamp>2017-09-29T09:45:40+01:00</ResponseTimestamp>\n"+
+        "<VehicleMonitoringDelivery version=\"2.0\">\n"+
+        // OnwardCalls after the MonitoredCall
+        "<VehicleActivity><RecordedAtTime>2017-09-29T09:45:38+01:00</RecordedAtTime>\n"+
+        "<MonitoredVehicleJourney><LineRef>U</LineRef>\n"+
+        "<FramedVehicleJourneyRef><DatedVehicleJourneyRef>trip_1</DatedVehicleJourneyRef></FramedVehicleJourneyRef>\n"+
+        "<VehicleLocation><Longitude>0.1234</Longitude><Latitude>52.2101</Latitude></VehicleLocation>\n"+
+        "<Bearing>90</Bearing><VehicleRef>SCCM-1</VehicleRef>\n"+
+        "<MonitoredCall><StopPointRef>0500CCITY423</StopPointRef></MonitoredCall>\n"+
+        "<OnwardCalls><OnwardCall><StopPointRef>0500CCITY424</StopPointRef></OnwardCall>\n"+
+        "<OnwardCall><StopPointRef>0500CCITY425</StopPointRef></OnwardCall></OnwardCalls>\n"+
+        "</MonitoredVehicleJourney><Extensions><VehicleMonitoringRef>VM-1</VehicleMonitoringRef></Extensions>\n"+
+        "</VehicleActivity>\n"+
+        // no position, so skipped
+        "<VehicleActivity><RecordedAtTime>2017-09-29T09:45:39+01:00</RecordedAtTime>\n"+
+        "<MonitoredVehicleJourney><VehicleRef>SCCM-2</VehicleRef><VehicleLocation><Latitude>52.2</Latitude></VehicleLocation>\n"+
+        "</MonitoredVehicleJourney></VehicleActivity>\n"+
+        // only OnwardCalls, so no stop_id
+        "<siri:VehicleActivity><siri:RecordedAtTime>2017-09-29T08:45:39Z</siri:RecordedAtTime>\n"+
+        "<siri:MonitoredVehicleJourney><siri:VehicleRef>SCCM-3</siri:VehicleRef>\n"+
+        "<siri:VehicleLocation><siri:Longitude>0.1</siri:Longitude><siri:Latitude>52.3</siri:Latitude></siri:VehicleLocation>\n"+
+        "<siri:OnwardCalls><siri:OnwardCall><siri:StopPointRef>0500CCITY426</siri:StopPointRef></siri:OnwardCall></siri:OnwardCalls>\n"+
+        "</siri:MonitoredVehicleJourney></siri:VehicleActivity>\n"+
+        "</VehicleMonitoringDelivery></ServiceDelivery></Siri>\n";
+
+    private static ParseFeedSiriVM parser()
+    {
+        return new ParseFeedSiriVM(new JsonObject(), new Log(Constants.LOG_WARN));
+    }
+
+    public void testBatch()
+    {
+        PositionBatch batch = parser().parse_batch(Buffer.buffer(PAGE));
+
+        assertEquals(1506674740L, (long) batch.header().getLong("timestamp"));
+        assertEquals(2, batch.size());
+
+        JsonObject first = batch.entity_json(0);
+        assertEquals("VM-1", first.getString("vehicle_id"));
+        assertEquals("SCCM-1", first.getString("label"));
+        assertEquals("trip_1", first.getString("trip_id"));
+        assertEquals("U", first.getString("route_id"));
+        assertEquals("0500CCITY423", first.getString("stop_id"));
+        assertEquals(52.2101f, first.getFloat("acp_lat"), 0);
+        assertEquals(0.1234f, first.getFloat("acp_lng"), 0);
+        assertEquals(90f, first.getFloat("bearing"), 0);
+        assertEquals(1506674738L, (long) first.getLong("acp_ts"));
+
+        JsonObject second = batch.entity_json(1);
+        assertEquals("SCCM-3", second.getString("acp_id"));
+        assertFalse(second.containsKey("stop_id"));
+        assertEquals(1506674739L, (long) second.getLong("timestamp"));
+    }
+
+    // the records written to a RecordSink have the same fields as the batch entities
+    public void testSink() throws Exception
+    {
+        PositionBatch batch = parser().parse_batch(Buffer.buffer(PAGE));
+        JsonRecordSink sink = new JsonRecordSink();
+        parser().parse(Buffer.buffer(PAGE), sink);
+        JsonArray records = sink.msg().getJsonArray("request_data");
+
+        assertEquals(batch.size(), records.size());
+        for (int i=0; i<batch.size(); i++)
+            {
+                JsonObject entity = batch.entity_json(i);
+                JsonObject record = records.getJsonObject(i);
+                assertEquals(entity.fieldNames(), record.fieldNames());
+                for (String key : entity.fieldNames())
+                    {
+                        Object value = entity.getValue(key);
+                        if (value instanceof Float)
+                            {
+                                assertEquals(key, ((Float) value).doubleValue(), record.getDouble(key), 0);
+                            }
+                        else
+                            {
+                                assertEquals(key, value, record.getValue(key));
+                            }
+                    }
+            }
+    }
+}
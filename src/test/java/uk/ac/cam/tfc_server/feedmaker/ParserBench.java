@@ -0,0 +1,322 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//***********************************************************************************************
+//***********************************************************************************************
+//   ParserBench.java
+//
+//   Benchmark of the FeedMaker parsers against sample payloads, so that a parser change can be
+//   judged on its numbers. This is a stand-alone program in the test classes (so it is not in the
+//   fat jar), run from the repo root with:
+//
+//     mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test.classpath
+//     java -cp target/classes:target/test-classes:$(cat target/test.classpath) \
+//         uk.ac.cam.tfc_server.feedmaker.ParserBench [options] [case ...]
+//
+//   where the options are
+//     -s <seconds>        measurement time per case (default 5), after a warmup of half that time
+//     -d <directory>      the repo root, from which the recorded payloads below are read (default .)
+//     -c <capture>=<path> a payload captured from a live feed, for the cases that use that capture.
+//                         <path> is a file, or a directory (e.g. a FeedMaker data_bin day directory)
+//                         in which case its last file by name, i.e. the latest, is used.
+//   and the optional case names (see cases() below) restrict the run to those cases.
+//
+//   Each case parses its payload repeatedly on a single thread, reporting:
+//     ops/s     parses per second
+//     MB/s      payload megabytes parsed per second
+//     p50, p99, max  parse latency in microseconds
+//     alloc     bytes allocated per parse (from com.sun.management.ThreadMXBean, if the JVM has it)
+//     records   the number of records in the parse result, as a check the parse did its work
+//               (for feed_eventbus_msg.relay, the length of the relayed message)
+//
+//   The payloads are:
+//     RECORDED post_data.bin     recorded GTFS-realtime VehiclePositions (feed_gtfs, feed_plain)
+//     RECORDED feed_sample.json  recorded feed_bus_position eventbus message (feed_eventbus_msg)
+//     -c siri_vm=<path>          a SIRI-VM page (feed_xml_flat, feed_sirivm), e.g. the data_bin of a
+//                                feed_plain FeedMaker feed of the SIRI-VM source
+//     -c cam_park_local=<path>,  the pages of those ParseFeedText sources, e.g. the data_monitor
+//        cam_park_rss=<path>,    directory of their FeedMaker feeds
+//        cam_park_carpark=<path>
+//   A case whose capture is not given is skipped. No captures are kept in the repo, as they are
+//   only meaningful as recent payloads of the live feeds.
+//
+//***********************************************************************************************
+//***********************************************************************************************
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.JsonSplice;
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.PositionBatch;
+
+public class ParserBench {
+
+    // the recorded payloads kept with FeedHandler
+    private static final String RECORDED = "src/main/java/uk/ac/cam/tfc_server/feedhandler/";
+
+    // tag_map of the feed_xml_flat example config in the FeedMaker README
+    private static final String XML_FLAT_TAG_MAP =
+        "[ { \"original_tag\": \"RecordedAtTime\", \"new_tag\": \"acp_ts\", \"format\": \"datetime_iso_to_int_utc_seconds\" },"+
+        "  { \"original_tag\": \"Latitude\", \"new_tag\": \"acp_lat\", \"format\": \"float\" },"+
+        "  { \"original_tag\": \"Longitude\", \"new_tag\": \"acp_lng\", \"format\": \"float\" },"+
+        "  { \"original_tag\": \"VehicleMonitoringRef\", \"new_tag\": \"acp_id\", \"format\": \"string\" } ]";
+
+    // a single parse of a payload, returning the number of records parsed
+    private interface Parse {
+        int run(Buffer buf) throws Exception;
+    }
+
+    private static class Case {
+        String name;
+        String sample;  // path relative to the repo root, or null
+        String capture; // else the name of the -c capture
+        Parse parse;
+
+        Case(String name, String sample, Parse parse)
+        {
+            this.name = name;
+            this.sample = sample;
+            this.parse = parse;
+        }
+
+        static Case captured(String name, String capture, Parse parse)
+        {
+            Case c = new Case(name, null, parse);
+            c.capture = capture;
+            return c;
+        }
+    }
+
+    private static volatile int black_hole; // consumes parse results so they are not optimised away
+
+    public static void main(String[] args) throws Exception
+    {
+        double seconds = 5;
+        String source_dir = ".";
+        HashMap<String,String> captures = new HashMap<String,String>();
+        HashSet<String> selected = new HashSet<String>();
+
+        for (int i=0; i<args.length; i++)
+            {
+                if (args[i].equals("-s") && i+1 < args.length)
+                    {
+                        seconds = Double.parseDouble(args[++i]);
+                    }
+                else if (args[i].equals("-d") && i+1 < args.length)
+                    {
+                        source_dir = args[++i];
+                    }
+                else if (args[i].equals("-c") && i+1 < args.length && args[i+1].indexOf('=') > 0)
+                    {
+                        String capture = args[++i];
+                        int eq = capture.indexOf('=');
+                        captures.put(capture.substring(0, eq), capture.substring(eq + 1));
+                    }
+                else
+                    {
+                        selected.add(args[i]);
+                    }
+            }
+
+        Log logger = new Log(Constants.LOG_WARN);
+
+        System.out.println(String.format("%-24s %10s %8s %9s %9s %9s %12s %8s",
+                                         "case", "ops/s", "MB/s", "p50_us", "p99_us", "max_us", "alloc_B/op", "records"));
+
+        for (Case c : cases(logger))
+            {
+                if (!selected.isEmpty() && !selected.contains(c.name))
+                    {
+                        continue;
+                    }
+                Buffer buf;
+                if (c.sample != null)
+                    {
+                        buf = read_file(Paths.get(source_dir, c.sample));
+                    }
+                else if (captures.containsKey(c.capture))
+                    {
+                        buf = read_capture(Paths.get(captures.get(c.capture)));
+                    }
+                else
+                    {
+                        System.out.println(String.format("%-24s skipped, no capture given (-c %s=<path>)", c.name, c.capture));
+                        continue;
+                    }
+                run_case(c, buf, seconds);
+            }
+    }
+
+    // ************************************************************************
+    // The benchmark cases, one per parser (and feed_type for ParseFeedText)
+    // ************************************************************************
+    private static List<Case> cases(Log logger)
+    {
+        ArrayList<Case> cases = new ArrayList<Case>();
+
+        final ParseFeedGTFS gtfs = new ParseFeedGTFS(feed_config(Constants.FEED_GTFS), logger);
+        cases.add(new Case("feed_gtfs", RECORDED+"post_data.bin",
+                           buf -> records(gtfs.parse(buf), "entities")));
+        cases.add(new Case("feed_gtfs.batch", RECORDED+"post_data.bin",
+                           buf -> batch_size(gtfs.parse_batch(buf))));
+
+        JsonObject xml_flat_config = feed_config(Constants.FEED_XML_FLAT)
+            .put("tag_record", "VehicleActivity")
+            .put("tag_map", new JsonArray(XML_FLAT_TAG_MAP));
+        final ParseFeedXMLFlat xml_flat = new ParseFeedXMLFlat(xml_flat_config, logger);
+        cases.add(Case.captured("feed_xml_flat", "siri_vm",
+                                buf -> records(xml_flat.parse(buf), "request_data")));
+
+        final ParseFeedSiriVM sirivm = new ParseFeedSiriVM(feed_config(Constants.FEED_SIRIVM), logger);
+        cases.add(Case.captured("feed_sirivm", "siri_vm",
+                                buf -> records(sirivm.parse(buf), "entities")));
+        cases.add(Case.captured("feed_sirivm.batch", "siri_vm",
+                                buf -> batch_size(sirivm.parse_batch(buf))));
+
+        for (String feed_type : new String[] { "cam_park_local", "cam_park_rss", "cam_park_carpark" })
+            {
+                final ParseFeedText text = new ParseFeedText(feed_config(feed_type), logger);
+                cases.add(Case.captured(feed_type, feed_type,
+                                        buf -> records(text.parse(buf), "request_data")));
+            }
+
+        final ParseFeedPlain plain = new ParseFeedPlain(feed_config(Constants.FEED_PLAIN), logger);
+        cases.add(new Case("feed_plain", RECORDED+"post_data.bin",
+                           buf -> records(plain.parse(buf), "request_data")));
+
+        final ParseFeedEventbusMsg eventbus_msg = new ParseFeedEventbusMsg(feed_config(Constants.FEED_EVENTBUS_MSG), logger);
+        cases.add(new Case("feed_eventbus_msg", RECORDED+"feed_sample.json",
+                           buf -> records(eventbus_msg.parse(buf), "entities")));
+        // as published by FeedMaker for a "pass_through" feed_eventbus_msg feed
+        final JsonObject relay_fields = new JsonObject()
+            .put("module_name", "feedmaker").put("module_id", "bench").put("feed_id", "bench")
+            .put("filename", "1471277928.123_2016-08-15-17-18-48").put("filepath", "2016/08/15").put("ts", 1471277928L);
+        cases.add(new Case("feed_eventbus_msg.relay", RECORDED+"feed_sample.json",
+                           buf -> JsonSplice.scan(buf).splice(relay_fields).length()));
+
+        return cases;
+    }
+
+    private static JsonObject feed_config(String feed_type)
+    {
+        return new JsonObject().put("feed_id", "bench").put("feed_type", feed_type).put("area_id", "cam");
+    }
+
+    private static int records(JsonObject msg, String array_name)
+    {
+        JsonArray records = msg.getJsonArray(array_name);
+        return records == null ? 1 : records.size();
+    }
+
+    private static int batch_size(PositionBatch batch)
+    {
+        return batch.size();
+    }
+
+    private static Buffer read_file(Path path) throws IOException
+    {
+        return Buffer.buffer(Files.readAllBytes(path));
+    }
+
+    // the capture file at 'path', or if it is a directory its last file by name
+    private static Buffer read_capture(Path path) throws IOException
+    {
+        if (!Files.isDirectory(path))
+            {
+                return read_file(path);
+            }
+        Path latest = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path))
+            {
+                for (Path file : files)
+                    {
+                        if (Files.isRegularFile(file) && (latest == null || file.getFileName().compareTo(latest.getFileName()) > 0))
+                            {
+                                latest = file;
+                            }
+                    }
+            }
+        if (latest == null)
+            {
+                throw new IOException("ParserBench: no capture files in "+path);
+            }
+        return read_file(latest);
+    }
+
+    // ************************************************************************
+    // Warm up, then time each parse of 'buf' for 'seconds' and print the results
+    // ************************************************************************
+    private static void run_case(Case c, Buffer buf, double seconds) throws Exception
+    {
+        long warmup_ns = (long) (seconds * 0.5e9);
+        long measure_ns = (long) (seconds * 1e9);
+
+        int records = 0;
+        long end = System.nanoTime() + warmup_ns;
+        while (System.nanoTime() < end)
+            {
+                records = c.parse.run(buf);
+            }
+
+        long[] times = new long[1024];
+        int count = 0;
+        long allocated_start = allocated_bytes();
+        long start = System.nanoTime();
+        end = start + measure_ns;
+        long now = start;
+        while (now < end)
+            {
+                int r = c.parse.run(buf);
+                long t = System.nanoTime();
+                if (count == times.length)
+                    {
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                times[count++] = t - now;
+                now = t;
+                black_hole += r;
+            }
+        long elapsed = now - start;
+        long allocated = allocated_bytes() - allocated_start;
+
+        Arrays.sort(times, 0, count);
+        double ops = count * 1e9 / elapsed;
+        System.out.println(String.format("%-24s %10.1f %8.1f %9.1f %9.1f %9.1f %12s %8d",
+                                         c.name,
+                                         ops,
+                                         ops * buf.length() / 1e6,
+                                         times[percentile(count, 0.50)] / 1e3,
+                                         times[percentile(count, 0.99)] / 1e3,
+                                         times[count - 1] / 1e3,
+                                         allocated_start < 0 ? "n/a" : String.valueOf(allocated / count),
+                                         records));
+    }
+
+    private static int percentile(int count, double p)
+    {
+        return Math.min(count - 1, (int) Math.ceil(p * count) - 1);
+    }
+
+    // bytes allocated so far by this thread, or -1 if the JVM does not provide it
+    private static long allocated_bytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        return -1;
+    }
+
+} // end ParserBench
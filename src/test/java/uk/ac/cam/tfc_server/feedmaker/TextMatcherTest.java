@@ -0,0 +1,78 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+// TextMatcher, checked against String.indexOf for every pattern and start position
+public class TextMatcherTest extends TestCase
+{
+    private void check(List<String> patterns, String text)
+    {
+        TextMatcher.Matches matches = new TextMatcher(patterns).scan(text);
+
+        for (int id=0; id<patterns.size(); id++)
+            {
+                String p = patterns.get(id);
+                assertEquals("first("+p+")", text.indexOf(p), matches.first(id));
+                for (int from=0; from<=text.length()+1; from++)
+                    {
+                        assertEquals("first_from("+p+","+from+")", text.indexOf(p, from), matches.first_from(id, from));
+                    }
+            }
+    }
+
+    public void testTags()
+    {
+        List<String> patterns = Arrays.asList("<tr>", "</tr>", "<td class=\"count\">", "</td>", "<td");
+        String text = "<table><tr><td>Grand Arcade</td><td class=\"count\">104</td></tr>"+
+                      "<tr><td>Grafton East</td><td class=\"count\">12</td></tr></table>";
+        check(patterns, text);
+    }
+
+    public void testOverlapping()
+    {
+        // patterns that are prefixes, suffixes and repeats of each other
+        List<String> patterns = Arrays.asList("he", "she", "his", "hers", "aa", "aaa", "a");
+        check(patterns, "ushers ahishe aaaaa shehershis");
+    }
+
+    public void testNonAscii()
+    {
+        List<String> patterns = Arrays.asList("café", "été", "€", "té");
+        check(patterns, "café été à 3€, cafè ü tété");
+    }
+
+    public void testNoMatches()
+    {
+        List<String> patterns = Arrays.asList("<item>", "</item>");
+        check(patterns, "");
+        check(patterns, "<items> </ite m> <ITEM>");
+    }
+
+    public void testRandom()
+    {
+        Random random = new Random(42);
+        for (int n=0; n<50; n++)
+            {
+                List<String> patterns = new ArrayList<String>();
+                for (int k=0; k<1 + random.nextInt(6); k++)
+                    {
+                        patterns.add(random_string(random, 1 + random.nextInt(4)));
+                    }
+                check(patterns, random_string(random, random.nextInt(200)));
+            }
+    }
+
+    // a small alphabet, including a non-ASCII char, so there are many matches
+    private static String random_string(Random random, int length)
+    {
+        String alphabet = "ab<>é";
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<length; i++)
+            {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+        return sb.toString();
+    }
+}
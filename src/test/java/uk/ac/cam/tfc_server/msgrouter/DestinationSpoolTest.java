@@ -0,0 +1,173 @@
+package uk.ac.cam.tfc_server.msgrouter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import junit.framework.TestCase;
+
+// DestinationSpool segment rollover, resume after a restart, and eviction at max_bytes
+public class DestinationSpoolTest extends TestCase
+{
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    // records of 1020 bytes, so with the 4-byte length exactly 4096 fill a segment
+    private static final int RECORD_SIZE = 1024;
+    private static final int PER_SEGMENT = SEGMENT_SIZE / RECORD_SIZE;
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("spool_test").resolve("feed_eventbus_msg_xyz");
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        Path parent = dir.getParent();
+        Files.walk(parent).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+
+    private static String record(int i)
+    {
+        char[] padding = new char[RECORD_SIZE - 4 - 8];
+        Arrays.fill(padding, 'x');
+        return String.format("%08d", i) + new String(padding);
+    }
+
+    private long segment_files() throws IOException
+    {
+        if (!Files.isDirectory(dir))
+            {
+                return 0;
+            }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.spool"))
+            {
+                long count = 0;
+                for (Path file : files)
+                    {
+                        count++;
+                    }
+                return count;
+            }
+    }
+
+    public void testEmpty() throws IOException
+    {
+        DestinationSpool spool = new DestinationSpool(dir.toString(), 1024L * 1024 * 1024);
+
+        assertFalse(spool.pending());
+        assertNull(spool.next());
+        assertEquals(0, spool.bytes());
+        assertFalse(Files.exists(dir)); // nothing created until a record is appended
+    }
+
+    public void testRollover() throws IOException
+    {
+        DestinationSpool spool = new DestinationSpool(dir.toString(), 1024L * 1024 * 1024);
+
+        int count = 2 * PER_SEGMENT + 100;
+        for (int i=0; i<count; i++)
+            {
+                spool.append(record(i));
+            }
+        assertTrue(spool.pending());
+        assertEquals(3, segment_files());
+        assertEquals(3L * SEGMENT_SIZE, spool.bytes());
+
+        // a record bigger than a segment gets a segment of its own
+        char[] big = new char[SEGMENT_SIZE + 10];
+        Arrays.fill(big, 'b');
+        spool.append(new String(big));
+        spool.append(record(count));
+        assertEquals(5, segment_files());
+
+        for (int i=0; i<count; i++)
+            {
+                assertEquals(record(i), spool.next());
+                if (i == PER_SEGMENT)
+                    {
+                        // the first segment is deleted once read
+                        assertEquals(4, segment_files());
+                    }
+            }
+        assertEquals(new String(big), spool.next());
+        assertEquals(record(count), spool.next());
+
+        // all read, so the files are deleted
+        assertFalse(spool.pending());
+        assertNull(spool.next());
+        assertEquals(0, segment_files());
+        assertEquals(0, spool.bytes());
+
+        // and the spool can be used again
+        spool.append("again");
+        assertEquals("again", spool.next());
+        assertEquals(0, spool.evicted());
+    }
+
+    public void testResume() throws IOException
+    {
+        DestinationSpool spool = new DestinationSpool(dir.toString(), 1024L * 1024 * 1024);
+        for (int i=0; i<PER_SEGMENT + 10; i++)
+            {
+                spool.append(record(i));
+            }
+        for (int i=0; i<5; i++)
+            {
+                assertEquals(record(i), spool.next());
+            }
+
+        // as after a restart of MsgRouter: continue reading from the cursor, and writing at the end
+        spool = new DestinationSpool(dir.toString(), 1024L * 1024 * 1024);
+        assertTrue(spool.pending());
+        spool.append(record(PER_SEGMENT + 10));
+        for (int i=5; i<=PER_SEGMENT + 10; i++)
+            {
+                assertEquals(record(i), spool.next());
+            }
+        assertFalse(spool.pending());
+    }
+
+    public void testEviction() throws IOException
+    {
+        // room for two segments
+        DestinationSpool spool = new DestinationSpool(dir.toString(), 2L * SEGMENT_SIZE);
+
+        for (int i=0; i<2 * PER_SEGMENT; i++)
+            {
+                spool.append(record(i));
+            }
+        assertEquals(0, spool.evicted());
+        for (int i=0; i<10; i++)
+            {
+                assertEquals(record(i), spool.next());
+            }
+
+        // starting a third segment deletes the first, which the reader was part way through
+        spool.append(record(2 * PER_SEGMENT));
+        assertEquals(1, spool.evicted());
+        assertEquals(0, spool.evicted()); // reset by each call
+        assertEquals(2, segment_files());
+        assertEquals(2L * SEGMENT_SIZE, spool.bytes());
+
+        // reading continues at the oldest record remaining
+        for (int i=PER_SEGMENT; i<=2 * PER_SEGMENT; i++)
+            {
+                assertEquals(record(i), spool.next());
+            }
+        assertFalse(spool.pending());
+
+        // a writer far ahead of the reader keeps evicting the oldest segments
+        for (int i=0; i<5 * PER_SEGMENT; i++)
+            {
+                spool.append(record(i));
+            }
+        assertEquals(3, spool.evicted());
+        assertTrue(spool.bytes() <= 2L * SEGMENT_SIZE);
+        assertEquals(record(3 * PER_SEGMENT), spool.next());
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.cam.tfc_server.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+// BatchReader record splitting of JSON array and NDJSON bodies, received in chunks of every size
+public class BatchReaderTest extends TestCase
+{
+    private static final String[] RECORDS = {
+        "{\"dev_eui\":\"0018b2000000113e\",\"fcnt\":1}",
+        "{\"s\":\"braces } ] { [ and \\\"quotes\\\" in a string\",\"n\":[1,[2,{}]]}",
+        "{\"s\":\"back\\\\slash\\\\\",\"u\":\"café €\"}",
+        "{}"
+    };
+
+    // split 'body' into chunks of 'chunk' bytes, and return the records read
+    private static List<String> read(String body, int chunk)
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        BatchReader reader = new BatchReader();
+        List<String> records = new ArrayList<String>();
+        for (int pos=0; pos<bytes.length; pos+=chunk)
+            {
+                reader.append(Buffer.buffer(Arrays.copyOfRange(bytes, pos, Math.min(bytes.length, pos + chunk))));
+                Buffer record;
+                while ((record = reader.next()) != null)
+                    {
+                        records.add(record.toString());
+                    }
+            }
+        reader.end();
+        return records;
+    }
+
+    private void check(String body)
+    {
+        int length = body.getBytes(StandardCharsets.UTF_8).length;
+        for (int chunk=1; chunk<=length; chunk++)
+            {
+                List<String> records = read(body, chunk);
+                assertEquals("chunk "+chunk, Arrays.asList(RECORDS), records);
+                for (String record : records)
+                    {
+                        new JsonObject(record); // each record is a whole object
+                    }
+            }
+    }
+
+    public void testArray()
+    {
+        check("[" + String.join(",", RECORDS) + "]");
+        check(" \n[\n  " + String.join(" ,\n  ", RECORDS) + "\n]\n");
+    }
+
+    public void testLines()
+    {
+        check(String.join("\n", RECORDS));
+        check(String.join("\r\n", RECORDS) + "\r\n");
+        check("\n" + String.join("\n\n", RECORDS) + "\n\n");
+    }
+
+    public void testEmpty()
+    {
+        assertEquals(0, read("[]", 1).size());
+        assertEquals(0, read(" [ ] ", 2).size());
+        assertEquals(0, read("", 1).size());
+    }
+
+    public void testMalformed()
+    {
+        String[] bad = { "[{\"a\":1}", "[{\"a\":1} {\"b\":2}]", "[{\"a\":1}],{}", "{\"a\":1", "[1,2]", "x", "[{\"a\":1},]" };
+        for (String body : bad)
+            {
+                try
+                    {
+                        read(body, 3);
+                        fail("accepted "+body);
+                    }
+                catch (IllegalArgumentException e)
+                    {
+                        // expected
+                    }
+            }
+    }
+}
@@ -0,0 +1,171 @@
+package uk.ac.cam.tfc_server.util;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import junit.framework.TestCase;
+
+// DayIndex.first_after, the index file round trip, and load_blocking with stale indexes and a cache
+public class DayIndexTest extends TestCase
+{
+    private DayIndex sample()
+    {
+        // given out of order, as from readDir, and as filepaths
+        return DayIndex.from_files(Arrays.asList(
+                    "/data/2016/03/07/1457334030_2016-03-07-07-00-30.bin",
+                    "/data/2016/03/07/1457334000_2016-03-07-07-00-00.bin",
+                    "/data/2016/03/07/1457334014_2016-03-07-07-00-14.bin",
+                    "/data/2016/03/07/1457334060_2016-03-07-07-01-00.bin"));
+    }
+
+    public void testSorted()
+    {
+        DayIndex index = sample();
+
+        assertEquals(4, index.size());
+        assertEquals(1457334000L, index.ts(0));
+        assertEquals(1457334014L, index.ts(1));
+        assertEquals(1457334030L, index.ts(2));
+        assertEquals(1457334060L, index.ts(3));
+        assertEquals("1457334014_2016-03-07-07-00-14.bin", index.filename(1));
+        assertEquals("1457334014_2016-03-07-07-00-14", index.basename(1));
+    }
+
+    public void testFirstAfter()
+    {
+        DayIndex index = sample();
+
+        assertEquals(0, index.first_after(0));
+        assertEquals(0, index.first_after(1457333999));
+        // strictly later: a file at exactly 'after_ts' is not included
+        assertEquals(1, index.first_after(1457334000));
+        assertEquals(1, index.first_after(1457334001));
+        assertEquals(2, index.first_after(1457334014));
+        assertEquals(3, index.first_after(1457334059));
+        assertEquals(4, index.first_after(1457334060));
+        assertEquals(4, index.first_after(Long.MAX_VALUE));
+    }
+
+    public void testFirstAfterMatchesLinearScan()
+    {
+        DayIndex index = sample();
+
+        for (long ts=1457333990; ts<1457334070; ts++)
+            {
+                int expected = 0;
+                while (expected < index.size() && index.ts(expected) <= ts)
+                    {
+                        expected++;
+                    }
+                assertEquals("first_after("+ts+")", expected, index.first_after(ts));
+            }
+    }
+
+    public void testFirstAfterEmpty()
+    {
+        DayIndex index = DayIndex.from_files(Arrays.<String>asList());
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.first_after(1457334000));
+    }
+
+    public void testParse()
+    {
+        DayIndex index = sample();
+
+        DayIndex parsed = DayIndex.parse(index.to_buffer());
+
+        assertEquals(index.size(), parsed.size());
+        for (int i=0; i<index.size(); i++)
+            {
+                assertEquals(index.ts(i), parsed.ts(i));
+                assertEquals(index.filename(i), parsed.filename(i));
+            }
+        assertEquals(2, parsed.first_after(1457334014));
+    }
+
+    // ************************************************************************
+    // load_blocking
+    // ************************************************************************
+
+    private Path root;
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        if (root != null)
+            {
+                Files.walk(root).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+    }
+
+    private static void touch(Path path, long seconds) throws IOException
+    {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(seconds * 1000));
+    }
+
+    public void testLoadStaleIndex() throws IOException
+    {
+        root = Files.createTempDirectory("day_index_test");
+        Path dir = root.resolve("2016/03/07");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("1457334000_2016-03-07-07-00-00.bin"), new byte[1]);
+        Files.write(dir.resolve("1457334014_2016-03-07-07-00-14.bin"), new byte[1]);
+
+        // an index listing only the first file, written after the directory was last modified
+        Files.write(dir.resolve(DayIndex.INDEX_FILENAME), "1457334000 1457334000_2016-03-07-07-00-00.bin\n".getBytes());
+        touch(dir, 1000);
+        touch(dir.resolve(DayIndex.INDEX_FILENAME), 1000);
+        assertEquals(1, DayIndex.load_blocking(dir.toString(), null).size());
+
+        // a file added since, without an index line, so the index is not used
+        touch(dir, 1001);
+        DayIndex index = DayIndex.load_blocking(dir.toString(), null);
+        assertEquals(2, index.size());
+        assertEquals(1457334014L, index.ts(1));
+
+        assertNull(DayIndex.load_blocking(root.resolve("2016/03/08").toString(), null));
+    }
+
+    public void testLoadCache() throws IOException
+    {
+        root = Files.createTempDirectory("day_index_test");
+        Path dir = root.resolve("archive/2016/03/07");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("1457334000_2016-03-07-07-00-00.bin"), new byte[1]);
+        touch(dir, 1000);
+        Path cache = root.resolve("cache/2016/03/07/"+DayIndex.INDEX_FILENAME);
+
+        // rebuilt and saved to the cache, not the archive
+        assertEquals(1, DayIndex.load_blocking(dir.toString(), cache.toString()).size());
+        assertTrue(Files.exists(cache));
+        assertFalse(Files.exists(dir.resolve(DayIndex.INDEX_FILENAME)));
+
+        // the cache is used while it is newer than the directory
+        Files.write(cache, "1457334000 1457334000_2016-03-07-07-00-00.bin\n1457334001 cached.bin\n".getBytes());
+        assertEquals("cached.bin", DayIndex.load_blocking(dir.toString(), cache.toString()).filename(1));
+
+        // and rebuilt once the directory changes
+        Files.write(dir.resolve("1457334014_2016-03-07-07-00-14.bin"), new byte[1]);
+        touch(cache, 1000);
+        touch(dir, 1001);
+        DayIndex index = DayIndex.load_blocking(dir.toString(), cache.toString());
+        assertEquals("1457334014_2016-03-07-07-00-14.bin", index.filename(1));
+    }
+
+    public void testLoadCacheNotWritable() throws IOException
+    {
+        root = Files.createTempDirectory("day_index_test");
+        Path dir = root.resolve("2016/03/07");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("1457334000_2016-03-07-07-00-00.bin"), new byte[1]);
+        Files.write(root.resolve("not_a_dir"), new byte[1]);
+
+        // the cache cannot be created (its parent is a file), but the rebuilt index is returned
+        DayIndex index = DayIndex.load_blocking(dir.toString(), root.resolve("not_a_dir/"+DayIndex.INDEX_FILENAME).toString());
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,78 @@
+package uk.ac.cam.tfc_server.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import junit.framework.TestCase;
+
+// FeedDedup repeat detection, per feed and within the window
+public class FeedDedupTest extends TestCase
+{
+    private static Buffer buf(String s)
+    {
+        return Buffer.buffer(s);
+    }
+
+    public void testRepeat()
+    {
+        FeedDedup dedup = new FeedDedup(1);
+
+        assertFalse(dedup.duplicate("feed_a", buf("100")));
+        assertTrue(dedup.duplicate("feed_a", buf("100")));
+        assertTrue(dedup.duplicate("feed_a", buf("100")));
+        assertFalse(dedup.duplicate("feed_a", buf("101")));
+    }
+
+    public void testReturnToEarlierContent()
+    {
+        // with the default window of 1, A -> B -> A publishes the return to A
+        FeedDedup dedup = new FeedDedup(1);
+
+        assertFalse(dedup.duplicate("feed_a", buf("100")));
+        assertFalse(dedup.duplicate("feed_a", buf("101")));
+        assertFalse(dedup.duplicate("feed_a", buf("100")));
+    }
+
+    public void testWindow()
+    {
+        FeedDedup dedup = new FeedDedup(2);
+
+        assertFalse(dedup.duplicate("feed_a", buf("A")));
+        assertFalse(dedup.duplicate("feed_a", buf("B")));
+        assertTrue(dedup.duplicate("feed_a", buf("A")));
+        assertTrue(dedup.duplicate("feed_a", buf("B")));
+        // C pushes A out of the window
+        assertFalse(dedup.duplicate("feed_a", buf("C")));
+        assertFalse(dedup.duplicate("feed_a", buf("A")));
+        assertTrue(dedup.duplicate("feed_a", buf("C")));
+    }
+
+    public void testFeedsSeparate()
+    {
+        FeedDedup dedup = new FeedDedup(1);
+
+        assertFalse(dedup.duplicate("feed_a", buf("100")));
+        assertFalse(dedup.duplicate("feed_b", buf("100")));
+        assertTrue(dedup.duplicate("feed_b", buf("100")));
+    }
+
+    public void testMetrics()
+    {
+        FeedDedup dedup = new FeedDedup(1);
+
+        dedup.duplicate("feed_a", buf("100"));
+        dedup.duplicate("feed_a", buf("100"));
+        dedup.duplicate("feed_a", buf("101"));
+        dedup.duplicate("feed_b", buf("1"));
+
+        JsonObject metrics = dedup.metrics();
+        assertEquals(3L, (long) metrics.getJsonObject("feed_a").getLong("checked"));
+        assertEquals(1L, (long) metrics.getJsonObject("feed_a").getLong("hits"));
+        assertEquals(1L, (long) metrics.getJsonObject("feed_b").getLong("checked"));
+        assertEquals(0L, (long) metrics.getJsonObject("feed_b").getLong("hits"));
+
+        // counts are reset by each call
+        metrics = dedup.metrics();
+        assertEquals(0L, (long) metrics.getJsonObject("feed_a").getLong("checked"));
+    }
+}
@@ -0,0 +1,132 @@
+package uk.ac.cam.tfc_server.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import junit.framework.TestCase;
+
+// JsonSplice.get_long and splice, checked against the same change made to a decoded JsonObject
+public class JsonSpliceTest extends TestCase
+{
+    private static final String MSG =
+        "{ \"module_name\": \"everynet_feed\", \"acp_hop_count\": 2,\n"+
+        "  \"payload\": { \"a\": [1, 2, {\"b\": \"}]\"}], \"c\": \"\\\"{\" },\n"+
+        "  \"negative\": -17, \"float\": 1.5, \"exp\": 1e3, \"text\": \"42\",\n"+
+        "  \"whole\": 3.0, \"big\": 12345678901234567890,\n"+
+        "  \"flag\": true, \"none\": null, \"list\": [ ], \"feed_id\": \"old\" }";
+
+    private static JsonSplice scan(String s)
+    {
+        return JsonSplice.scan(Buffer.buffer(s));
+    }
+
+    public void testGetLong()
+    {
+        JsonSplice splice = scan(MSG);
+
+        assertEquals(13, splice.size());
+        assertTrue(splice.contains("payload"));
+        assertFalse(splice.contains("a")); // nested, not top-level
+
+        assertEquals(2, splice.get_long("acp_hop_count", 0));
+        assertEquals(-17, splice.get_long("negative", 0));
+        // other forms of an integer
+        assertEquals(1000, splice.get_long("exp", -1));
+        assertEquals(3, splice.get_long("whole", -1));
+        // missing or null
+        assertEquals(7, splice.get_long("missing", 7));
+        assertEquals(-1, splice.get_long("none", -1));
+    }
+
+    public void testGetLongNotInteger()
+    {
+        JsonSplice splice = scan(MSG);
+
+        // not integers, or out of range, so not read as the default
+        String[] keys = { "float", "big", "text", "flag", "payload", "list" };
+        for (String key : keys)
+            {
+                try
+                    {
+                        splice.get_long(key, -1);
+                        fail("accepted "+key);
+                    }
+                catch (IllegalArgumentException e)
+                    {
+                        // expected
+                    }
+            }
+    }
+
+    public void testSlice()
+    {
+        // a Buffer sharing its array at an offset, as for part of a received body
+        Buffer whole = Buffer.buffer("xx{\"acp_hop_count\":4,\"a\":[1]}yy");
+        Buffer slice = whole.slice(2, whole.length() - 2);
+        JsonSplice splice = JsonSplice.scan(slice);
+
+        assertEquals(4, splice.get_long("acp_hop_count", 0));
+        assertEquals("{\"a\":[1],\"acp_hop_count\":5}", splice.splice(new JsonObject().put("acp_hop_count", 5)).toString());
+    }
+
+    public void testGetLongDuplicateKey()
+    {
+        // the last occurrence, as for new JsonObject()
+        assertEquals(3, scan("{\"n\":1,\"n\":3}").get_long("n", 0));
+    }
+
+    public void testSplice()
+    {
+        JsonObject fields = new JsonObject();
+        fields.put("acp_hop_count", 3);
+        fields.put("feed_id", "new");
+        fields.put("acp_ts", 1508063941L);
+        fields.put("nested", new JsonObject().put("x", new JsonArray().add("y")));
+
+        Buffer out = scan(MSG).splice(fields);
+
+        JsonObject expected = new JsonObject(MSG);
+        for (String key : fields.fieldNames())
+            {
+                expected.put(key, fields.getValue(key));
+            }
+        // re-parsed, so the numbers in both have the types the parser gives them
+        assertEquals(new JsonObject(expected.encode()), new JsonObject(out.toString()));
+
+        // replaced members are not repeated
+        assertEquals(expected.size(), scan(out.toString()).size());
+    }
+
+    public void testSpliceEmpty()
+    {
+        assertEquals(new JsonObject().put("a", 1), new JsonObject(scan("  { }  ").splice(new JsonObject().put("a", 1)).toString()));
+        assertEquals(new JsonObject(MSG), new JsonObject(scan(MSG).splice(new JsonObject()).toString()));
+    }
+
+    public void testSpliceUnicode()
+    {
+        String msg = "{\"name\":\"café €\",\"n\":1}";
+
+        Buffer out = scan(msg).splice(new JsonObject().put("n", 2));
+
+        assertEquals(new JsonObject().put("name", "café €").put("n", 2), new JsonObject(out.toString()));
+    }
+
+    public void testNotAnObject()
+    {
+        String[] bad = { "", "[1,2]", "{\"a\":1", "{\"a\" 1}", "{\"a\":[1,2}", "{\"a\":\"x}", "{a:1}" };
+        for (String s : bad)
+            {
+                try
+                    {
+                        scan(s);
+                        fail("scan accepted "+s);
+                    }
+                catch (IllegalArgumentException e)
+                    {
+                        // expected
+                    }
+            }
+    }
+}
@@ -0,0 +1,97 @@
+package uk.ac.cam.tfc_server.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import junit.framework.TestCase;
+
+// PositionBatch binary encoding round trip, checked against the JSON view
+public class PositionBatchTest extends TestCase
+{
+    private PositionBatch sample(boolean platform_fields)
+    {
+        JsonObject header = new JsonObject();
+        header.put("module_name", "feedmaker");
+        header.put("msg_type", "feed_gtfs_vehicle");
+        header.put("feed_id", "gccd_bus");
+        header.put("ts", 1508063941);
+        PositionBatch batch = new PositionBatch(header, platform_fields);
+
+        // a complete entity
+        int i = batch.add_entity();
+        batch.set_string(i, PositionBatch.VEHICLE_ID, "SCCM-19598");
+        batch.set_string(i, PositionBatch.LABEL, "SCCM-19598");
+        batch.set_string(i, PositionBatch.TRIP_ID, "trip_1");
+        batch.set_string(i, PositionBatch.ROUTE_ID, "route_1");
+        batch.set_string(i, PositionBatch.STOP_ID, "0500CCITY423");
+        batch.set_float(i, PositionBatch.LATITUDE, 52.2053f);
+        batch.set_float(i, PositionBatch.LONGITUDE, 0.1218f);
+        batch.set_float(i, PositionBatch.BEARING, 270.0f);
+        batch.set_timestamp(i, 1508063900);
+        batch.set_received_timestamp(i, 1508063941);
+        batch.set_current_stop_sequence(i, 12);
+
+        // a sparse entity, sharing a string with the first
+        i = batch.add_entity();
+        batch.set_string(i, PositionBatch.VEHICLE_ID, "SCCM-19600");
+        batch.set_string(i, PositionBatch.ROUTE_ID, "route_1");
+        batch.set_float(i, PositionBatch.LATITUDE, -52.5f);
+        batch.set_float(i, PositionBatch.LONGITUDE, -0.25f);
+        batch.set_timestamp(i, 1508063800);
+
+        // an entity with no fields
+        batch.add_entity();
+        return batch;
+    }
+
+    private void check_round_trip(PositionBatch batch)
+    {
+        Buffer buf = Buffer.buffer();
+        buf.appendString("prefix");
+        batch.encode(buf);
+
+        PositionBatch decoded = PositionBatch.decode(buf, "prefix".length());
+
+        assertEquals(batch.size(), decoded.size());
+        assertEquals(batch.platform_fields(), decoded.platform_fields());
+        for (int i=0; i<batch.size(); i++)
+            {
+                for (int field=0; field<PositionBatch.FIELDS.length; field++)
+                    {
+                        assertEquals(batch.has(i, field), decoded.has(i, field));
+                    }
+            }
+        assertEquals(batch.to_json(), decoded.to_json());
+        assertEquals(batch.toString(), decoded.toString());
+    }
+
+    public void testRoundTrip()
+    {
+        check_round_trip(sample(false));
+    }
+
+    public void testRoundTripPlatformFields()
+    {
+        PositionBatch batch = sample(true);
+        check_round_trip(batch);
+
+        JsonObject entity = batch.to_json().getJsonArray("entities").getJsonObject(0);
+        assertEquals("SCCM-19598", entity.getString("acp_id"));
+    }
+
+    public void testRoundTripEmpty()
+    {
+        check_round_trip(new PositionBatch(new JsonObject().put("feed_id", "empty"), false));
+    }
+
+    public void testJsonBody()
+    {
+        PositionBatch batch = sample(false);
+        JsonObject json = batch.to_json();
+
+        assertEquals(json, PositionBatch.json_body(batch));
+        assertEquals(json, PositionBatch.json_body(json));
+        // parsed from a string the floats come back as doubles, so compare the encoded forms
+        assertEquals(json.encode(), PositionBatch.json_body(json.encode()).encode());
+    }
+}
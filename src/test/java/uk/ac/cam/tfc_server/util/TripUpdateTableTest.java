@@ -0,0 +1,213 @@
+package uk.ac.cam.tfc_server.util;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+
+import junit.framework.TestCase;
+
+// TripUpdateTable change messages for FULL_DATASET and DIFFERENTIAL feeds
+public class TripUpdateTableTest extends TestCase
+{
+    private static FeedMessage.Builder feed(boolean differential, long timestamp)
+    {
+        FeedHeader.Builder header = FeedHeader.newBuilder();
+        header.setGtfsRealtimeVersion("2.0");
+        header.setIncrementality(differential ? FeedHeader.Incrementality.DIFFERENTIAL
+                                              : FeedHeader.Incrementality.FULL_DATASET);
+        header.setTimestamp(timestamp);
+        return FeedMessage.newBuilder().setHeader(header);
+    }
+
+    // add a trip update with one stop, arriving at 'arrival_time'
+    private static void trip(FeedMessage.Builder feed, String id, long arrival_time, long timestamp)
+    {
+        TripUpdate.Builder trip_update = TripUpdate.newBuilder();
+        trip_update.setTrip(TripDescriptor.newBuilder().setTripId("trip_"+id).setRouteId("route_1"));
+        trip_update.setTimestamp(timestamp);
+        trip_update.addStopTimeUpdate(StopTimeUpdate.newBuilder()
+                                      .setStopSequence(3)
+                                      .setStopId("0500CCITY423")
+                                      .setArrival(StopTimeEvent.newBuilder().setTime(arrival_time)));
+        feed.addEntity(FeedEntity.newBuilder().setId(id).setTripUpdate(trip_update));
+    }
+
+    private static void delete(FeedMessage.Builder feed, String id)
+    {
+        feed.addEntity(FeedEntity.newBuilder().setId(id).setIsDeleted(true));
+    }
+
+    private static JsonObject apply(TripUpdateTable table, FeedMessage.Builder feed)
+    {
+        return table.apply(TripUpdateTable.decode(feed.build()));
+    }
+
+    private static Set<String> entity_ids(JsonArray trip_updates)
+    {
+        Set<String> ids = new HashSet<String>();
+        for (int i=0; i<trip_updates.size(); i++)
+            {
+                ids.add(trip_updates.getJsonObject(i).getString("entity_id"));
+            }
+        return ids;
+    }
+
+    private static Set<String> ids(String... ids)
+    {
+        return new HashSet<String>(Arrays.asList(ids));
+    }
+
+    private static Set<String> strings(JsonArray array)
+    {
+        Set<String> set = new HashSet<String>();
+        for (int i=0; i<array.size(); i++)
+            {
+                set.add(array.getString(i));
+            }
+        return set;
+    }
+
+    public void testDecode()
+    {
+        FeedMessage.Builder feed = feed(true, 1000);
+        trip(feed, "A", 1600, 990);
+        delete(feed, "B");
+
+        TripUpdateTable.Decoded decoded = TripUpdateTable.decode(feed.build());
+
+        assertTrue(decoded.differential);
+        assertEquals(Long.valueOf(1000), decoded.timestamp);
+        assertEquals(Arrays.asList("B"), decoded.deleted);
+        JsonObject a = decoded.trip_updates.get("A");
+        assertEquals("trip_A", a.getString("trip_id"));
+        assertEquals("route_1", a.getString("route_id"));
+        JsonObject stop = a.getJsonArray("stop_time_updates").getJsonObject(0);
+        assertEquals(3, (int) stop.getInteger("stop_sequence"));
+        assertEquals(1600L, (long) stop.getLong("arrival_time"));
+    }
+
+    public void testFullDataset()
+    {
+        TripUpdateTable table = new TripUpdateTable(3, 0);
+
+        // first message is a keyframe
+        FeedMessage.Builder feed = feed(false, 1000);
+        trip(feed, "A", 1600, 990);
+        trip(feed, "B", 1700, 990);
+        JsonObject msg = apply(table, feed);
+        assertEquals(Constants.FEED_TRIP_UPDATE, msg.getString("msg_type"));
+        assertEquals("FULL_DATASET", msg.getString("incrementality"));
+        assertTrue(msg.getBoolean("keyframe"));
+        assertEquals(2, (int) msg.getInteger("trips"));
+        assertEquals(ids("A", "B"), entity_ids(msg.getJsonArray("trip_updates")));
+        assertEquals(0, msg.getJsonArray("deleted").size());
+
+        // A changed, B only re-timestamped, C new, so B is not sent
+        feed = feed(false, 1030);
+        trip(feed, "A", 1620, 1020);
+        trip(feed, "B", 1700, 1020);
+        trip(feed, "C", 1800, 1020);
+        msg = apply(table, feed);
+        assertFalse(msg.getBoolean("keyframe"));
+        assertEquals(3, (int) msg.getInteger("trips"));
+        assertEquals(ids("A", "C"), entity_ids(msg.getJsonArray("trip_updates")));
+        assertEquals(0, msg.getJsonArray("deleted").size());
+
+        // B missing, so deleted
+        feed = feed(false, 1060);
+        trip(feed, "A", 1620, 1050);
+        trip(feed, "C", 1800, 1050);
+        msg = apply(table, feed);
+        assertFalse(msg.getBoolean("keyframe"));
+        assertEquals(2, (int) msg.getInteger("trips"));
+        assertEquals(0, msg.getJsonArray("trip_updates").size());
+        assertEquals(ids("B"), strings(msg.getJsonArray("deleted")));
+
+        // keyframe: the whole table, even though only C was deleted
+        feed = feed(false, 1090);
+        trip(feed, "A", 1620, 1080);
+        msg = apply(table, feed);
+        assertTrue(msg.getBoolean("keyframe"));
+        assertEquals(1, (int) msg.getInteger("trips"));
+        assertEquals(ids("A"), entity_ids(msg.getJsonArray("trip_updates")));
+        assertEquals(0, msg.getJsonArray("deleted").size());
+
+        // nothing changed
+        feed = feed(false, 1120);
+        trip(feed, "A", 1620, 1110);
+        assertNull(apply(table, feed));
+
+        JsonObject metrics = table.metrics();
+        assertEquals(1, (int) metrics.getInteger("trips"));
+        assertEquals(9L, (long) metrics.getLong("updates_in"));
+        assertEquals(4L, (long) metrics.getLong("changed"));
+        assertEquals(2L, (long) metrics.getLong("deleted"));
+    }
+
+    public void testDifferential()
+    {
+        TripUpdateTable table = new TripUpdateTable(100, 0);
+
+        FeedMessage.Builder feed = feed(true, 1000);
+        trip(feed, "A", 1600, 990);
+        trip(feed, "B", 1700, 990);
+        JsonObject msg = apply(table, feed);
+        assertEquals("DIFFERENTIAL", msg.getString("incrementality"));
+        assertTrue(msg.getBoolean("keyframe"));
+        assertEquals(2, (int) msg.getInteger("trips"));
+
+        // only C given: A and B are unchanged, not deleted
+        feed = feed(true, 1030);
+        trip(feed, "C", 1800, 1020);
+        msg = apply(table, feed);
+        assertFalse(msg.getBoolean("keyframe"));
+        assertEquals(3, (int) msg.getInteger("trips"));
+        assertEquals(ids("C"), entity_ids(msg.getJsonArray("trip_updates")));
+        assertEquals(0, msg.getJsonArray("deleted").size());
+
+        // A deleted (the entity may omit its trip_update), B changed, and an unknown id deleted
+        feed = feed(true, 1060);
+        delete(feed, "A");
+        delete(feed, "X");
+        trip(feed, "B", 1710, 1050);
+        msg = apply(table, feed);
+        assertEquals(2, (int) msg.getInteger("trips"));
+        assertEquals(ids("B"), entity_ids(msg.getJsonArray("trip_updates")));
+        assertEquals(ids("A"), strings(msg.getJsonArray("deleted")));
+
+        // an empty message changes nothing
+        assertNull(apply(table, feed(true, 1090)));
+    }
+
+    public void testDifferentialExpire()
+    {
+        TripUpdateTable table = new TripUpdateTable(100, 60);
+
+        FeedMessage.Builder feed = feed(true, 1000);
+        trip(feed, "A", 1600, 990);
+        trip(feed, "B", 1700, 990);
+        apply(table, feed);
+
+        // B updated, A not for 60 seconds: not yet expired
+        feed = feed(true, 1060);
+        trip(feed, "B", 1710, 1050);
+        JsonObject msg = apply(table, feed);
+        assertEquals(2, (int) msg.getInteger("trips"));
+        assertEquals(0, msg.getJsonArray("deleted").size());
+
+        // A not updated for more than 60 seconds
+        msg = apply(table, feed(true, 1061));
+        assertEquals(1, (int) msg.getInteger("trips"));
+        assertEquals(0, msg.getJsonArray("trip_updates").size());
+        assertEquals(ids("A"), strings(msg.getJsonArray("deleted")));
+    }
+}